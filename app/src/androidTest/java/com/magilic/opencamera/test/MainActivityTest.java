@@ -17,6 +17,7 @@ import java.util.Set;
 
 import com.magilic.opencamera.LocationSupplier;
 import com.magilic.opencamera.cameracontroller.CameraController2;
+import com.magilic.opencamera.FeatureDetector;
 import com.magilic.opencamera.HDRProcessor;
 import com.magilic.opencamera.HDRProcessorException;
 import com.magilic.opencamera.ImageSaver;
@@ -16991,6 +16992,52 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         subTestPanorama(inputs, output_name, null, panorama_pics_per_screen, camera_angle_x, camera_angle_y, 2.0f);
     }
 
+    /** Benchmarks FeatureDetector on consecutive pairs of the test samples "testPanorama1".
+     */
+    public void testFeatureDetectorPerformance() throws IOException {
+        Log.d(TAG, "testFeatureDetectorPerformance");
+
+        final int n_images = 4;
+        final int max_width = 400; // as for matching in PanoramaProcessor
+        float [] prev_grey = null;
+        FeatureDetector.Features prev_features = null;
+        long total_greyscale_time = 0, total_detect_time = 0, total_match_time = 0;
+        for(int i=0;i<n_images;i++) {
+            Bitmap bitmap = getBitmapFromFile(panorama_images_path + "testPanorama1/input" + i + ".jpg");
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int [] pixels = new int[width*height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            bitmap.recycle();
+            int scale = 1;
+            while( width/scale > max_width )
+                scale *= 2;
+            int grey_width = width/scale;
+            int grey_height = height/scale;
+
+            long time_s = System.currentTimeMillis();
+            float [] grey = FeatureDetector.createGreyscale(pixels, width, height, scale);
+            total_greyscale_time += System.currentTimeMillis() - time_s;
+            time_s = System.currentTimeMillis();
+            FeatureDetector.Features features = FeatureDetector.detectFeatures(grey, grey_width, grey_height, 0, grey_width, Math.max(8, grey_width/12), 4, 0);
+            total_detect_time += System.currentTimeMillis() - time_s;
+            Log.d(TAG, "image " + i + " has " + features.getNFeatures() + " features");
+            assertTrue(features.getNFeatures() > 0);
+            if( prev_grey != null ) {
+                // the images were taken with 2 pictures per screen, so expect an offset of about half the width
+                time_s = System.currentTimeMillis();
+                FeatureDetector.Matches matches = FeatureDetector.matchFeatures(prev_grey, prev_features, grey, features, grey_width, grey_height, grey_width/2, 0, grey_width/8, 4);
+                total_match_time += System.currentTimeMillis() - time_s;
+                Log.d(TAG, "images " + (i-1) + " and " + i + " have " + matches.getNMatches() + " matches");
+            }
+            prev_grey = grey;
+            prev_features = features;
+        }
+        Log.d(TAG, "total time for greyscale: " + total_greyscale_time + "ms");
+        Log.d(TAG, "total time for detection: " + total_detect_time + "ms");
+        Log.d(TAG, "total time for matching: " + total_match_time + "ms");
+    }
+
     /** Tests panorama algorithm on test samples "testPanorama2".
      */
     public void testPanorama2() throws IOException, InterruptedException {
@@ -54,6 +54,7 @@ public class PanoramaTests {
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPanorama36"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPanorama37"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testPanorama38"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testFeatureDetectorPerformance"));
         return suite;
     }
 }
@@ -0,0 +1,344 @@
+package com.magilic.opencamera;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/** Keeps only the n_keep best images of a burst, for the "keep sharpest" option of fast burst
+ *  mode. Images are passed to addImage() as they arrive, and are scored on background threads
+ *  straight away. Once more than n_keep images have been scored, the data of the lowest scoring
+ *  image is released. addImage() never blocks, so if the burst arrives faster than images can be
+ *  scored, the images pile up; the images held are charged to the ImageSaver's memory budget, and
+ *  once that is used up, further images are spilled to disk until they have been scored.
+ *  When the burst is complete, call finish(): once all images have been scored, the kept images
+ *  are passed to the callback, in the order they were captured.
+ */
+public class BurstSelector {
+    private static final String TAG = "BurstSelector";
+
+    private static final int n_threads_c = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors()/2));
+    private static ExecutorService executor;
+
+    /** Computes the score of an image, where higher is better.
+     */
+    public interface Scorer {
+        float computeScore(byte [] jpeg);
+    }
+
+    public interface Callback {
+        /** Called on a background thread, once finish() has been called and all images have been
+         *  scored.
+         * @param images The kept images, in the order they were captured.
+         */
+        void onSelected(List<Frame> images);
+    }
+
+    public static class Frame {
+        public final int index; // the index of the image in the burst, starting from 0
+        public final Date date;
+        private byte [] data; // null if the image has been discarded or spilled
+        private SpillStore.Handle spilled; // non-null if the image has been spilled to disk
+        private long charged_bytes; // the number of bytes charged to the memory budget for this image
+        private float score;
+        private boolean scored;
+
+        private Frame(int index, byte [] data, Date date) {
+            this.index = index;
+            this.data = data;
+            this.date = date;
+        }
+
+        /** Returns the image data. For the frames passed to Callback.onSelected(), this is always
+         *  in memory.
+         */
+        public byte [] getData() {
+            return data;
+        }
+
+        private boolean isHeld() {
+            return data != null || spilled != null;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+
+    private final int n_keep;
+    private final Scorer scorer;
+    private final SaveMemoryBudget memory_budget;
+    private final SpillStore spill_store;
+    private final List<Frame> frames = new ArrayList<>();
+    private int n_pending; // number of images still being scored
+    private Callback callback; // set by finish()
+    private boolean cancelled; // set by cancel()
+
+    /**
+     * @param n_keep The maximum number of images to keep.
+     * @param scorer Used to score the images. This is called on background threads, possibly
+     *               for more than one image at a time.
+     * @param memory_budget If non-null, the images held are charged to this budget, until they're
+     *                      discarded, or passed to the callback.
+     * @param spill_store If non-null, images are spilled to this store rather than charged to
+     *                    memory_budget, when the budget is used up.
+     */
+    public BurstSelector(int n_keep, Scorer scorer, SaveMemoryBudget memory_budget, SpillStore spill_store) {
+        if( n_keep <= 0 ) {
+            throw new IllegalArgumentException("n_keep must be positive: " + n_keep);
+        }
+        this.n_keep = n_keep;
+        this.scorer = scorer;
+        this.memory_budget = memory_budget;
+        this.spill_store = spill_store;
+    }
+
+    public BurstSelector(int n_keep, Scorer scorer) {
+        this(n_keep, scorer, null, null);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if( executor == null ) {
+            final AtomicInteger thread_count = new AtomicInteger();
+            ThreadFactory thread_factory = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BurstSelector-" + thread_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            executor = Executors.newFixedThreadPool(n_threads_c, thread_factory);
+        }
+        return executor;
+    }
+
+    /** Adds the next image of the burst, and starts scoring it in the background. This doesn't
+     *  block (other than for spilling the image to disk if the memory budget is used up), so is
+     *  safe to call from the camera's callbacks.
+     */
+    public void addImage(byte [] data, Date date) {
+        final Frame frame;
+        synchronized( this ) {
+            if( callback != null || cancelled ) {
+                throw new IllegalStateException("already finished");
+            }
+            frame = new Frame(frames.size(), data, date);
+            frames.add(frame);
+            n_pending++;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "addImage: " + frame.index);
+        hold(frame);
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                float score = 0.0f;
+                try {
+                    score = scorer.computeScore(readData(frame));
+                }
+                catch(IOException | RuntimeException e) {
+                    // still count it as scored, so that we don't wait forever for it
+                    Log.e(TAG, "failed to score image " + frame.index);
+                    e.printStackTrace();
+                }
+                onScored(frame, score);
+            }
+        });
+    }
+
+    /** Charges a new image to the memory budget, or if the budget is used up, spills it to disk.
+     *  The image is already in memory, so it's charged even if this exceeds the budget, rather than
+     *  blocking: the ImageSaver then waits for it to be released before accepting more requests.
+     */
+    private void hold(Frame frame) {
+        if( memory_budget == null ) {
+            return;
+        }
+        int n_bytes = frame.data.length;
+        if( spill_store != null && memory_budget.wouldBlock(n_bytes) && spill_store.canSpill(n_bytes) ) {
+            try {
+                SpillStore.Handle handle = spill_store.write(frame.data);
+                synchronized( this ) {
+                    frame.spilled = handle;
+                    frame.data = null;
+                }
+                if( MyDebug.LOG )
+                    Log.d(TAG, "spilled image " + frame.index);
+                return;
+            }
+            catch(IOException e) {
+                Log.e(TAG, "failed to spill image " + frame.index);
+                e.printStackTrace();
+            }
+        }
+        synchronized( this ) {
+            frame.charged_bytes = n_bytes;
+        }
+        memory_budget.acquireNow(n_bytes);
+    }
+
+    /** Returns the data of an image, reading it back from disk if it was spilled (the spilled copy
+     *  is kept).
+     */
+    private byte [] readData(Frame frame) throws IOException {
+        byte [] data;
+        SpillStore.Handle spilled;
+        synchronized( this ) {
+            data = frame.data;
+            spilled = frame.spilled;
+        }
+        if( data == null && spilled != null ) {
+            data = spill_store.read(spilled);
+        }
+        return data;
+    }
+
+    /** Releases the memory or disk space held for an image. Must be synchronized on this.
+     */
+    private void release(Frame frame) {
+        if( frame.charged_bytes > 0 ) {
+            memory_budget.release(frame.charged_bytes);
+            frame.charged_bytes = 0;
+        }
+        if( frame.spilled != null ) {
+            spill_store.delete(frame.spilled);
+            frame.spilled = null;
+        }
+    }
+
+    private void onScored(Frame frame, float score) {
+        Callback this_callback = null;
+        List<Frame> result = null;
+        synchronized( this ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "image " + frame.index + " has score " + score);
+            frame.score = Float.isNaN(score) ? 0.0f : score;
+            frame.scored = true;
+            n_pending--;
+            if( cancelled ) {
+                discard(frame);
+            }
+            else {
+                discardWorst();
+            }
+            if( n_pending == 0 && callback != null ) {
+                this_callback = callback;
+                result = getKept();
+            }
+        }
+        if( this_callback != null ) {
+            this_callback.onSelected(result);
+        }
+    }
+
+    /** Releases the data of the lowest scoring images, until only n_keep scored images are kept.
+     *  For equal scores, the earlier image is kept.
+     */
+    private void discardWorst() {
+        while( true ) {
+            int n_kept = 0;
+            Frame worst = null;
+            for(Frame frame : frames) {
+                if( frame.scored && frame.isHeld() ) {
+                    n_kept++;
+                    if( worst == null || frame.score <= worst.score ) {
+                        worst = frame;
+                    }
+                }
+            }
+            if( n_kept <= n_keep ) {
+                break;
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "discard image " + worst.index);
+            discard(worst);
+        }
+    }
+
+    /** Must be synchronized on this.
+     */
+    private void discard(Frame frame) {
+        release(frame);
+        frame.data = null;
+    }
+
+    /** Returns the kept images, reading back any that were spilled, and releasing them from the
+     *  memory budget (as they're then charged by the ImageSaver once saved). Must be synchronized
+     *  on this.
+     */
+    private List<Frame> getKept() {
+        List<Frame> kept = new ArrayList<>();
+        for(Frame frame : frames) {
+            if( frame.isHeld() ) {
+                if( frame.data == null ) {
+                    try {
+                        frame.data = spill_store.read(frame.spilled);
+                    }
+                    catch(IOException e) {
+                        Log.e(TAG, "failed to read back spilled image " + frame.index);
+                        e.printStackTrace();
+                    }
+                }
+                release(frame);
+                if( frame.data != null ) {
+                    kept.add(frame);
+                }
+            }
+        }
+        return kept;
+    }
+
+    /** Returns the number of images passed to addImage().
+     */
+    public synchronized int getNImages() {
+        return frames.size();
+    }
+
+    public int getNKeep() {
+        return n_keep;
+    }
+
+    /** Call once all images of the burst have been added. callback is called once the remaining
+     *  images have been scored (which may be immediately, on this thread).
+     */
+    public void finish(Callback callback) {
+        List<Frame> result = null;
+        synchronized( this ) {
+            if( this.callback != null || cancelled ) {
+                throw new IllegalStateException("already finished");
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "finish: " + frames.size() + " images, " + n_pending + " still pending");
+            this.callback = callback;
+            if( n_pending == 0 ) {
+                result = getKept();
+            }
+        }
+        if( result != null ) {
+            callback.onSelected(result);
+        }
+    }
+
+    /** Abandons the burst, e.g., if the capture failed before finish() could be called. The images
+     *  are discarded (including those still being scored, once they've been scored), and the
+     *  callback isn't called.
+     */
+    public synchronized void cancel() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "cancel");
+        cancelled = true;
+        callback = null;
+        for(Frame frame : frames) {
+            if( frame.scored ) {
+                discard(frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.magilic.opencamera;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+/** Decodes JPEGs to bitmaps on a shared pool of threads, one per core, so that decoding the
+ *  images of a burst (e.g. for HDR or NR) runs in parallel without starting a thread per image,
+ *  and without decoding more images at once than there are cores.
+ *  Also supports decoding just a region of a JPEG, for callers that only need part of the image.
+ */
+class DecodePool {
+    private static final String TAG = "DecodePool";
+
+    private final ThreadPoolExecutor executor;
+
+    DecodePool() {
+        int n_threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        if (MyDebug.LOG)
+            Log.d(TAG, "n_threads: " + n_threads);
+        final AtomicInteger thread_count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(n_threads, n_threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DecodePool-" + thread_count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // let idle threads exit, so that we don't keep threads around when not taking photos
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Decodes the jpegs in parallel, blocking until all have finished.
+     *
+     * @param options The options to decode each jpeg with, in the same order as jpeg_images.
+     * @return The decoded bitmaps, in the same order as jpeg_images, or null if any of them failed
+     * to decode (in which case any that were decoded are recycled).
+     */
+    List<Bitmap> decode(List<byte[]> jpeg_images, List<BitmapFactory.Options> options) {
+        if (MyDebug.LOG)
+            Log.d(TAG, "decode " + jpeg_images.size() + " images");
+        List<Future<Bitmap>> futures = new ArrayList<>();
+        for (int i = 0; i < jpeg_images.size(); i++) {
+            final byte[] jpeg = jpeg_images.get(i);
+            final BitmapFactory.Options this_options = options.get(i);
+            futures.add(executor.submit(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, this_options);
+                }
+            }));
+        }
+
+        // wait for all the decodes to complete, even if one fails, so that we can recycle the others
+        boolean ok = true;
+        List<Bitmap> bitmaps = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            Bitmap bitmap = null;
+            try {
+                bitmap = futures.get(i).get();
+            } catch (InterruptedException e) {
+                if (MyDebug.LOG)
+                    Log.e(TAG, "interrupted while decoding");
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                ok = false;
+                for (int j = i; j < futures.size(); j++) {
+                    futures.get(j).cancel(false);
+                }
+                break;
+            } catch (ExecutionException e) {
+                // e.g. OutOfMemoryError
+                Log.e(TAG, "exception decoding bitmap " + i);
+                e.printStackTrace();
+            }
+            if (bitmap == null) {
+                Log.e(TAG, "failed to decode bitmap: " + i);
+                ok = false;
+            } else if (MyDebug.LOG) {
+                Log.d(TAG, "bitmap " + i + ": " + bitmap + " is mutable? " + bitmap.isMutable());
+            }
+            bitmaps.add(bitmap);
+        }
+
+        if (!ok) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "cleanup from failure");
+            for (Bitmap bitmap : bitmaps) {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+            }
+            System.gc();
+            return null;
+        }
+        return bitmaps;
+    }
+
+    /**
+     * Decodes only the supplied region of the jpeg, see BitmapRegionDecoder. Note that the
+     * options' inDensity and inTargetDensity are ignored for region decoding.
+     *
+     * @return The decoded region, or null if it couldn't be decoded.
+     */
+    static Bitmap decodeRegion(byte[] jpeg, Rect region, BitmapFactory.Options options) {
+        if (MyDebug.LOG)
+            Log.d(TAG, "decodeRegion: " + region);
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to create region decoder");
+            e.printStackTrace();
+            return null;
+        }
+        try {
+            Bitmap bitmap = decoder.decodeRegion(region, options);
+            if (bitmap == null) {
+                Log.e(TAG, "failed to decode region");
+            }
+            return bitmap;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Returns the width and height of the jpeg, without decoding it, or null if not known.
+     */
+    static int[] decodeSize(byte[] jpeg) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        return new int[]{options.outWidth, options.outHeight};
+    }
+}
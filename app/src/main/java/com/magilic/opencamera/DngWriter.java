@@ -0,0 +1,503 @@
+package com.magilic.opencamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+/** Writes a 16-bit Bayer RAW image as a DNG file, as an alternative to DngCreator. The image is
+ *  streamed to the file in tiles, a strip of tiles at a time, straight from the RAW buffer (e.g.,
+ *  the plane of a RAW_SENSOR Image), so no copy of the whole image is made. Tiles can optionally
+ *  be compressed with lossless JPEG (ITU T.81 process 14, as used by DNG), which typically halves
+ *  the size of the file.
+ *  Lossless JPEG tiles follow the DNG convention for CFA images: each tile is coded as an image
+ *  of half the width with two components, so that each sample is predicted from the nearest
+ *  sample of the same colour to its left.
+ *  Since the sizes of compressed tiles aren't known in advance, the tile offsets and byte counts
+ *  are written after the tiles, so the output must be a FileChannel that supports positioned
+ *  writes.
+ *  GPS tags aren't supported, so CameraController2 still saves RAW photos with DngCreator.
+ */
+public class DngWriter {
+    private static final String TAG = "DngWriter";
+
+    public static final int cfa_red_c = 0;
+    public static final int cfa_green_c = 1;
+    public static final int cfa_blue_c = 2;
+
+    public static final int compression_none_c = 1;
+    public static final int compression_lossless_jpeg_c = 7;
+
+    private static final int tile_size_c = 256; // must be a multiple of 16 for TIFF, and even for lossless JPEG
+
+    private static final int type_byte_c = 1;
+    private static final int type_ascii_c = 2;
+    private static final int type_short_c = 3;
+    private static final int type_long_c = 4;
+    private static final int type_rational_c = 5;
+    private static final int type_srational_c = 10;
+
+    private static final int tag_new_subfile_type_c = 254;
+    private static final int tag_image_width_c = 256;
+    private static final int tag_image_length_c = 257;
+    private static final int tag_bits_per_sample_c = 258;
+    private static final int tag_compression_c = 259;
+    private static final int tag_photometric_interpretation_c = 262;
+    private static final int tag_make_c = 271;
+    private static final int tag_model_c = 272;
+    private static final int tag_orientation_c = 274;
+    private static final int tag_samples_per_pixel_c = 277;
+    private static final int tag_planar_configuration_c = 284;
+    private static final int tag_software_c = 305;
+    private static final int tag_tile_width_c = 322;
+    private static final int tag_tile_length_c = 323;
+    private static final int tag_tile_offsets_c = 324;
+    private static final int tag_tile_byte_counts_c = 325;
+    private static final int tag_cfa_repeat_pattern_dim_c = 33421;
+    private static final int tag_cfa_pattern_c = 33422;
+    private static final int tag_dng_version_c = 50706;
+    private static final int tag_dng_backward_version_c = 50707;
+    private static final int tag_unique_camera_model_c = 50708;
+    private static final int tag_black_level_repeat_dim_c = 50713;
+    private static final int tag_black_level_c = 50714;
+    private static final int tag_white_level_c = 50717;
+    private static final int tag_color_matrix1_c = 50721;
+    private static final int tag_color_matrix2_c = 50722;
+    private static final int tag_as_shot_neutral_c = 50728;
+    private static final int tag_calibration_illuminant1_c = 50778;
+    private static final int tag_calibration_illuminant2_c = 50779;
+
+    private static final int photometric_cfa_c = 32803;
+
+    private final int width;
+    private final int height;
+    private final int [] cfa_pattern;
+    private final int white_level;
+    private int [] black_level = new int[]{0, 0, 0, 0};
+    private float [] color_matrix1;
+    private int calibration_illuminant1;
+    private float [] color_matrix2;
+    private int calibration_illuminant2;
+    private float [] as_shot_neutral;
+    private int orientation = 1;
+    private String make = "";
+    private String model = "";
+    private String software = "";
+    private int compression = compression_lossless_jpeg_c;
+
+    /** A TIFF tag, with its value in little endian byte order.
+     */
+    private static class Entry {
+        final int type;
+        final int count;
+        final byte [] value;
+        int value_offset; // offset of the value in the file, relative to the start of the TIFF data
+
+        Entry(int type, int count, byte [] value) {
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    /**
+     * @param cfa_pattern The colour filter arrangement of the 2x2 repeating Bayer pattern, in the
+     *                    order top-left, top-right, bottom-left, bottom-right, using cfa_red_c,
+     *                    cfa_green_c and cfa_blue_c.
+     * @param white_level The maximum sample value.
+     */
+    public DngWriter(int width, int height, int [] cfa_pattern, int white_level) {
+        if( width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0 ) {
+            throw new IllegalArgumentException("invalid size: " + width + " x " + height);
+        }
+        if( cfa_pattern.length != 4 ) {
+            throw new IllegalArgumentException("cfa_pattern should have 4 entries");
+        }
+        this.width = width;
+        this.height = height;
+        this.cfa_pattern = cfa_pattern.clone();
+        this.white_level = white_level;
+    }
+
+    /** Sets the black level for each position of the 2x2 pattern, in the same order as the
+     *  cfa_pattern.
+     */
+    public void setBlackLevel(int [] black_level) {
+        if( black_level.length != 4 ) {
+            throw new IllegalArgumentException("black_level should have 4 entries");
+        }
+        this.black_level = black_level.clone();
+    }
+
+    /** Sets the matrix (3x3, in row major order) that transforms from XYZ to the camera's colour
+     *  space, under the supplied illuminant (using the Exif LightSource values).
+     */
+    public void setColorMatrix1(float [] color_matrix, int calibration_illuminant) {
+        this.color_matrix1 = color_matrix.clone();
+        this.calibration_illuminant1 = calibration_illuminant;
+    }
+
+    /** As setColorMatrix1(), for a second illuminant.
+     */
+    public void setColorMatrix2(float [] color_matrix, int calibration_illuminant) {
+        this.color_matrix2 = color_matrix.clone();
+        this.calibration_illuminant2 = calibration_illuminant;
+    }
+
+    /** Sets the white balance, as the camera's colour space values of a neutral colour.
+     */
+    public void setAsShotNeutral(float [] as_shot_neutral) {
+        this.as_shot_neutral = as_shot_neutral.clone();
+    }
+
+    /** Sets the Exif orientation.
+     */
+    public void setOrientation(int orientation) {
+        this.orientation = orientation;
+    }
+
+    public void setCamera(String make, String model) {
+        this.make = make;
+        this.model = model;
+    }
+
+    public void setSoftware(String software) {
+        this.software = software;
+    }
+
+    /** Sets whether tiles are compressed, with compression_lossless_jpeg_c (the default), or
+     *  uncompressed, with compression_none_c.
+     */
+    public void setCompression(int compression) {
+        if( compression != compression_none_c && compression != compression_lossless_jpeg_c ) {
+            throw new IllegalArgumentException("unknown compression: " + compression);
+        }
+        this.compression = compression;
+    }
+
+    /** Writes the DNG to the channel, starting at its current position, and leaves the position
+     *  at the end of the DNG.
+     * @param raw        The 16-bit samples of the image, in little endian byte order, starting at
+     *                   the buffer's current position.
+     * @param row_stride The number of bytes between the start of each row in raw.
+     * @return The number of bytes written.
+     */
+    public long write(FileChannel channel, ByteBuffer raw, int row_stride) throws IOException {
+        long time_s = 0;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "write: " + width + " x " + height + " compression " + compression);
+            time_s = System.currentTimeMillis();
+        }
+        if( row_stride < 2*width || raw.remaining() < (long)row_stride*(height-1) + 2*width ) {
+            throw new IllegalArgumentException("raw buffer too small");
+        }
+        final long start = channel.position();
+        final int tiles_x = (width + tile_size_c - 1) / tile_size_c;
+        final int tiles_y = (height + tile_size_c - 1) / tile_size_c;
+        final int n_tiles = tiles_x * tiles_y;
+
+        // write the header and IFD, with placeholders for the tile offsets and byte counts
+        Map<Integer, Entry> entries = createEntries(n_tiles);
+        int ifd_size = 2 + 12*entries.size() + 4;
+        int offset = 8 + ifd_size;
+        int index = 0;
+        for(Entry entry : entries.values()) {
+            if( entry.value.length > 4 ) {
+                entry.value_offset = offset;
+                offset += entry.value.length;
+                offset += offset & 1; // values should start on a word boundary
+            }
+            else {
+                entry.value_offset = 8 + 2 + 12*index + 8;
+            }
+            index++;
+        }
+        ByteBuffer header = ByteBuffer.allocate(offset).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte)'I').put((byte)'I').putShort((short)42).putInt(8);
+        header.putShort((short)entries.size());
+        for(Map.Entry<Integer, Entry> map_entry : entries.entrySet()) {
+            Entry entry = map_entry.getValue();
+            header.putShort((short)(int)map_entry.getKey()).putShort((short)entry.type).putInt(entry.count);
+            if( entry.value.length > 4 ) {
+                header.putInt(entry.value_offset);
+            }
+            else {
+                header.put(entry.value);
+                for(int i=entry.value.length;i<4;i++) {
+                    header.put((byte)0);
+                }
+            }
+        }
+        header.putInt(0); // no further IFDs
+        for(Entry entry : entries.values()) {
+            if( entry.value.length > 4 ) {
+                header.position(entry.value_offset);
+                header.put(entry.value);
+            }
+        }
+        header.clear();
+        writeFully(channel, header);
+
+        // write the tiles, a strip of tiles at a time
+        ByteBuffer samples = raw.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final int strip_width = tiles_x * tile_size_c;
+        short [] strip = new short[strip_width * tile_size_c];
+        int [] tile_offsets = new int[n_tiles];
+        int [] tile_byte_counts = new int[n_tiles];
+        LosslessJpegEncoder encoder = compression == compression_lossless_jpeg_c ? new LosslessJpegEncoder() : null;
+        ByteBuffer uncompressed = compression == compression_none_c ? ByteBuffer.allocate(tile_size_c*tile_size_c*2).order(ByteOrder.LITTLE_ENDIAN) : null;
+        long pos = offset;
+        for(int ty=0;ty<tiles_y;ty++) {
+            readStrip(samples, row_stride, ty*tile_size_c, strip, strip_width);
+            for(int tx=0;tx<tiles_x;tx++) {
+                ByteBuffer tile;
+                if( encoder != null ) {
+                    tile = encoder.encode(strip, strip_width, tx*tile_size_c);
+                }
+                else {
+                    uncompressed.clear();
+                    for(int y=0;y<tile_size_c;y++) {
+                        for(int x=0;x<tile_size_c;x++) {
+                            uncompressed.putShort(strip[y*strip_width + tx*tile_size_c + x]);
+                        }
+                    }
+                    uncompressed.flip();
+                    tile = uncompressed;
+                }
+                int tile_index = ty*tiles_x + tx;
+                tile_offsets[tile_index] = (int)pos;
+                tile_byte_counts[tile_index] = tile.remaining();
+                pos += tile.remaining();
+                writeFully(channel, tile);
+                if( (pos & 1) != 0 ) {
+                    // tiles should start on a word boundary
+                    writeFully(channel, ByteBuffer.allocate(1));
+                    pos++;
+                }
+            }
+        }
+        if( pos > 0xffffffffL ) {
+            throw new IOException("DNG too large");
+        }
+
+        // now fill in the tile offsets and byte counts
+        channel.write(ByteBuffer.wrap(toLongs(tile_offsets)), start + entries.get(tag_tile_offsets_c).value_offset);
+        channel.write(ByteBuffer.wrap(toLongs(tile_byte_counts)), start + entries.get(tag_tile_byte_counts_c).value_offset);
+        channel.position(start + pos);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "wrote " + pos + " bytes in " + n_tiles + " tiles");
+            Log.d(TAG, "time: " + (System.currentTimeMillis() - time_s));
+        }
+        return pos;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while( buffer.hasRemaining() ) {
+            channel.write(buffer);
+        }
+    }
+
+    /** Reads the rows of a strip of tiles from the image. Rows and columns beyond the edge of the
+     *  image are filled by repeating the last two rows or columns, which keeps the colour of each
+     *  sample consistent with the CFA pattern (and so compresses well).
+     */
+    private void readStrip(ByteBuffer samples, int row_stride, int y0, short [] strip, int strip_width) {
+        for(int y=0;y<tile_size_c;y++) {
+            int src_y = y0 + y;
+            if( src_y >= height ) {
+                src_y = height - 2 + ((src_y - height) & 1);
+            }
+            samples.position(src_y * row_stride);
+            ShortBuffer row = samples.asShortBuffer();
+            row.get(strip, y*strip_width, width);
+            for(int x=width;x<strip_width;x++) {
+                strip[y*strip_width + x] = strip[y*strip_width + width - 2 + ((x - width) & 1)];
+            }
+        }
+    }
+
+    /** Encodes tiles as lossless JPEG, with predictor 1 and an optimal Huffman table for each
+     *  tile.
+     */
+    private static class LosslessJpegEncoder {
+        private static final int precision_c = 16;
+        private final int [] diffs = new int[tile_size_c*tile_size_c];
+        private final int [] freqs = new int[precision_c+1];
+
+        ByteBuffer encode(short [] strip, int strip_width, int x0) {
+            // first pass: compute the differences from the predicted values, and their frequencies
+            Arrays.fill(freqs, 0);
+            for(int y=0,i=0;y<tile_size_c;y++) {
+                int row = y*strip_width + x0;
+                for(int x=0;x<tile_size_c;x++,i++) {
+                    int sample = strip[row + x] & 0xffff;
+                    int prediction;
+                    if( x < 2 ) {
+                        // first sample of each component in a row is predicted from the row above
+                        prediction = y == 0 ? 1 << (precision_c-1) : strip[row - strip_width + x] & 0xffff;
+                    }
+                    else {
+                        prediction = strip[row + x - 2] & 0xffff;
+                    }
+                    // differences are modulo 2^16
+                    int diff = (short)(sample - prediction);
+                    diffs[i] = diff;
+                    freqs[getCategory(diff)]++;
+                }
+            }
+            byte [] spec = JpegTransform.createHuffmanSpec(freqs);
+            int [][] codes = JpegTransform.createHuffmanCodes(spec);
+
+            // second pass: write the tile
+            JpegTransform.BitWriter writer = new JpegTransform.BitWriter(tile_size_c*tile_size_c*2);
+            writer.writeShort(0xffd8); // SOI
+            writer.writeShort(0xffc4); // DHT
+            writer.writeShort(2 + 1 + spec.length);
+            writer.writeByte(0x00); // DC table 0
+            writer.writeBytes(spec, 0, spec.length);
+            writer.writeShort(0xffc3); // SOF3: lossless, Huffman
+            writer.writeShort(2 + 6 + 2*3);
+            writer.writeByte(precision_c);
+            writer.writeShort(tile_size_c); // number of lines
+            writer.writeShort(tile_size_c/2); // samples per line
+            writer.writeByte(2); // number of components
+            for(int c=1;c<=2;c++) {
+                writer.writeByte(c);
+                writer.writeByte(0x11); // sampling factors
+                writer.writeByte(0); // no quantization table for lossless
+            }
+            writer.writeShort(0xffda); // SOS
+            writer.writeShort(2 + 1 + 2*2 + 3);
+            writer.writeByte(2);
+            for(int c=1;c<=2;c++) {
+                writer.writeByte(c);
+                writer.writeByte(0x00); // Huffman table 0
+            }
+            writer.writeByte(1); // predictor: left sample
+            writer.writeByte(0);
+            writer.writeByte(0); // no point transform
+            for(int i=0;i<diffs.length;i++) {
+                int diff = diffs[i];
+                int category = getCategory(diff);
+                writer.writeBits(codes[0][category], codes[1][category]);
+                if( category < precision_c ) {
+                    // category 16 (a difference of 32768) has no additional bits
+                    JpegTransform.writeValue(writer, diff, category);
+                }
+            }
+            writer.flush();
+            writer.writeShort(0xffd9); // EOI
+            return ByteBuffer.wrap(writer.toByteArray());
+        }
+
+        private static int getCategory(int diff) {
+            return diff == -32768 ? precision_c : JpegTransform.getNBits(diff);
+        }
+    }
+
+    private Map<Integer, Entry> createEntries(int n_tiles) {
+        // TIFF requires the tags in ascending order
+        Map<Integer, Entry> entries = new TreeMap<>();
+        entries.put(tag_new_subfile_type_c, longEntry(0));
+        entries.put(tag_image_width_c, longEntry(width));
+        entries.put(tag_image_length_c, longEntry(height));
+        entries.put(tag_bits_per_sample_c, shortEntry(16));
+        entries.put(tag_compression_c, shortEntry(compression));
+        entries.put(tag_photometric_interpretation_c, shortEntry(photometric_cfa_c));
+        if( make.length() > 0 )
+            entries.put(tag_make_c, asciiEntry(make));
+        if( model.length() > 0 )
+            entries.put(tag_model_c, asciiEntry(model));
+        entries.put(tag_orientation_c, shortEntry(orientation));
+        entries.put(tag_samples_per_pixel_c, shortEntry(1));
+        entries.put(tag_planar_configuration_c, shortEntry(1));
+        if( software.length() > 0 )
+            entries.put(tag_software_c, asciiEntry(software));
+        entries.put(tag_tile_width_c, longEntry(tile_size_c));
+        entries.put(tag_tile_length_c, longEntry(tile_size_c));
+        // filled in once the tiles are written
+        entries.put(tag_tile_offsets_c, new Entry(type_long_c, n_tiles, new byte[4*n_tiles]));
+        entries.put(tag_tile_byte_counts_c, new Entry(type_long_c, n_tiles, new byte[4*n_tiles]));
+        entries.put(tag_cfa_repeat_pattern_dim_c, new Entry(type_short_c, 2, toShorts(new int[]{2, 2})));
+        entries.put(tag_cfa_pattern_c, new Entry(type_byte_c, 4, toBytes(cfa_pattern)));
+        entries.put(tag_dng_version_c, new Entry(type_byte_c, 4, new byte[]{1, 4, 0, 0}));
+        entries.put(tag_dng_backward_version_c, new Entry(type_byte_c, 4, new byte[]{1, 1, 0, 0}));
+        String unique_camera_model = (make + " " + model).trim();
+        entries.put(tag_unique_camera_model_c, asciiEntry(unique_camera_model.length() > 0 ? unique_camera_model : "Unknown"));
+        entries.put(tag_black_level_repeat_dim_c, new Entry(type_short_c, 2, toShorts(new int[]{2, 2})));
+        entries.put(tag_black_level_c, new Entry(type_long_c, 4, toLongs(black_level)));
+        entries.put(tag_white_level_c, longEntry(white_level));
+        if( color_matrix1 != null ) {
+            entries.put(tag_color_matrix1_c, new Entry(type_srational_c, color_matrix1.length, toRationals(color_matrix1)));
+            entries.put(tag_calibration_illuminant1_c, shortEntry(calibration_illuminant1));
+        }
+        if( color_matrix2 != null ) {
+            entries.put(tag_color_matrix2_c, new Entry(type_srational_c, color_matrix2.length, toRationals(color_matrix2)));
+            entries.put(tag_calibration_illuminant2_c, shortEntry(calibration_illuminant2));
+        }
+        if( as_shot_neutral != null ) {
+            entries.put(tag_as_shot_neutral_c, new Entry(type_rational_c, as_shot_neutral.length, toRationals(as_shot_neutral)));
+        }
+        return entries;
+    }
+
+    private static Entry shortEntry(int value) {
+        return new Entry(type_short_c, 1, toShorts(new int[]{value}));
+    }
+
+    private static Entry longEntry(int value) {
+        return new Entry(type_long_c, 1, toLongs(new int[]{value}));
+    }
+
+    private static Entry asciiEntry(String value) {
+        byte [] bytes = new byte[value.length() + 1]; // null terminated
+        for(int i=0;i<value.length();i++) {
+            char ch = value.charAt(i);
+            bytes[i] = (byte)(ch < 128 ? ch : '?');
+        }
+        return new Entry(type_ascii_c, bytes.length, bytes);
+    }
+
+    private static byte [] toBytes(int [] values) {
+        byte [] bytes = new byte[values.length];
+        for(int i=0;i<values.length;i++) {
+            bytes[i] = (byte)values[i];
+        }
+        return bytes;
+    }
+
+    private static byte [] toShorts(int [] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(2*values.length).order(ByteOrder.LITTLE_ENDIAN);
+        for(int value : values) {
+            buffer.putShort((short)value);
+        }
+        return buffer.array();
+    }
+
+    private static byte [] toLongs(int [] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4*values.length).order(ByteOrder.LITTLE_ENDIAN);
+        for(int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    /** Converts to (signed) rationals with a fixed denominator, which is plenty of precision for
+     *  colour matrices and white balance.
+     */
+    private static byte [] toRationals(float [] values) {
+        final int denominator = 10000;
+        ByteBuffer buffer = ByteBuffer.allocate(8*values.length).order(ByteOrder.LITTLE_ENDIAN);
+        for(float value : values) {
+            buffer.putInt(Math.round(value * denominator));
+            buffer.putInt(denominator);
+        }
+        return buffer.array();
+    }
+}
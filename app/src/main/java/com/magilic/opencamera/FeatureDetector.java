@@ -0,0 +1,379 @@
+package com.magilic.opencamera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.util.Log;
+
+/** Detects Harris corners on the CPU, and matches them between two frames, as a replacement for
+ *  feature_detector.rs. This is intended for any algorithm that needs to find the movement between
+ *  frames (e.g., panorama, or aligning frames for noise reduction or focus stacking).
+ *  - createGreyscale() is equivalent to create_greyscale, optionally downscaling.
+ *  - detectFeatures() is equivalent to compute_derivatives, corner_detector and local_maximum,
+ *    with the derivatives and responses computed in row tiles with TileExecutor. Rather than a
+ *    global threshold, the image is divided into cells and only the strongest features of each
+ *    cell are kept, so that features are spread over the image.
+ *  - matchFeatures() matches the features of one frame to those of another by comparing patches
+ *    around them. The features of the second frame are bucketed into a grid, so each feature is
+ *    only compared against those within the search radius of its predicted position, rather than
+ *    against all features.
+ */
+public class FeatureDetector {
+    private static final String TAG = "FeatureDetector";
+
+    private static final int radius_c = 2; // radius for corner detector
+    private static final float [] weights_c = new float[]{1, 4, 6, 4, 1};
+    private static final int border_c = radius_c+1; // extra +1 as we don't have derivatives for the outermost pixels
+
+    /** A set of features, sorted with the strongest first.
+     */
+    public static class Features {
+        private final int [] xs;
+        private final int [] ys;
+        private final float [] responses;
+
+        private Features(int n_features) {
+            this.xs = new int[n_features];
+            this.ys = new int[n_features];
+            this.responses = new float[n_features];
+        }
+
+        public int getNFeatures() {
+            return xs.length;
+        }
+
+        public int getX(int i) {
+            return xs[i];
+        }
+
+        public int getY(int i) {
+            return ys[i];
+        }
+
+        public float getResponse(int i) {
+            return responses[i];
+        }
+    }
+
+    /** The result of matching features0 against features1: for each match, the indices into the
+     *  two sets of features, and the sum of squared differences between their patches.
+     */
+    public static class Matches {
+        private final int [] indices0;
+        private final int [] indices1;
+        private final float [] errors;
+
+        private Matches(int n_matches) {
+            this.indices0 = new int[n_matches];
+            this.indices1 = new int[n_matches];
+            this.errors = new float[n_matches];
+        }
+
+        public int getNMatches() {
+            return indices0.length;
+        }
+
+        public int getIndex0(int i) {
+            return indices0[i];
+        }
+
+        public int getIndex1(int i) {
+            return indices1[i];
+        }
+
+        public float getError(int i) {
+            return errors[i];
+        }
+    }
+
+    private FeatureDetector() {
+    }
+
+    /** Returns a greyscale version of the image, using the weights from create_greyscale,
+     *  downscaled by scale in each direction (by averaging). The result has size
+     *  (width/scale) x (height/scale).
+     * @param pixels The image, stored as 0xRRGGBB ints.
+     */
+    public static float [] createGreyscale(final int [] pixels, final int width, int height, final int scale) {
+        final int grey_width = width/scale;
+        final int grey_height = height/scale;
+        final float [] grey = new float[grey_width*grey_height];
+        final float weight = 1.0f/(scale*scale);
+        TileExecutor.run(grey_height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    for(int x=0;x<grey_width;x++) {
+                        float sum = 0.0f;
+                        for(int sy=0;sy<scale;sy++) {
+                            int offset = (y*scale+sy)*width + x*scale;
+                            for(int sx=0;sx<scale;sx++) {
+                                int color = pixels[offset+sx];
+                                sum += 0.3f*((color >> 16) & 0xff) + 0.59f*((color >> 8) & 0xff) + 0.11f*(color & 0xff);
+                            }
+                        }
+                        grey[y*grey_width+x] = sum*weight;
+                    }
+                }
+            }
+        });
+        return grey;
+    }
+
+    /** Computes the Harris corner response for columns [x_start, x_stop) of the greyscale image,
+     *  as with compute_derivatives and corner_detector. Other pixels have a response of 0.
+     */
+    public static float [] computeResponse(final float [] grey, final int width, final int height, int x_start, int x_stop) {
+        final float [] ix = new float[width*height];
+        final float [] iy = new float[width*height];
+        // derivatives are only needed within radius of the columns we compute responses for
+        final int dx_start = Math.max(x_start - radius_c, 1);
+        final int dx_stop = Math.min(x_stop + radius_c, width-1);
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=Math.max(y_start, 1);y<Math.min(y_stop, height-1);y++) {
+                    for(int x=dx_start;x<dx_stop;x++) {
+                        int i = y*width+x;
+                        ix[i] = (grey[i+1] - grey[i-1])/2.0f;
+                        iy[i] = (grey[i+width] - grey[i-width])/2.0f;
+                    }
+                }
+            }
+        });
+        final float [] response = new float[width*height];
+        final int rx_start = Math.max(x_start, border_c);
+        final int rx_stop = Math.min(x_stop, width-border_c);
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=Math.max(y_start, border_c);y<Math.min(y_stop, height-border_c);y++) {
+                    for(int x=rx_start;x<rx_stop;x++) {
+                        float h00 = 0.0f, h01 = 0.0f, h11 = 0.0f;
+                        for(int dy=-radius_c;dy<=radius_c;dy++) {
+                            for(int dx=-radius_c;dx<=radius_c;dx++) {
+                                int i = (y+dy)*width + x+dx;
+                                float weight = weights_c[radius_c+dx]*weights_c[radius_c+dy];
+                                h00 += weight*ix[i]*ix[i];
+                                h01 += weight*ix[i]*iy[i];
+                                h11 += weight*iy[i]*iy[i];
+                            }
+                        }
+                        float det = h00*h11 - h01*h01;
+                        float trace = h00 + h11;
+                        response[y*width+x] = det - 0.06f*trace*trace;
+                    }
+                }
+            }
+        });
+        return response;
+    }
+
+    /** Returns whether the response at (x, y) is strictly greater than all others in its 5x5
+     *  neighbourhood, as with local_maximum. (x, y) must be at least 2 pixels from the edges.
+     */
+    private static boolean isLocalMaximum(float [] response, int width, int x, int y) {
+        float value = response[y*width+x];
+        for(int dy=-2;dy<=2;dy++) {
+            for(int dx=-2;dx<=2;dx++) {
+                if( (dx != 0 || dy != 0) && response[(y+dy)*width + x+dx] >= value ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Detects features in columns [x_start, x_stop) of the greyscale image.
+     * @param cell_size    The image is divided into cells of cell_size x cell_size pixels.
+     * @param max_per_cell At most this many features are kept for each cell (the strongest).
+     * @param max_features At most this many features are returned (the strongest), or 0 for no
+     *                     limit.
+     */
+    public static Features detectFeatures(float [] grey, final int width, final int height, final int x_start, final int x_stop, final int cell_size, final int max_per_cell, int max_features) {
+        if( cell_size <= 0 || max_per_cell <= 0 ) {
+            throw new IllegalArgumentException("invalid cell parameters");
+        }
+        final float [] response = computeResponse(grey, width, height, x_start, x_stop);
+        final int n_cells_x = (width + cell_size - 1)/cell_size;
+        final int n_cells_y = (height + cell_size - 1)/cell_size;
+        // for each cell, the indices of its strongest features, strongest first
+        final int [] cell_features = new int[n_cells_x*n_cells_y*max_per_cell];
+        final int [] cell_counts = new int[n_cells_x*n_cells_y];
+        // each task handles whole rows of cells, so no two threads write to the same cell
+        TileExecutor.run(n_cells_y, 1, new TileExecutor.RowTask() {
+            @Override
+            public void run(int cy_start, int cy_stop) {
+                for(int cy=cy_start;cy<cy_stop;cy++) {
+                    int y_stop = Math.min((cy+1)*cell_size, height-border_c);
+                    for(int cx=0;cx<n_cells_x;cx++) {
+                        int cell = cy*n_cells_x + cx;
+                        int offset = cell*max_per_cell;
+                        int cell_x_stop = Math.min(Math.min((cx+1)*cell_size, x_stop), width-border_c);
+                        for(int y=Math.max(cy*cell_size, border_c);y<y_stop;y++) {
+                            for(int x=Math.max(Math.max(cx*cell_size, x_start), border_c);x<cell_x_stop;x++) {
+                                int index = y*width+x;
+                                float value = response[index];
+                                if( value <= 0.0f ) {
+                                    continue;
+                                }
+                                int count = cell_counts[cell];
+                                if( count == max_per_cell && value <= response[cell_features[offset+count-1]] ) {
+                                    continue;
+                                }
+                                if( !isLocalMaximum(response, width, x, y) ) {
+                                    continue;
+                                }
+                                // insert in order of strength
+                                int pos = Math.min(count, max_per_cell-1);
+                                while( pos > 0 && response[cell_features[offset+pos-1]] < value ) {
+                                    cell_features[offset+pos] = cell_features[offset+pos-1];
+                                    pos--;
+                                }
+                                cell_features[offset+pos] = index;
+                                if( count < max_per_cell ) {
+                                    cell_counts[cell]++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        List<Integer> indices = new ArrayList<>();
+        for(int cell=0;cell<cell_counts.length;cell++) {
+            for(int i=0;i<cell_counts[cell];i++) {
+                indices.add(cell_features[cell*max_per_cell+i]);
+            }
+        }
+        Collections.sort(indices, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Float.compare(response[o2], response[o1]);
+            }
+        });
+        int n_features = indices.size();
+        if( max_features > 0 ) {
+            n_features = Math.min(n_features, max_features);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "detected " + indices.size() + " features, keeping " + n_features);
+        Features features = new Features(n_features);
+        for(int i=0;i<n_features;i++) {
+            int index = indices.get(i);
+            features.xs[i] = index % width;
+            features.ys[i] = index / width;
+            features.responses[i] = response[index];
+        }
+        return features;
+    }
+
+    /** Matches features0 of grey0 against features1 of grey1 (both of size width x height). Frame 1
+     *  is expected to be offset by (offset_x, offset_y) relative to frame 0, so a feature at (x, y)
+     *  in frame 0 is matched against the features of frame 1 within search_radius of
+     *  (x - offset_x, y - offset_y). Each feature of frame 0 is matched to the feature of frame 1
+     *  with the lowest sum of squared differences over a patch of radius patch_radius. Features
+     *  within patch_radius of the edges aren't matched.
+     * @return The matches, in the order of features0.
+     */
+    public static Matches matchFeatures(final float [] grey0, final Features features0, final float [] grey1, final Features features1, final int width, final int height, final int offset_x, final int offset_y, final int search_radius, final int patch_radius) {
+        // bucket the features of frame 1 into a grid of search_radius x search_radius cells,
+        // stored as a counting sort
+        final int bucket_size = Math.max(search_radius, 1);
+        final int n_buckets_x = (width + bucket_size - 1)/bucket_size;
+        final int n_buckets_y = (height + bucket_size - 1)/bucket_size;
+        final int [] bucket_starts = new int[n_buckets_x*n_buckets_y+1];
+        int n1 = features1.getNFeatures();
+        for(int i=0;i<n1;i++) {
+            int bucket = (features1.ys[i]/bucket_size)*n_buckets_x + features1.xs[i]/bucket_size;
+            bucket_starts[bucket+1]++;
+        }
+        for(int i=0;i<n_buckets_x*n_buckets_y;i++) {
+            bucket_starts[i+1] += bucket_starts[i];
+        }
+        final int [] bucket_features = new int[n1];
+        int [] bucket_fill = new int[n_buckets_x*n_buckets_y];
+        for(int i=0;i<n1;i++) {
+            int bucket = (features1.ys[i]/bucket_size)*n_buckets_x + features1.xs[i]/bucket_size;
+            bucket_features[bucket_starts[bucket] + bucket_fill[bucket]++] = i;
+        }
+
+        final int n0 = features0.getNFeatures();
+        final int [] best_indices = new int[n0];
+        final float [] best_errors = new float[n0];
+        final int r = patch_radius;
+        TileExecutor.run(n0, new TileExecutor.RowTask() {
+            @Override
+            public void run(int i_start, int i_stop) {
+                for(int i=i_start;i<i_stop;i++) {
+                    best_indices[i] = -1;
+                    int x0 = features0.xs[i];
+                    int y0 = features0.ys[i];
+                    if( x0 < r || x0 >= width-r || y0 < r || y0 >= height-r ) {
+                        continue;
+                    }
+                    int px = x0 - offset_x;
+                    int py = y0 - offset_y;
+                    int bx_start = Math.max(px - search_radius, 0)/bucket_size;
+                    int bx_stop = Math.min(px + search_radius, width-1)/bucket_size;
+                    int by_start = Math.max(py - search_radius, 0)/bucket_size;
+                    int by_stop = Math.min(py + search_radius, height-1)/bucket_size;
+                    float best_error = Float.MAX_VALUE;
+                    for(int by=by_start;by<=by_stop;by++) {
+                        for(int bx=bx_start;bx<=bx_stop;bx++) {
+                            int bucket = by*n_buckets_x + bx;
+                            for(int j=bucket_starts[bucket];j<bucket_starts[bucket+1];j++) {
+                                int index1 = bucket_features[j];
+                                int x1 = features1.xs[index1];
+                                int y1 = features1.ys[index1];
+                                if( Math.abs(x1 - px) > search_radius || Math.abs(y1 - py) > search_radius ) {
+                                    continue;
+                                }
+                                if( x1 < r || x1 >= width-r || y1 < r || y1 >= height-r ) {
+                                    continue;
+                                }
+                                float error = 0.0f;
+                                for(int dy=-r;dy<=r && error < best_error;dy++) {
+                                    int i0 = (y0+dy)*width + x0;
+                                    int i1 = (y1+dy)*width + x1;
+                                    for(int dx=-r;dx<=r;dx++) {
+                                        float diff = grey0[i0+dx] - grey1[i1+dx];
+                                        error += diff*diff;
+                                    }
+                                }
+                                if( error < best_error ) {
+                                    best_error = error;
+                                    best_indices[i] = index1;
+                                }
+                            }
+                        }
+                    }
+                    best_errors[i] = best_error;
+                }
+            }
+        });
+
+        int n_matches = 0;
+        for(int i=0;i<n0;i++) {
+            if( best_indices[i] != -1 ) {
+                n_matches++;
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "matched " + n_matches + " of " + n0 + " features");
+        Matches matches = new Matches(n_matches);
+        int count = 0;
+        for(int i=0;i<n0;i++) {
+            if( best_indices[i] != -1 ) {
+                matches.indices0[count] = i;
+                matches.indices1[count] = best_indices[i];
+                matches.errors[count] = best_errors[i];
+                count++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,231 @@
+package com.magilic.opencamera;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/** Cache of reverse geocoding results (the address lines for a location), so that the Geocoder
+ *  doesn't need to be called for every photo stamp or video subtitle. Locations are bucketed into
+ *  a grid of cells of cell_size degrees, and all locations in a cell share the same address. The
+ *  least recently used cells are evicted when there are more than max_entries, and entries older
+ *  than max_age_ms are ignored. The cache can be written to and read from a text file, so that it
+ *  persists across sessions.
+ */
+public class GeocodeCache {
+    private static final String TAG = "GeocodeCache";
+
+    private static final int file_version_c = 1;
+
+    private final double cell_size;
+    private final int max_entries;
+    private final long max_age_ms;
+    private String locale = ""; // the locale of the cached addresses
+    private final Map<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // in least recently used order
+
+    private static class Entry {
+        final long time_ms; // when the address was looked up
+        final List<String> address_lines;
+
+        Entry(long time_ms, List<String> address_lines) {
+            this.time_ms = time_ms;
+            this.address_lines = address_lines;
+        }
+    }
+
+    /**
+     * @param cell_size   The size of the grid cells in degrees of latitude and longitude (e.g.,
+     *                    0.0005 degrees is about 50m of latitude).
+     * @param max_entries The maximum number of cells to hold.
+     * @param max_age_ms  How long a cached address remains valid for.
+     */
+    public GeocodeCache(double cell_size, int max_entries, long max_age_ms) {
+        if( cell_size <= 0.0 ) {
+            throw new IllegalArgumentException("cell_size must be positive: " + cell_size);
+        }
+        this.cell_size = cell_size;
+        this.max_entries = max_entries;
+        this.max_age_ms = max_age_ms;
+    }
+
+    /** Returns the key of the grid cell containing the location.
+     */
+    private long getCellKey(double latitude, double longitude) {
+        long cell_y = (long)Math.floor((latitude + 90.0) / cell_size);
+        long cell_x = (long)Math.floor((longitude + 180.0) / cell_size);
+        return (cell_y << 32) | (cell_x & 0xffffffffL);
+    }
+
+    /** Sets the locale that addresses are being looked up for. If this differs from the locale of
+     *  the cached addresses, the cache is cleared.
+     */
+    public synchronized void setLocale(String locale) {
+        if( !this.locale.equals(locale) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "locale changed from " + this.locale + " to " + locale);
+            entries.clear();
+            this.locale = locale;
+        }
+    }
+
+    /** Returns the cached address lines for the location, or null if there isn't a valid entry.
+     *  An empty list means that the location is known to have no address.
+     */
+    public synchronized List<String> get(double latitude, double longitude, long time_ms) {
+        long key = getCellKey(latitude, longitude);
+        Entry entry = entries.get(key);
+        if( entry == null ) {
+            return null;
+        }
+        if( time_ms - entry.time_ms > max_age_ms || time_ms < entry.time_ms ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "cached address has expired");
+            entries.remove(key);
+            return null;
+        }
+        return entry.address_lines;
+    }
+
+    public boolean contains(double latitude, double longitude, long time_ms) {
+        return get(latitude, longitude, time_ms) != null;
+    }
+
+    /** Stores the address lines for the cell containing the location.
+     */
+    public synchronized void put(double latitude, double longitude, List<String> address_lines, long time_ms) {
+        putEntry(getCellKey(latitude, longitude), new Entry(time_ms, Collections.unmodifiableList(new ArrayList<>(address_lines))));
+    }
+
+    private void putEntry(long key, Entry entry) {
+        entries.put(key, entry);
+        evictEntries();
+    }
+
+    /** Removes the least recently used entries until there are no more than max_entries.
+     */
+    private void evictEntries() {
+        while( entries.size() > max_entries ) {
+            Long eldest = entries.keySet().iterator().next();
+            entries.remove(eldest);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Address lines are stored separated by tabs, so remove any tabs or newlines from them.
+     */
+    private static String sanitise(String line) {
+        return line.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /** Writes the cache, in least recently used order.
+     */
+    public synchronized void write(Writer writer) throws IOException {
+        writer.write("geocodecache\t" + file_version_c + "\t" + cell_size + "\t" + sanitise(locale) + "\n");
+        for(Map.Entry<Long, Entry> map_entry : entries.entrySet()) {
+            Entry entry = map_entry.getValue();
+            StringBuilder line = new StringBuilder();
+            line.append(map_entry.getKey()).append('\t').append(entry.time_ms);
+            for(String address_line : entry.address_lines) {
+                line.append('\t').append(sanitise(address_line));
+            }
+            line.append('\n');
+            writer.write(line.toString());
+        }
+        writer.flush();
+    }
+
+    /** Reads entries written by write(), merging them with the current contents. Entries read are
+     *  treated as less recently used than those already in the cache; where a cell is in both, the
+     *  more recently looked up address is kept. The data is ignored if it's for a different cell
+     *  size or locale.
+     * @return The number of entries read that were used.
+     */
+    public synchronized int read(Reader reader, long time_ms) throws IOException {
+        int n_read = 0;
+        BufferedReader buffered_reader = new BufferedReader(reader);
+        String header = buffered_reader.readLine();
+        if( header == null ) {
+            return 0;
+        }
+        String [] header_fields = header.split("\t", -1);
+        if( header_fields.length != 4 || !header_fields[0].equals("geocodecache") ) {
+            throw new IOException("not a geocode cache file");
+        }
+        try {
+            if( Integer.parseInt(header_fields[1]) != file_version_c || Double.parseDouble(header_fields[2]) != cell_size ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "ignore cache with different version or cell size");
+                return 0;
+            }
+        }
+        catch(NumberFormatException e) {
+            throw new IOException("invalid geocode cache header");
+        }
+        if( !header_fields[3].equals(locale) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "ignore cache for different locale");
+            return 0;
+        }
+        Map<Long, Entry> read_entries = new LinkedHashMap<>(); // in the order written, i.e., least recently used first
+        String line;
+        while( (line = buffered_reader.readLine()) != null ) {
+            String [] fields = line.split("\t", -1);
+            if( fields.length < 2 ) {
+                continue;
+            }
+            long key, entry_time_ms;
+            try {
+                key = Long.parseLong(fields[0]);
+                entry_time_ms = Long.parseLong(fields[1]);
+            }
+            catch(NumberFormatException e) {
+                Log.e(TAG, "invalid geocode cache entry");
+                continue;
+            }
+            if( time_ms - entry_time_ms > max_age_ms || time_ms < entry_time_ms ) {
+                continue;
+            }
+            List<String> address_lines = new ArrayList<>();
+            for(int i=2;i<fields.length;i++) {
+                address_lines.add(fields[i]);
+            }
+            read_entries.put(key, new Entry(entry_time_ms, Collections.unmodifiableList(address_lines)));
+        }
+        // rebuild the cache with the entries read first, so the entries already in the cache remain the most recently used
+        Map<Long, Entry> current_entries = new LinkedHashMap<>(entries);
+        entries.clear();
+        for(Map.Entry<Long, Entry> map_entry : read_entries.entrySet()) {
+            if( !current_entries.containsKey(map_entry.getKey()) ) {
+                entries.put(map_entry.getKey(), map_entry.getValue());
+                n_read++;
+            }
+        }
+        for(Map.Entry<Long, Entry> map_entry : current_entries.entrySet()) {
+            Entry entry = map_entry.getValue();
+            Entry read_entry = read_entries.get(map_entry.getKey());
+            if( read_entry != null && read_entry.time_ms > entry.time_ms ) {
+                entry = read_entry;
+                n_read++;
+            }
+            entries.put(map_entry.getKey(), entry);
+        }
+        evictEntries();
+        if( MyDebug.LOG )
+            Log.d(TAG, "read " + n_read + " cached addresses");
+        return n_read;
+    }
+}
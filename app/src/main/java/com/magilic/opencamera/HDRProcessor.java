@@ -71,6 +71,22 @@ public class HDRProcessor {
         DROALGORITHM_GAINGAMMA
     }
 
+    /** Which implementation to use for processing HDR images.
+     *  BACKEND_RENDERSCRIPT uses the Renderscript kernels.
+     *  BACKEND_CPU uses the pure Java kernels in HDRProcessorCPU, running across all CPU cores.
+     *  This can be faster on devices where Renderscript falls back to a single threaded CPU
+     *  driver. Note that auto-alignment for noise reduction is still performed with Renderscript.
+     */
+    public enum Backend {
+        BACKEND_RENDERSCRIPT,
+        BACKEND_CPU
+    }
+    private volatile Backend backend = Backend.BACKEND_RENDERSCRIPT;
+    // how the noise reduction accumulator is stored for BACKEND_CPU
+    private volatile HDRProcessorCPU.FloatImage.Storage avg_storage = HDRProcessorCPU.FloatImage.Storage.STORAGE_FLOAT;
+    // if non-null, the time for aligning and tonemapping is recorded here
+    private SaveMetrics save_metrics;
+
     public HDRProcessor(Context context, boolean is_test) {
         this.context = context;
         this.is_test = is_test;
@@ -89,6 +105,96 @@ public class HDRProcessor {
 		sharpnessScript = null;*/
     }
 
+    /** Sets the backend for subsequent calls to processHDR() and processAvg(). Each of those reads
+     *  the backend once when it starts, so this doesn't affect an operation already in progress.
+     */
+    public void setBackend(Backend backend) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setBackend: " + backend);
+        this.backend = backend;
+    }
+
+    public Backend getBackend() {
+        return this.backend;
+    }
+
+    /** Sets where to record the time taken for the align and tonemap stages. Times are recorded
+     *  against the request set for the calling thread, see SaveMetrics.beginRequest().
+     */
+    public void setSaveMetrics(SaveMetrics save_metrics) {
+        this.save_metrics = save_metrics;
+    }
+
+    private long startTimer() {
+        return save_metrics != null ? save_metrics.startTimer() : 0;
+    }
+
+    private void stopTimer(SaveMetrics.Stage stage, long start_ns) {
+        if( save_metrics != null ) {
+            save_metrics.stopTimer(stage, start_ns);
+        }
+    }
+
+    /** As stopTimer(), but first waits for any queued RenderScript kernels to complete, as
+     *  forEach calls return as soon as the kernel is queued.
+     */
+    private void stopTimerRS(SaveMetrics.Stage stage, long start_ns) {
+        if( start_ns != 0 ) {
+            rs.finish();
+            stopTimer(stage, start_ns);
+        }
+    }
+
+    /** Sets how the noise reduction accumulator (see processAvg()) is stored, when using
+     *  Backend.BACKEND_CPU. Reduced precision storage uses half the memory of
+     *  STORAGE_FLOAT, allowing more images to be merged on high resolution sensors. The
+     *  Renderscript backend always uses floats.
+     */
+    public void setAvgStorage(HDRProcessorCPU.FloatImage.Storage avg_storage) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setAvgStorage: " + avg_storage);
+        this.avg_storage = avg_storage;
+    }
+
+    public HDRProcessorCPU.FloatImage.Storage getAvgStorage() {
+        return this.avg_storage;
+    }
+
+    /** Adapts a Bitmap for use with HDRProcessorCPU and HistogramEngine. The bitmap must be mutable
+     *  if it is used for output.
+     */
+    public static class BitmapImage implements HDRProcessorCPU.Image {
+        private final Bitmap bitmap;
+        private final int width;
+        private final int height;
+
+        public BitmapImage(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            this.width = bitmap.getWidth();
+            this.height = bitmap.getHeight();
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void getRows(int [] dst, int y, int n_rows) {
+            bitmap.getPixels(dst, 0, width, 0, y, width, n_rows);
+        }
+
+        @Override
+        public void setRows(int [] src, int y, int n_rows) {
+            bitmap.setPixels(src, 0, width, 0, y, width, n_rows);
+        }
+    }
+
     public void onDestroy() {
         if( MyDebug.LOG )
             Log.d(TAG, "onDestroy");
@@ -376,6 +482,10 @@ public class HDRProcessor {
         }
 
         final HDRAlgorithm algorithm = n_bitmaps == 1 ? HDRAlgorithm.HDRALGORITHM_SINGLE_IMAGE : HDRAlgorithm.HDRALGORITHM_STANDARD;
+        // read once, so the whole operation uses the same backend even if setBackend() is called meanwhile
+        final Backend backend = this.backend;
+        if( MyDebug.LOG )
+            Log.d(TAG, "backend: " + backend);
 
         switch( algorithm ) {
             case HDRALGORITHM_SINGLE_IMAGE:
@@ -384,10 +494,10 @@ public class HDRProcessor {
                     sort_order.add(0);
                     sort_cb.sortOrder(sort_order);
                 }
-                processSingleImage(bitmaps, release_bitmaps, output_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, dro_tonemapping_algorithm);
+                processSingleImage(backend, bitmaps, release_bitmaps, output_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, dro_tonemapping_algorithm);
                 break;
             case HDRALGORITHM_STANDARD:
-                processHDRCore(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm);
+                processHDRCore(backend, bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm);
                 break;
             default:
                 if( MyDebug.LOG )
@@ -526,7 +636,7 @@ public class HDRProcessor {
      *  Android 5.0).
      */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void processHDRCore(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) {
+    private void processHDRCore(Backend backend, List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) {
         if( MyDebug.LOG )
             Log.d(TAG, "processHDRCore");
 
@@ -549,19 +659,26 @@ public class HDRProcessor {
         if( MyDebug.LOG )
             Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
         // create allocations
+        // (not needed for the CPU backend, as MTB alignment reads from the bitmaps directly, and
+        // HDRProcessorCPU only copies a band of rows at a time - this avoids needing a full size
+        // copy of every input image)
         Allocation [] allocations = new Allocation[n_bitmaps];
-        for(int i=0;i<n_bitmaps;i++) {
-            allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+        if( backend != Backend.BACKEND_CPU ) {
+            for(int i=0;i<n_bitmaps;i++) {
+                allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
         //final int base_bitmap = (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
         final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
         // for even number of images, round up to brighter image
 
         // perform auto-alignment
         // if assume_sorted if false, this function will also sort the allocations and bitmaps from darkest to brightest.
+        long align_start = startTimer();
         BrightnessDetails brightnessDetails = autoAlignment(offsets_x, offsets_y, allocations, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, false, 1, true, 1, width, height, time_s);
+        stopTimer(SaveMetrics.Stage.ALIGN, align_start);
         int median_brightness = brightnessDetails.median_brightness;
         if( MyDebug.LOG ) {
             Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
@@ -646,110 +763,6 @@ public class HDRProcessor {
 			Log.d(TAG, "time after calculating average luminance: " + (System.currentTimeMillis() - time_s));
 			*/
 
-        // write new hdr image
-
-        // create RenderScript
-		/*if( processHDRScript == null ) {
-			processHDRScript = new ScriptC_process_hdr(rs);
-		}*/
-        ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
-
-        // set allocations
-        processHDRScript.set_bitmap0(allocations[0]);
-        if( n_bitmaps > 2 ) {
-            processHDRScript.set_bitmap2(allocations[2]);
-        }
-
-        // set offsets
-        processHDRScript.set_offset_x0(offsets_x[0]);
-        processHDRScript.set_offset_y0(offsets_y[0]);
-        // no offset for middle image
-        if( n_bitmaps > 2 ) {
-            processHDRScript.set_offset_x2(offsets_x[2]);
-            processHDRScript.set_offset_y2(offsets_y[2]);
-        }
-
-        // set response functions
-        processHDRScript.set_parameter_A0(response_functions[0].parameter_A);
-        processHDRScript.set_parameter_B0(response_functions[0].parameter_B);
-        // no response function for middle image
-        if( n_bitmaps > 2 ) {
-            processHDRScript.set_parameter_A2(response_functions[2].parameter_A);
-            processHDRScript.set_parameter_B2(response_functions[2].parameter_B);
-        }
-
-        if( use_hdr_n ) {
-            // now need to set values for image 1
-            processHDRScript.set_bitmap1(allocations[1]);
-            processHDRScript.set_offset_x1(offsets_x[1]);
-            processHDRScript.set_offset_y1(offsets_y[1]);
-            processHDRScript.set_parameter_A1(response_functions[1].parameter_A);
-            processHDRScript.set_parameter_B1(response_functions[1].parameter_B);
-        }
-
-        if( n_bitmaps > 3 ) {
-            processHDRScript.set_bitmap3(allocations[3]);
-            processHDRScript.set_offset_x3(offsets_x[3]);
-            processHDRScript.set_offset_y3(offsets_y[3]);
-            processHDRScript.set_parameter_A3(response_functions[3].parameter_A);
-            processHDRScript.set_parameter_B3(response_functions[3].parameter_B);
-
-            if( n_bitmaps > 4 ) {
-                processHDRScript.set_bitmap4(allocations[4]);
-                processHDRScript.set_offset_x4(offsets_x[4]);
-                processHDRScript.set_offset_y4(offsets_y[4]);
-                processHDRScript.set_parameter_A4(response_functions[4].parameter_A);
-                processHDRScript.set_parameter_B4(response_functions[4].parameter_B);
-
-                if( n_bitmaps > 5 ) {
-                    processHDRScript.set_bitmap5(allocations[5]);
-                    processHDRScript.set_offset_x5(offsets_x[5]);
-                    processHDRScript.set_offset_y5(offsets_y[5]);
-                    processHDRScript.set_parameter_A5(response_functions[5].parameter_A);
-                    processHDRScript.set_parameter_B5(response_functions[5].parameter_B);
-
-                    if( n_bitmaps > 6 ) {
-                        processHDRScript.set_bitmap6(allocations[6]);
-                        processHDRScript.set_offset_x6(offsets_x[6]);
-                        processHDRScript.set_offset_y6(offsets_y[6]);
-                        processHDRScript.set_parameter_A6(response_functions[6].parameter_A);
-                        processHDRScript.set_parameter_B6(response_functions[6].parameter_B);
-                    }
-                }
-            }
-        }
-
-        // set globals
-
-        // set tonemapping algorithm
-        switch( tonemapping_algorithm ) {
-            case TONEMAPALGORITHM_CLAMP:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: clamp");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_clamp_c() );
-                break;
-            case TONEMAPALGORITHM_EXPONENTIAL:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: exponential");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_exponential_c() );
-                break;
-            case TONEMAPALGORITHM_REINHARD:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: reinhard");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_reinhard_c() );
-                break;
-            case TONEMAPALGORITHM_FILMIC:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: filmic");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_filmic_c() );
-                break;
-            case TONEMAPALGORITHM_ACES:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: aces");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
-                break;
-        }
-
         float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
         //float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
         if( MyDebug.LOG )
@@ -817,9 +830,10 @@ public class HDRProcessor {
         // (tonemap_scale_c==255 means therefore that colours will only be made darker).
         if( MyDebug.LOG )
             Log.d(TAG, "tonemap_scale_c: " + tonemap_scale_c);
-        processHDRScript.set_tonemap_scale(tonemap_scale_c);
 
         // algorithm specific parameters
+        float linear_scale = 1.0f; // default value in process_hdr.rs
+        float W = 11.2f; // default value in process_hdr.rs
         switch( tonemapping_algorithm ) {
             case TONEMAPALGORITHM_EXPONENTIAL:
             {
@@ -830,11 +844,10 @@ public class HDRProcessor {
                 // so 1 = S . (1 - exp( - E * Vmax ))
                 // => S = 1 / (1 - exp( - E * Vmax ))
                 // Note that Vmax should be set to a minimum of 255, else we'll make darker images brighter.
-                float E = processHDRScript.get_exposure();
-                float linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
+                float E = HDRProcessorCPU.exposure_c; // same as exposure in process_hdr.rs
+                linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
                 break;
             }
             case TONEMAPALGORITHM_REINHARD: {
@@ -857,25 +870,137 @@ public class HDRProcessor {
                 // max_possible_value >= 255.
                 // Note that the original Reinhard tonemapping paper describes a non-linear scaling by (1 + CV/Vmax^2),
                 // though this is poorer performance (in terms of calculation time).
-                float linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
+                linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
                 break;
             }
             case TONEMAPALGORITHM_FILMIC:
             {
                 // For filmic, we have f(V) = U(EV) / U(W), where V is the HDR value, U is a function.
                 // We want f(Vmax) = 1, so EVmax = W
-                float E = processHDRScript.get_filmic_exposure_bias();
-                float W = E * max_possible_value;
+                float E = HDRProcessorCPU.filmic_exposure_bias_c; // same as filmic_exposure_bias in process_hdr.rs
+                W = E * max_possible_value;
                 if( MyDebug.LOG )
                     Log.d(TAG, "filmic W: " + W);
-                processHDRScript.set_W(W);
                 break;
             }
         }
 
+        if( backend == Backend.BACKEND_CPU ) {
+            freeScripts();
+            HDRProcessorCPU.TonemapParameters tonemap_parameters = new HDRProcessorCPU.TonemapParameters(tonemapping_algorithm, tonemap_scale_c, linear_scale, W);
+            processHDRCoreCPU(bitmaps, release_bitmaps, output_bitmap, base_bitmap, response_functions, use_hdr_n, tonemap_parameters, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+            return;
+        }
+
+        // write new hdr image
+
+        // create RenderScript
+		/*if( processHDRScript == null ) {
+			processHDRScript = new ScriptC_process_hdr(rs);
+		}*/
+        ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
+
+        // set allocations
+        processHDRScript.set_bitmap0(allocations[0]);
+        if( n_bitmaps > 2 ) {
+            processHDRScript.set_bitmap2(allocations[2]);
+        }
+
+        // set offsets
+        processHDRScript.set_offset_x0(offsets_x[0]);
+        processHDRScript.set_offset_y0(offsets_y[0]);
+        // no offset for middle image
+        if( n_bitmaps > 2 ) {
+            processHDRScript.set_offset_x2(offsets_x[2]);
+            processHDRScript.set_offset_y2(offsets_y[2]);
+        }
+
+        // set response functions
+        processHDRScript.set_parameter_A0(response_functions[0].parameter_A);
+        processHDRScript.set_parameter_B0(response_functions[0].parameter_B);
+        // no response function for middle image
+        if( n_bitmaps > 2 ) {
+            processHDRScript.set_parameter_A2(response_functions[2].parameter_A);
+            processHDRScript.set_parameter_B2(response_functions[2].parameter_B);
+        }
+
+        if( use_hdr_n ) {
+            // now need to set values for image 1
+            processHDRScript.set_bitmap1(allocations[1]);
+            processHDRScript.set_offset_x1(offsets_x[1]);
+            processHDRScript.set_offset_y1(offsets_y[1]);
+            processHDRScript.set_parameter_A1(response_functions[1].parameter_A);
+            processHDRScript.set_parameter_B1(response_functions[1].parameter_B);
+        }
+
+        if( n_bitmaps > 3 ) {
+            processHDRScript.set_bitmap3(allocations[3]);
+            processHDRScript.set_offset_x3(offsets_x[3]);
+            processHDRScript.set_offset_y3(offsets_y[3]);
+            processHDRScript.set_parameter_A3(response_functions[3].parameter_A);
+            processHDRScript.set_parameter_B3(response_functions[3].parameter_B);
+
+            if( n_bitmaps > 4 ) {
+                processHDRScript.set_bitmap4(allocations[4]);
+                processHDRScript.set_offset_x4(offsets_x[4]);
+                processHDRScript.set_offset_y4(offsets_y[4]);
+                processHDRScript.set_parameter_A4(response_functions[4].parameter_A);
+                processHDRScript.set_parameter_B4(response_functions[4].parameter_B);
+
+                if( n_bitmaps > 5 ) {
+                    processHDRScript.set_bitmap5(allocations[5]);
+                    processHDRScript.set_offset_x5(offsets_x[5]);
+                    processHDRScript.set_offset_y5(offsets_y[5]);
+                    processHDRScript.set_parameter_A5(response_functions[5].parameter_A);
+                    processHDRScript.set_parameter_B5(response_functions[5].parameter_B);
+
+                    if( n_bitmaps > 6 ) {
+                        processHDRScript.set_bitmap6(allocations[6]);
+                        processHDRScript.set_offset_x6(offsets_x[6]);
+                        processHDRScript.set_offset_y6(offsets_y[6]);
+                        processHDRScript.set_parameter_A6(response_functions[6].parameter_A);
+                        processHDRScript.set_parameter_B6(response_functions[6].parameter_B);
+                    }
+                }
+            }
+        }
+
+        // set globals
+
+        // set tonemapping algorithm
+        switch( tonemapping_algorithm ) {
+            case TONEMAPALGORITHM_CLAMP:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: clamp");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_clamp_c() );
+                break;
+            case TONEMAPALGORITHM_EXPONENTIAL:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: exponential");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_exponential_c() );
+                break;
+            case TONEMAPALGORITHM_REINHARD:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: reinhard");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_reinhard_c() );
+                break;
+            case TONEMAPALGORITHM_FILMIC:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: filmic");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_filmic_c() );
+                break;
+            case TONEMAPALGORITHM_ACES:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: aces");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
+                break;
+        }
+        processHDRScript.set_tonemap_scale(tonemap_scale_c);
+        processHDRScript.set_linear_scale(linear_scale);
+        processHDRScript.set_W(W);
+
         if( MyDebug.LOG )
             Log.d(TAG, "call processHDRScript");
         Allocation output_allocation;
@@ -916,7 +1041,9 @@ public class HDRProcessor {
         }
 
         if( hdr_alpha != 0.0f ) {
+            long tonemap_start = startTimer();
             adjustHistogram(output_allocation, output_allocation, width, height, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+            stopTimerRS(SaveMetrics.Stage.TONEMAP, tonemap_start);
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
         }
@@ -950,8 +1077,64 @@ public class HDRProcessor {
             Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
     }
 
+    /** CPU implementation of the merge and tonemapping stages of processHDRCore(), see
+     *  HDRProcessorCPU.
+     */
+    private void processHDRCoreCPU(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, int base_bitmap, ResponseFunction [] response_functions, boolean use_hdr_n, HDRProcessorCPU.TonemapParameters tonemap_parameters, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, long time_s) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRCoreCPU");
+        int n_bitmaps = bitmaps.size();
+        HDRProcessorCPU.Image [] images = new HDRProcessorCPU.Image[n_bitmaps];
+        float [] parameter_A = new float[n_bitmaps];
+        float [] parameter_B = new float[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            images[i] = new BitmapImage(bitmaps.get(i));
+            // as with processHDRScript, a null response function means the identity
+            parameter_A[i] = response_functions[i] != null ? response_functions[i].parameter_A : 1.0f;
+            parameter_B[i] = response_functions[i] != null ? response_functions[i].parameter_B : 0.0f;
+        }
+        // as with processHDRCore(), if release_bitmaps we must output to the base bitmap, as that's the
+        // image guaranteed to have no offset
+        HDRProcessorCPU.Image output = release_bitmaps ? images[base_bitmap] : new BitmapImage(output_bitmap);
+
+        int [] histograms = hdr_alpha != 0.0f ? new int[n_tiles*n_tiles*256] : null;
+        HDRProcessorCPU.processHDR(images, base_bitmap, offsets_x, offsets_y, parameter_A, parameter_B, use_hdr_n, tonemap_parameters, output, histograms, n_tiles);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after HDRProcessorCPU.processHDR: " + (System.currentTimeMillis() - time_s));
+
+        if( release_bitmaps ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "release bitmaps");
+            for(int i=0;i<bitmaps.size();i++) {
+                if (i != base_bitmap) {
+                    Bitmap bitmap = bitmaps.get(i);
+                    bitmap.recycle();
+                }
+            }
+        }
+
+        if( hdr_alpha != 0.0f ) {
+            long tonemap_start = startTimer();
+            HDRProcessorCPU.adjustHistogram(output, output, histograms, hdr_alpha, n_tiles, ce_preserve_blacks);
+            stopTimer(SaveMetrics.Stage.TONEMAP, tonemap_start);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after HDRProcessorCPU.adjustHistogram: " + (System.currentTimeMillis() - time_s));
+        }
+
+        if( release_bitmaps ) {
+            // make it so that we store the output bitmap as first in the list
+            bitmaps.set(0, bitmaps.get(base_bitmap));
+            for(int i=1;i<bitmaps.size();i++) {
+                bitmaps.set(i, null);
+            }
+        }
+        HDRProcessorCPU.freeScratchBuffers();
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time for processHDRCoreCPU: " + (System.currentTimeMillis() - time_s));
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void processSingleImage(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, DROTonemappingAlgorithm dro_tonemapping_algorithm) {
+    private void processSingleImage(Backend backend, List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, DROTonemappingAlgorithm dro_tonemapping_algorithm) {
         if( MyDebug.LOG )
             Log.d(TAG, "processSingleImage");
 
@@ -960,6 +1143,11 @@ public class HDRProcessor {
         int width = bitmaps.get(0).getWidth();
         int height = bitmaps.get(0).getHeight();
 
+        if( backend == Backend.BACKEND_CPU ) {
+            processSingleImageCPU(bitmaps, release_bitmaps, output_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, dro_tonemapping_algorithm, time_s);
+            return;
+        }
+
         initRenderscript();
         if( MyDebug.LOG )
             Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
@@ -977,9 +1165,11 @@ public class HDRProcessor {
             output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
         }
 
+        // the brighten and adjustHistogram passes are recorded as a single tonemap stage, so DRO photos record one time as for HDR
+        long tonemap_start = startTimer();
         if( dro_tonemapping_algorithm == DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA ) {
             // brighten?
-            int [] histo = computeHistogram(allocation, false, false);
+            int [] histo = HistogramEngine.computeHistogram(new BitmapImage(bitmaps.get(0)), HistogramEngine.Type.TYPE_VALUE);
             HistogramInfo histogramInfo = getHistogramInfo(histo);
             int brightness = histogramInfo.median_brightness;
             int max_brightness = histogramInfo.max_brightness;
@@ -1024,6 +1214,7 @@ public class HDRProcessor {
         }
 
         adjustHistogram(allocation, output_allocation, width, height, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+        stopTimerRS(SaveMetrics.Stage.TONEMAP, tonemap_start);
 
         if( release_bitmaps ) {
             allocation.copyTo(bitmaps.get(0));
@@ -1045,6 +1236,58 @@ public class HDRProcessor {
             Log.d(TAG, "time for processSingleImage: " + (System.currentTimeMillis() - time_s));
     }
 
+    /** CPU implementation of processSingleImage(), see HDRProcessorCPU.
+     */
+    private void processSingleImageCPU(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, DROTonemappingAlgorithm dro_tonemapping_algorithm, long time_s) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processSingleImageCPU");
+        HDRProcessorCPU.Image input = new BitmapImage(bitmaps.get(0));
+        HDRProcessorCPU.Image output = release_bitmaps ? input : new BitmapImage(output_bitmap);
+        int [] histograms = null;
+
+        // as processSingleImage(), the brighten and adjustHistogram passes are recorded as a single tonemap stage
+        long tonemap_start = startTimer();
+        if( dro_tonemapping_algorithm == DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA ) {
+            // brighten?
+            int [] histo = HistogramEngine.computeHistogram(input, HistogramEngine.Type.TYPE_VALUE);
+            HistogramInfo histogramInfo = getHistogramInfo(histo);
+            int brightness = histogramInfo.median_brightness;
+            int max_brightness = histogramInfo.max_brightness;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "### time after computeHistogram: " + (System.currentTimeMillis() - time_s));
+                Log.d(TAG, "median brightness: " + brightness);
+                Log.d(TAG, "max brightness: " + max_brightness);
+            }
+            BrightenFactors brighten_factors = computeBrightenFactors(false, 0, 0, brightness, max_brightness);
+            float gain = brighten_factors.gain;
+            float gamma = brighten_factors.gamma;
+            float low_x = brighten_factors.low_x;
+            float mid_x = brighten_factors.mid_x;
+
+            if( Math.abs(gain - 1.0) > 1.0e-5 || max_brightness != 255 || Math.abs(gamma - 1.0) > 1.0e-5 ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "apply gain/gamma");
+                // compute the histograms needed for adjustHistogram in the same pass
+                histograms = new int[n_tiles*n_tiles*256];
+                HDRProcessorCPU.droBrighten(input, output, gain, gamma, low_x, mid_x, max_brightness, histograms, n_tiles);
+                // output is now the input for subsequent operations
+                input = output;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "### time after dro_brighten: " + (System.currentTimeMillis() - time_s));
+            }
+        }
+
+        if( histograms == null ) {
+            histograms = HDRProcessorCPU.computeHistograms(input, n_tiles);
+        }
+        HDRProcessorCPU.adjustHistogram(input, output, histograms, hdr_alpha, n_tiles, ce_preserve_blacks);
+        stopTimer(SaveMetrics.Stage.TONEMAP, tonemap_start);
+        HDRProcessorCPU.freeScratchBuffers();
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "time for processSingleImageCPU: " + (System.currentTimeMillis() - time_s));
+    }
+
     void brightenImage(Bitmap bitmap, int brightness, int max_brightness, int brightness_target) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "brightenImage");
@@ -1115,16 +1358,26 @@ public class HDRProcessor {
     }
 
     public static class AvgData {
-        public Allocation allocation_out;
+        final Backend backend; // the backend used by processAvg(), which updateAvg() must also use
+        public Allocation allocation_out; // null for Backend.BACKEND_CPU
+        HDRProcessorCPU.FloatImage image_out; // only for Backend.BACKEND_CPU
         Bitmap bitmap_avg_align;
         Allocation allocation_avg_align;
 
         AvgData(Allocation allocation_out, Bitmap bitmap_avg_align, Allocation allocation_avg_align) {
+            this.backend = Backend.BACKEND_RENDERSCRIPT;
             this.allocation_out = allocation_out;
             this.bitmap_avg_align = bitmap_avg_align;
             this.allocation_avg_align = allocation_avg_align;
         }
 
+        AvgData(HDRProcessorCPU.FloatImage image_out, Bitmap bitmap_avg_align, Allocation allocation_avg_align) {
+            this.backend = Backend.BACKEND_CPU;
+            this.image_out = image_out;
+            this.bitmap_avg_align = bitmap_avg_align;
+            this.allocation_avg_align = allocation_avg_align;
+        }
+
         public void destroy() {
             if( MyDebug.LOG )
                 Log.d(TAG, "AvgData.destroy()");
@@ -1132,6 +1385,7 @@ public class HDRProcessor {
                 allocation_out.destroy();
                 allocation_out = null;
             }
+            image_out = null;
             if( bitmap_avg_align != null ) {
                 bitmap_avg_align.recycle();
                 bitmap_avg_align = null;
@@ -1213,7 +1467,15 @@ public class HDRProcessor {
 		if( MyDebug.LOG )
 			Log.d(TAG, "median: " + luminanceInfo.median_value);*/
 
-        AvgData avg_data = processAvgCore(null, null, bitmap_avg, bitmap_new, width, height, avg_factor, iso, zoom_factor, null, null, time_s);
+        // read once, so that all the images of this merge use the same backend and storage even if
+        // setBackend() or setAvgStorage() is called meanwhile - updateAvg() uses the backend
+        // stored in the returned AvgData
+        final Backend backend = this.backend;
+        final HDRProcessorCPU.FloatImage.Storage avg_storage = this.avg_storage;
+        if( MyDebug.LOG )
+            Log.d(TAG, "backend: " + backend);
+
+        AvgData avg_data = processAvgCore(backend, avg_storage, null, null, null, bitmap_avg, bitmap_new, width, height, avg_factor, iso, zoom_factor, null, null, time_s);
 
         //allocation_avg.copyTo(bitmap_avg);
 
@@ -1253,17 +1515,22 @@ public class HDRProcessor {
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));*/
 
-        processAvgCore(avg_data.allocation_out, avg_data.allocation_out, null, bitmap_new, width, height, avg_factor, iso, zoom_factor, avg_data.allocation_avg_align, avg_data.bitmap_avg_align, time_s);
+        processAvgCore(avg_data.backend, null, avg_data.allocation_out, avg_data.allocation_out, avg_data.image_out, null, bitmap_new, width, height, avg_factor, iso, zoom_factor, avg_data.allocation_avg_align, avg_data.bitmap_avg_align, time_s);
 
         if( MyDebug.LOG )
             Log.d(TAG, "### time for updateAvg: " + (System.currentTimeMillis() - time_s));
     }
 
     /** Core algorithm for Noise Reduction algorithm.
+     * @param backend        The backend to use, which must be the same for all images being merged.
+     * @param avg_storage    How to store the accumulator for Backend.BACKEND_CPU. Only used for the
+     *                       first image (when image_avg is null).
      * @param allocation_out If non-null, this will be used for the output allocation, otherwise a
      *                       new one will be created.
      * @param allocation_avg If non-null, an allocation for the averaged image so far. If null, the
      *                       first bitmap should be supplied as bitmap_avg.
+     * @param image_avg      As allocation_avg, but for Backend.BACKEND_CPU (where allocation_out
+     *                       and allocation_avg should be null).
      * @param bitmap_avg     If non-null, the first bitmap (which will be recycled). If null, an
      *                       allocation_avg should be supplied.
      * @param bitmap_new     The new bitmap to combined. The bitmap will be recycled.
@@ -1278,7 +1545,7 @@ public class HDRProcessor {
      * @param time_s         Time, for debugging.
      */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private AvgData processAvgCore(Allocation allocation_out, Allocation allocation_avg, Bitmap bitmap_avg, Bitmap bitmap_new, int width, int height, float avg_factor, int iso, float zoom_factor, Allocation allocation_avg_align, Bitmap bitmap_avg_align, long time_s) {
+    private AvgData processAvgCore(Backend backend, HDRProcessorCPU.FloatImage.Storage avg_storage, Allocation allocation_out, Allocation allocation_avg, HDRProcessorCPU.FloatImage image_avg, Bitmap bitmap_avg, Bitmap bitmap_new, int width, int height, float avg_factor, int iso, float zoom_factor, Allocation allocation_avg_align, Bitmap bitmap_avg_align, long time_s) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "processAvgCore");
             Log.d(TAG, "iso: " + iso);
@@ -1381,7 +1648,9 @@ public class HDRProcessor {
             // misalignment more likely in "dark" images with more images and/or longer exposures
             // using max_align_scale=2 needed to prevent misalignment in testAvg51; also helps testAvg14
             boolean wider = iso >= 1100;
+            long align_start = startTimer();
             autoAlignment(offsets_x, offsets_y, allocations, alignment_width, alignment_height, align_bitmaps, 0, true, null, false, floating_point_align, 1, crop_to_centre, wider ? 2 : 1, full_alignment_width, full_alignment_height, time_s);
+            stopTimer(SaveMetrics.Stage.ALIGN, align_start);
 
 			/*
 			// compute allocation_diffs
@@ -1425,6 +1694,68 @@ public class HDRProcessor {
             }
         }
 
+        // if changing this, pay close attention to tests testAvg6, testAvg8, testAvg17, testAvg23
+        float limited_iso = Math.min(iso, 400);
+        float wiener_cutoff_factor = 1.0f;
+        if( iso >= 700 ) {
+            // helps reduce speckles in testAvg17, testAvg23, testAvg33, testAvg36, testAvg38
+            // using this level for testAvg31 (ISO 609) would increase ghosting
+            //limited_iso = 500;
+            limited_iso = 800;
+            if( iso >= 1100 ) {
+                // helps further reduce speckles in testAvg17, testAvg38
+                // but don't do for iso >= 700 as makes "vicks" text in testAvg23 slightly more blurred
+                wiener_cutoff_factor = 8.0f;
+            }
+        }
+        limited_iso = Math.max(limited_iso, 100);
+        float wiener_C = 10.0f * limited_iso;
+        //float wiener_C = 1000.0f;
+        //float wiener_C = 4000.0f;
+
+        // Tapering the wiener scale means that we do more averaging for earlier images in the stack, the
+        // logic being we'll have more chance of ghosting or misalignment with later images.
+        // This helps: testAvg31, testAvg33.
+        // Also slightly helps testAvg17, testAvg23 (slightly less white speckle on tv), testAvg28
+        // (one less white speckle on face).
+        // Note that too much tapering risks increasing ghosting in testAvg26, testAvg39.
+        float tapered_wiener_scale = 1.0f - (float)Math.pow(0.5, avg_factor);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "avg_factor: " + avg_factor);
+            Log.d(TAG, "tapered_wiener_scale: " + tapered_wiener_scale);
+        }
+        wiener_C /= tapered_wiener_scale;
+
+        float wiener_C_cutoff = wiener_cutoff_factor * wiener_C;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "wiener_C: " + wiener_C);
+            Log.d(TAG, "wiener_cutoff_factor: " + wiener_cutoff_factor);
+        }
+
+        if( backend == Backend.BACKEND_CPU ) {
+            // merge a band of rows at a time straight from the bitmaps, rather than creating full
+            // size allocations for bitmap_avg and bitmap_new
+            boolean first = image_avg == null;
+            if( first ) {
+                image_avg = new HDRProcessorCPU.FloatImage(width, height, avg_storage);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "accumulator storage " + avg_storage + " size: " + image_avg.getSizeInBytes());
+            }
+            HDRProcessorCPU.processAvg(first ? new BitmapImage(bitmap_avg) : null, image_avg, new BitmapImage(bitmap_new), offsets_x[1], offsets_y[1], avg_factor, wiener_C, wiener_C_cutoff);
+            HDRProcessorCPU.freeScratchBuffers();
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after HDRProcessorCPU.processAvg: " + (System.currentTimeMillis() - time_s));
+            if( bitmap_avg != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "release bitmap_avg");
+                bitmap_avg.recycle();
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "release bitmap_new");
+            bitmap_new.recycle();
+            return new AvgData(image_avg, bitmap_avg_align, allocation_avg_align);
+        }
+
         if( allocation_out == null ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "need to create allocation_out");
@@ -1462,65 +1793,28 @@ public class HDRProcessor {
 				Log.d(TAG, "release bitmap_avg");
 			bitmap_avg.recycle();
 			bitmap_avg = null;
-			allocation_avg = allocation_out;
-			first = false;
-		}*/
-
-        if( allocation_new == null ) {
-            allocation_new = Allocation.createFromBitmap(rs, bitmap_new);
-            if( MyDebug.LOG )
-                Log.d(TAG, "### time after creating allocation_new from bitmap: " + (System.currentTimeMillis() - time_s));
-        }
-
-        // set allocations
-        //processAvgScript.set_bitmap_avg(allocation_avg);
-        processAvgScript.set_bitmap_new(allocation_new);
-
-        // set offsets
-        processAvgScript.set_offset_x_new(offsets_x[1]);
-        processAvgScript.set_offset_y_new(offsets_y[1]);
-
-        // set globals
-
-        processAvgScript.set_avg_factor(avg_factor);
-
-        // if changing this, pay close attention to tests testAvg6, testAvg8, testAvg17, testAvg23
-        float limited_iso = Math.min(iso, 400);
-        float wiener_cutoff_factor = 1.0f;
-        if( iso >= 700 ) {
-            // helps reduce speckles in testAvg17, testAvg23, testAvg33, testAvg36, testAvg38
-            // using this level for testAvg31 (ISO 609) would increase ghosting
-            //limited_iso = 500;
-            limited_iso = 800;
-            if( iso >= 1100 ) {
-                // helps further reduce speckles in testAvg17, testAvg38
-                // but don't do for iso >= 700 as makes "vicks" text in testAvg23 slightly more blurred
-                wiener_cutoff_factor = 8.0f;
-            }
-        }
-        limited_iso = Math.max(limited_iso, 100);
-        float wiener_C = 10.0f * limited_iso;
-        //float wiener_C = 1000.0f;
-        //float wiener_C = 4000.0f;
+			allocation_avg = allocation_out;
+			first = false;
+		}*/
 
-        // Tapering the wiener scale means that we do more averaging for earlier images in the stack, the
-        // logic being we'll have more chance of ghosting or misalignment with later images.
-        // This helps: testAvg31, testAvg33.
-        // Also slightly helps testAvg17, testAvg23 (slightly less white speckle on tv), testAvg28
-        // (one less white speckle on face).
-        // Note that too much tapering risks increasing ghosting in testAvg26, testAvg39.
-        float tapered_wiener_scale = 1.0f - (float)Math.pow(0.5, avg_factor);
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "avg_factor: " + avg_factor);
-            Log.d(TAG, "tapered_wiener_scale: " + tapered_wiener_scale);
+        if( allocation_new == null ) {
+            allocation_new = Allocation.createFromBitmap(rs, bitmap_new);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after creating allocation_new from bitmap: " + (System.currentTimeMillis() - time_s));
         }
-        wiener_C /= tapered_wiener_scale;
 
-        float wiener_C_cutoff = wiener_cutoff_factor * wiener_C;
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "wiener_C: " + wiener_C);
-            Log.d(TAG, "wiener_cutoff_factor: " + wiener_cutoff_factor);
-        }
+        // set allocations
+        //processAvgScript.set_bitmap_avg(allocation_avg);
+        processAvgScript.set_bitmap_new(allocation_new);
+
+        // set offsets
+        processAvgScript.set_offset_x_new(offsets_x[1]);
+        processAvgScript.set_offset_y_new(offsets_y[1]);
+
+        // set globals
+
+        processAvgScript.set_avg_factor(avg_factor);
+
         processAvgScript.set_wiener_C(wiener_C);
         processAvgScript.set_wiener_C_cutoff(wiener_C_cutoff);
 
@@ -1719,6 +2013,8 @@ public class HDRProcessor {
 
     /**
      *
+     * @param allocations   Entries may be null if use_mtb is true, as the median threshold
+     *                      bitmaps are then computed from bitmaps.
      * @param bitmaps       Only required if use_mtb is true, otherwise may be null.
      * @param base_bitmap   Index of bitmap in bitmaps that should be kept fixed; the other bitmaps
      *                      will be aligned relative to this.
@@ -1738,6 +2034,11 @@ public class HDRProcessor {
             Log.d(TAG, "max_align_scale: " + max_align_scale);
             Log.d(TAG, "allocations: " + allocations.length);
             for(Allocation allocation : allocations) {
+                if( allocation == null ) {
+                    // allowed if use_mtb is true, see processHDRCore()
+                    Log.d(TAG, "    no allocation");
+                    continue;
+                }
                 Log.d(TAG, "    allocation:");
                 Log.d(TAG, "    element: " + allocation.getElement());
                 Log.d(TAG, "    type X: " + allocation.getType().getX());
@@ -1776,7 +2077,8 @@ public class HDRProcessor {
         }
 
         // create RenderScript
-        if( createMTBScript == null ) {
+        // (median threshold bitmaps are created on the CPU instead, see MTBAlignment)
+        if( !use_mtb && createMTBScript == null ) {
             createMTBScript = new ScriptC_create_mtb(rs);
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
@@ -1872,6 +2174,29 @@ public class HDRProcessor {
                 Log.d(TAG, "median_brightness: " + median_brightness);
         }
 
+        // The initial step_size N should be a power of 2; the maximum offset we can achieve by the algorithm is N-1.
+        // For pictures resolution 4160x3120, this gives max_ideal_size 27, and initial_step_size 32.
+        // On tests testHDR1 to testHDR35, the max required offset was 24 pixels (for testHDR33) even when using
+        // inital_step_size of 64.
+        // Note, there isn't really a performance cost in allowing higher initial step sizes (as larger sizes have less
+        // sampling - since we sample every step_size pixels - though there might be some overhead for every extra call
+        // to renderscript that we do). But high step sizes have a risk of producing really bad results if we were
+        // to misidentify cases as needing a large offset.
+        int max_dim = Math.max(full_width, full_height); // n.b., use the full width and height here, not the mtb_width, height
+        //int max_ideal_size = max_dim / (wider ? 75 : 150);
+        int max_ideal_size = (max_align_scale * max_dim) / 150;
+        int initial_step_size = 1;
+        while( initial_step_size < max_ideal_size ) {
+            initial_step_size *= 2;
+        }
+        //initial_step_size = 64;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "max_dim: " + max_dim);
+            Log.d(TAG, "max_ideal_size: " + max_ideal_size);
+            Log.d(TAG, "initial_step_size: " + initial_step_size);
+        }
+
+        MTBAlignment.MTB [] mtbs = use_mtb ? new MTBAlignment.MTB[allocations.length] : null;
         for(int i=0;i<allocations.length;i++) {
             int median_value = -1;
             if( use_mtb ) {
@@ -1896,10 +2221,8 @@ public class HDRProcessor {
                 continue;
             }
 
-            mtb_allocations[i] = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), mtb_width, mtb_height));
-
             // avoid too low/high median_values, otherwise we'll detect dark or light pixels as "noisy" - needed for testHDR61
-            final int min_diff_c = 4; // should be same value as in create_mtb.rs/create_mtb()
+            final int min_diff_c = MTBAlignment.min_diff_c; // should be same value as in create_mtb.rs/create_mtb()
             /*if( median_value < min_diff_c+1 || median_value > 255-(min_diff_c+1) ) {
                 throw new RuntimeException("image " + i + " has median_value: " + median_value); // test
             }*/
@@ -1908,9 +2231,18 @@ public class HDRProcessor {
             if( MyDebug.LOG )
                 Log.d(TAG, i + ": median_value is now: " + median_value);
 
+            if( use_mtb ) {
+                // store as packed bit planes, which is much faster to align than using align_mtb.rs, and
+                // uses far less memory than a byte per pixel
+                mtbs[i] = MTBAlignment.createMTB(new BitmapImage(bitmaps.get(i)), median_value, mtb_x, mtb_y, mtb_width, mtb_height, Math.max(1, initial_step_size/2));
+                if( MyDebug.LOG )
+                    Log.d(TAG, "time after createMTB: " + (System.currentTimeMillis() - time_s));
+                continue;
+            }
+
+            mtb_allocations[i] = Allocation.createTyped(rs, Type.createXY(rs, Element.U8(rs), mtb_width, mtb_height));
+
             // set parameters
-            if( use_mtb )
-                createMTBScript.set_median_value(median_value);
             createMTBScript.set_start_x(mtb_x);
             createMTBScript.set_start_y(mtb_y);
             createMTBScript.set_out_bitmap(mtb_allocations[i]);
@@ -1923,14 +2255,10 @@ public class HDRProcessor {
             //createMTBScript.forEach_create_mtb(allocations[i], mtb_allocations[i], launch_options);
             launch_options.setX(mtb_x, mtb_x+mtb_width);
             launch_options.setY(mtb_y, mtb_y+mtb_height);
-            if( use_mtb )
-                createMTBScript.forEach_create_mtb(allocations[i], launch_options);
-            else {
-                if( floating_point && i == 0 )
-                    createMTBScript.forEach_create_greyscale_f(allocations[i], launch_options);
-                else
-                    createMTBScript.forEach_create_greyscale(allocations[i], launch_options);
-            }
+            if( floating_point && i == 0 )
+                createMTBScript.forEach_create_greyscale_f(allocations[i], launch_options);
+            else
+                createMTBScript.forEach_create_greyscale(allocations[i], launch_options);
             if( MyDebug.LOG )
                 Log.d(TAG, "time after createMTBScript: " + (System.currentTimeMillis() - time_s));
 
@@ -1963,26 +2291,35 @@ public class HDRProcessor {
         if( MyDebug.LOG )
             Log.d(TAG, "### time after all createMTBScript: " + (System.currentTimeMillis() - time_s));
 
-        // The initial step_size N should be a power of 2; the maximum offset we can achieve by the algorithm is N-1.
-        // For pictures resolution 4160x3120, this gives max_ideal_size 27, and initial_step_size 32.
-        // On tests testHDR1 to testHDR35, the max required offset was 24 pixels (for testHDR33) even when using
-        // inital_step_size of 64.
-        // Note, there isn't really a performance cost in allowing higher initial step sizes (as larger sizes have less
-        // sampling - since we sample every step_size pixels - though there might be some overhead for every extra call
-        // to renderscript that we do). But high step sizes have a risk of producing really bad results if we were
-        // to misidentify cases as needing a large offset.
-        int max_dim = Math.max(full_width, full_height); // n.b., use the full width and height here, not the mtb_width, height
-        //int max_ideal_size = max_dim / (wider ? 75 : 150);
-        int max_ideal_size = (max_align_scale * max_dim) / 150;
-        int initial_step_size = 1;
-        while( initial_step_size < max_ideal_size ) {
-            initial_step_size *= 2;
-        }
-        //initial_step_size = 64;
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "max_dim: " + max_dim);
-            Log.d(TAG, "max_ideal_size: " + max_ideal_size);
-            Log.d(TAG, "initial_step_size: " + initial_step_size);
+        if( use_mtb ) {
+            if( mtbs[base_bitmap] == null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "base image not suitable for image alignment");
+                return new BrightnessDetails(median_brightness);
+            }
+            int [] offset = new int[2];
+            for(int i=0;i<mtbs.length;i++) {
+                if( i == base_bitmap ) {
+                    // don't need to align the "base" reference image
+                    continue;
+                }
+                if( mtbs[i] == null ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "image " + i + " not suitable for image alignment");
+                    continue;
+                }
+                MTBAlignment.align(offset, mtbs[base_bitmap], mtbs[i], initial_step_size, min_step_size);
+                offsets_x[i] = offset[0];
+                offsets_y[i] = offset[1];
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "resultant offsets for image: " + i);
+                    Log.d(TAG, "resultant offsets_x: " + offsets_x[i]);
+                    Log.d(TAG, "resultant offsets_y: " + offsets_y[i]);
+                }
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after MTBAlignment: " + (System.currentTimeMillis() - time_s));
+            return new BrightnessDetails(median_brightness);
         }
 
         if( mtb_allocations[base_bitmap] == null ) {
@@ -2235,35 +2572,9 @@ public class HDRProcessor {
         final int n_w_samples = (int)Math.sqrt(n_samples_c);
         final int n_h_samples = n_samples_c/n_w_samples;
 
-        int [] histo = new int[256];
-        for(int i=0;i<256;i++)
-            histo[i] = 0;
-        int total = 0;
-        //double sum_log_luminance = 0.0;
-        for(int y=0;y<n_h_samples;y++) {
-            double alpha = ((double) y + 1.0) / ((double) n_h_samples + 1.0);
-            //int y_coord = (int) (alpha * bitmap.getHeight());
-            int y_coord = mtb_y + (int) (alpha * mtb_height);
-            for(int x=0;x<n_w_samples;x++) {
-                double beta = ((double) x + 1.0) / ((double) n_w_samples + 1.0);
-                //int x_coord = (int) (beta * bitmap.getWidth());
-                int x_coord = mtb_x + (int) (beta * mtb_width);
-				/*if( MyDebug.LOG )
-					Log.d(TAG, "sample value from " + x_coord + " , " + y_coord);*/
-                int color = bitmap.getPixel(x_coord, y_coord);
-                int r = (color & 0xFF0000) >> 16;
-                int g = (color & 0xFF00) >> 8;
-                int b = (color & 0xFF);
-                int luminance = Math.max(r, g);
-                luminance = Math.max(luminance, b);
-                histo[luminance]++;
-                //sum_log_luminance += Math.log(luminance+1.0); // add 1 so we don't take log of 0...;
-                total++;
-            }
-        }
-		/*float avg_luminance = (float)(Math.exp( sum_log_luminance / total ));
-		if( MyDebug.LOG )
-			Log.d(TAG, "avg_luminance: " + avg_luminance);*/
+        // sample an n_w_samples x n_h_samples grid over the mtb region, using max(r, g, b) as the luminance
+        int [] histo = HistogramEngine.computeHistogramSampled(new BitmapImage(bitmap), HistogramEngine.Type.TYPE_VALUE, mtb_x, mtb_y, mtb_width, mtb_height, n_w_samples, n_h_samples);
+        int total = n_w_samples*n_h_samples;
         int middle = total/2;
         int count = 0;
         boolean noisy = false;
@@ -2490,130 +2801,9 @@ public class HDRProcessor {
 							}
 						}*/
 
-                    // clip histogram, for Contrast Limited AHE algorithm
                     int n_pixels = (stop_x - start_x) * (stop_y - start_y);
-                    int clip_limit = (5 * n_pixels) / 256;
-					/*if( MyDebug.LOG ) {
-                        Log.d(TAG, "clip_limit: " + clip_limit);
-                        Log.d(TAG, "    relative clip limit: " + clip_limit*256.0f/n_pixels);
-                    }*/
-                    {
-                        // find real clip limit
-                        int bottom = 0, top = clip_limit;
-                        while( top - bottom > 1 ) {
-                            int middle = (top + bottom)/2;
-                            int sum = 0;
-                            for(int x=0;x<256;x++) {
-                                if( histogram[x] > middle ) {
-                                    sum += (histogram[x] - clip_limit);
-                                }
-                            }
-                            if( sum > (clip_limit - middle) * 256 )
-                                top = middle;
-                            else
-                                bottom = middle;
-                        }
-                        clip_limit = (top + bottom)/2;
-                        /*if( MyDebug.LOG ) {
-                            Log.d(TAG, "updated clip_limit: " + clip_limit);
-                            Log.d(TAG, "    relative updated clip limit: " + clip_limit*256.0f/n_pixels);
-                        }*/
-                    }
-                    int n_clipped = 0;
-                    for(int x=0;x<256;x++) {
-                        if( histogram[x] > clip_limit ) {
-                            /*if( MyDebug.LOG ) {
-                                Log.d(TAG, "    " + x + " : " + histogram[x] + " : " + (histogram[x]*256.0f/n_pixels));
-                            }*/
-                            n_clipped += (histogram[x] - clip_limit);
-                            histogram[x] = clip_limit;
-                        }
-                    }
-                    int n_clipped_per_bucket = n_clipped / 256;
-						/*if( MyDebug.LOG ) {
-							Log.d(TAG, "n_clipped: " + n_clipped);
-							Log.d(TAG, "n_clipped_per_bucket: " + n_clipped_per_bucket);
-						}*/
-                    for(int x=0;x<256;x++) {
-                        histogram[x] += n_clipped_per_bucket;
-                    }
-
-                    if( ce_preserve_blacks ) {
-                        // This helps tests such as testHDR52, testHDR57, testAvg26, testAvg30
-                        // The basic idea is that we want to avoid making darker pixels darker (by too
-                        // much). We do this by adjusting the histogram:
-                        // * We can set a minimum value of each histogram value. E.g., if we set all
-                        //   pixels up to a certain brightness to a value equal to n_pixels/256, then
-                        //   we prevent those pixels from being made darker. In practice, we choose
-                        //   a tapered minimum, starting at (n_pixels/256) for black pixels, linearly
-                        //   interpolating to no minimum at brightness 128 (dark_threshold_c).
-                        // * For any adjusted value of the histogram, we redistribute, by reducing
-                        //   the histogram values of brighter pixels with values larger than (n_pixels/256),
-                        //   reducing them to a minimum of (n_pixels/256).
-                        // * Lastly, we only modify a given histogram value if pixels of that brightness
-                        //   would be made darker by the CLAHE algorithm. We can do this by looking at
-                        //   the cumulative histogram (as computed before modifying any values).
-                        if( MyDebug.LOG ) {
-                            for(int x=0;x<256;x++) {
-                                Log.d(TAG, "pre-brighten histogram[" + x + "] = " + histogram[x]);
-                            }
-                        }
-
-                        temp_c_histogram[0] = histogram[0];
-                        for(int x=1;x<256;x++) {
-                            temp_c_histogram[x] = temp_c_histogram[x-1] + histogram[x];
-                        }
-
-                        // avoid making pixels too dark
-                        int equal_limit = n_pixels / 256;
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "equal_limit: " + equal_limit);
-                        //final int dark_threshold_c = 64;
-                        final int dark_threshold_c = 128;
-                        //final int dark_threshold_c = 256;
-                        for(int x=0;x<dark_threshold_c;x++) {
-                            int c_equal_limit = equal_limit * (x+1);
-                            if( temp_c_histogram[x] >= c_equal_limit ) {
-                                continue;
-                            }
-                            float alpha = 1.0f - ((float)x)/((float)dark_threshold_c);
-                            //float alpha = 1.0f - ((float)x)/256.0f;
-                            int limit = (int)(alpha * equal_limit);
-                            //int limit = equal_limit;
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "x: " + x + " ; limit: " + limit);
-                            /*histogram[x] = Math.max(histogram[x], limit);
-							if( MyDebug.LOG )
-								Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);*/
-                            if( histogram[x] < limit ) {
-                                // top up by redistributing later values
-                                for(int y=x+1;y<256 && histogram[x] < limit;y++) {
-                                    if( histogram[y] > equal_limit ) {
-                                        int move = histogram[y] - equal_limit;
-                                        move = Math.min(move, limit - histogram[x]);
-                                        histogram[x] += move;
-                                        histogram[y] -= move;
-                                    }
-                                }
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);
-	                        	/*if( temp_c_histogram[x] >= c_equal_limit )
-                        			throw new RuntimeException(); // test*/
-                            }
-                        }
-                    }
-
-                    // compute cumulative histogram
                     int histogram_offset = 256*(i*n_tiles+j);
-                    c_histogram[histogram_offset] = histogram[0];
-                    for(int x=1;x<256;x++) {
-                        c_histogram[histogram_offset+x] = c_histogram[histogram_offset+x-1] + histogram[x];
-                    }
-                    if( MyDebug.LOG ) {
-                        for(int x=0;x<256;x++) {
-                            Log.d(TAG, "histogram[" + x + "] = " + histogram[x] + " cumulative: " + c_histogram[histogram_offset+x]);
-                        }
-                    }
+                    computeCLAHECumulativeHistogram(histogram, n_pixels, ce_preserve_blacks, temp_c_histogram, c_histogram, histogram_offset);
                 }
             }
 
@@ -2643,6 +2833,140 @@ public class HDRProcessor {
         }
     }
 
+    /** Clips the supplied histogram of a tile for the Contrast Limited Adaptive Histogram Equalisation
+     *  algorithm in adjustHistogram(), and stores the resultant cumulative histogram.
+     *  Shared by the Renderscript and CPU (HDRProcessorCPU) implementations.
+     * @param histogram        The histogram of the tile; this is modified by this method.
+     * @param n_pixels         The number of pixels in the tile.
+     * @param temp_c_histogram Temporary storage of length 256.
+     * @param c_histogram      The cumulative histogram is written to c_histogram, starting at
+     *                         histogram_offset.
+     */
+    static void computeCLAHECumulativeHistogram(int [] histogram, int n_pixels, boolean ce_preserve_blacks, int [] temp_c_histogram, int [] c_histogram, int histogram_offset) {
+        // clip histogram, for Contrast Limited AHE algorithm
+        int clip_limit = (5 * n_pixels) / 256;
+        /*if( MyDebug.LOG ) {
+            Log.d(TAG, "clip_limit: " + clip_limit);
+            Log.d(TAG, "    relative clip limit: " + clip_limit*256.0f/n_pixels);
+        }*/
+        {
+            // find real clip limit
+            int bottom = 0, top = clip_limit;
+            while( top - bottom > 1 ) {
+                int middle = (top + bottom)/2;
+                int sum = 0;
+                for(int x=0;x<256;x++) {
+                    if( histogram[x] > middle ) {
+                        sum += (histogram[x] - clip_limit);
+                    }
+                }
+                if( sum > (clip_limit - middle) * 256 )
+                    top = middle;
+                else
+                    bottom = middle;
+            }
+            clip_limit = (top + bottom)/2;
+            /*if( MyDebug.LOG ) {
+                Log.d(TAG, "updated clip_limit: " + clip_limit);
+                Log.d(TAG, "    relative updated clip limit: " + clip_limit*256.0f/n_pixels);
+            }*/
+        }
+        int n_clipped = 0;
+        for(int x=0;x<256;x++) {
+            if( histogram[x] > clip_limit ) {
+                /*if( MyDebug.LOG ) {
+                    Log.d(TAG, "    " + x + " : " + histogram[x] + " : " + (histogram[x]*256.0f/n_pixels));
+                }*/
+                n_clipped += (histogram[x] - clip_limit);
+                histogram[x] = clip_limit;
+            }
+        }
+        int n_clipped_per_bucket = n_clipped / 256;
+						/*if( MyDebug.LOG ) {
+							Log.d(TAG, "n_clipped: " + n_clipped);
+							Log.d(TAG, "n_clipped_per_bucket: " + n_clipped_per_bucket);
+						}*/
+        for(int x=0;x<256;x++) {
+            histogram[x] += n_clipped_per_bucket;
+        }
+
+        if( ce_preserve_blacks ) {
+            // This helps tests such as testHDR52, testHDR57, testAvg26, testAvg30
+            // The basic idea is that we want to avoid making darker pixels darker (by too
+            // much). We do this by adjusting the histogram:
+            // * We can set a minimum value of each histogram value. E.g., if we set all
+            //   pixels up to a certain brightness to a value equal to n_pixels/256, then
+            //   we prevent those pixels from being made darker. In practice, we choose
+            //   a tapered minimum, starting at (n_pixels/256) for black pixels, linearly
+            //   interpolating to no minimum at brightness 128 (dark_threshold_c).
+            // * For any adjusted value of the histogram, we redistribute, by reducing
+            //   the histogram values of brighter pixels with values larger than (n_pixels/256),
+            //   reducing them to a minimum of (n_pixels/256).
+            // * Lastly, we only modify a given histogram value if pixels of that brightness
+            //   would be made darker by the CLAHE algorithm. We can do this by looking at
+            //   the cumulative histogram (as computed before modifying any values).
+            if( MyDebug.LOG ) {
+                for(int x=0;x<256;x++) {
+                    Log.d(TAG, "pre-brighten histogram[" + x + "] = " + histogram[x]);
+                }
+            }
+
+            temp_c_histogram[0] = histogram[0];
+            for(int x=1;x<256;x++) {
+                temp_c_histogram[x] = temp_c_histogram[x-1] + histogram[x];
+            }
+
+            // avoid making pixels too dark
+            int equal_limit = n_pixels / 256;
+            if( MyDebug.LOG )
+                Log.d(TAG, "equal_limit: " + equal_limit);
+            //final int dark_threshold_c = 64;
+            final int dark_threshold_c = 128;
+            //final int dark_threshold_c = 256;
+            for(int x=0;x<dark_threshold_c;x++) {
+                int c_equal_limit = equal_limit * (x+1);
+                if( temp_c_histogram[x] >= c_equal_limit ) {
+                    continue;
+                }
+                float alpha = 1.0f - ((float)x)/((float)dark_threshold_c);
+                //float alpha = 1.0f - ((float)x)/256.0f;
+                int limit = (int)(alpha * equal_limit);
+                //int limit = equal_limit;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "x: " + x + " ; limit: " + limit);
+                /*histogram[x] = Math.max(histogram[x], limit);
+							if( MyDebug.LOG )
+								Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);*/
+                if( histogram[x] < limit ) {
+                    // top up by redistributing later values
+                    for(int y=x+1;y<256 && histogram[x] < limit;y++) {
+                        if( histogram[y] > equal_limit ) {
+                            int move = histogram[y] - equal_limit;
+                            move = Math.min(move, limit - histogram[x]);
+                            histogram[x] += move;
+                            histogram[y] -= move;
+                        }
+                    }
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);
+	                        	/*if( temp_c_histogram[x] >= c_equal_limit )
+            			throw new RuntimeException(); // test*/
+                }
+            }
+        }
+
+        // compute cumulative histogram
+        c_histogram[histogram_offset] = histogram[0];
+        for(int x=1;x<256;x++) {
+            c_histogram[histogram_offset+x] = c_histogram[histogram_offset+x-1] + histogram[x];
+        }
+        if( MyDebug.LOG ) {
+            for(int x=0;x<256;x++) {
+                Log.d(TAG, "histogram[" + x + "] = " + histogram[x] + " cumulative: " + c_histogram[histogram_offset+x]);
+            }
+        }
+    }
+
     /**
      * @param avg If true, compute the color value as the average of the rgb values. If false,
      *            compute the color value as the maximum of the rgb values.
@@ -2704,19 +3028,10 @@ public class HDRProcessor {
      * @param avg If true, compute the color value as the average of the rgb values. If false,
      *            compute the color value as the maximum of the rgb values.
      */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     public int [] computeHistogram(Bitmap bitmap, boolean avg) {
         if( MyDebug.LOG )
             Log.d(TAG, "computeHistogram");
-        long time_s = System.currentTimeMillis();
-        initRenderscript();
-        Allocation allocation_in = Allocation.createFromBitmap(rs, bitmap);
-        if( MyDebug.LOG )
-            Log.d(TAG, "time after createFromBitmap: " + (System.currentTimeMillis() - time_s));
-        int [] histogram = computeHistogram(allocation_in, avg, false);
-        allocation_in.destroy();
-        freeScripts();
-        return histogram;
+        return HistogramEngine.computeHistogram(new BitmapImage(bitmap), avg ? HistogramEngine.Type.TYPE_INTENSITY : HistogramEngine.Type.TYPE_VALUE);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -2916,6 +3231,128 @@ public class HDRProcessor {
         return new BrightenFactors(gain, low_x, mid_x, gamma);
     }
 
+    /** Returns the black level to use for avgBrighten(), from the histogram of the averaged image.
+     */
+    private static float computeAvgBlackLevel(int [] histo, HistogramInfo histogramInfo, int iso) {
+        float black_level = 0.0f;
+        // quick and dirty dehaze algorithm
+        // helps (among others): testAvg1 to testAvg10, testAvg27, testAvg30, testAvg31, testAvg39, testAvg40
+        int total = histogramInfo.total;
+        int percentile = (int)(total*0.001f);
+        int count = 0;
+        int darkest_brightness = -1;
+        for(int i = 0; i < histo.length; i++) {
+            count += histo[i];
+            if( count >= percentile && darkest_brightness == -1 ) {
+                darkest_brightness = i;
+            }
+        }
+        black_level = Math.max(black_level, darkest_brightness);
+        // don't allow black_level too high for "dark" images, as this can cause problems due to exaggerating noise (e.g.,
+        // see testAvg38)
+        black_level = Math.min(black_level, iso <= 700 ? 18 : 4);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "percentile: " + percentile);
+            Log.d(TAG, "darkest_brightness: " + darkest_brightness);
+            Log.d(TAG, "black_level is now: " + black_level);
+        }
+        return black_level;
+    }
+
+    private float getAvgMedianFilterStrength() {
+        // use a lower medial filter strength for pixel binned images, so that we don't blur testAvg46 so much (especially sign text)
+        float median_filter_strength = (cached_avg_sample_size >= 2) ? 0.5f : 1.0f;
+        if( MyDebug.LOG )
+            Log.d(TAG, "median_filter_strength: " + median_filter_strength);
+        return median_filter_strength;
+    }
+
+    /** Whether avgBrighten() should apply contrast enhancement, see comments in avgBrighten().
+     */
+    private static boolean useAvgContrastEnhancement(int iso, long exposure_time) {
+        return iso < 1100 && exposure_time < 1000000000L/59;
+    }
+
+    /** Returns the amount of contrast enhancement for avgBrighten(), if
+     *  useAvgContrastEnhancement() returns true.
+     */
+    private static float getAvgContrastEnhancementAmount(HistogramInfo histogramInfo) {
+        final int median_lo = 60, median_hi = 35;
+        float alpha = (histogramInfo.median_brightness - median_lo) / (float)(median_hi - median_lo);
+        alpha = Math.max(alpha, 0.0f);
+        alpha = Math.min(alpha, 1.0f);
+        float amount = (1.0f-alpha) * 0.25f + alpha * 0.5f;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "dro alpha: " + alpha);
+            Log.d(TAG, "dro amount: " + amount);
+        }
+        return amount;
+    }
+
+    /** Final stage of the noise reduction algorithm, for the result of processAvg() and
+     *  updateAvg(). This works for either backend.
+     *  Note that the returned bitmap will be scaled up by the factor returned by getAvgSampleSize().
+     * @param avg_data      The data returned by processAvg(). This isn't destroyed by this method.
+     * @param width         Width of the input.
+     * @param height        Height of the input.
+     * @param iso           ISO used for the original images.
+     * @param exposure_time Exposure time used for the original images.
+     * @return              Resultant bitmap.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap avgBrighten(AvgData avg_data, int width, int height, int iso, long exposure_time) {
+        if( avg_data.image_out != null ) {
+            return avgBrightenCPU(avg_data.image_out, iso, exposure_time);
+        }
+        return avgBrighten(avg_data.allocation_out, width, height, iso, exposure_time);
+    }
+
+    /** CPU implementation of avgBrighten(), see HDRProcessorCPU. The output bitmap is written a band
+     *  of rows at a time, so no full size allocations are needed.
+     */
+    private Bitmap avgBrightenCPU(HDRProcessorCPU.FloatImage input, int iso, long exposure_time) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "avgBrightenCPU");
+            Log.d(TAG, "iso: " + iso);
+            Log.d(TAG, "exposure_time: " + exposure_time);
+        }
+        long time_s = System.currentTimeMillis();
+
+        int [] histo = HistogramEngine.computeHistogram(input, HistogramEngine.Type.TYPE_VALUE);
+        HistogramInfo histogramInfo = getHistogramInfo(histo);
+        int max_brightness = histogramInfo.max_brightness;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "### time after computeHistogram: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "median brightness: " + histogramInfo.median_brightness);
+            Log.d(TAG, "max brightness: " + max_brightness);
+        }
+
+        BrightenFactors brighten_factors = computeBrightenFactors(true, iso, exposure_time, histogramInfo.median_brightness, max_brightness);
+        float black_level = computeAvgBlackLevel(histo, histogramInfo, iso);
+        float median_filter_strength = getAvgMedianFilterStrength();
+
+        Bitmap bitmap = Bitmap.createBitmap(input.getWidth(), input.getHeight(), Bitmap.Config.ARGB_8888);
+        HDRProcessorCPU.Image output = new BitmapImage(bitmap);
+        boolean contrast_enhancement = useAvgContrastEnhancement(iso, exposure_time);
+        // as in avgBrighten(), keep n_tiles==1 for the contrast enhancement
+        int [] histograms = contrast_enhancement ? new int[256] : null;
+        HDRProcessorCPU.avgBrighten(input, output, black_level, median_filter_strength, brighten_factors.gain, brighten_factors.gamma,
+                brighten_factors.low_x, brighten_factors.mid_x, max_brightness, histograms, 1);
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after HDRProcessorCPU.avgBrighten: " + (System.currentTimeMillis() - time_s));
+
+        if( contrast_enhancement ) {
+            float amount = getAvgContrastEnhancementAmount(histogramInfo);
+            HDRProcessorCPU.adjustHistogram(output, output, histograms, amount, 1, true);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after HDRProcessorCPU.adjustHistogram: " + (System.currentTimeMillis() - time_s));
+        }
+        HDRProcessorCPU.freeScratchBuffers();
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time for avgBrightenCPU: " + (System.currentTimeMillis() - time_s));
+        return bitmap;
+    }
+
     /** Final stage of the noise reduction algorithm.
      *  Note that the returned bitmap will be scaled up by the factor returned by getAvgSampleSize().
      * @param input         The allocation in floating point format.
@@ -2979,36 +3416,10 @@ public class HDRProcessor {
 		}*/
         ScriptC_avg_brighten avgBrightenScript = new ScriptC_avg_brighten(rs);
         avgBrightenScript.set_bitmap(input);
-        float black_level = 0.0f;
-        {
-            // quick and dirty dehaze algorithm
-            // helps (among others): testAvg1 to testAvg10, testAvg27, testAvg30, testAvg31, testAvg39, testAvg40
-            int total = histogramInfo.total;
-            int percentile = (int)(total*0.001f);
-            int count = 0;
-            int darkest_brightness = -1;
-            for(int i = 0; i < histo.length; i++) {
-                count += histo[i];
-                if( count >= percentile && darkest_brightness == -1 ) {
-                    darkest_brightness = i;
-                }
-            }
-            black_level = Math.max(black_level, darkest_brightness);
-            // don't allow black_level too high for "dark" images, as this can cause problems due to exaggerating noise (e.g.,
-            // see testAvg38)
-            black_level = Math.min(black_level, iso <= 700 ? 18 : 4);
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "percentile: " + percentile);
-                Log.d(TAG, "darkest_brightness: " + darkest_brightness);
-                Log.d(TAG, "black_level is now: " + black_level);
-            }
-        }
+        float black_level = computeAvgBlackLevel(histo, histogramInfo, iso);
         avgBrightenScript.invoke_setBlackLevel(black_level);
 
-        // use a lower medial filter strength for pixel binned images, so that we don't blur testAvg46 so much (especially sign text)
-        float median_filter_strength = (cached_avg_sample_size >= 2) ? 0.5f : 1.0f;
-        if( MyDebug.LOG )
-            Log.d(TAG, "median_filter_strength: " + median_filter_strength);
+        float median_filter_strength = getAvgMedianFilterStrength();
         avgBrightenScript.set_median_filter_strength(median_filter_strength);
         avgBrightenScript.invoke_setBrightenParameters(gain, gamma, low_x, mid_x, max_brightness);
 
@@ -3064,7 +3475,7 @@ public class HDRProcessor {
             Log.d(TAG, "### time after avg_brighten: " + (System.currentTimeMillis() - time_s));
 
         //if( iso <= 150 ) {
-        if( iso < 1100 && exposure_time < 1000000000L/59 ) {
+        if( useAvgContrastEnhancement(iso, exposure_time) ) {
             // for bright scenes, contrast enhancement helps improve the quality of images (especially where we may have both
             // dark and bright regions, e.g., testAvg12); but for dark scenes, it just blows up the noise too much
             // keep n_tiles==1 - get too much contrast enhancement with n_tiles==4 e.g. for testAvg34
@@ -3076,15 +3487,7 @@ public class HDRProcessor {
             //adjustHistogram(allocation_out, allocation_out, width, height, 0.25f, 4, time_s);
             //adjustHistogram(allocation_out, allocation_out, width, height, 0.25f, 1, time_s);
             //adjustHistogram(allocation_out, allocation_out, width, height, 0.5f, 1, time_s);
-            final int median_lo = 60, median_hi = 35;
-            float alpha = (histogramInfo.median_brightness - median_lo) / (float)(median_hi - median_lo);
-            alpha = Math.max(alpha, 0.0f);
-            alpha = Math.min(alpha, 1.0f);
-            float amount = (1.0f-alpha) * 0.25f + alpha * 0.5f;
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "dro alpha: " + alpha);
-                Log.d(TAG, "dro amount: " + amount);
-            }
+            float amount = getAvgContrastEnhancementAmount(histogramInfo);
             adjustHistogram(allocation_out, allocation_out, width, height, amount, 1, true, time_s);
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
@@ -0,0 +1,1247 @@
+package com.magilic.opencamera;
+
+import android.util.Log;
+
+/** Pure Java (CPU) implementations of the HDR kernels, as an alternative to the Renderscript
+ *  kernels in process_hdr.rs (hdr, hdr_n and tonemapping), process_avg.rs (avg and avg_f),
+ *  avg_brighten.rs (avg_brighten_f and dro_brighten) and histogram_adjust.rs (histogram_adjust).
+ *  Images are processed as horizontal tiles of ARGB int rows in parallel using TileExecutor, and
+ *  are accessed through the Image interface, so that this works both on Android Bitmaps (see
+ *  HDRProcessor) and on plain int arrays (for unit tests and benchmarking on the JVM).
+ *  Only a band of rows per thread is ever copied out of an image (plus a few halo rows for
+ *  kernels that read neighbouring pixels), so unlike the Renderscript path we never need full
+ *  frame copies of the inputs or outputs, which matters for very high resolution sensors.
+ *  Output is intended to match the Renderscript kernels to within rounding (the Renderscript
+ *  kernels are compiled with rs_fp_relaxed).
+ */
+public class HDRProcessorCPU {
+    private static final String TAG = "HDRProcessorCPU";
+
+    // constants from process_hdr.rs
+    public static final float exposure_c = 1.2f; // for TONEMAPALGORITHM_EXPONENTIAL
+    public static final float filmic_exposure_bias_c = 2.0f / 255.0f; // for TONEMAPALGORITHM_FILMIC
+    private static final float safe_range_c = 96.0f;
+    private static final float wiener_C_lo = 2000.0f;
+    private static final float wiener_C_hi = 8000.0f;
+
+    /** Provides row based access to an ARGB_8888 image.
+     */
+    public interface Image {
+        int getWidth();
+        int getHeight();
+        /** Copies the rows [y, y+n_rows) into dst, with a stride equal to getWidth().
+         */
+        void getRows(int [] dst, int y, int n_rows);
+        /** Copies the rows [y, y+n_rows) from src, which has a stride equal to getWidth().
+         *  Implementations must allow different threads to write to disjoint sets of rows.
+         */
+        void setRows(int [] src, int y, int n_rows);
+    }
+
+    /** An Image stored in an int array.
+     */
+    public static class ArrayImage implements Image {
+        private final int [] pixels;
+        private final int width;
+        private final int height;
+
+        public ArrayImage(int [] pixels, int width, int height) {
+            if( pixels.length < width*height ) {
+                throw new IllegalArgumentException("pixels array too small");
+            }
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+
+        public ArrayImage(int width, int height) {
+            this(new int[width*height], width, height);
+        }
+
+        public int [] getPixels() {
+            return pixels;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void getRows(int [] dst, int y, int n_rows) {
+            System.arraycopy(pixels, y*width, dst, 0, n_rows*width);
+        }
+
+        @Override
+        public void setRows(int [] src, int y, int n_rows) {
+            System.arraycopy(src, 0, pixels, y*width, n_rows*width);
+        }
+    }
+
+    /** An RGB image of float values, equivalent to the F32_3 allocations used for the noise
+     *  reduction accumulator in process_avg.rs and avg_brighten.rs.
+     *  The values can optionally be stored at reduced precision to save memory (see Storage), in
+     *  which case they are converted on each getRows()/setRows() - callers always see floats.
+     */
+    public static class FloatImage {
+        public enum Storage {
+            STORAGE_FLOAT, // 12 bytes per pixel
+            STORAGE_HALF_FLOAT, // IEEE 754 half precision, 6 bytes per pixel
+            STORAGE_FIXED16 // unsigned 16-bit fixed point with a fixed scale of fixed_scale_c, 6 bytes per pixel
+        }
+
+        // The accumulator holds weighted means of 8-bit values, so never exceeds 255: [0, 255] is mapped onto the full
+        // 16 bits, i.e., about 8.8 fixed point.
+        private static final float fixed_scale_c = 65535.0f / 255.0f;
+
+        private final Storage storage;
+        private final float [] values; // 3 floats (r, g, b) per pixel, for STORAGE_FLOAT
+        private final short [] packed_values; // 3 shorts (r, g, b) per pixel, for the other storage modes
+        private final int width;
+        private final int height;
+
+        public FloatImage(int width, int height) {
+            this(width, height, Storage.STORAGE_FLOAT);
+        }
+
+        /** For STORAGE_FIXED16, values larger than 255 are clamped.
+         */
+        public FloatImage(int width, int height, Storage storage) {
+            this.storage = storage;
+            this.width = width;
+            this.height = height;
+            if( storage == Storage.STORAGE_FLOAT ) {
+                this.values = new float[3*width*height];
+                this.packed_values = null;
+            }
+            else {
+                this.values = null;
+                this.packed_values = new short[3*width*height];
+            }
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public Storage getStorage() {
+            return storage;
+        }
+
+        /** Returns the memory used to store the values, in bytes.
+         */
+        public long getSizeInBytes() {
+            return storage == Storage.STORAGE_FLOAT ? 4L*values.length : 2L*packed_values.length;
+        }
+
+        /** Copies the rows [y, y+n_rows) into dst, with a stride equal to 3*getWidth().
+         */
+        public void getRows(float [] dst, int y, int n_rows) {
+            int offset = 3*y*width;
+            int n_values = 3*n_rows*width;
+            switch( storage ) {
+                case STORAGE_HALF_FLOAT:
+                    for(int i=0;i<n_values;i++) {
+                        dst[i] = halfToFloat(packed_values[offset+i]);
+                    }
+                    break;
+                case STORAGE_FIXED16:
+                    float inv_scale = 1.0f / fixed_scale_c;
+                    for(int i=0;i<n_values;i++) {
+                        dst[i] = (packed_values[offset+i] & 0xffff) * inv_scale;
+                    }
+                    break;
+                default:
+                    System.arraycopy(values, offset, dst, 0, n_values);
+                    break;
+            }
+        }
+
+        /** Copies the rows [y, y+n_rows) from src, which has a stride equal to 3*getWidth().
+         */
+        public void setRows(float [] src, int y, int n_rows) {
+            int offset = 3*y*width;
+            int n_values = 3*n_rows*width;
+            switch( storage ) {
+                case STORAGE_HALF_FLOAT:
+                    for(int i=0;i<n_values;i++) {
+                        packed_values[offset+i] = floatToHalf(src[i]);
+                    }
+                    break;
+                case STORAGE_FIXED16:
+                    for(int i=0;i<n_values;i++) {
+                        float value = src[i] * fixed_scale_c + 0.5f;
+                        packed_values[offset+i] = (short)(value <= 0.0f ? 0 : Math.min((int)value, 65535));
+                    }
+                    break;
+                default:
+                    System.arraycopy(src, 0, values, offset, n_values);
+                    break;
+            }
+        }
+    }
+
+    /** Converts to IEEE 754 half precision, rounding to nearest even.
+     */
+    static short floatToHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        if( abs >= 0x7f800000 ) {
+            // infinity or NaN
+            return (short)(sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+        }
+        if( abs >= 0x477ff000 ) {
+            // rounds to 65520 or more, so overflows to infinity
+            return (short)(sign | 0x7c00);
+        }
+        int half;
+        int remainder;
+        int halfway;
+        if( abs < 0x38800000 ) {
+            // subnormal (or zero) as a half
+            if( abs < 0x33000000 )
+                return (short)sign;
+            int exponent = abs >>> 23;
+            int mantissa = (abs & 0x7fffff) | 0x800000;
+            int shift = 126 - exponent;
+            half = mantissa >>> shift;
+            remainder = mantissa & ((1 << shift) - 1);
+            halfway = 1 << (shift - 1);
+        }
+        else {
+            half = (abs - 0x38000000) >>> 13;
+            remainder = abs & 0x1fff;
+            halfway = 0x1000;
+        }
+        if( remainder > halfway || (remainder == halfway && (half & 1) != 0) ) {
+            half++; // may carry into the exponent, which gives the correct result
+        }
+        return (short)(sign | half);
+    }
+
+    /** Converts from IEEE 754 half precision.
+     */
+    static float halfToFloat(short value) {
+        int bits = value & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if( exponent == 0x1f ) {
+            // infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if( exponent == 0 ) {
+            // zero or subnormal
+            float result = mantissa * (1.0f / (1 << 24));
+            return sign != 0 ? -result : result;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    /** Parameters for tonemapping, equivalent to the globals set on ScriptC_process_hdr.
+     */
+    public static class TonemapParameters {
+        final HDRProcessor.TonemappingAlgorithm algorithm;
+        final float tonemap_scale; // for Reinhard
+        final float linear_scale; // for exponential and Reinhard
+        final float W; // for filmic
+        final float white_scale; // for filmic, derived from W
+
+        public TonemapParameters(HDRProcessor.TonemappingAlgorithm algorithm, float tonemap_scale, float linear_scale, float W) {
+            this.algorithm = algorithm;
+            this.tonemap_scale = tonemap_scale;
+            this.linear_scale = linear_scale;
+            this.W = W;
+            this.white_scale = 255.0f / uncharted2Tonemap(W);
+        }
+    }
+
+    /** Per-thread scratch buffers, so we don't reallocate row buffers for every tile.
+     */
+    private static final ThreadLocal<int [][]> scratch_buffers = new ThreadLocal<int [][]>() {
+        @Override
+        protected int [][] initialValue() {
+            return new int[0][];
+        }
+    };
+
+    static int [] getScratchBuffer(int index, int size) {
+        int [][] buffers = scratch_buffers.get();
+        if( index >= buffers.length ) {
+            int [][] new_buffers = new int[index+1][];
+            System.arraycopy(buffers, 0, new_buffers, 0, buffers.length);
+            buffers = new_buffers;
+            scratch_buffers.set(buffers);
+        }
+        if( buffers[index] == null || buffers[index].length < size ) {
+            buffers[index] = new int[size];
+        }
+        return buffers[index];
+    }
+
+    private static final ThreadLocal<float [][]> float_scratch_buffers = new ThreadLocal<float [][]>() {
+        @Override
+        protected float [][] initialValue() {
+            return new float[0][];
+        }
+    };
+
+    static float [] getFloatScratchBuffer(int index, int size) {
+        float [][] buffers = float_scratch_buffers.get();
+        if( index >= buffers.length ) {
+            float [][] new_buffers = new float[index+1][];
+            System.arraycopy(buffers, 0, new_buffers, 0, buffers.length);
+            buffers = new_buffers;
+            float_scratch_buffers.set(buffers);
+        }
+        if( buffers[index] == null || buffers[index].length < size ) {
+            buffers[index] = new float[size];
+        }
+        return buffers[index];
+    }
+
+    /** Frees the scratch buffers held by the calling thread. Buffers held by the TileExecutor
+     *  threads are released when those threads time out.
+     */
+    public static void freeScratchBuffers() {
+        scratch_buffers.remove();
+        float_scratch_buffers.remove();
+    }
+
+    private HDRProcessorCPU() {
+    }
+
+    /** Returns the first coordinate for tile i (of n_tiles) across size pixels, matching the tile
+     *  boundaries used by HDRProcessor.adjustHistogram().
+     */
+    static int getTileStart(int i, int n_tiles, int size) {
+        double alpha = ((double)i)/(double)n_tiles;
+        return (int)(alpha * size);
+    }
+
+    private static float uncharted2Tonemap(float x) {
+        final float A = 0.15f;
+        final float B = 0.50f;
+        final float C = 0.10f;
+        final float D = 0.20f;
+        final float E = 0.02f;
+        final float F = 0.30f;
+        return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
+    }
+
+    static int clampToByte(float value) {
+        // equivalent to (uchar)clamp(value+0.5f, 0.0f, 255.0f)
+        if( value <= -0.5f )
+            return 0;
+        int i_value = (int)(value+0.5f);
+        return Math.min(i_value, 255);
+    }
+
+    /** Equivalent to tonemap() in process_hdr.rs.
+     */
+    private static int tonemap(TonemapParameters params, float hdr_r, float hdr_g, float hdr_b) {
+        int r, g, b;
+        switch( params.algorithm ) {
+            case TONEMAPALGORITHM_CLAMP:
+            {
+                r = clampToByte(hdr_r);
+                g = clampToByte(hdr_g);
+                b = clampToByte(hdr_b);
+                break;
+            }
+            case TONEMAPALGORITHM_EXPONENTIAL:
+            {
+                float scale = params.linear_scale * 255.0f;
+                r = clampToByte(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_r / 255.0f )));
+                g = clampToByte(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_g / 255.0f )));
+                b = clampToByte(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_b / 255.0f )));
+                break;
+            }
+            case TONEMAPALGORITHM_REINHARD:
+            {
+                float value = Math.max(hdr_r, hdr_g);
+                value = Math.max(value, hdr_b);
+                float scale = 255.0f / ( params.tonemap_scale + value );
+                scale *= params.linear_scale;
+                // linear_scale should be such that values don't map to more than 255, but the
+                // Renderscript cast to uchar wraps, whereas we clamp to be safe
+                r = clampToByte(scale * hdr_r);
+                g = clampToByte(scale * hdr_g);
+                b = clampToByte(scale * hdr_b);
+                break;
+            }
+            case TONEMAPALGORITHM_FILMIC:
+            {
+                // Filmic Uncharted 2
+                r = clampToByte(params.white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr_r));
+                g = clampToByte(params.white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr_g));
+                b = clampToByte(params.white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr_b));
+                break;
+            }
+            case TONEMAPALGORITHM_ACES:
+            default:
+            {
+                final float a = 2.51f;
+                final float b_c = 0.03f;
+                final float c = 2.43f;
+                final float d = 0.59f;
+                final float e = 0.14f;
+                float x_r = hdr_r/255.0f;
+                float x_g = hdr_g/255.0f;
+                float x_b = hdr_b/255.0f;
+                r = clampToByte(255.0f * (x_r*(a*x_r+b_c))/(x_r*(c*x_r+d)+e));
+                g = clampToByte(255.0f * (x_g*(a*x_g+b_c))/(x_g*(c*x_g+d)+e));
+                b = clampToByte(255.0f * (x_b*(a*x_b+b_c))/(x_b*(c*x_b+d)+e));
+                break;
+            }
+        }
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /** Adds the histogram (by value, i.e., max of RGB) of the supplied row of ARGB pixels to the
+     *  grid of n_tiles x n_tiles histograms laid out as in HDRProcessor.adjustHistogram(), i.e.,
+     *  the histogram for tile (i, j) starts at 256*(i*n_tiles+j).
+     * @param tile_x_start Array of length n_tiles+1 with the tile boundaries in x.
+     * @param j            The y tile for this row.
+     */
+    private static void addRowToHistograms(int [] histograms, int [] row, int offset, int n_tiles, int [] tile_x_start, int j) {
+        for(int i=0;i<n_tiles;i++) {
+            int histogram_offset = 256*(i*n_tiles+j);
+            for(int x=tile_x_start[i];x<tile_x_start[i+1];x++) {
+                int color = row[offset+x];
+                int r = (color >> 16) & 0xff;
+                int g = (color >> 8) & 0xff;
+                int b = color & 0xff;
+                int value = Math.max(r, Math.max(g, b));
+                histograms[histogram_offset+value]++;
+            }
+        }
+    }
+
+    private static int [] getTileBoundaries(int n_tiles, int size) {
+        int [] starts = new int[n_tiles+1];
+        for(int i=0;i<=n_tiles;i++) {
+            starts[i] = getTileStart(i, n_tiles, size);
+        }
+        return starts;
+    }
+
+    private static int getTileIndex(int [] tile_starts, int n_tiles, int value) {
+        // tiles are small in number, so a linear search is fine
+        for(int i=n_tiles-1;i>0;i--) {
+            if( value >= tile_starts[i] )
+                return i;
+        }
+        return 0;
+    }
+
+    /** Accumulates the per-tile histograms of output rows [y_start, y_stop) into histograms.
+     *  Used so that we can compute the histograms for contrast enhancement as part of the pass
+     *  that writes the output, rather than needing a further pass over the image.
+     */
+    private static void accumulateHistograms(int [] histograms, int [] rows, int y_start, int y_stop, int width, int height, int n_tiles) {
+        int [] tile_x_start = getTileBoundaries(n_tiles, width);
+        int [] tile_y_start = getTileBoundaries(n_tiles, height);
+        int [] partial = new int[histograms.length];
+        for(int y=y_start;y<y_stop;y++) {
+            int j = getTileIndex(tile_y_start, n_tiles, y);
+            addRowToHistograms(partial, rows, (y-y_start)*width, n_tiles, tile_x_start, j);
+        }
+        synchronized( histograms ) {
+            for(int i=0;i<histograms.length;i++) {
+                histograms[i] += partial[i];
+            }
+        }
+    }
+
+    /** Merges the supplied images into a HDR image and tonemaps the result, equivalent to the
+     *  hdr (if use_hdr_n is false) and hdr_n kernels in process_hdr.rs.
+     * @param images      The input images, ordered from darkest to brightest, all of the same
+     *                    resolution.
+     * @param base_bitmap The index of the image with the base exposure (this image is not offset).
+     * @param use_hdr_n   If false, there must be 3 images, and the hdr kernel is used. If true,
+     *                    the hdr_n kernel is used, which supports 2 to 7 images.
+     * @param output      The output image. This may be equal to images[base_bitmap], but no other
+     *                    input.
+     * @param histograms  If non-null, the histograms of the output are accumulated into this
+     *                    array, as a grid of n_tiles x n_tiles histograms, see adjustHistogram().
+     */
+    public static void processHDR(final Image [] images, final int base_bitmap, final int [] offsets_x, final int [] offsets_y,
+                                  final float [] parameter_A, final float [] parameter_B, final boolean use_hdr_n,
+                                  final TonemapParameters params, final Image output,
+                                  final int [] histograms, final int n_tiles) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDR");
+        final int n_bitmaps = images.length;
+        if( use_hdr_n ) {
+            if( n_bitmaps < 2 || n_bitmaps > 7 ) {
+                throw new IllegalArgumentException("hdr_n requires 2 to 7 images, not " + n_bitmaps);
+            }
+        }
+        else if( n_bitmaps != 3 ) {
+            throw new IllegalArgumentException("hdr requires 3 images, not " + n_bitmaps);
+        }
+        final int width = output.getWidth();
+        final int height = output.getHeight();
+        for(Image image : images) {
+            if( image.getWidth() != width || image.getHeight() != height ) {
+                throw new IllegalArgumentException("images not of same resolution");
+            }
+        }
+
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                int n_rows = y_stop - y_start;
+                // fetch rows for each input, taking into account its offset
+                int [][] rows = new int[n_bitmaps][];
+                int [] rows_y0 = new int[n_bitmaps];
+                int [] rows_y1 = new int[n_bitmaps];
+                for(int i=0;i<n_bitmaps;i++) {
+                    int y0 = Math.max(0, y_start + offsets_y[i]);
+                    int y1 = Math.min(height, y_stop + offsets_y[i]);
+                    rows[i] = getScratchBuffer(i, Math.max(1, n_rows*width));
+                    if( y1 > y0 ) {
+                        images[i].getRows(rows[i], y0, y1-y0);
+                    }
+                    rows_y0[i] = y0;
+                    rows_y1[i] = y1;
+                }
+                int [] out_rows = getScratchBuffer(n_bitmaps, n_rows*width);
+
+                int [] pixels = new int[n_bitmaps];
+                float [] this_A = new float[n_bitmaps];
+                float [] this_B = new float[n_bitmaps];
+                int mid_indx = use_hdr_n ? (n_bitmaps-1)/2 : 1;
+                int [] base_rows = rows[base_bitmap];
+                for(int y=y_start;y<y_stop;y++) {
+                    int base_offset = (y-y_start)*width;
+                    for(int x=0;x<width;x++) {
+                        int in = base_rows[base_offset+x];
+                        for(int i=0;i<n_bitmaps;i++) {
+                            int sx = x + offsets_x[i];
+                            int sy = y + offsets_y[i];
+                            if( sx >= 0 && sx < width && sy >= rows_y0[i] && sy < rows_y1[i] ) {
+                                pixels[i] = rows[i][(sy-rows_y0[i])*width + sx];
+                                this_A[i] = parameter_A[i];
+                                this_B[i] = parameter_B[i];
+                            }
+                            else {
+                                pixels[i] = in;
+                                this_A[i] = parameter_A[mid_indx];
+                                this_B[i] = parameter_B[mid_indx];
+                            }
+                        }
+                        if( !use_hdr_n ) {
+                            // middle image is not offset
+                            pixels[1] = in;
+                            this_A[1] = parameter_A[1];
+                            this_B[1] = parameter_B[1];
+                            out_rows[base_offset+x] = hdrPixel(pixels, this_A, this_B, params);
+                        }
+                        else {
+                            out_rows[base_offset+x] = hdrNPixel(pixels, n_bitmaps, this_A, this_B, params);
+                        }
+                    }
+                }
+                output.setRows(out_rows, y_start, n_rows);
+                if( histograms != null ) {
+                    accumulateHistograms(histograms, out_rows, y_start, y_stop, width, height, n_tiles);
+                }
+            }
+        });
+    }
+
+    /** Equivalent to the hdr kernel in process_hdr.rs.
+     */
+    private static int hdrPixel(int [] pixels, float [] parameter_A, float [] parameter_B, TonemapParameters params) {
+        final int mid_indx = 1;
+        float hdr_r = 0.0f, hdr_g = 0.0f, hdr_b = 0.0f;
+        float sum_weight = 0.0f;
+
+        int color = pixels[mid_indx];
+        float r = (color >> 16) & 0xff;
+        float g = (color >> 8) & 0xff;
+        float b = color & 0xff;
+        float avg = (r+g+b) / 3.0f;
+        float diff = Math.abs( avg - 127.5f );
+        float weight = 1.0f;
+        if( diff > safe_range_c ) {
+            // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+            weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+        }
+
+        // response function
+        r = parameter_A[mid_indx] * r + parameter_B[mid_indx];
+        g = parameter_A[mid_indx] * g + parameter_B[mid_indx];
+        b = parameter_A[mid_indx] * b + parameter_B[mid_indx];
+
+        hdr_r += weight * r;
+        hdr_g += weight * g;
+        hdr_b += weight * b;
+        sum_weight += weight;
+
+        if( weight < 1.0f ) {
+            float base_r = r, base_g = g, base_b = b;
+
+            // now look at a neighbour image
+            weight = 1.0f - weight;
+            int adj_indx = avg <= 127.5f ? mid_indx+1 : mid_indx-1;
+            color = pixels[adj_indx];
+            r = parameter_A[adj_indx] * ((color >> 16) & 0xff) + parameter_B[adj_indx];
+            g = parameter_A[adj_indx] * ((color >> 8) & 0xff) + parameter_B[adj_indx];
+            b = parameter_A[adj_indx] * (color & 0xff) + parameter_B[adj_indx];
+
+            float value = Math.max(r, Math.max(g, b));
+            if( value <= 250.0f ) {
+                // deghosting, see process_hdr.rs
+                float ghost_weight = ghostWeight(value, base_r - r, base_g - g, base_b - b);
+                r = ghost_weight * base_r + (1.0f-ghost_weight) * r;
+                g = ghost_weight * base_g + (1.0f-ghost_weight) * g;
+                b = ghost_weight * base_b + (1.0f-ghost_weight) * b;
+            }
+
+            hdr_r += weight * r;
+            hdr_g += weight * g;
+            hdr_b += weight * b;
+            sum_weight += weight;
+        }
+
+        return tonemap(params, hdr_r/sum_weight, hdr_g/sum_weight, hdr_b/sum_weight);
+    }
+
+    private static float ghostWeight(float value, float diff_r, float diff_g, float diff_b) {
+        float wiener_C = wiener_C_lo; // higher value means more HDR but less ghosting
+        float x = Math.abs( value - 127.5f ) - 96.0f;
+        if( x > 0.0f ) {
+            final float scale = (wiener_C_hi-wiener_C_lo)/(127.5f-96.0f);
+            wiener_C = wiener_C_lo + x*scale;
+        }
+        float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+        return L/(L+wiener_C);
+    }
+
+    /** Equivalent to the hdr_n kernel in process_hdr.rs.
+     */
+    private static int hdrNPixel(int [] pixels, int n_bitmaps, float [] parameter_A, float [] parameter_B, TonemapParameters params) {
+        int mid_indx = (n_bitmaps-1)/2; // round down to dark image for even number of bitmaps
+        boolean even = n_bitmaps % 2 == 0;
+        float hdr_r = 0.0f, hdr_g = 0.0f, hdr_b = 0.0f;
+        float sum_weight = 0.0f;
+
+        int color = pixels[mid_indx];
+        float r = (color >> 16) & 0xff;
+        float g = (color >> 8) & 0xff;
+        float b = color & 0xff;
+        float avg = (r+g+b) / 3.0f;
+        float diff = Math.abs( avg - 127.5f );
+        float weight = 1.0f;
+        if( diff > safe_range_c ) {
+            // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+            weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+        }
+
+        // response function
+        r = parameter_A[mid_indx] * r + parameter_B[mid_indx];
+        g = parameter_A[mid_indx] * g + parameter_B[mid_indx];
+        b = parameter_A[mid_indx] * b + parameter_B[mid_indx];
+
+        hdr_r += weight * r;
+        hdr_g += weight * g;
+        hdr_b += weight * b;
+        sum_weight += weight;
+
+        if( even ) {
+            int color1 = pixels[mid_indx+1];
+            float r1 = (color1 >> 16) & 0xff;
+            float g1 = (color1 >> 8) & 0xff;
+            float b1 = color1 & 0xff;
+            float avg1 = (r1+g1+b1) / 3.0f;
+            float diff1 = Math.abs( avg1 - 127.5f );
+            float weight1 = 1.0f;
+            if( diff1 > safe_range_c ) {
+                weight1 = 1.0f - 0.99f * (diff1 - safe_range_c) / (127.5f - safe_range_c);
+            }
+            r1 = parameter_A[mid_indx+1] * r1 + parameter_B[mid_indx+1];
+            g1 = parameter_A[mid_indx+1] * g1 + parameter_B[mid_indx+1];
+            b1 = parameter_A[mid_indx+1] * b1 + parameter_B[mid_indx+1];
+
+            hdr_r += weight1 * r1;
+            hdr_g += weight1 * g1;
+            hdr_b += weight1 * b1;
+            sum_weight += weight1;
+
+            avg = (avg+avg1)/2.0f;
+            weight = (weight+weight1)/2.0f;
+        }
+
+        if( weight < 1.0f ) {
+            float base_r = r, base_g = g, base_b = b;
+            int adj_indx = mid_indx;
+            int step_dir = avg <= 127.5f ? 1 : -1;
+            if( even && step_dir == 1 ) {
+                adj_indx++; // so we move one beyond the middle pair of images (since mid_indx will be the darker of the pair)
+            }
+
+            int n_adj = (n_bitmaps-1)/2;
+            for(int k=0;k<n_adj;k++) {
+                // now look at a neighbour image
+                weight = 1.0f - weight;
+                adj_indx += step_dir;
+
+                color = pixels[adj_indx];
+                r = (color >> 16) & 0xff;
+                g = (color >> 8) & 0xff;
+                b = color & 0xff;
+                if( k+1 < n_adj ) {
+                    // there will be at least one more adjacent image to look at
+                    avg = (r+g+b) / 3.0f;
+                    diff = Math.abs( avg - 127.5f );
+                    if( diff > safe_range_c ) {
+                        weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                    }
+                }
+                r = parameter_A[adj_indx] * r + parameter_B[adj_indx];
+                g = parameter_A[adj_indx] * g + parameter_B[adj_indx];
+                b = parameter_A[adj_indx] * b + parameter_B[adj_indx];
+
+                float value = Math.max(r, Math.max(g, b));
+                if( value <= 250.0f ) {
+                    // deghosting, see process_hdr.rs
+                    float ghost_weight = ghostWeight(value, base_r - r, base_g - g, base_b - b);
+                    r = ghost_weight * base_r + (1.0f-ghost_weight) * r;
+                    g = ghost_weight * base_g + (1.0f-ghost_weight) * g;
+                    b = ghost_weight * base_b + (1.0f-ghost_weight) * b;
+                }
+
+                hdr_r += weight * r;
+                hdr_g += weight * g;
+                hdr_b += weight * b;
+                sum_weight += weight;
+
+                if( diff <= safe_range_c ) {
+                    break;
+                }
+            }
+        }
+
+        return tonemap(params, hdr_r/sum_weight, hdr_g/sum_weight, hdr_b/sum_weight);
+    }
+
+    /** Returns the scale factor for the piecewise gain/gamma brightening, for a pixel with
+     *  max(r, g, b) equal to value, as in avg_brighten.rs.
+     */
+    private static float brightenScale(float value, float gain_A, float gain_B, float gamma, float low_x, float mid_x, float max_x) {
+        if( value <= low_x ) {
+            // don't scale
+            return 1.0f;
+        }
+        else if( value <= mid_x ) {
+            return gain_A + gain_B/value;
+        }
+        float new_value = (float)Math.pow(value/max_x, gamma) * 255.0f;
+        return new_value / value;
+    }
+
+    /** Applies the piecewise gain/gamma brightening, equivalent to setBrightenParameters() and the
+     *  dro_brighten kernel in avg_brighten.rs.
+     * @param histograms If non-null, the histograms of the output are accumulated into this array,
+     *                   as a grid of n_tiles x n_tiles histograms, see adjustHistogram().
+     */
+    public static void droBrighten(final Image input, final Image output, float gain, final float gamma, final float low_x, final float mid_x, final float max_x, final int [] histograms, final int n_tiles) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "droBrighten");
+        float gain_A = 1.0f;
+        float gain_B = 0.0f;
+        if( mid_x > low_x ) {
+            gain_A = (gain * mid_x - low_x) / (mid_x - low_x);
+            gain_B = low_x*mid_x*(1.0f-gain)/ (mid_x - low_x);
+        }
+        final float f_gain_A = gain_A;
+        final float f_gain_B = gain_B;
+        final int width = input.getWidth();
+        final int height = input.getHeight();
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                int n_rows = y_stop - y_start;
+                int [] rows = getScratchBuffer(0, n_rows*width);
+                input.getRows(rows, y_start, n_rows);
+                for(int i=0;i<n_rows*width;i++) {
+                    int color = rows[i];
+                    float r = (color >> 16) & 0xff;
+                    float g = (color >> 8) & 0xff;
+                    float b = color & 0xff;
+                    float value = Math.max(r, Math.max(g, b));
+                    float scale = brightenScale(value, f_gain_A, f_gain_B, gamma, low_x, mid_x, max_x);
+                    rows[i] = 0xff000000 | (clampToByte(r*scale) << 16) | (clampToByte(g*scale) << 8) | clampToByte(b*scale);
+                }
+                output.setRows(rows, y_start, n_rows);
+                if( histograms != null ) {
+                    accumulateHistograms(histograms, rows, y_start, y_stop, width, height, n_tiles);
+                }
+            }
+        });
+    }
+
+    /** Merges new_image into the noise reduction average, equivalent to the avg (if avg_image is
+     *  non-null) or avg_f (if avg_image is null) kernels in process_avg.rs.
+     * @param avg_image   If non-null, the first image of the burst, which is merged with new_image
+     *                    to initialise output. If null, output should hold the average so far, and
+     *                    is updated in place.
+     * @param offset_x    The x offset of new_image relative to the average.
+     * @param offset_y    The y offset of new_image relative to the average.
+     * @param tile_height The number of rows each thread processes at a time, see TileExecutor;
+     *                    the result doesn't depend on this.
+     */
+    public static void processAvg(final Image avg_image, final FloatImage output, final Image new_image, final int offset_x, final int offset_y,
+                                  final float avg_factor, final float wiener_C, final float wiener_C_cutoff, int tile_height) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processAvg");
+        final int width = output.getWidth();
+        final int height = output.getHeight();
+        TileExecutor.run(height, tile_height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                int n_rows = y_stop - y_start;
+                float [] avg_rows = getFloatScratchBuffer(0, 3*n_rows*width);
+                if( avg_image != null ) {
+                    int [] rows = getScratchBuffer(0, n_rows*width);
+                    avg_image.getRows(rows, y_start, n_rows);
+                    for(int i=0;i<n_rows*width;i++) {
+                        int color = rows[i];
+                        avg_rows[3*i] = (color >> 16) & 0xff;
+                        avg_rows[3*i+1] = (color >> 8) & 0xff;
+                        avg_rows[3*i+2] = color & 0xff;
+                    }
+                }
+                else {
+                    output.getRows(avg_rows, y_start, n_rows);
+                }
+
+                // we only need the rows of new_image that overlap this tile after offsetting
+                int new_y_start = Math.max(0, y_start + offset_y);
+                int new_y_stop = Math.min(height, y_stop + offset_y);
+                if( new_y_start < new_y_stop ) {
+                    int [] new_rows = getScratchBuffer(1, (new_y_stop - new_y_start)*width);
+                    new_image.getRows(new_rows, new_y_start, new_y_stop - new_y_start);
+                    int x_start = Math.max(0, -offset_x);
+                    int x_stop = Math.min(width, width - offset_x);
+                    for(int y=new_y_start-offset_y;y<new_y_stop-offset_y;y++) {
+                        int avg_offset = 3*(y-y_start)*width;
+                        int new_offset = (y+offset_y-new_y_start)*width + offset_x;
+                        for(int x=x_start;x<x_stop;x++) {
+                            int color = new_rows[new_offset+x];
+                            float new_r = (color >> 16) & 0xff;
+                            float new_g = (color >> 8) & 0xff;
+                            float new_b = color & 0xff;
+                            int i = avg_offset + 3*x;
+                            float avg_r = avg_rows[i];
+                            float avg_g = avg_rows[i+1];
+                            float avg_b = avg_rows[i+2];
+
+                            // temporal merging, see process_avg.rs
+                            float diff_r = avg_r - new_r;
+                            float diff_g = avg_g - new_g;
+                            float diff_b = avg_b - new_b;
+                            float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+                            if( L > wiener_C_cutoff ) {
+                                // error too large, so no contribution for new image pixel
+                                continue;
+                            }
+                            float weight = L/(L+wiener_C); // lower weight means more averaging
+                            new_r = weight * avg_r + (1.0f-weight) * new_r;
+                            new_g = weight * avg_g + (1.0f-weight) * new_g;
+                            new_b = weight * avg_b + (1.0f-weight) * new_b;
+
+                            avg_rows[i] = (avg_factor*avg_r + new_r)/(avg_factor+1.0f);
+                            avg_rows[i+1] = (avg_factor*avg_g + new_g)/(avg_factor+1.0f);
+                            avg_rows[i+2] = (avg_factor*avg_b + new_b)/(avg_factor+1.0f);
+                        }
+                    }
+                }
+                output.setRows(avg_rows, y_start, n_rows);
+            }
+        });
+    }
+
+    /** As processAvg(Image, FloatImage, Image, int, int, float, float, float, int), but choosing
+     *  the tile height with TileExecutor.getTileHeight().
+     */
+    public static void processAvg(Image avg_image, FloatImage output, Image new_image, int offset_x, int offset_y, float avg_factor, float wiener_C, float wiener_C_cutoff) {
+        processAvg(avg_image, output, new_image, offset_x, offset_y, avg_factor, wiener_C, wiener_C_cutoff, TileExecutor.getTileHeight(output.getHeight(), 16));
+    }
+
+    /** The number of rows above and below each tile that avgBrighten() reads, for the radius 3
+     *  colour filter in avg_brighten_f.
+     */
+    private static final int avg_brighten_halo_c = 3;
+
+    /** Applies the final stage of noise reduction to the averaged image, equivalent to
+     *  setBlackLevel(), setBrightenParameters() and the avg_brighten_f kernel in avg_brighten.rs.
+     *  Each tile is read along with avg_brighten_halo_c rows above and below it, so tiles can be
+     *  processed independently, and the result doesn't depend on the tile height.
+     * @param histograms  If non-null, the histograms of the output are accumulated into this array,
+     *                    as a grid of n_tiles x n_tiles histograms, see adjustHistogram().
+     * @param tile_height The number of rows each thread processes at a time, see TileExecutor.
+     */
+    public static void avgBrighten(final FloatImage input, final Image output, final float black_level, final float median_filter_strength,
+                                   float gain, final float gamma, final float low_x, final float mid_x, final float max_x,
+                                   final int [] histograms, final int n_tiles, int tile_height) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "avgBrighten");
+        final float white_level = 255.0f / (255.0f - black_level);
+        float gain_A = 1.0f;
+        float gain_B = 0.0f;
+        if( mid_x > low_x ) {
+            gain_A = (gain * mid_x - low_x) / (mid_x - low_x);
+            gain_B = low_x*mid_x*(1.0f-gain)/ (mid_x - low_x);
+        }
+        final float f_gain_A = gain_A;
+        final float f_gain_B = gain_B;
+        final int width = input.getWidth();
+        final int height = input.getHeight();
+        TileExecutor.run(height, tile_height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                int n_rows = y_stop - y_start;
+                int in_y_start = Math.max(0, y_start - avg_brighten_halo_c);
+                int in_y_stop = Math.min(height, y_stop + avg_brighten_halo_c);
+                float [] in = getFloatScratchBuffer(0, 3*(in_y_stop - in_y_start)*width);
+                input.getRows(in, in_y_start, in_y_stop - in_y_start);
+                int [] rows = getScratchBuffer(0, n_rows*width);
+                float [] rgb = new float[3];
+                for(int y=y_start;y<y_stop;y++) {
+                    int out_offset = (y-y_start)*width;
+                    for(int x=0;x<width;x++) {
+                        avgBrightenPixel(rgb, in, x, y, in_y_start, width, height, median_filter_strength);
+
+                        rgb[0] = clamp255((rgb[0] - black_level) * white_level);
+                        rgb[1] = clamp255((rgb[1] - black_level) * white_level);
+                        rgb[2] = clamp255((rgb[2] - black_level) * white_level);
+
+                        float value = Math.max(rgb[0], Math.max(rgb[1], rgb[2]));
+                        float scale = brightenScale(value, f_gain_A, f_gain_B, gamma, low_x, mid_x, max_x);
+                        rows[out_offset+x] = 0xff000000 | (clampToByte(rgb[0]*scale) << 16) | (clampToByte(rgb[1]*scale) << 8) | clampToByte(rgb[2]*scale);
+                    }
+                }
+                output.setRows(rows, y_start, n_rows);
+                if( histograms != null ) {
+                    accumulateHistograms(histograms, rows, y_start, y_stop, width, height, n_tiles);
+                }
+            }
+        });
+    }
+
+    /** As avgBrighten(FloatImage, Image, float, float, float, float, float, float, float, int [],
+     *  int, int), but choosing the tile height with TileExecutor.getTileHeight().
+     */
+    public static void avgBrighten(FloatImage input, Image output, float black_level, float median_filter_strength,
+                                   float gain, float gamma, float low_x, float mid_x, float max_x, int [] histograms, int n_tiles) {
+        // larger minimum than usual, so the halo rows are a small fraction of each tile
+        int tile_height = TileExecutor.getTileHeight(input.getHeight(), 8*avg_brighten_halo_c);
+        avgBrighten(input, output, black_level, median_filter_strength, gain, gamma, low_x, mid_x, max_x, histograms, n_tiles, tile_height);
+    }
+
+    private static float clamp255(float value) {
+        return Math.max(0.0f, Math.min(value, 255.0f));
+    }
+
+    /** Returns the max(r, g, b) value of the pixel at index i of pixels.
+     */
+    private static float pixelValue(float [] pixels, int i) {
+        return Math.max(pixels[i], Math.max(pixels[i+1], pixels[i+2]));
+    }
+
+    /** Computes the median filter, colour filter and sharpening stages of avg_brighten_f for the
+     *  pixel (x, y), storing the result in rgb.
+     * @param in         The input rows, starting at row in_y_start, with a stride of 3*width. Must
+     *                   include at least avg_brighten_halo_c rows above and below y (where these
+     *                   are within the image).
+     */
+    private static void avgBrightenPixel(float [] rgb, float [] in, int x, int y, int in_y_start, int width, int height, float median_filter_strength) {
+        final int stride = 3*width;
+        final int centre = (y-in_y_start)*stride + 3*x;
+        float r = in[centre];
+        float g = in[centre+1];
+        float b = in[centre+2];
+
+        if( x > 0 && x < width-1 && y > 0 && y < height-1 ) {
+            // median filter on the cross of 5 pixels, ordered by max(r, g, b) - we use the same
+            // sequence of swaps as avg_brighten.rs, so that we pick the same pixel in case of ties
+            int p0 = centre - stride, p1 = centre - 3, p2 = centre, p3 = centre + 3, p4 = centre + stride;
+            float a0 = pixelValue(in, p0), a1 = pixelValue(in, p1), a2 = pixelValue(in, p2), a3 = pixelValue(in, p3), a4 = pixelValue(in, p4);
+            int temp_p;
+            float temp_a;
+            if( a0 > a1 ) { temp_p = p0; p0 = p1; p1 = temp_p; temp_a = a0; a0 = a1; a1 = temp_a; }
+            if( a0 > a2 ) { temp_p = p0; p0 = p2; p2 = temp_p; temp_a = a0; a0 = a2; a2 = temp_a; }
+            if( a0 > a3 ) { temp_p = p0; p0 = p3; p3 = temp_p; temp_a = a0; a0 = a3; a3 = temp_a; }
+            if( a0 > a4 ) { temp_p = p0; p0 = p4; p4 = temp_p; temp_a = a0; a0 = a4; a4 = temp_a; }
+            if( a1 > a2 ) { temp_p = p1; p1 = p2; p2 = temp_p; temp_a = a1; a1 = a2; a2 = temp_a; }
+            if( a1 > a3 ) { temp_p = p1; p1 = p3; p3 = temp_p; temp_a = a1; a1 = a3; a3 = temp_a; }
+            if( a1 > a4 ) { temp_p = p1; p1 = p4; p4 = temp_p; temp_a = a1; a1 = a4; a4 = temp_a; }
+            if( a2 > a3 ) { temp_p = p2; p2 = p3; p3 = temp_p; temp_a = a2; a2 = a3; a3 = temp_a; }
+            if( a2 > a4 ) { temp_p = p2; p2 = p4; p4 = temp_p; temp_a = a2; a2 = a4; a4 = temp_a; }
+            r = (1.0f - median_filter_strength) * r + median_filter_strength * in[p2];
+            g = (1.0f - median_filter_strength) * g + median_filter_strength * in[p2+1];
+            b = (1.0f - median_filter_strength) * b + median_filter_strength * in[p2+2];
+        }
+
+        {
+            // colour filter: average with the neighbouring pixels, scaled to the same brightness
+            final int radius = 3;
+            final float C = 64.0f*64.0f/8.0f;
+            float old_value = Math.max(r, Math.max(g, b));
+            float sum_r = 0.0f, sum_g = 0.0f, sum_b = 0.0f;
+            int sx = Math.max(x-radius, 0);
+            int ex = Math.min(x+radius, width-1);
+            int sy = Math.max(y-radius, 0);
+            int ey = Math.min(y+radius, height-1);
+            for(int cy=sy;cy<=ey;cy++) {
+                int offset = (cy-in_y_start)*stride;
+                for(int cx=sx;cx<=ex;cx++) {
+                    int i = offset + 3*cx;
+                    float this_r = in[i];
+                    float this_g = in[i+1];
+                    float this_b = in[i+2];
+                    float this_value = Math.max(this_r, Math.max(this_g, this_b));
+                    if( this_value > 0.5f ) {
+                        float scale = old_value/this_value;
+                        this_r *= scale;
+                        this_g *= scale;
+                        this_b *= scale;
+                    }
+                    float diff_r = r - this_r;
+                    float diff_g = g - this_g;
+                    float diff_b = b - this_b;
+                    float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+                    float weight = L/(L+C);
+                    sum_r += weight * r + (1.0f-weight) * this_r;
+                    sum_g += weight * g + (1.0f-weight) * this_g;
+                    sum_b += weight * b + (1.0f-weight) * this_b;
+                }
+            }
+            int count = (ex-sx+1)*(ey-sy+1);
+            r = sum_r / count;
+            g = sum_g / count;
+            b = sum_b / count;
+        }
+
+        if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
+            // sharpen, using the unfiltered neighbours
+            float blurred_r = 8.0f*r, blurred_g = 8.0f*g, blurred_b = 8.0f*b;
+            for(int dy=-1;dy<=1;dy++) {
+                for(int dx=-1;dx<=1;dx++) {
+                    if( dx == 0 && dy == 0 )
+                        continue;
+                    int i = centre + dy*stride + 3*dx;
+                    blurred_r += in[i];
+                    blurred_g += in[i+1];
+                    blurred_b += in[i+2];
+                }
+            }
+            float shift_r = 1.5f * (r - blurred_r/16.0f);
+            float shift_g = 1.5f * (g - blurred_g/16.0f);
+            float shift_b = 1.5f * (b - blurred_b/16.0f);
+            final float threshold2 = 8*8;
+            if( shift_r*shift_r + shift_g*shift_g + shift_b*shift_b > threshold2 ) {
+                r += shift_r;
+                g += shift_g;
+                b += shift_b;
+            }
+            r = clamp255(r);
+            g = clamp255(g);
+            b = clamp255(b);
+        }
+
+        rgb[0] = r;
+        rgb[1] = g;
+        rgb[2] = b;
+    }
+
+    /** Computes the grid of n_tiles x n_tiles histograms (by value) of the image, as required by
+     *  adjustHistogram().
+     */
+    public static int [] computeHistograms(final Image image, final int n_tiles) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int [] histograms = new int[n_tiles*n_tiles*256];
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                int n_rows = y_stop - y_start;
+                int [] rows = getScratchBuffer(0, n_rows*width);
+                image.getRows(rows, y_start, n_rows);
+                accumulateHistograms(histograms, rows, y_start, y_stop, width, height, n_tiles);
+            }
+        });
+        return histograms;
+    }
+
+    /** Computes a value for how sharp the image is perceived to be, similar to
+     *  HDRProcessor.computeSharpness() (calculate_sharpness.rs): the absolute value of a Laplacian
+     *  filter, but applied to the luminance rather than the green channel, using all four
+     *  neighbours, and averaged over the image rather than summed (so that values are comparable
+     *  between images of different sizes). The higher the value, the sharper the image.
+     */
+    public static float computeSharpness(final Image image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final long [] total = new long[1];
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                // also read the rows either side of the tile, clamped to the image
+                int rows_y0 = Math.max(y_start-1, 0);
+                int rows_y1 = Math.min(y_stop+1, height);
+                int n_rows = rows_y1 - rows_y0;
+                int [] rows = getScratchBuffer(0, n_rows*width);
+                image.getRows(rows, rows_y0, n_rows);
+                // convert to luminance in place, with weights (77, 150, 29)/256
+                for(int i=0;i<n_rows*width;i++) {
+                    int color = rows[i];
+                    rows[i] = (77*((color >> 16) & 0xff) + 150*((color >> 8) & 0xff) + 29*(color & 0xff)) >> 8;
+                }
+                long sum = 0;
+                for(int y=y_start;y<y_stop;y++) {
+                    int offset = (y-rows_y0)*width;
+                    int offset_top = y > 0 ? offset-width : offset;
+                    int offset_bottom = y < height-1 ? offset+width : offset;
+                    for(int x=0;x<width;x++) {
+                        int centre = rows[offset+x];
+                        int left = x > 0 ? rows[offset+x-1] : centre;
+                        int right = x < width-1 ? rows[offset+x+1] : centre;
+                        int top = rows[offset_top+x];
+                        int bottom = rows[offset_bottom+x];
+                        sum += Math.abs(left + right + top + bottom - 4*centre);
+                    }
+                }
+                synchronized( total ) {
+                    total[0] += sum;
+                }
+            }
+        });
+        return total[0]/(4.0f*width*height);
+    }
+
+    /** Applies contrast limited adaptive histogram equalisation, equivalent to the local
+     *  histogram equalisation in HDRProcessor.adjustHistogram().
+     * @param histograms The grid of n_tiles x n_tiles histograms of the input image, as computed
+     *                   by computeHistograms() (or accumulated by processHDR() or droBrighten()).
+     *                   This array is modified by this method.
+     */
+    public static void adjustHistogram(final Image input, final Image output, int [] histograms, final float hdr_alpha, final int n_tiles, boolean ce_preserve_blacks) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "adjustHistogram");
+        final int width = input.getWidth();
+        final int height = input.getHeight();
+        final int [] c_histogram = new int[n_tiles*n_tiles*256];
+        int [] histogram = new int[256];
+        int [] temp_c_histogram = new int[256];
+        for(int i=0;i<n_tiles;i++) {
+            int start_x = getTileStart(i, n_tiles, width);
+            int stop_x = getTileStart(i+1, n_tiles, width);
+            if( stop_x == start_x )
+                continue;
+            for(int j=0;j<n_tiles;j++) {
+                int start_y = getTileStart(j, n_tiles, height);
+                int stop_y = getTileStart(j+1, n_tiles, height);
+                if( stop_y == start_y )
+                    continue;
+                int histogram_offset = 256*(i*n_tiles+j);
+                System.arraycopy(histograms, histogram_offset, histogram, 0, 256);
+                int n_pixels = (stop_x - start_x) * (stop_y - start_y);
+                HDRProcessor.computeCLAHECumulativeHistogram(histogram, n_pixels, ce_preserve_blacks, temp_c_histogram, c_histogram, histogram_offset);
+            }
+        }
+
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                int n_rows = y_stop - y_start;
+                int [] rows = getScratchBuffer(0, n_rows*width);
+                input.getRows(rows, y_start, n_rows);
+                for(int y=y_start;y<y_stop;y++) {
+                    int offset = (y-y_start)*width;
+                    float ty = ((float)y*n_tiles)/(float)height - 0.5f;
+                    for(int x=0;x<width;x++) {
+                        rows[offset+x] = histogramAdjustPixel(rows[offset+x], x, ty, width, c_histogram, n_tiles, hdr_alpha);
+                    }
+                }
+                output.setRows(rows, y_start, n_rows);
+            }
+        });
+    }
+
+    private static int getEqualValue(int [] c_histogram, int histogram_offset, int value) {
+        int cdf_v = c_histogram[histogram_offset+value];
+        int cdf_0 = c_histogram[histogram_offset];
+        int n_pixels = c_histogram[histogram_offset+255];
+        float num = (float)(cdf_v - cdf_0);
+        float den = (float)(n_pixels - cdf_0);
+        return (int)( 255.0f * (num/den) ); // value that we should choose to fully equalise the histogram
+    }
+
+    /** Equivalent to the histogram_adjust kernel in histogram_adjust.rs.
+     */
+    private static int histogramAdjustPixel(int color, int x, float ty, int width, int [] c_histogram, int n_tiles, float hdr_alpha) {
+        int in_r = (color >> 16) & 0xff;
+        int in_g = (color >> 8) & 0xff;
+        int in_b = color & 0xff;
+        int value = Math.max(in_r, Math.max(in_g, in_b));
+
+        float tx = ((float)x*n_tiles)/(float)width - 0.5f;
+        int ix = (int)Math.floor(tx);
+        int iy = (int)Math.floor(ty);
+        int equal_value;
+        if( ix >= 0 && ix < n_tiles-1 && iy >= 0 && iy < n_tiles-1 ) {
+            int equal_value00 = getEqualValue(c_histogram, 256*(ix*n_tiles+iy), value);
+            int equal_value10 = getEqualValue(c_histogram, 256*((ix+1)*n_tiles+iy), value);
+            int equal_value01 = getEqualValue(c_histogram, 256*(ix*n_tiles+iy+1), value);
+            int equal_value11 = getEqualValue(c_histogram, 256*((ix+1)*n_tiles+iy+1), value);
+            float alpha = tx - ix;
+            float beta = ty - iy;
+            float equal_value0 = (1.0f-alpha)*equal_value00 + alpha*equal_value10;
+            float equal_value1 = (1.0f-alpha)*equal_value01 + alpha*equal_value11;
+            equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+        }
+        else if( ix >= 0 && ix < n_tiles-1 ) {
+            int this_y = (iy<0) ? iy+1 : iy;
+            int equal_value0 = getEqualValue(c_histogram, 256*(ix*n_tiles+this_y), value);
+            int equal_value1 = getEqualValue(c_histogram, 256*((ix+1)*n_tiles+this_y), value);
+            float alpha = tx - ix;
+            equal_value = (int)((1.0f-alpha)*equal_value0 + alpha*equal_value1);
+        }
+        else if( iy >= 0 && iy < n_tiles-1 ) {
+            int this_x = (ix<0) ? ix+1 : ix;
+            int equal_value0 = getEqualValue(c_histogram, 256*(this_x*n_tiles+iy), value);
+            int equal_value1 = getEqualValue(c_histogram, 256*(this_x*n_tiles+iy+1), value);
+            float beta = ty - iy;
+            equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+        }
+        else {
+            int this_x = (ix<0) ? ix+1 : ix;
+            int this_y = (iy<0) ? iy+1 : iy;
+            equal_value = getEqualValue(c_histogram, 256*(this_x*n_tiles+this_y), value);
+        }
+
+        int new_value = (int)( (1.0f-hdr_alpha) * value + hdr_alpha * equal_value );
+        float scale = ((float)new_value) / (float)value;
+
+        // need to add +0.5 so that we round to nearest, see histogram_adjust.rs
+        int r = Math.min(255, (int)(in_r * scale + 0.5f));
+        int g = Math.min(255, (int)(in_g * scale + 0.5f));
+        int b = Math.min(255, (int)(in_b * scale + 0.5f));
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,190 @@
+package com.magilic.opencamera;
+
+import android.util.Log;
+
+/** Computes image histograms on the CPU, as a replacement for the reductions in
+ *  histogram_compute.rs. Rows are split into bands across threads with TileExecutor; each band
+ *  counts into a per-thread partial histogram, and the partial histograms are added together at
+ *  the end, so there's no contention between threads (unlike rsAtomicInc()). The partial bins are
+ *  kept per thread and reused across calls.
+ *  Histograms can be computed over a region of interest, and optionally sub-sampled (only every
+ *  step'th pixel in each direction), which is sufficient for statistics such as the median.
+ */
+public class HistogramEngine {
+    private static final String TAG = "HistogramEngine";
+
+    /** How the value of each pixel is computed.
+     */
+    public enum Type {
+        TYPE_RGB, // separate histograms for each of red, green and blue, concatenated into an array of 3*256 values
+        TYPE_LUMINANCE, // 0.299*r + 0.587*g + 0.114*b
+        TYPE_VALUE, // max(r, g, b)
+        TYPE_INTENSITY, // (r + g + b)/3
+        TYPE_LIGHTNESS // (min(r, g, b) + max(r, g, b))/2
+    }
+
+    private static final ThreadLocal<int []> partial_bins = new ThreadLocal<int []>() {
+        @Override
+        protected int [] initialValue() {
+            return new int[3*256];
+        }
+    };
+
+    private HistogramEngine() {
+    }
+
+    /** Returns the number of bins for the histogram type.
+     */
+    public static int getNBins(Type type) {
+        return type == Type.TYPE_RGB ? 3*256 : 256;
+    }
+
+    /** Equivalent to the histogram_compute_by_* kernels in histogram_compute.rs.
+     */
+    private static int getValue(Type type, int r, int g, int b) {
+        switch( type ) {
+            case TYPE_LUMINANCE:
+                return Math.min((int)(0.299f*r + 0.587f*g + 0.114f*b + 0.5f), 255);
+            case TYPE_INTENSITY:
+                return Math.min((int)((r + g + b)/3.0f + 0.5f), 255);
+            case TYPE_LIGHTNESS:
+                return Math.min((int)((Math.min(r, Math.min(g, b)) + Math.max(r, Math.max(g, b)))/2.0f + 0.5f), 255);
+            default:
+                return Math.max(r, Math.max(g, b));
+        }
+    }
+
+    private static void addPixel(int [] bins, Type type, int color) {
+        int r = (color >> 16) & 0xff;
+        int g = (color >> 8) & 0xff;
+        int b = color & 0xff;
+        if( type == Type.TYPE_RGB ) {
+            bins[r]++;
+            bins[256+g]++;
+            bins[512+b]++;
+        }
+        else {
+            bins[getValue(type, r, g, b)]++;
+        }
+    }
+
+    /** Returns the calling thread's partial bins, cleared.
+     */
+    private static int [] getPartialBins(int n_bins) {
+        int [] bins = partial_bins.get();
+        for(int i=0;i<n_bins;i++) {
+            bins[i] = 0;
+        }
+        return bins;
+    }
+
+    private static void mergeBins(int [] histogram, int [] bins) {
+        synchronized( histogram ) {
+            for(int i=0;i<histogram.length;i++) {
+                histogram[i] += bins[i];
+            }
+        }
+    }
+
+    /** Computes the histogram of the whole image.
+     */
+    public static int [] computeHistogram(HDRProcessorCPU.Image image, Type type) {
+        return computeHistogram(image, type, 0, 0, image.getWidth(), image.getHeight(), 1);
+    }
+
+    /** Computes the histogram of the region [roi_x, roi_x+roi_width) x [roi_y, roi_y+roi_height)
+     *  of the image, sampling every step'th pixel in each direction, starting from (roi_x, roi_y).
+     * @return An array of getNBins(type) counts.
+     */
+    public static int [] computeHistogram(final HDRProcessorCPU.Image image, final Type type, final int roi_x, final int roi_y, final int roi_width, final int roi_height, final int step) {
+        if( roi_x < 0 || roi_y < 0 || roi_width <= 0 || roi_height <= 0 || roi_x+roi_width > image.getWidth() || roi_y+roi_height > image.getHeight() ) {
+            throw new IllegalArgumentException("invalid roi");
+        }
+        if( step <= 0 ) {
+            throw new IllegalArgumentException("invalid step: " + step);
+        }
+        final int width = image.getWidth();
+        final int n_bins = getNBins(type);
+        final int [] histogram = new int[n_bins];
+        // we tile over the sampled rows, and only read the rows that are sampled
+        final int n_rows = (roi_height + step - 1)/step;
+        TileExecutor.run(n_rows, new TileExecutor.RowTask() {
+            @Override
+            public void run(int row_start, int row_stop) {
+                int [] bins = getPartialBins(n_bins);
+                int [] row = HDRProcessorCPU.getScratchBuffer(0, width);
+                for(int i=row_start;i<row_stop;i++) {
+                    image.getRows(row, roi_y + i*step, 1);
+                    for(int x=roi_x;x<roi_x+roi_width;x+=step) {
+                        addPixel(bins, type, row[x]);
+                    }
+                }
+                mergeBins(histogram, bins);
+            }
+        });
+        return histogram;
+    }
+
+    /** Computes the histogram of an n_x_samples x n_y_samples grid of pixels, evenly spaced over
+     *  the region [roi_x, roi_x+roi_width) x [roi_y, roi_y+roi_height) and excluding its edges:
+     *  sample (i, j) is taken from (roi_x + (int)(roi_width*(i+1)/(n_x_samples+1)),
+     *  roi_y + (int)(roi_height*(j+1)/(n_y_samples+1))).
+     *  This is intended for small numbers of samples, so is single threaded.
+     */
+    public static int [] computeHistogramSampled(HDRProcessorCPU.Image image, Type type, int roi_x, int roi_y, int roi_width, int roi_height, int n_x_samples, int n_y_samples) {
+        if( roi_x < 0 || roi_y < 0 || roi_width <= 0 || roi_height <= 0 || roi_x+roi_width > image.getWidth() || roi_y+roi_height > image.getHeight() ) {
+            throw new IllegalArgumentException("invalid roi");
+        }
+        int [] histogram = new int[getNBins(type)];
+        int [] row = HDRProcessorCPU.getScratchBuffer(0, image.getWidth());
+        for(int j=0;j<n_y_samples;j++) {
+            double alpha = ((double)j + 1.0) / ((double)n_y_samples + 1.0);
+            int y = roi_y + (int)(alpha * roi_height);
+            image.getRows(row, y, 1);
+            for(int i=0;i<n_x_samples;i++) {
+                double beta = ((double)i + 1.0) / ((double)n_x_samples + 1.0);
+                int x = roi_x + (int)(beta * roi_width);
+                addPixel(histogram, type, row[x]);
+            }
+        }
+        return histogram;
+    }
+
+    /** Computes the histogram of a floating point image, where each channel is first rounded to
+     *  the nearest integer and clamped to [0, 255], equivalent to histogram_compute_by_value_f and
+     *  histogram_compute_by_intensity_f in histogram_compute.rs.
+     * @param type Only TYPE_VALUE and TYPE_INTENSITY are supported.
+     */
+    public static int [] computeHistogram(final HDRProcessorCPU.FloatImage image, final Type type) {
+        if( type != Type.TYPE_VALUE && type != Type.TYPE_INTENSITY ) {
+            throw new IllegalArgumentException("unsupported type for FloatImage: " + type);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "computeHistogram for FloatImage");
+        final int width = image.getWidth();
+        final int [] histogram = new int[256];
+        TileExecutor.run(image.getHeight(), new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                int n_rows = y_stop - y_start;
+                int [] bins = getPartialBins(256);
+                float [] rows = HDRProcessorCPU.getFloatScratchBuffer(0, 3*n_rows*width);
+                image.getRows(rows, y_start, n_rows);
+                for(int i=0;i<3*n_rows*width;i+=3) {
+                    int value;
+                    if( type == Type.TYPE_INTENSITY ) {
+                        // histogram_compute_by_intensity_f doesn't round the individual channels
+                        value = Math.min((int)((rows[i] + rows[i+1] + rows[i+2])/3.0f + 0.5f), 255);
+                        value = Math.max(value, 0);
+                    }
+                    else {
+                        value = Math.max(HDRProcessorCPU.clampToByte(rows[i]), Math.max(HDRProcessorCPU.clampToByte(rows[i+1]), HDRProcessorCPU.clampToByte(rows[i+2])));
+                    }
+                    bins[value]++;
+                }
+                mergeBins(histogram, bins);
+            }
+        });
+        return histogram;
+    }
+}
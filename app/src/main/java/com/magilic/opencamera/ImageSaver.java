@@ -3,6 +3,7 @@ package com.magilic.opencamera;
 import com.magilic.opencamera.cameracontroller.CameraController;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
@@ -10,15 +11,22 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -32,9 +40,8 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Paint.Align;
-import android.location.Address;
-import android.location.Geocoder;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.location.Location;
 
 import androidx.exifinterface.media.ExifInterface;
@@ -43,7 +50,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
-import android.renderscript.Allocation;
 import android.util.Log;
 import android.util.Xml;
 
@@ -56,10 +62,17 @@ import org.xmlpull.v1.XmlSerializer;
 public class ImageSaver extends Thread {
     private static final String TAG = "ImageSaver";
 
-    private final Paint p = new Paint();
-
     private final MainActivity main_activity;
     private final HDRProcessor hdrProcessor;
+    // the HDRProcessor settings for new requests, see setHDRProcessorSettings()
+    private volatile HDRProcessor.Backend hdr_backend = HDRProcessor.Backend.BACKEND_RENDERSCRIPT;
+    private volatile HDRProcessorCPU.FloatImage.Storage avg_storage = HDRProcessorCPU.FloatImage.Storage.STORAGE_FLOAT;
+    // caches the rendered lines of photo stamps, so they can be reused for following photos
+    private final StampRenderer stamp_renderer;
+    // threads for decoding the images of HDR and NR bursts, shared by all lanes
+    private final DecodePool decode_pool;
+    // timings of the stages of saving, see writeSaveMetrics()
+    private final SaveMetrics save_metrics = new SaveMetrics();
 
     /* We use a separate count n_images_to_save, rather than just relying on the queue size, so we can take() an image from queue,
      * but only decrement the count when we've finished saving the image.
@@ -68,16 +81,46 @@ public class ImageSaver extends Thread {
      * Also note, main_activity.imageQueueChanged() should be called on UI thread after n_images_to_save increases or
      * decreases.
      * Access to n_images_to_save should always be synchronized to this (i.e., the ImageSaver class).
-     * n_real_images_to_save excludes "Dummy" requests, and should also be synchronized, and modified
-     * at the same time as n_images_to_save.
      */
     private int n_images_to_save = 0;
-    private int n_real_images_to_save = 0;
-    private final int queue_capacity;
-    private final BlockingQueue<Request> queue;
-    private final static int queue_cost_jpeg_c = 1; // also covers WEBP
-    private final static int queue_cost_dng_c = 6;
-    //private final static int queue_cost_dng_c = 1;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>(); // not bounded, as adding requests blocks on memory_budget instead
+    // The memory held by requests: adding a request blocks until its payload fits in the budget, and
+    // a request is only dispatched once its processing memory fits, see SaveMemoryBudget.
+    private final SaveMemoryBudget memory_budget;
+    // When the memory budget is used up, the JPEG data of requests is spilled to disk rather than blocking
+    // (as long as there's space), and read back in when the request is dispatched.
+    private final SpillStore spill_store;
+    private final static long max_spill_bytes_c = 1024L * 1024L * 1024L;
+    private final static long min_free_bytes_c = 200L * 1024L * 1024L; // leave room for saving the photos themselves
+    // Photos that are saved without any processing are passed in direct buffers from this pool rather than
+    // as byte arrays, and written straight from the buffer, see MyApplicationInterface.getPictureBuffer().
+    private final static long max_pooled_jpeg_bytes_c = 64L * 1024L * 1024L;
+    private final JpegBufferPool jpeg_buffer_pool = new JpegBufferPool(max_pooled_jpeg_bytes_c);
+
+    /* The ImageSaver thread takes requests from the queue, and hands them to one of two lanes to be
+     * saved: NORMAL requests are saved on normal_lane, which has a small pool of threads, so that
+     * several photos can be compressed and written at once; requests that need processing (HDR,
+     * AVERAGE, PANORAMA) go to processing_lane, which has a single thread (the HDRProcessor isn't
+     * thread safe), so that a long running merge can't hold up the normal photos behind it.
+     * Each request is given a sequence number when it's added. The parts of saving a request that
+     * the user can see, or that other code depends on (recording the last image, updating the
+     * thumbnail, decrementing n_images_to_save) are deferred until the request has finished, and
+     * then applied in sequence order - see completeRequest() and SaveSequencer. Filenames are
+     * allocated in order within each lane - see awaitNamingTurn().
+     */
+    private final static int n_normal_threads_c = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors()/2));
+    private final Lane normal_lane = new Lane("ImageSaver-normal", n_normal_threads_c);
+    private final Lane processing_lane = new Lane("ImageSaver-processing", 1);
+    // the number of requests that can be taken off the queue before they have been saved: requests
+    // waiting on a lane have already been charged their processing memory, so we don't want to take
+    // more than the lanes can start on
+    private final Semaphore in_flight = new Semaphore(n_normal_threads_c + 1);
+    private final ThreadLocal<SaveJob> current_job = new ThreadLocal<>();
+    private final Object filename_lock = new Object(); // used to reserve filenames, see saveSingleImageNow()
+    private long next_sequence; // the sequence number of the next request to be added, synchronized on this
+    private int n_saving; // see setSavingImage(), synchronized on this
+    // orders the completion of requests; if also synchronizing on this, save_sequencer must be taken first
+    private final SaveSequencer save_sequencer = new SaveSequencer();
 
     // Should be same as MainActivity.app_is_paused, but we keep our own copy to make threading easier (otherwise, all
     // accesses of MainActivity.app_is_paused would need to be synchronized).
@@ -94,8 +137,7 @@ public class ImageSaver extends Thread {
     static class Request {
         enum Type {
             JPEG, // also covers WEBP
-            RAW,
-            DUMMY
+            RAW
         }
 
         final Type type;
@@ -124,7 +166,9 @@ public class ImageSaver extends Thread {
          * image, this uses fake HDR or "DRO").
          * If process_type==NORMAL, then multiple images are saved sequentially.
          */
-        final List<byte[]> jpeg_images;
+        List<byte[]> jpeg_images; // null while spilled_images is non-null
+        List<SpillStore.Handle> spilled_images; // non-null if jpeg_images has been spilled to disk, see spillRequest()
+        ByteBuffer jpeg_buffer; // if non-null, a single unprocessed JPEG held in a buffer from the JpegBufferPool, instead of jpeg_images (which is then empty)
         final boolean image_capture_intent;
         final Uri image_capture_intent_uri;
         final boolean using_camera2;
@@ -145,6 +189,10 @@ public class ImageSaver extends Thread {
         boolean panorama_dir_left_to_right; // used for panorama
         float camera_view_angle_x; // used for panorama
         float camera_view_angle_y; // used for panorama
+        NRStreamMerger nr_stream; // used for AVERAGE, if the images have already been merged as they arrived (in which case jpeg_images only holds the images that still need saving)
+        PanoramaStreamStitcher panorama_stream; // used for PANORAMA, if the images have been stitched as they arrived (in which case jpeg_images only holds the images that still need saving)
+        HDRProcessor.Backend hdr_backend = HDRProcessor.Backend.BACKEND_RENDERSCRIPT; // used for HDR and AVERAGE
+        HDRProcessorCPU.FloatImage.Storage avg_storage = HDRProcessorCPU.FloatImage.Storage.STORAGE_FLOAT; // used for AVERAGE
         final boolean is_front_facing;
         boolean mirror;
         final Date current_date;
@@ -172,6 +220,11 @@ public class ImageSaver extends Thread {
         final String custom_tag_artist;
         final String custom_tag_copyright;
         final int sample_factor; // sampling factor for thumbnail, higher means lower quality
+        long sequence; // set by addRequest()
+        long payload_bytes; // set by addRequest(), see computeRequestCost(); 0 if spilled to disk
+        long processing_bytes; // set by addRequest(), see computeProcessingCost()
+        long add_time_ns; // set by addRequest(), for SaveMetrics.Stage.QUEUE_WAIT
+        long shot_id = -1; // set by addRequest(), the ShotTracer shot the request was taken for
 
         Request(Type type,
                 ProcessType process_type,
@@ -245,7 +298,7 @@ public class ImageSaver extends Thread {
          * data will not be copied.
          */
         Request copy() {
-            return new Request(this.type,
+            Request copy = new Request(this.type,
                     this.process_type,
                     this.force_suffix,
                     this.suffix_offset,
@@ -268,6 +321,9 @@ public class ImageSaver extends Thread {
                     this.custom_tag_artist,
                     this.custom_tag_copyright,
                     this.sample_factor);
+            copy.hdr_backend = this.hdr_backend;
+            copy.avg_storage = this.avg_storage;
+            return copy;
         }
     }
 
@@ -277,143 +333,282 @@ public class ImageSaver extends Thread {
         this.main_activity = main_activity;
 
         ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
-        this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
-        this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+        this.memory_budget = new SaveMemoryBudget(computeMemoryBudget(activityManager.getLargeMemoryClass()));
+        // use the private files dir rather than the cache dir, as the system may delete cache files while we still need them
+        this.spill_store = new SpillStore(new File(main_activity.getFilesDir(), "save_spill"), max_spill_bytes_c, min_free_bytes_c);
 
         this.hdrProcessor = new HDRProcessor(main_activity, main_activity.is_test);
+        this.hdrProcessor.setSaveMetrics(save_metrics);
+        this.stamp_renderer = new StampRenderer(main_activity);
+        this.decode_pool = new DecodePool();
+    }
+
+    /**
+     * A set of threads that requests are saved on, see normal_lane and processing_lane.
+     */
+    private static class Lane {
+        private final ThreadPoolExecutor executor;
+        private long n_dispatched; // only accessed by the ImageSaver thread
+        private final SaveSequencer.NamingTurns naming_turns = new SaveSequencer.NamingTurns();
+
+        Lane(final String name, int n_threads) {
+            final AtomicInteger thread_count = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(n_threads, n_threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name + "-" + thread_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // let idle threads exit, so that we don't keep threads around when not taking photos
+            this.executor.allowCoreThreadTimeOut(true);
+        }
 
-        p.setAntiAlias(true);
     }
 
     /**
-     * Returns the length of the image saver queue. In practice, the number of images that can be taken at once before the UI
-     * blocks is 1 more than this, as 1 image will be taken off the queue to process straight away.
+     * A request that has been taken off the queue, and is being saved on a lane.
      */
-    public int getQueueSize() {
-        return this.queue_capacity;
+    private static class SaveJob {
+        Request request; // set to null once saved, so the image data can be freed while waiting for earlier requests to complete
+        final long sequence;
+        final long shot_id;
+        final Lane lane;
+        final long lane_sequence;
+        long processing_bytes; // charged to memory_budget while being saved
+        boolean named; // whether releaseNamingTurn() has been called for this job
+        boolean success;
+        final List<Runnable> completion_actions = new ArrayList<>(); // see runOnCompletion()
+
+        SaveJob(Request request, Lane lane, long lane_sequence) {
+            this.request = request;
+            this.sequence = request.sequence;
+            this.shot_id = request.shot_id;
+            this.lane = lane;
+            this.lane_sequence = lane_sequence;
+        }
+    }
+
+    JpegBufferPool getJpegBufferPool() {
+        return jpeg_buffer_pool;
+    }
+
+    public SaveMetrics getSaveMetrics() {
+        return save_metrics;
     }
 
     /**
-     * Compute a sensible size for the queue, based on the device's memory (large heap).
+     * Writes the save metrics to save_metrics.txt, and the ShotTracer events to shot_trace.json
+     * (which can be opened in Perfetto), in the app's external files folder, in the background,
+     * so that they can be examined off the device.
      */
-    public static int computeQueueSize(int large_heap_memory) {
+    void exportSaveMetrics() {
+        final File dir = main_activity.getExternalFilesDir(null);
+        if (dir == null) {
+            Log.e(TAG, "no external files dir to export save metrics to");
+            return;
+        }
+        // use the normal lane rather than a new thread - this is queued behind any photos being saved, which is fine
+        normal_lane.executor.execute(new Runnable() {
+            public void run() {
+                File file = new File(dir, "save_metrics.txt");
+                if (MyDebug.LOG)
+                    Log.d(TAG, "export save metrics to: " + file.getAbsolutePath());
+                try {
+                    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                    try {
+                        save_metrics.write(writer);
+                    } finally {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to export save metrics");
+                    e.printStackTrace();
+                }
+
+                File trace_file = new File(dir, "shot_trace.json");
+                if (MyDebug.LOG)
+                    Log.d(TAG, "export shot trace to: " + trace_file.getAbsolutePath());
+                try {
+                    Writer writer = new OutputStreamWriter(new FileOutputStream(trace_file), "UTF-8");
+                    try {
+                        ShotTracer.getInstance().write(writer);
+                    } finally {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to export shot trace");
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns how many photos at the current resolution the image saver can hold at once before
+     * taking another photo would block the UI.
+     */
+    public int getMaxQueuedImages() {
+        return memory_budget.getMaxImages(SaveMemoryBudget.estimateJpegBytes(getPictureNPixels()));
+    }
+
+    /**
+     * Compute a sensible memory budget for the images held by the image saver, based on the
+     * device's memory (large heap).
+     */
+    public static long computeMemoryBudget(int large_heap_memory) {
         if (MyDebug.LOG)
             Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
-        int max_queue_size;
         if (MyDebug.LOG)
             Log.d(TAG, "test_small_queue_size?: " + test_small_queue_size);
         if (test_small_queue_size) {
             large_heap_memory = 0;
         }
+        return SaveMemoryBudget.computeBudget(large_heap_memory);
+    }
 
-        if (large_heap_memory >= 512) {
-            // This should be at least 5*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a burst of 5 photos
-            // (e.g., in expo mode) with RAW+JPEG without blocking (we subtract 1, as the first image can be immediately
-            // taken off the queue).
-            // This should also be at least 19 so we can take a burst of 20 photos with JPEG without blocking (we subtract 1,
-            // as the first image can be immediately taken off the queue).
-            // This should be at most 70 for large heap 512MB (estimate based on reserving 160MB for post-processing and HDR
-            // operations, then estimate a JPEG image at 5MB).
-            max_queue_size = 34;
-        } else if (large_heap_memory >= 256) {
-            // This should be at most 19 for large heap 256MB.
-            max_queue_size = 12;
-        } else if (large_heap_memory >= 128) {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            // This should be at most 8 for large heap 128MB (allowing 80MB for post-processing).
-            max_queue_size = 8;
-        } else {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            max_queue_size = 6;
+    /**
+     * Returns the number of pixels of photos at the current resolution.
+     */
+    private long getPictureNPixels() {
+        CameraController.Size size = main_activity.getPreview().getCurrentPictureSize();
+        if (size == null) {
+            return SaveMemoryBudget.default_n_pixels_c;
         }
-        //max_queue_size = 1;
-        //max_queue_size = 3;
-        if (MyDebug.LOG)
-            Log.d(TAG, "max_queue_size = " + max_queue_size);
-        return max_queue_size;
+        return (long) size.width * (long) size.height;
     }
 
     /**
-     * Computes the cost for a particular request.
-     * Note that for RAW+DNG mode, computeRequestCost() is called twice for a given photo (one for each
-     * of the two requests: one RAW, one JPEG).
-     *
-     * @param is_raw   Whether RAW/DNG or JPEG.
-     * @param n_images This is the number of JPEG or RAW images that are in the request.
+     * Returns the number of pixels of the images in a request, read from the first JPEG.
      */
-    public static int computeRequestCost(boolean is_raw, int n_images) {
-        if (MyDebug.LOG) {
-            Log.d(TAG, "computeRequestCost");
-            Log.d(TAG, "is_raw: " + is_raw);
-            Log.d(TAG, "n_images: " + n_images);
+    private long getRequestNPixels(Request request) {
+        if (request.jpeg_images != null && request.jpeg_images.size() > 0) {
+            return getJpegNPixels(request.jpeg_images.get(0));
+        }
+        return getPictureNPixels();
+    }
+
+    private long getJpegNPixels(byte[] jpeg) {
+        int[] size = SaveMemoryBudget.getJpegSize(jpeg);
+        if (size != null) {
+            return (long) size[0] * (long) size[1];
+        }
+        return getPictureNPixels();
+    }
+
+    /**
+     * Computes the memory, in bytes, held by a request until it's been saved: the JPEG data, or
+     * for RAW requests, the RAW data.
+     */
+    long computeRequestCost(Request request) {
+        long cost = 0;
+        if (request.type == Request.Type.RAW) {
+            cost = SaveMemoryBudget.estimateRawBytes(getPictureNPixels());
+        } else if (request.jpeg_images != null) {
+            for (byte[] jpeg : request.jpeg_images) {
+                cost += jpeg.length;
+            }
         }
-        int cost;
-        if (is_raw)
-            cost = n_images * queue_cost_dng_c;
-        else {
-            cost = n_images * queue_cost_jpeg_c;
-            //cost = (n_images > 1 ? 2 : 1) * queue_cost_jpeg_c;
+        if (request.jpeg_buffer != null) {
+            cost += request.jpeg_buffer.remaining();
         }
+        if (MyDebug.LOG)
+            Log.d(TAG, "computeRequestCost: " + cost);
+        return cost;
+    }
+
+    /**
+     * Estimates the peak memory, in bytes, needed while saving a request, in addition to its
+     * payload (see computeRequestCost()).
+     */
+    long computeProcessingCost(Request request) {
+        if (request.type != Request.Type.JPEG) {
+            return 0;
+        }
+        int n_images = request.panorama_stream != null ? request.panorama_stream.getNFrames() : request.jpeg_images.size();
+        int n_bitmaps;
+        switch (request.process_type) {
+            case HDR:
+                // all the input bitmaps are held at once, plus the output
+                n_bitmaps = n_images + 1;
+                break;
+            case AVERAGE:
+                // two bitmaps being merged, plus the floating point accumulation buffer (12 bytes per pixel)
+                n_bitmaps = 2 + 3;
+                break;
+            case PANORAMA:
+                // input bitmaps, the projected copies being aligned, and the output
+                n_bitmaps = 2 * n_images + 1;
+                break;
+            default:
+                if (!needsBitmap(request))
+                    n_bitmaps = 0; // only a small thumbnail is decoded
+                else if (request.do_auto_stabilise)
+                    n_bitmaps = 2; // the rotated copy is held alongside the decoded bitmap
+                else
+                    n_bitmaps = 1;
+                break;
+        }
+        long cost = n_bitmaps * SaveMemoryBudget.estimateBitmapBytes(getRequestNPixels(request));
+        if (MyDebug.LOG)
+            Log.d(TAG, "computeProcessingCost: " + cost);
         return cost;
     }
 
     /**
-     * Computes the cost (in terms of number of slots on the image queue) of a new photo.
+     * Whether saving a request of process_type NORMAL needs the full image to be decoded.
+     */
+    private static boolean needsBitmap(Request request) {
+        return request.image_format != Request.ImageFormat.STD || request.do_auto_stabilise || request.mirror ||
+                request.preference_stamp.equals("preference_stamp_yes") || request.preference_textstamp.length() > 0;
+    }
+
+    /**
+     * Estimates the memory, in bytes, that a new photo will hold in the image saver.
      *
-     * @param n_raw   The number of JPEGs that will be taken.
+     * @param n_raw   The number of RAW images that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
-    int computePhotoCost(int n_raw, int n_jpegs) {
+    long computePhotoCost(int n_raw, int n_jpegs) {
         if (MyDebug.LOG) {
             Log.d(TAG, "computePhotoCost");
             Log.d(TAG, "n_raw: " + n_raw);
             Log.d(TAG, "n_jpegs: " + n_jpegs);
         }
-        int cost = 0;
-        if (n_raw > 0)
-            cost += computeRequestCost(true, n_raw);
-        if (n_jpegs > 0)
-            cost += computeRequestCost(false, n_jpegs);
+        long n_pixels = getPictureNPixels();
+        long cost = n_raw * SaveMemoryBudget.estimateRawBytes(n_pixels) + n_jpegs * SaveMemoryBudget.estimateJpegBytes(n_pixels);
         if (MyDebug.LOG)
             Log.d(TAG, "cost: " + cost);
         return cost;
     }
 
     /**
-     * Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
+     * Whether taking an extra photo would overflow the memory budget, resulting in the UI hanging.
      *
-     * @param n_raw   The number of JPEGs that will be taken.
+     * @param n_raw   The number of RAW images that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
     boolean queueWouldBlock(int n_raw, int n_jpegs) {
-        int photo_cost = this.computePhotoCost(n_raw, n_jpegs);
+        long photo_cost = this.computePhotoCost(n_raw, n_jpegs);
         return this.queueWouldBlock(photo_cost);
     }
 
     /**
-     * Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
+     * Whether taking an extra photo would overflow the memory budget, resulting in the UI hanging.
      *
      * @param photo_cost The result returned by computePhotoCost().
      */
-    synchronized boolean queueWouldBlock(int photo_cost) {
+    boolean queueWouldBlock(long photo_cost) {
         if (MyDebug.LOG) {
             Log.d(TAG, "queueWouldBlock");
             Log.d(TAG, "photo_cost: " + photo_cost);
-            Log.d(TAG, "n_images_to_save: " + n_images_to_save);
-            Log.d(TAG, "queue_capacity: " + queue_capacity);
-        }
-        // we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
-        // currently being processed
-        if (n_images_to_save == 0) {
-            // In theory, we should never have the extra_cost large enough to block the queue even when no images are being
-            // saved - but we have this just in case. This means taking the photo will likely block the UI, but we don't want
-            // to disallow ever taking photos!
-            if (MyDebug.LOG)
-                Log.d(TAG, "queue is empty");
-            return false;
-        } else if (n_images_to_save + photo_cost > queue_capacity + 1) {
+            Log.d(TAG, "used bytes: " + memory_budget.getUsedBytes());
+            Log.d(TAG, "budget: " + memory_budget.getBudget());
+        }
+        // n.b., if nothing is held, we never block - we don't want to disallow ever taking photos, even if a single
+        // photo is larger than the budget
+        if (memory_budget.wouldBlock(photo_cost) && !spill_store.canSpill(photo_cost)) {
             if (MyDebug.LOG)
                 Log.d(TAG, "queue would block");
             return true;
@@ -424,30 +619,40 @@ public class ImageSaver extends Thread {
     }
 
     /**
-     * Returns the maximum number of DNG images that might be held by the image saver queue at once, before blocking.
+     * Creates a BurstSelector for the "keep sharpest" option of fast burst mode. The images it
+     * holds while they're being scored are charged to the memory budget, or spilled to disk once
+     * the budget is used up.
+     */
+    BurstSelector createBurstSelector(int n_keep, BurstSelector.Scorer scorer) {
+        return new BurstSelector(n_keep, scorer, memory_budget, spill_store);
+    }
+
+    /**
+     * Returns the maximum number of DNG images that might be held by the image saver at once, before blocking.
      */
     int getMaxDNG() {
-        int max_dng = (queue_capacity + 1) / queue_cost_dng_c;
-        max_dng++; // increase by 1, as the user can still take one extra photo if the queue is exactly full
+        long n_pixels = getPictureNPixels();
+        // with RAW, each photo also has a JPEG
+        int max_dng = memory_budget.getMaxImages(SaveMemoryBudget.estimateRawBytes(n_pixels) + SaveMemoryBudget.estimateJpegBytes(n_pixels));
+        max_dng++; // increase by 1, as the user can still take one extra photo if the budget is exactly used up
         if (MyDebug.LOG)
             Log.d(TAG, "max_dng = " + max_dng);
         return max_dng;
     }
 
     /**
-     * Returns the number of images to save, weighted by their cost (e.g., so a single RAW image
-     * will be counted as multiple images).
+     * Returns the number of images to save, including any currently being saved.
      */
     public synchronized int getNImagesToSave() {
         return n_images_to_save;
     }
 
     /**
-     * Returns the number of images to save (e.g., so a single RAW image will only be counted as
-     * one image, unlike getNImagesToSave()).
+     * Returns the memory, in bytes, held by images still to be saved (including the processing
+     * memory of those currently being saved).
      */
-    public synchronized int getNRealImagesToSave() {
-        return n_real_images_to_save;
+    public long getNBytesToSave() {
+        return memory_budget.getUsedBytes();
     }
 
     /**
@@ -457,6 +662,7 @@ public class ImageSaver extends Thread {
         synchronized (this) {
             app_is_paused = true;
         }
+        main_activity.getStorageUtils().flushMediaScans();
     }
 
     /**
@@ -471,9 +677,11 @@ public class ImageSaver extends Thread {
     void onDestroy() {
         if (MyDebug.LOG)
             Log.d(TAG, "onDestroy");
+        cancelNRStream();
         if (hdrProcessor != null) {
             hdrProcessor.onDestroy();
         }
+        main_activity.getStorageUtils().flushMediaScans();
     }
 
     @Override
@@ -482,67 +690,294 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "starting ImageSaver thread...");
         while (true) {
             try {
-                if (MyDebug.LOG)
-                    Log.d(TAG, "ImageSaver thread reading from queue, size: " + queue.size());
-                Request request = queue.take(); // if empty, take() blocks until non-empty
+                in_flight.acquire();
+                Request request;
+                try {
+                    if (MyDebug.LOG)
+                        Log.d(TAG, "ImageSaver thread reading from queue, size: " + queue.size());
+                    request = queue.take(); // if empty, take() blocks until non-empty
+                } catch (InterruptedException e) {
+                    in_flight.release();
+                    throw e;
+                }
                 // Only decrement n_images_to_save after we've actually saved the image! Otherwise waitUntilDone() will return
                 // even though we still have a last image to be saved.
                 if (MyDebug.LOG)
                     Log.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
-                boolean success;
-                switch (request.type) {
-                    case JPEG:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is jpeg");
-                        success = saveImageNow(request);
-                        break;
-                    case DUMMY:
-                        if (MyDebug.LOG)
-                            Log.d(TAG, "request is dummy");
-                        success = true;
-                        break;
-                    default:
-                        if (MyDebug.LOG)
-                            Log.e(TAG, "request is unknown type!");
-                        success = false;
-                        break;
+                dispatchRequest(request);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                if (MyDebug.LOG)
+                    Log.e(TAG, "interrupted while trying to read from ImageSaver queue");
+            }
+        }
+    }
+
+    /**
+     * Hands a request taken from the queue to the lane that should save it.
+     */
+    private void dispatchRequest(Request request) {
+        long processing_bytes = request.processing_bytes;
+        if (request.spilled_images != null) {
+            // the data is held in memory again once read back, so count it as part of the processing
+            long spilled_bytes = 0;
+            for (SpillStore.Handle handle : request.spilled_images) {
+                spilled_bytes += handle.getLength();
+            }
+            processing_bytes += spilled_bytes;
+            acquireProcessingMemory(processing_bytes);
+            if (!readSpilledRequest(request)) {
+                memory_budget.releaseProcessing(processing_bytes);
+                main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+                in_flight.release();
+                completeRequest(new SaveJob(request, null, 0));
+                return;
+            }
+        } else {
+            acquireProcessingMemory(processing_bytes);
+        }
+        Lane lane = request.type == Request.Type.JPEG && request.process_type != Request.ProcessType.NORMAL ? processing_lane : normal_lane;
+        final SaveJob job = new SaveJob(request, lane, lane.n_dispatched++);
+        job.processing_bytes = processing_bytes;
+        if (MyDebug.LOG)
+            Log.d(TAG, "dispatch request " + request.sequence + " to " + (lane == processing_lane ? "processing" : "normal") + " lane");
+        lane.executor.execute(new Runnable() {
+            public void run() {
+                processRequest(job);
+            }
+        });
+    }
+
+    /**
+     * Charges processing memory to memory_budget, blocking until other requests have been
+     * processed if there isn't enough.
+     */
+    private void acquireProcessingMemory(long processing_bytes) {
+        boolean acquired = false;
+        while (!acquired) {
+            try {
+                memory_budget.acquireProcessing(processing_bytes);
+                acquired = true;
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                if (MyDebug.LOG)
+                    Log.e(TAG, "interrupted while waiting for memory to process request");
+            }
+        }
+    }
+
+    /**
+     * If the memory budget is used up, moves the JPEG data of a request to disk, so that adding it
+     * doesn't block. This includes a JPEG held in request.jpeg_buffer, which is returned to the
+     * buffer pool; once read back, the request is saved from jpeg_images instead.
+     *
+     * @return Whether the request was spilled.
+     */
+    private boolean spillRequest(Request request) {
+        if (request.type != Request.Type.JPEG || request.jpeg_images == null || request.nr_stream != null) {
+            // n.b., we can't spill requests whose images are being merged as they arrive, as the merge holds the memory anyway
+            return false;
+        }
+        if (request.jpeg_images.size() == 0 && request.jpeg_buffer == null) {
+            return false;
+        }
+        if (!memory_budget.wouldBlock(request.payload_bytes) || !spill_store.canSpill(request.payload_bytes)) {
+            return false;
+        }
+        if (MyDebug.LOG)
+            Log.d(TAG, "spill request to disk: " + request.payload_bytes);
+        List<SpillStore.Handle> handles = new ArrayList<>();
+        try {
+            for (byte[] jpeg : request.jpeg_images) {
+                handles.add(spill_store.write(jpeg));
+            }
+            if (request.jpeg_buffer != null) {
+                handles.add(spill_store.write(request.jpeg_buffer));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to spill request to disk");
+            e.printStackTrace();
+            for (SpillStore.Handle handle : handles) {
+                spill_store.delete(handle);
+            }
+            return false;
+        }
+        if (request.jpeg_buffer != null) {
+            jpeg_buffer_pool.release(request.jpeg_buffer);
+            request.jpeg_buffer = null;
+        }
+        request.spilled_images = handles;
+        request.jpeg_images = null;
+        request.payload_bytes = 0;
+        return true;
+    }
+
+    /**
+     * Reads back the JPEG data of a request that was spilled to disk by spillRequest().
+     *
+     * @return Whether the data was read successfully.
+     */
+    private boolean readSpilledRequest(Request request) {
+        if (MyDebug.LOG)
+            Log.d(TAG, "read spilled request " + request.sequence);
+        boolean success = true;
+        List<byte[]> jpeg_images = new ArrayList<>();
+        for (SpillStore.Handle handle : request.spilled_images) {
+            if (success) {
+                try {
+                    jpeg_images.add(spill_store.read(handle));
+                } catch (IOException e) {
+                    Log.e(TAG, "failed to read spilled image");
+                    e.printStackTrace();
+                    success = false;
                 }
-                if (test_slow_saving) {
-                    // ignore warning about "Call to Thread.sleep in a loop", this is only activated in test code
-                    //noinspection BusyWait
+            }
+            spill_store.delete(handle);
+        }
+        request.spilled_images = null;
+        request.jpeg_images = success ? jpeg_images : null;
+        return success;
+    }
+
+    /**
+     * Saves the request of a job, on one of the lane threads.
+     */
+    private void processRequest(SaveJob job) {
+        current_job.set(job);
+        save_metrics.beginRequest(job.request.process_type.toString(), getRequestNPixels(job.request));
+        save_metrics.stopTimer(SaveMetrics.Stage.QUEUE_WAIT, job.request.add_time_ns);
+        ShotTracer tracer = ShotTracer.getInstance();
+        tracer.setThreadShot(job.shot_id);
+        tracer.begin(ShotTracer.span_process_c);
+        try {
+            switch (job.request.type) {
+                case JPEG:
+                    if (MyDebug.LOG)
+                        Log.d(TAG, "request is jpeg");
+                    job.success = saveImageNow(job.request);
+                    break;
+                default:
+                    if (MyDebug.LOG)
+                        Log.e(TAG, "request is unknown type!");
+                    job.success = false;
+                    break;
+            }
+            if (test_slow_saving) {
+                try {
                     Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
                 }
-                if (MyDebug.LOG) {
-                    if (success)
-                        Log.d(TAG, "ImageSaver thread successfully saved image");
-                    else
-                        Log.e(TAG, "ImageSaver thread failed to save image");
+            }
+            if (MyDebug.LOG) {
+                if (job.success)
+                    Log.d(TAG, "ImageSaver thread successfully saved image");
+                else
+                    Log.e(TAG, "ImageSaver thread failed to save image");
+            }
+        } finally {
+            current_job.remove();
+            save_metrics.endRequest();
+            tracer.end(ShotTracer.span_process_c);
+            tracer.clearThreadShot();
+            if (!job.named) {
+                // in case the request never got as far as allocating a filename
+                job.named = true;
+                job.lane.naming_turns.releaseTurn(job.lane_sequence);
+            }
+            memory_budget.releaseProcessing(job.processing_bytes);
+            memory_budget.release(job.request.payload_bytes);
+            job.request = null;
+            in_flight.release();
+            completeRequest(job);
+        }
+    }
+
+    /**
+     * Called once a request has been saved (or failed). Requests are completed in the order they
+     * were added, so if earlier requests are still being saved, this job is kept until they have
+     * finished.
+     */
+    private void completeRequest(final SaveJob job) {
+        // save_sequencer runs the completion actions in order even if several lane threads finish at once;
+        // we don't hold "this" while running them, so that other threads aren't held up by a slow action
+        save_sequencer.complete(job.sequence, new Runnable() {
+            public void run() {
+                ShotTracer.getInstance().asyncEnd(ShotTracer.span_save_c, job.shot_id);
+                for (Runnable action : job.completion_actions) {
+                    action.run();
                 }
-                synchronized (this) {
+                synchronized (ImageSaver.this) {
                     n_images_to_save--;
-                    if (request.type != Request.Type.DUMMY)
-                        n_real_images_to_save--;
+                    if (n_images_to_save == 0) {
+                        // end of a burst (or a single photo), so publish the saved photos now
+                        main_activity.getStorageUtils().flushMediaScans();
+                    }
                     if (MyDebug.LOG)
                         Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
                     if (MyDebug.LOG && n_images_to_save < 0) {
                         Log.e(TAG, "images to save has become negative");
                         throw new RuntimeException();
-                    } else if (MyDebug.LOG && n_real_images_to_save < 0) {
-                        Log.e(TAG, "real images to save has become negative");
-                        throw new RuntimeException();
                     }
-                    notifyAll();
-
-                    main_activity.runOnUiThread(new Runnable() {
-                        public void run() {
-                            main_activity.imageQueueChanged();
-                        }
-                    });
+                    ImageSaver.this.notifyAll();
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                if (MyDebug.LOG)
-                    Log.e(TAG, "interrupted while trying to read from ImageSaver queue");
+            }
+        });
+
+        main_activity.runOnUiThread(new Runnable() {
+            public void run() {
+                main_activity.imageQueueChanged();
+            }
+        });
+    }
+
+    /**
+     * If called while saving a request on a lane, action is run once the request, and all requests
+     * added before it, have finished saving. Otherwise (saving on the caller's thread), action is
+     * run straight away.
+     */
+    private void runOnCompletion(Runnable action) {
+        SaveJob job = current_job.get();
+        if (job != null) {
+            job.completion_actions.add(action);
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Call before allocating a filename: if saving a request on a lane, this waits until earlier
+     * requests on the same lane have allocated theirs, so that filenames (and their "_N" suffixes
+     * when names clash) are in the order the photos were taken. Call releaseNamingTurn() once the
+     * filename has been allocated.
+     */
+    private void awaitNamingTurn() {
+        SaveJob job = current_job.get();
+        if (job != null && !job.named) {
+            job.lane.naming_turns.awaitTurn(job.lane_sequence);
+        }
+    }
+
+    private void releaseNamingTurn() {
+        SaveJob job = current_job.get();
+        if (job != null && !job.named) {
+            job.named = true;
+            job.lane.naming_turns.releaseTurn(job.lane_sequence);
+        }
+    }
+
+    /**
+     * Requests on different lanes may be saved at the same time, so count how many are in
+     * progress, and only tell the activity when the first starts or the last finishes.
+     */
+    private void setSavingImage(boolean started) {
+        synchronized (this) {
+            if (started) {
+                if (n_saving++ == 0)
+                    main_activity.savingImage(true);
+            } else if (n_saving > 0) {
+                if (--n_saving == 0)
+                    main_activity.savingImage(false);
             }
         }
     }
@@ -560,6 +995,7 @@ public class ImageSaver extends Thread {
                           int suffix_offset,
                           boolean save_expo,
                           List<byte[]> images,
+                          ByteBuffer jpeg_buffer,
                           boolean image_capture_intent, Uri image_capture_intent_uri,
                           boolean using_camera2,
                           Request.ImageFormat image_format, int image_quality,
@@ -590,6 +1026,7 @@ public class ImageSaver extends Thread {
                 suffix_offset,
                 save_expo,
                 images,
+                jpeg_buffer,
                 image_capture_intent, image_capture_intent_uri,
                 using_camera2,
                 image_format, image_quality,
@@ -610,6 +1047,8 @@ public class ImageSaver extends Thread {
     }
 
     private Request pending_image_average_request = null;
+    private NRStreamMerger pending_nr_stream = null; // if non-null, images for pending_image_average_request are merged as they arrive
+    private PanoramaStreamStitcher pending_panorama_stream = null; // if non-null, images for pending_image_average_request are stitched as they arrive
 
     /**
      * Used for a batch of images that will be combined into a single request. This applies to
@@ -639,6 +1078,8 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "startImageBatch");
             Log.d(TAG, "do_in_background? " + do_in_background);
         }
+        cancelNRStream(); // in case a previous batch was never finished
+        cancelPanoramaStream();
         pending_image_average_request = new Request(Request.Type.JPEG,
                 processType,
                 false,
@@ -662,6 +1103,29 @@ public class ImageSaver extends Thread {
                 custom_tag_artist,
                 custom_tag_copyright,
                 sample_factor);
+        pending_image_average_request.hdr_backend = hdr_backend;
+        pending_image_average_request.avg_storage = avg_storage;
+
+        if (processType == Request.ProcessType.AVERAGE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // We can only merge the images as they arrive if nothing else will be using the hdrProcessor in the meantime,
+            // so only do this if the saver queue is empty. The request for this batch isn't queued until
+            // finishImageBatch(), and saveImageNow() then waits for the merge to complete before anything else in the
+            // queue is processed.
+            boolean queue_empty;
+            synchronized (this) {
+                queue_empty = n_images_to_save == 0;
+            }
+            if (queue_empty) {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "merge NR images as they arrive");
+                applyHDRProcessorSettings(pending_image_average_request); // safe, as the hdrProcessor isn't in use
+                pending_nr_stream = new NRStreamMerger(hdrProcessor, save_metrics, iso, exposure_time, zoom_factor);
+                pending_nr_stream.start();
+            } else {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "saver busy, so merge NR images once the batch is complete");
+            }
+        }
     }
 
     void addImageBatch(byte[] image, float[] gyro_rotation_matrix) {
@@ -671,11 +1135,46 @@ public class ImageSaver extends Thread {
             Log.e(TAG, "addImageBatch called but no pending_image_average_request");
             return;
         }
-        pending_image_average_request.jpeg_images.add(image);
+        float[] gyro_rotation_matrix_copy = null;
         if (gyro_rotation_matrix != null) {
-            float[] copy = new float[gyro_rotation_matrix.length];
-            System.arraycopy(gyro_rotation_matrix, 0, copy, 0, gyro_rotation_matrix.length);
-            pending_image_average_request.gyro_rotation_matrix.add(copy);
+            gyro_rotation_matrix_copy = new float[gyro_rotation_matrix.length];
+            System.arraycopy(gyro_rotation_matrix, 0, gyro_rotation_matrix_copy, 0, gyro_rotation_matrix.length);
+            pending_image_average_request.gyro_rotation_matrix.add(gyro_rotation_matrix_copy);
+        }
+        if (pending_image_average_request.process_type == Request.ProcessType.PANORAMA && pending_panorama_stream == null && pending_image_average_request.jpeg_images.size() == 0) {
+            // The stitcher is only created with the first image, as the camera view angles are set on the request after
+            // startImageBatch(). Unlike NR, the PanoramaProcessor doesn't use the hdrProcessor, so we can always stitch the
+            // images as they arrive.
+            if (MyDebug.LOG)
+                Log.d(TAG, "stitch panorama images as they arrive");
+            pending_panorama_stream = new PanoramaStreamStitcher(this, pending_image_average_request.camera_view_angle_x, pending_image_average_request.camera_view_angle_y, pending_image_average_request.panorama_crop);
+            pending_panorama_stream.start();
+        }
+        if (pending_image_average_request.jpeg_images.size() == 0 && (pending_nr_stream != null || pending_panorama_stream != null)) {
+            // the request's key is only known from its first image (see getRequestNPixels()), so pass it now, to
+            // record the stages done on the stream's thread against
+            String metrics_key = SaveMetrics.getKey(pending_image_average_request.process_type.toString(), getJpegNPixels(image));
+            if (pending_nr_stream != null) {
+                pending_nr_stream.setMetricsKey(metrics_key);
+            } else {
+                pending_panorama_stream.setMetricsKey(metrics_key);
+            }
+        }
+        if (pending_nr_stream != null) {
+            pending_nr_stream.addImage(image);
+            // Only keep the JPEGs that we still need: the first is used for the exif data of the NR image, the others are
+            // only needed if saving all the base images.
+            if (pending_image_average_request.jpeg_images.size() == 0 || pending_image_average_request.save_base == Request.SaveBase.SAVEBASE_ALL) {
+                pending_image_average_request.jpeg_images.add(image);
+            }
+        } else if (pending_panorama_stream != null) {
+            pending_panorama_stream.addFrame(image, gyro_rotation_matrix_copy);
+            // similarly, the first is used for the exif data of the panorama
+            if (pending_image_average_request.jpeg_images.size() == 0 || pending_image_average_request.save_base != Request.SaveBase.SAVEBASE_NONE) {
+                pending_image_average_request.jpeg_images.add(image);
+            }
+        } else {
+            pending_image_average_request.jpeg_images.add(image);
         }
         if (MyDebug.LOG)
             Log.d(TAG, "image average request images: " + pending_image_average_request.jpeg_images.size());
@@ -693,11 +1192,22 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "finishImageBatch called but no pending_image_average_request");
             return;
         }
+        if (pending_nr_stream != null) {
+            pending_nr_stream.finish();
+            // the images already merged are no longer held as JPEGs, the merge buffers are counted as the
+            // processing cost of the request instead (see computeProcessingCost())
+            pending_image_average_request.nr_stream = pending_nr_stream;
+            pending_nr_stream = null;
+        }
+        if (pending_panorama_stream != null) {
+            pending_panorama_stream.finish();
+            pending_image_average_request.panorama_stream = pending_panorama_stream;
+            pending_panorama_stream = null;
+        }
         if (do_in_background) {
             if (MyDebug.LOG)
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(false, pending_image_average_request.jpeg_images.size());
-            addRequest(pending_image_average_request, cost);
+            addRequest(pending_image_average_request);
         } else {
             // wait for queue to be empty
             waitUntilDone();
@@ -709,10 +1219,93 @@ public class ImageSaver extends Thread {
     void flushImageBatch() {
         if (MyDebug.LOG)
             Log.d(TAG, "flushImageBatch");
+        cancelNRStream();
+        cancelPanoramaStream();
         // aside from resetting the state, this allows the allocated JPEG data to be garbage collected
         pending_image_average_request = null;
     }
 
+    /**
+     * Abandons any merge in progress for an image batch that was never finished, and waits for
+     * the merge thread to release its resources.
+     */
+    private void cancelNRStream() {
+        if (pending_nr_stream != null) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "cancel pending NR stream");
+            pending_nr_stream.cancel();
+            pending_nr_stream.getResult(); // waits for the thread, and frees any result
+            pending_nr_stream = null;
+        }
+    }
+
+    /**
+     * As cancelNRStream(), but for a panorama being stitched as its images arrive.
+     */
+    /**
+     * Sets the backend and noise reduction accumulator storage to use for HDR and NR photos
+     * saved from now on. Requests that are already queued keep the settings they were taken
+     * with. The hdrProcessor isn't changed straight away, as it may be in the middle of
+     * processing an earlier request, see applyHDRProcessorSettings().
+     */
+    void setHDRProcessorSettings(HDRProcessor.Backend hdr_backend, HDRProcessorCPU.FloatImage.Storage avg_storage) {
+        this.hdr_backend = hdr_backend;
+        this.avg_storage = avg_storage;
+    }
+
+    /**
+     * Applies the HDRProcessor settings of the request to the hdrProcessor. Must only be called
+     * when the hdrProcessor isn't in use - i.e., from the processing lane (which is the only lane
+     * using the hdrProcessor), or when starting an NRStreamMerger with an empty queue.
+     */
+    private void applyHDRProcessorSettings(Request request) {
+        HDRProcessor.Backend backend = chooseHDRBackend(request);
+        if (hdrProcessor.getBackend() != backend) {
+            hdrProcessor.setBackend(backend);
+        }
+        if (hdrProcessor.getAvgStorage() != request.avg_storage) {
+            hdrProcessor.setAvgStorage(request.avg_storage);
+        }
+    }
+
+    /**
+     * Returns the backend to use for an HDR or AVERAGE request. This is normally the one chosen
+     * by the user, but the Renderscript backend processes full frames, so for high resolutions it
+     * can need far more memory than the CPU backend, which processes a band of rows at a time.
+     * If the Renderscript backend would need more than the whole memory budget, we use the CPU
+     * backend instead.
+     */
+    private HDRProcessor.Backend chooseHDRBackend(Request request) {
+        if (request.hdr_backend == HDRProcessor.Backend.BACKEND_CPU) {
+            return HDRProcessor.Backend.BACKEND_CPU;
+        }
+        boolean noise_reduction = request.process_type == Request.ProcessType.AVERAGE;
+        long n_pixels = getRequestNPixels(request);
+        if (noise_reduction) {
+            int sample_size = hdrProcessor.getAvgSampleSize(request.iso);
+            n_pixels /= (long) sample_size * sample_size;
+        }
+        long renderscript_bytes = computeProcessingCost(request) + SaveMemoryBudget.estimateRenderscriptBytes(request.jpeg_images.size(), noise_reduction, n_pixels);
+        if (MyDebug.LOG)
+            Log.d(TAG, "renderscript_bytes: " + renderscript_bytes);
+        if (renderscript_bytes > memory_budget.getBudget()) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "too large for Renderscript, use the CPU backend");
+            return HDRProcessor.Backend.BACKEND_CPU;
+        }
+        return HDRProcessor.Backend.BACKEND_RENDERSCRIPT;
+    }
+
+    private void cancelPanoramaStream() {
+        if (pending_panorama_stream != null) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "cancel pending panorama stream");
+            pending_panorama_stream.cancel();
+            pending_panorama_stream.getResult(); // waits for the thread, and frees any result
+            pending_panorama_stream = null;
+        }
+    }
+
     /**
      * Internal saveImage method to handle both JPEG and RAW.
      */
@@ -723,6 +1316,7 @@ public class ImageSaver extends Thread {
                               int suffix_offset,
                               boolean save_expo,
                               List<byte[]> jpeg_images,
+                              ByteBuffer jpeg_buffer,
                               boolean image_capture_intent, Uri image_capture_intent_uri,
                               boolean using_camera2,
                               Request.ImageFormat image_format, int image_quality,
@@ -772,12 +1366,26 @@ public class ImageSaver extends Thread {
                 custom_tag_artist,
                 custom_tag_copyright,
                 sample_factor);
+        request.hdr_backend = hdr_backend;
+        request.avg_storage = avg_storage;
+        if (jpeg_buffer != null) {
+            if (is_raw || is_hdr || image_capture_intent || needsBitmap(request)) {
+                // the settings changed since the buffer was requested, so fall back to holding a byte array
+                if (MyDebug.LOG)
+                    Log.d(TAG, "copy jpeg buffer for processing");
+                byte[] data = new byte[jpeg_buffer.remaining()];
+                jpeg_buffer.duplicate().get(data);
+                jpeg_buffer_pool.release(jpeg_buffer);
+                request.jpeg_images.add(data);
+            } else {
+                request.jpeg_buffer = jpeg_buffer;
+            }
+        }
 
         if (do_in_background) {
             if (MyDebug.LOG)
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(is_raw, is_raw ? 1 : request.jpeg_images.size());
-            addRequest(request, cost);
+            addRequest(request);
             success = true; // always return true when done in background
         } else {
             // wait for queue to be empty
@@ -791,11 +1399,14 @@ public class ImageSaver extends Thread {
     }
 
     /**
-     * Adds a request to the background queue, blocking if the queue is already full
+     * Adds a request to the background queue, blocking if the memory budget is already used up
      */
-    private void addRequest(Request request, int cost) {
+    private void addRequest(Request request) {
+        request.add_time_ns = save_metrics.startTimer();
+        request.payload_bytes = computeRequestCost(request);
+        request.processing_bytes = computeProcessingCost(request);
         if (MyDebug.LOG)
-            Log.d(TAG, "addRequest, cost: " + cost);
+            Log.d(TAG, "addRequest, cost: " + request.payload_bytes);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && main_activity.isDestroyed()) {
             // If the application is being destroyed as a new photo is being taken, it's not safe to continue, e.g., we'll
             // crash if needing to use RenderScript.
@@ -803,7 +1414,11 @@ public class ImageSaver extends Thread {
             Log.e(TAG, "application is destroyed, image lost!");
             return;
         }
-        // this should not be synchronized on "this": BlockingQueue is thread safe, and if it's blocking in queue.put(), we'll hang because
+        // requests are added as the images arrive, so they belong to the current shot
+        request.shot_id = ShotTracer.getInstance().getCurrentShot();
+        ShotTracer.getInstance().asyncBegin(ShotTracer.span_save_c, request.shot_id);
+        spillRequest(request);
+        // this should not be synchronized on "this": if it's blocking in memory_budget.acquire(), we'll hang because
         // the saver queue will need to synchronize on "this" in order to notifyAll() the main thread
         boolean done = false;
         while (!done) {
@@ -815,8 +1430,7 @@ public class ImageSaver extends Thread {
                     // but we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
                     // also see FindBugs warning due to inconsistent synchronisation
                     n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
-                    if (request.type != Request.Type.DUMMY)
-                        n_real_images_to_save++;
+                    request.sequence = next_sequence++;
 
                     main_activity.runOnUiThread(new Runnable() {
                         public void run() {
@@ -824,17 +1438,17 @@ public class ImageSaver extends Thread {
                         }
                     });
                 }
-                if (queue.size() + 1 > queue_capacity) {
-                    Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + queue.size());
+                if (memory_budget.wouldBlock(request.payload_bytes)) {
+                    Log.e(TAG, "ImageSaver thread is going to block, memory budget already used: " + memory_budget.getUsedBytes());
                     test_queue_blocked = true;
                     //throw new RuntimeException(); // test
                 }
-                queue.put(request); // if queue is full, put() blocks until it isn't full
+                memory_budget.acquire(request.payload_bytes); // if the budget is used up, blocks until earlier requests have been saved
+                queue.put(request);
                 if (MyDebug.LOG) {
                     synchronized (this) { // keep FindBugs happy
                         Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
                         Log.d(TAG, "images still to save is now: " + n_images_to_save);
-                        Log.d(TAG, "real images still to save is now: " + n_real_images_to_save);
                     }
                 }
                 done = true;
@@ -844,40 +1458,6 @@ public class ImageSaver extends Thread {
                     Log.e(TAG, "interrupted while trying to add to ImageSaver queue");
             }
         }
-        if (cost > 0) {
-            // add "dummy" requests to simulate the cost
-            for (int i = 0; i < cost - 1; i++) {
-                addDummyRequest();
-            }
-        }
-    }
-
-    private void addDummyRequest() {
-        Request dummy_request = new Request(Request.Type.DUMMY,
-                Request.ProcessType.NORMAL,
-                false,
-                0,
-                Request.SaveBase.SAVEBASE_NONE,
-                null,
-                false, null,
-                false,
-                Request.ImageFormat.STD, 0,
-                false, 0.0, null,
-                false,
-                false,
-                null,
-                null,
-                0,
-                0,
-                1.0f,
-                null, null, 0, 0, null, null, null, null, null, null,
-                false, false, null, false, 0.0,
-                0.0, false,
-                null, null,
-                1);
-        if (MyDebug.LOG)
-            Log.d(TAG, "add dummy request");
-        addRequest(dummy_request, 1); // cost must be 1, so we don't have infinite recursion!
     }
 
     /**
@@ -943,33 +1523,18 @@ public class ImageSaver extends Thread {
             // setting is ignored in Android 5 onwards
             options.inPurgeable = true;
         }
+        long decode_start = save_metrics.startTimer();
         Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_image.length, options);
+        save_metrics.stopTimer(SaveMetrics.Stage.DECODE, decode_start);
         if (bitmap == null) {
-            Log.e(TAG, "failed to decode bitmap");
-        }
-        return bitmap;
-    }
-
-    /**
-     * Helper class for loadBitmaps().
-     */
-    private static class LoadBitmapThread extends Thread {
-        Bitmap bitmap;
-        final BitmapFactory.Options options;
-        final byte[] jpeg;
-
-        LoadBitmapThread(BitmapFactory.Options options, byte[] jpeg) {
-            this.options = options;
-            this.jpeg = jpeg;
-        }
-
-        public void run() {
-            this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+            Log.e(TAG, "failed to decode bitmap");
         }
+        return bitmap;
     }
 
     /**
      * Converts the array of jpegs to Bitmaps. The bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps).
+     * The jpegs are decoded in parallel on the decode_pool.
      */
     private List<Bitmap> loadBitmaps(List<byte[]> jpeg_images, int mutable_id, int inSampleSize) {
         if (MyDebug.LOG) {
@@ -987,60 +1552,13 @@ public class ImageSaver extends Thread {
             mutable_options.inPurgeable = true;
             options.inPurgeable = true;
         }
-        LoadBitmapThread[] threads = new LoadBitmapThread[jpeg_images.size()];
-        for (int i = 0; i < jpeg_images.size(); i++) {
-            threads[i] = new LoadBitmapThread(i == mutable_id ? mutable_options : options, jpeg_images.get(i));
-        }
-        // start threads
-        if (MyDebug.LOG)
-            Log.d(TAG, "start threads");
+        List<BitmapFactory.Options> options_list = new ArrayList<>();
         for (int i = 0; i < jpeg_images.size(); i++) {
-            threads[i].start();
-        }
-        // wait for threads to complete
-        boolean ok = true;
-        if (MyDebug.LOG)
-            Log.d(TAG, "wait for threads to complete");
-        try {
-            for (int i = 0; i < jpeg_images.size(); i++) {
-                threads[i].join();
-            }
-        } catch (InterruptedException e) {
-            if (MyDebug.LOG)
-                Log.e(TAG, "threads interrupted");
-            e.printStackTrace();
-            ok = false;
-        }
-        if (MyDebug.LOG)
-            Log.d(TAG, "threads completed");
-
-        List<Bitmap> bitmaps = new ArrayList<>();
-        for (int i = 0; i < jpeg_images.size() && ok; i++) {
-            Bitmap bitmap = threads[i].bitmap;
-            if (bitmap == null) {
-                Log.e(TAG, "failed to decode bitmap in thread: " + i);
-                ok = false;
-            } else {
-                if (MyDebug.LOG)
-                    Log.d(TAG, "bitmap " + i + ": " + bitmap + " is mutable? " + bitmap.isMutable());
-            }
-            bitmaps.add(bitmap);
-        }
-
-        if (!ok) {
-            if (MyDebug.LOG)
-                Log.d(TAG, "cleanup from failure");
-            for (int i = 0; i < jpeg_images.size(); i++) {
-                if (threads[i].bitmap != null) {
-                    threads[i].bitmap.recycle();
-                    threads[i].bitmap = null;
-                }
-            }
-            bitmaps.clear();
-            System.gc();
-            return null;
+            options_list.add(i == mutable_id ? mutable_options : options);
         }
-
+        long decode_start = save_metrics.startTimer();
+        List<Bitmap> bitmaps = decode_pool.decode(jpeg_images, options_list);
+        save_metrics.stopTimer(SaveMetrics.Stage.DECODE, decode_start);
         return bitmaps;
     }
 
@@ -1253,6 +1771,8 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "saveImageNow called with non-jpeg request");
             // throw runtime exception, as this is a programming error
             throw new RuntimeException();
+        } else if (request.jpeg_buffer != null) {
+            return saveBufferedImageNow(request);
         } else if (request.jpeg_images.size() == 0) {
             if (MyDebug.LOG)
                 Log.d(TAG, "saveImageNow called with zero images");
@@ -1266,13 +1786,13 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "average");
 
             saveBaseImages(request, "_");
-            main_activity.savingImage(true);
+            setSavingImage(true);
 
 			/*List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, 0);
 			if (bitmaps == null) {
 				if (MyDebug.LOG)
 					Log.e(TAG, "failed to load bitmaps");
-				main_activity.savingImage(false);
+				setSavingImage(false);
 				return false;
 			}*/
 			/*Bitmap nr_bitmap = loadBitmap(request.jpeg_images.get(0), true);
@@ -1299,7 +1819,23 @@ public class ImageSaver extends Thread {
 				throw new RuntimeException();
 			}*/
             Bitmap nr_bitmap;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (request.nr_stream != null) {
+                // images were merged as they arrived
+                long time_s = System.currentTimeMillis();
+                // only the time still to wait for the merge holds up saving, so that's what we record
+                long merge_start = save_metrics.startTimer();
+                nr_bitmap = request.nr_stream.getResult();
+                save_metrics.stopTimer(SaveMetrics.Stage.MERGE, merge_start);
+                request.nr_stream = null;
+                if (MyDebug.LOG) {
+                    Log.d(TAG, "*** time waiting for streamed NR merge: " + (System.currentTimeMillis() - time_s));
+                }
+                if (nr_bitmap == null) {
+                    Log.e(TAG, "failed to merge NR images");
+                    setSavingImage(false);
+                    return false;
+                }
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                 try {
                     long time_s = System.currentTimeMillis();
                     // initialise allocation from first two bitmaps
@@ -1348,7 +1884,10 @@ public class ImageSaver extends Thread {
                     int height = bitmap0.getHeight();
                     float avg_factor = 1.0f;
                     this_time_s = System.currentTimeMillis();
+                    applyHDRProcessorSettings(request);
+                    long merge_start = save_metrics.startTimer();
                     HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(bitmap0, bitmap1, avg_factor, request.iso, request.zoom_factor);
+                    save_metrics.stopTimer(SaveMetrics.Stage.MERGE, merge_start);
                     if (bitmaps != null) {
                         bitmaps.set(0, null);
                         bitmaps.set(1, null);
@@ -1356,8 +1895,6 @@ public class ImageSaver extends Thread {
                     if (MyDebug.LOG) {
                         Log.d(TAG, "*** time for processing first two bitmaps: " + (System.currentTimeMillis() - this_time_s));
                     }
-                    Allocation allocation = avg_data.allocation_out;
-
                     for (int i = 2; i < request.jpeg_images.size(); i++) {
                         if (MyDebug.LOG)
                             Log.d(TAG, "processAvg for image: " + i);
@@ -1398,7 +1935,9 @@ public class ImageSaver extends Thread {
                         }
                         avg_factor = (float) i;
                         this_time_s = System.currentTimeMillis();
+                        merge_start = save_metrics.startTimer();
                         hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, avg_factor, request.iso, request.zoom_factor);
+                        save_metrics.stopTimer(SaveMetrics.Stage.MERGE, merge_start);
                         // updateAvg recycles new_bitmap
                         if (bitmaps != null) {
                             bitmaps.set(i, null);
@@ -1409,7 +1948,9 @@ public class ImageSaver extends Thread {
                     }
 
                     this_time_s = System.currentTimeMillis();
-                    nr_bitmap = hdrProcessor.avgBrighten(allocation, width, height, request.iso, request.exposure_time);
+                    long tonemap_start = save_metrics.startTimer();
+                    nr_bitmap = hdrProcessor.avgBrighten(avg_data, width, height, request.iso, request.exposure_time);
+                    save_metrics.stopTimer(SaveMetrics.Stage.TONEMAP, tonemap_start);
                     if (MyDebug.LOG) {
                         Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - this_time_s));
                     }
@@ -1431,7 +1972,7 @@ public class ImageSaver extends Thread {
             if (MyDebug.LOG)
                 Log.d(TAG, "nr_bitmap: " + nr_bitmap + " is mutable? " + nr_bitmap.isMutable());
             System.gc();
-            main_activity.savingImage(false);
+            setSavingImage(false);
 
             if (MyDebug.LOG)
                 Log.d(TAG, "save NR image");
@@ -1465,7 +2006,7 @@ public class ImageSaver extends Thread {
             // note, even if we failed saving some of the expo images, still try to save the HDR image
             if (MyDebug.LOG)
                 Log.d(TAG, "create HDR image");
-            main_activity.savingImage(true);
+            setSavingImage(true);
 
             // see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
             // the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
@@ -1477,7 +2018,7 @@ public class ImageSaver extends Thread {
             if (bitmaps == null) {
                 if (MyDebug.LOG)
                     Log.e(TAG, "failed to load bitmaps");
-                main_activity.savingImage(false);
+                setSavingImage(false);
                 return false;
             }
             if (MyDebug.LOG) {
@@ -1488,7 +2029,10 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
             try {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    applyHDRProcessorSettings(request);
+                    long merge_start = save_metrics.startTimer();
                     hdrProcessor.processHDR(bitmaps, true, null, true, null, hdr_alpha, 4, true, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, HDRProcessor.DROTonemappingAlgorithm.DROALGORITHM_GAINGAMMA); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+                    save_metrics.stopTimer(SaveMetrics.Stage.MERGE, merge_start);
                 } else {
                     Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
                     throw new RuntimeException();
@@ -1502,7 +2046,7 @@ public class ImageSaver extends Thread {
                     Log.e(TAG, "UNEQUAL_SIZES");
                     bitmaps.clear();
                     System.gc();
-                    main_activity.savingImage(false);
+                    setSavingImage(false);
                     return false;
                 } else {
                     // throw RuntimeException, as we shouldn't ever get the error INVALID_N_IMAGES, if we do it's a programming error
@@ -1519,7 +2063,7 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "hdr_bitmap: " + hdr_bitmap + " is mutable? " + hdr_bitmap.isMutable());
             bitmaps.clear();
             System.gc();
-            main_activity.savingImage(false);
+            setSavingImage(false);
 
             if (MyDebug.LOG)
                 Log.d(TAG, "save HDR image");
@@ -1535,6 +2079,41 @@ public class ImageSaver extends Thread {
             }
             hdr_bitmap.recycle();
             System.gc();
+        } else if (request.process_type == Request.ProcessType.PANORAMA) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "panorama");
+            int n_frames = request.panorama_stream != null ? request.panorama_stream.getNFrames() : request.jpeg_images.size();
+            if (request.gyro_rotation_matrix == null || request.gyro_rotation_matrix.size() != n_frames) {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "saveImageNow expected a gyro matrix for each panorama image");
+                // throw runtime exception, as this is a programming error
+                throw new RuntimeException();
+            }
+
+            saveBaseImages(request, "_");
+            setSavingImage(true);
+
+            long time_s = System.currentTimeMillis();
+            long merge_start = save_metrics.startTimer();
+            Bitmap panorama = createPanorama(request);
+            save_metrics.stopTimer(SaveMetrics.Stage.MERGE, merge_start);
+            setSavingImage(false);
+            if (panorama == null) {
+                main_activity.getPreview().showToast(null, R.string.failed_to_process_panorama);
+                return false;
+            }
+            if (MyDebug.LOG) {
+                Log.d(TAG, "panorama performance: time after creating panorama: " + (System.currentTimeMillis() - time_s));
+            }
+
+            if (MyDebug.LOG)
+                Log.d(TAG, "save panorama image");
+            // the frames were rotated for their exif orientation before stitching
+            success = saveSingleImageNow(request, request.jpeg_images.get(0), panorama, "_PANO", true, true, true, true);
+            if (MyDebug.LOG && !success)
+                Log.e(TAG, "saveSingleImageNow failed for panorama image");
+            panorama.recycle();
+            System.gc();
         } else {
             // see note above how we used to use "_EXP" for the suffix for multiple images
             //String suffix = "_EXP";
@@ -1545,6 +2124,70 @@ public class ImageSaver extends Thread {
         return success;
     }
 
+    /**
+     * Stitches the images of a panorama request. If the images were already stitched as they
+     * arrived, this waits for the PanoramaStreamStitcher to finish. Otherwise the images are decoded
+     * and passed to the PanoramaProcessor one at a time, so only a single decoded image is held at
+     * once in addition to the processor's state.
+     *
+     * @return The panorama, or null if it failed.
+     */
+    private Bitmap createPanorama(Request request) {
+        if (MyDebug.LOG)
+            Log.d(TAG, "createPanorama");
+        if (request.panorama_stream != null) {
+            long time_s = System.currentTimeMillis();
+            Bitmap panorama = request.panorama_stream.getResult();
+            request.panorama_stream = null;
+            if (MyDebug.LOG) {
+                Log.d(TAG, "panorama performance: time waiting for streamed panorama: " + (System.currentTimeMillis() - time_s));
+            }
+            return panorama;
+        }
+        PanoramaProcessor panoramaProcessor = null;
+        for (int i = 0; i < request.jpeg_images.size(); i++) {
+            long time_s = System.currentTimeMillis();
+            // rotate, as panorama is taken in portrait
+            Bitmap bitmap = loadBitmapWithRotation(request.jpeg_images.get(i), false);
+            if (bitmap == null) {
+                Log.e(TAG, "failed to decode panorama image " + i);
+                return null;
+            }
+            if (panoramaProcessor == null) {
+                panoramaProcessor = new PanoramaProcessor(bitmap.getWidth(), bitmap.getHeight(), request.camera_view_angle_x, request.camera_view_angle_y, request.panorama_crop);
+            } else if (bitmap.getWidth() != panoramaProcessor.getFrameWidth() || bitmap.getHeight() != panoramaProcessor.getFrameHeight()) {
+                Log.e(TAG, "panorama image " + i + " has a different size");
+                bitmap.recycle();
+                return null;
+            }
+            panoramaProcessor.addFrame(new HDRProcessor.BitmapImage(bitmap), request.gyro_rotation_matrix.get(i));
+            bitmap.recycle();
+            if (MyDebug.LOG)
+                Log.d(TAG, "panorama performance: time for image " + i + ": " + (System.currentTimeMillis() - time_s));
+        }
+        panoramaProcessor.finish();
+
+        Bitmap panorama = Bitmap.createBitmap(panoramaProcessor.getWidth(), panoramaProcessor.getHeight(), Bitmap.Config.ARGB_8888);
+        panoramaProcessor.writeResult(new HDRProcessor.BitmapImage(panorama));
+        return panorama;
+    }
+
+    /**
+     * Saves the JPEG held in request.jpeg_buffer, which is then returned to the buffer pool.
+     */
+    private boolean saveBufferedImageNow(Request request) {
+        if (MyDebug.LOG)
+            Log.d(TAG, "saveBufferedImageNow");
+        try {
+            // same filename suffix and sharing as saveImages() with a single image
+            String filename_suffix = request.force_suffix ? "_" + request.suffix_offset : "";
+            return saveSingleImageNow(request, null, null, filename_suffix, true, true, false, false);
+        } finally {
+            jpeg_buffer_pool.release(request.jpeg_buffer);
+            request.jpeg_buffer = null;
+        }
+    }
+
     /**
      * Saves all the JPEG images in request.jpeg_images.
      *
@@ -1672,56 +2315,71 @@ public class ImageSaver extends Thread {
     }
 
     /**
-     * Performs the auto-stabilise algorithm on the image.
+     * Applies the geometric post-processing - rotating for the Exif orientation, auto-stabilise
+     * (rotating, scaling and cropping) and mirroring - as a single transform. The transforms are
+     * combined into one matrix, and the source bitmap drawn through it into a single new mutable
+     * bitmap, rather than creating a new full size bitmap for each step. Photo stamps can then be
+     * drawn straight onto the result.
      *
-     * @param data            The jpeg data.
-     * @param bitmap          Optional argument - the bitmap if already unpacked from the jpeg data.
-     * @param level_angle     The angle in degrees to rotate the image.
-     * @param is_front_facing Whether the camera is front-facing.
-     * @return A bitmap representing the auto-stabilised jpeg.
+     * @param data                   The jpeg data.
+     * @param bitmap                 Optional argument - the bitmap if already unpacked from the jpeg data.
+     * @param apply_exif_orientation Whether to rotate for the Exif orientation tag in data.
+     * @return A mutable bitmap with the transforms applied, or null if the jpeg data couldn't be decoded.
      */
-    private Bitmap autoStabilise(byte[] data, Bitmap bitmap, double level_angle, boolean is_front_facing) {
+    private Bitmap transformBitmap(final Request request, byte[] data, Bitmap bitmap, boolean apply_exif_orientation) {
         if (MyDebug.LOG) {
-            Log.d(TAG, "autoStabilise");
-            Log.d(TAG, "level_angle: " + level_angle);
-            Log.d(TAG, "is_front_facing: " + is_front_facing);
-        }
-        while (level_angle < -90)
-            level_angle += 180;
-        while (level_angle > 90)
-            level_angle -= 180;
-        if (MyDebug.LOG)
-            Log.d(TAG, "auto stabilising... angle: " + level_angle);
-        if (bitmap == null) {
-            if (MyDebug.LOG)
-                Log.d(TAG, "need to decode bitmap to auto-stabilise");
-            // bitmap doesn't need to be mutable here, as this won't be the final bitmap returned from the auto-stabilise code
-            bitmap = loadBitmapWithRotation(data, false);
+            Log.d(TAG, "transformBitmap");
+            Log.d(TAG, "do_auto_stabilise: " + request.do_auto_stabilise);
+            Log.d(TAG, "mirror: " + request.mirror);
+        }
+        int exif_rotation = apply_exif_orientation ? getExifRotation(new ByteArrayInputStream(data)) : 0;
+        if (exif_rotation == 0 && !request.do_auto_stabilise && !request.mirror) {
             if (bitmap == null) {
-                main_activity.getPreview().showToast(null, R.string.failed_to_auto_stabilise);
-                System.gc();
+                // no transform needed, so decode straight to the (mutable) bitmap we return
+                bitmap = loadBitmap(data, true, 1);
             }
+            return bitmap;
         }
+        int src_width, src_height;
         if (bitmap != null) {
-            int width = bitmap.getWidth();
-            int height = bitmap.getHeight();
-            if (MyDebug.LOG) {
-                Log.d(TAG, "level_angle: " + level_angle);
-                Log.d(TAG, "decoded bitmap size " + width + ", " + height);
-                Log.d(TAG, "bitmap size: " + width * height * 4);
-            }
-    			/*for(int y=0;y<height;y++) {
-    				for(int x=0;x<width;x++) {
-    					int col = bitmap.getPixel(x, y);
-    					col = col & 0xffff0000; // mask out red component
-    					bitmap.setPixel(x, y, col);
-    				}
-    			}*/
-            Matrix matrix = new Matrix();
-            double level_angle_rad_abs = Math.abs(Math.toRadians(level_angle));
-            int w1 = width, h1 = height;
-            double w0 = (w1 * Math.cos(level_angle_rad_abs) + h1 * Math.sin(level_angle_rad_abs));
-            double h0 = (w1 * Math.sin(level_angle_rad_abs) + h1 * Math.cos(level_angle_rad_abs));
+            src_width = bitmap.getWidth();
+            src_height = bitmap.getHeight();
+        } else {
+            // read the size without decoding, so that we can work out which region of the jpeg
+            // is needed before decoding it
+            int[] size = DecodePool.decodeSize(data);
+            if (size == null) {
+                Log.e(TAG, "failed to read jpeg size");
+                return null;
+            }
+            src_width = size[0];
+            src_height = size[1];
+        }
+
+        Matrix matrix = new Matrix();
+        int width = src_width;
+        int height = src_height;
+        if (exif_rotation != 0) {
+            matrix.setRotate(exif_rotation);
+            if (exif_rotation != 180) {
+                width = src_height;
+                height = src_width;
+            }
+        }
+        double level_angle = request.level_angle;
+        double level_angle_rad_abs = 0.0;
+        double w0 = width, h0 = height;
+        int w1 = width, h1 = height;
+        if (request.do_auto_stabilise) {
+            while (level_angle < -90)
+                level_angle += 180;
+            while (level_angle > 90)
+                level_angle -= 180;
+            if (MyDebug.LOG)
+                Log.d(TAG, "auto stabilising... angle: " + level_angle);
+            level_angle_rad_abs = Math.abs(Math.toRadians(level_angle));
+            w0 = (w1 * Math.cos(level_angle_rad_abs) + h1 * Math.sin(level_angle_rad_abs));
+            h0 = (w1 * Math.sin(level_angle_rad_abs) + h1 * Math.cos(level_angle_rad_abs));
             // apply a scale so that the overall image size isn't increased
             float orig_size = w1 * h1;
             float rotated_size = (float) (w0 * h0);
@@ -1747,89 +2405,158 @@ public class ImageSaver extends Thread {
             h0 *= scale;
             w1 *= scale;
             h1 *= scale;
-            if (MyDebug.LOG) {
-                Log.d(TAG, "after scaling: w0 = " + w0 + " , h0 = " + h0);
-                Log.d(TAG, "after scaling: w1 = " + w1 + " , h1 = " + h1);
-            }
-            if (is_front_facing) {
+            if (request.is_front_facing) {
                 matrix.postRotate((float) -level_angle);
             } else {
                 matrix.postRotate((float) level_angle);
             }
-            Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
-            // careful, as new_bitmap is sometimes not a copy!
-            if (new_bitmap != bitmap) {
-                bitmap.recycle();
-                bitmap = new_bitmap;
-            }
-            System.gc();
-            if (MyDebug.LOG) {
-                Log.d(TAG, "rotated and scaled bitmap size " + bitmap.getWidth() + ", " + bitmap.getHeight());
-                Log.d(TAG, "rotated and scaled bitmap size: " + bitmap.getWidth() * bitmap.getHeight() * 4);
-            }
-
+        }
+        // move the transformed image to the origin, as Bitmap.createBitmap() would
+        RectF bounds = new RectF(0, 0, src_width, src_height);
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        int new_width = Math.round(bounds.width());
+        int new_height = Math.round(bounds.height());
+        if (request.do_auto_stabilise) {
             int[] crop = new int[2];
-            if (autoStabiliseCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, bitmap.getWidth(), bitmap.getHeight())) {
+            if (autoStabiliseCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, new_width, new_height)) {
                 int w2 = crop[0];
                 int h2 = crop[1];
-                int x0 = (bitmap.getWidth() - w2) / 2;
-                int y0 = (bitmap.getHeight() - h2) / 2;
+                int x0 = (new_width - w2) / 2;
+                int y0 = (new_height - h2) / 2;
                 if (MyDebug.LOG) {
                     Log.d(TAG, "x0 = " + x0 + " , y0 = " + y0);
                 }
-                // We need the bitmap to be mutable for photostamp to work - contrary to the documentation for Bitmap.createBitmap
-                // (which says it returns an immutable bitmap), we seem to always get a mutable bitmap anyway. A mutable bitmap
-                // would result in an exception "java.lang.IllegalStateException: Immutable bitmap passed to Canvas constructor"
-                // from the Canvas(bitmap) constructor call in the photostamp code, and I've yet to see this from Google Play.
-                new_bitmap = Bitmap.createBitmap(bitmap, x0, y0, w2, h2);
-                if (new_bitmap != bitmap) {
-                    bitmap.recycle();
-                    bitmap = new_bitmap;
+                matrix.postTranslate(-x0, -y0);
+                new_width = w2;
+                new_height = h2;
+            }
+        }
+        if (request.mirror) {
+            matrix.postScale(-1.0f, 1.0f);
+            matrix.postTranslate(new_width, 0);
+        }
+        if (bitmap == null) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "need to decode bitmap to transform");
+            // bitmap doesn't need to be mutable here, as this won't be the final bitmap returned
+            Rect region = getSourceRegion(matrix, new_width, new_height, src_width, src_height);
+            if (region != null) {
+                // e.g., auto-stabilise crops the rotated image, so only decode the part of the
+                // jpeg that ends up in the output
+                long decode_start = save_metrics.startTimer();
+                bitmap = DecodePool.decodeRegion(data, region, new BitmapFactory.Options());
+                save_metrics.stopTimer(SaveMetrics.Stage.DECODE, decode_start);
+                if (bitmap != null) {
+                    matrix.preTranslate(region.left, region.top);
+                }
+            }
+            if (bitmap == null) {
+                bitmap = loadBitmap(data, false, 1);
+                if (bitmap == null) {
+                    return null;
                 }
-                if (MyDebug.LOG)
-                    Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
-                System.gc();
             }
         }
-        return bitmap;
+        if (MyDebug.LOG) {
+            Log.d(TAG, "decoded bitmap size " + bitmap.getWidth() + ", " + bitmap.getHeight());
+            Log.d(TAG, "transformed bitmap size " + new_width + ", " + new_height);
+            Log.d(TAG, "transformed bitmap size: " + new_width * new_height * 4);
+        }
+
+        Bitmap new_bitmap = Bitmap.createBitmap(new_width, new_height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(new_bitmap);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        if (!matrix.rectStaysRect()) {
+            // as Bitmap.createBitmap() does for rotations
+            paint.setAntiAlias(true);
+        }
+        canvas.drawBitmap(bitmap, matrix, paint);
+        bitmap.recycle();
+        System.gc();
+        return new_bitmap;
+    }
+
+    /**
+     * Returns the region of the source image that the matrix maps into the output image of size
+     * new_width x new_height, or null if that's (almost) the whole source image, so there's no
+     * benefit from decoding a region.
+     */
+    private static Rect getSourceRegion(Matrix matrix, int new_width, int new_height, int src_width, int src_height) {
+        Matrix inverse = new Matrix();
+        if (!matrix.invert(inverse)) {
+            return null;
+        }
+        RectF src_bounds = new RectF(0, 0, new_width, new_height);
+        inverse.mapRect(src_bounds);
+        // allow a margin for the bitmap filtering
+        final int margin = 2;
+        Rect region = new Rect((int) Math.floor(src_bounds.left) - margin, (int) Math.floor(src_bounds.top) - margin,
+                (int) Math.ceil(src_bounds.right) + margin, (int) Math.ceil(src_bounds.bottom) + margin);
+        if (!region.intersect(0, 0, src_width, src_height)) {
+            return null;
+        }
+        if (MyDebug.LOG)
+            Log.d(TAG, "source region: " + region);
+        if ((long) region.width() * region.height() > 0.9 * (long) src_width * src_height) {
+            return null;
+        }
+        return region;
     }
 
     /**
-     * Mirrors the image.
+     * Mirrors the jpeg data without decoding it, also rotating it to account for the Exif
+     * orientation, see JpegTransform. The orientation tag of the result is set to normal.
      *
-     * @param data   The jpeg data.
-     * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
-     * @return A bitmap representing the mirrored jpeg.
+     * @param data The jpeg data.
+     * @return The transformed jpeg data, or null if this isn't possible for this jpeg (the caller
+     * should then mirror the decoded bitmap instead).
      */
-    private Bitmap mirrorImage(byte[] data, Bitmap bitmap) {
+    private byte[] mirrorJpegLossless(byte[] data, boolean ignore_exif_orientation) {
         if (MyDebug.LOG) {
-            Log.d(TAG, "mirrorImage");
+            Log.d(TAG, "mirrorJpegLossless");
         }
-        if (bitmap == null) {
-            if (MyDebug.LOG)
-                Log.d(TAG, "need to decode bitmap to mirror");
-            // bitmap doesn't need to be mutable here, as this won't be the final bitmap returned from the mirroring code
-            bitmap = loadBitmapWithRotation(data, false);
-            if (bitmap == null) {
-                // don't bother warning to the user - we simply won't mirror the image
-                System.gc();
-            }
+        int orientation = JpegExif.orientation_normal_c;
+        if (!ignore_exif_orientation) {
+            JpegExif exif = JpegExif.parse(data);
+            if (exif != null && exif.getOrientation() != 0)
+                orientation = exif.getOrientation();
         }
-        if (bitmap != null) {
-            Matrix matrix = new Matrix();
-            matrix.preScale(-1.0f, 1.0f);
-            int width = bitmap.getWidth();
-            int height = bitmap.getHeight();
-            Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
-            // careful, as new_bitmap is sometimes not a copy!
-            if (new_bitmap != bitmap) {
-                bitmap.recycle();
-                bitmap = new_bitmap;
-            }
-            if (MyDebug.LOG)
-                Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
+        if (MyDebug.LOG)
+            Log.d(TAG, "exif orientation: " + orientation);
+        byte[] new_data = JpegTransform.transform(data, JpegTransform.Transform.fromExifOrientation(orientation, true));
+        if (new_data == null) {
+            return null;
+        }
+        JpegExif exif = JpegExif.parse(new_data);
+        if (exif == null) {
+            // no exif data to update
+            return new_data;
+        }
+        if (exif.getOrientation() == JpegExif.orientation_normal_c && exif.getImageSize() == null && !exif.hasThumbnail()) {
+            return new_data;
+        }
+        exif.setOrientation(JpegExif.orientation_normal_c);
+        if (exif.getImageSize() != null) {
+            int[] size = exif.getImageSize();
+            boolean transposed = orientation >= 5 && orientation <= 8;
+            exif.setImageSize(transposed ? size[1] : size[0], transposed ? size[0] : size[1]);
+        }
+        // the thumbnail no longer matches the image
+        exif.removeThumbnail();
+        byte[] segment = exif.createSegment();
+        if (segment == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(new_data.length + segment.length);
+            exif.writeJpeg(outputStream, segment, new_data);
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write exif for transformed jpeg");
+            e.printStackTrace();
+            return null;
         }
-        return bitmap;
     }
 
     /**
@@ -1844,7 +2571,6 @@ public class ImageSaver extends Thread {
         if (MyDebug.LOG) {
             Log.d(TAG, "stampImage");
         }
-        final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
         boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
         boolean text_stamp = request.preference_textstamp.length() > 0;
         if (dategeo_stamp || text_stamp) {
@@ -1877,7 +2603,6 @@ public class ImageSaver extends Thread {
                     Log.d(TAG, "bitmap size: " + width * height * 4);
                 }
                 Canvas canvas = new Canvas(bitmap);
-                p.setColor(Color.WHITE);
                 // we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
                 // instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
                 int smallest_size = Math.min(width, height);
@@ -1888,12 +2613,10 @@ public class ImageSaver extends Thread {
                     Log.d(TAG, "font_size: " + font_size);
                     Log.d(TAG, "font_size_pixel: " + font_size_pixel);
                 }
-                p.setTextSize(font_size_pixel);
                 int offset_x = (int) (8 * scale + 0.5f); // convert pt to pixels
                 int offset_y = (int) (8 * scale + 0.5f); // convert pt to pixels
                 int diff_y = (int) ((font_size + 4) * scale + 0.5f); // convert pt to pixels
                 int ypos = height - offset_y;
-                p.setTextAlign(Align.RIGHT);
                 MyApplicationInterface.Shadow draw_shadowed = MyApplicationInterface.Shadow.SHADOW_NONE;
                 switch (pref_style) {
                     case "preference_stamp_style_shadowed":
@@ -1927,55 +2650,44 @@ public class ImageSaver extends Thread {
                                 datetime_stamp += " ";
                             datetime_stamp += time_stamp;
                         }
-                        applicationInterface.drawTextWithBackground(canvas, p, datetime_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                        stamp_renderer.drawText(canvas, datetime_stamp, font_size_pixel, color, draw_shadowed, width - offset_x, ypos);
                     }
                     ypos -= diff_y;
                     String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, request.store_location, request.location, request.store_geo_direction, request.geo_direction);
                     if (gps_stamp.length() > 0) {
                         // don't log gps_stamp, in case of privacy!
 
-                        Address address = null;
-                        if (request.store_location && !request.preference_stamp_geo_address.equals("preference_stamp_geo_address_no")) {
+                        List<String> address_lines = null;
+                        if (request.store_location && request.location != null && !request.preference_stamp_geo_address.equals("preference_stamp_geo_address_no")) {
                             boolean block_geocoder;
                             synchronized (this) {
                                 block_geocoder = app_is_paused;
                             }
                             // try to find an address
                             // n.b., if we update the class being used, consider whether the info on Geocoder in preference_stamp_geo_address_summary needs updating
+                            ReverseGeocoder reverseGeocoder = main_activity.getApplicationInterface().getReverseGeocoder();
                             if (block_geocoder) {
                                 // seems safer to not try to initiate potential network connections (via geocoder) if Open Camera
-                                // has paused and we're still saving images
+                                // has paused and we're still saving images - but we can still use a cached address
                                 if (MyDebug.LOG)
                                     Log.d(TAG, "don't call geocoder for photostamp as app is paused");
-                            } else if (Geocoder.isPresent()) {
-                                if (MyDebug.LOG)
-                                    Log.d(TAG, "geocoder is present");
-                                Geocoder geocoder = new Geocoder(main_activity, Locale.getDefault());
-                                try {
-                                    List<Address> addresses = geocoder.getFromLocation(request.location.getLatitude(), request.location.getLongitude(), 1);
-                                    if (addresses != null && addresses.size() > 0) {
-                                        address = addresses.get(0);
-                                        // don't log address, in case of privacy!
-                                        if (MyDebug.LOG) {
-                                            Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
-                                        }
-                                    }
-                                } catch (Exception e) {
-                                    Log.e(TAG, "failed to read from geocoder");
-                                    e.printStackTrace();
-                                }
+                                address_lines = reverseGeocoder.getCachedAddressLines(request.location);
                             } else {
-                                if (MyDebug.LOG)
-                                    Log.d(TAG, "geocoder not present");
+                                // normally cached, as addresses are prefetched when the location changes
+                                address_lines = reverseGeocoder.getAddressLines(request.location);
+                            }
+                            if (address_lines != null && address_lines.size() == 0) {
+                                // no address for this location
+                                address_lines = null;
                             }
                         }
 
-                        if (address == null || request.preference_stamp_geo_address.equals("preference_stamp_geo_address_both")) {
+                        if (address_lines == null || request.preference_stamp_geo_address.equals("preference_stamp_geo_address_both")) {
                             if (MyDebug.LOG)
                                 Log.d(TAG, "display gps coords");
                             // want GPS coords (either in addition to the address, or we don't have an address)
                             // we'll also enter here if store_location is false, but we have geo direction to display
-                            applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                            stamp_renderer.drawText(canvas, gps_stamp, font_size_pixel, color, draw_shadowed, width - offset_x, ypos);
                             ypos -= diff_y;
                         } else if (request.store_geo_direction) {
                             if (MyDebug.LOG)
@@ -1984,16 +2696,16 @@ public class ImageSaver extends Thread {
                             gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, false, null, request.store_geo_direction, request.geo_direction);
                             if (gps_stamp.length() > 0) {
                                 // don't log gps_stamp, in case of privacy!
-                                applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                                stamp_renderer.drawText(canvas, gps_stamp, font_size_pixel, color, draw_shadowed, width - offset_x, ypos);
                                 ypos -= diff_y;
                             }
                         }
 
-                        if (address != null) {
-                            for (int i = 0; i <= address.getMaxAddressLineIndex(); i++) {
+                        if (address_lines != null) {
+                            for (int i = address_lines.size() - 1; i >= 0; i--) {
                                 // write in reverse order
-                                String addressLine = address.getAddressLine(address.getMaxAddressLineIndex() - i);
-                                applicationInterface.drawTextWithBackground(canvas, p, addressLine, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                                String addressLine = address_lines.get(i);
+                                stamp_renderer.drawText(canvas, addressLine, font_size_pixel, color, draw_shadowed, width - offset_x, ypos);
                                 ypos -= diff_y;
                             }
                         }
@@ -2002,7 +2714,7 @@ public class ImageSaver extends Thread {
                 if (text_stamp) {
                     if (MyDebug.LOG)
                         Log.d(TAG, "stamp text");
-                    applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+                    stamp_renderer.drawText(canvas, request.preference_textstamp, font_size_pixel, color, draw_shadowed, width - offset_x, ypos);
                     //noinspection UnusedAssignment
                     ypos -= diff_y;
                 }
@@ -2012,15 +2724,19 @@ public class ImageSaver extends Thread {
     }
 
     private static class PostProcessBitmapResult {
+        final byte[] data;
         final Bitmap bitmap;
 
-        PostProcessBitmapResult(Bitmap bitmap) {
+        PostProcessBitmapResult(byte[] data, Bitmap bitmap) {
+            this.data = data;
             this.bitmap = bitmap;
         }
     }
 
     /**
      * Performs post-processing on the data, or bitmap if non-null, for saveSingleImageNow.
+     * If the only processing needed is mirroring, this is done losslessly on the jpeg data where
+     * possible, in which case the result has new data and no bitmap.
      */
     private PostProcessBitmapResult postProcessBitmap(final Request request, byte[] data, Bitmap bitmap, boolean ignore_exif_orientation) throws IOException {
         if (MyDebug.LOG)
@@ -2029,41 +2745,45 @@ public class ImageSaver extends Thread {
 
         boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
         boolean text_stamp = request.preference_textstamp.length() > 0;
+        if (bitmap == null && request.mirror && request.image_format == Request.ImageFormat.STD && !request.do_auto_stabilise && !dategeo_stamp && !text_stamp) {
+            byte[] new_data = mirrorJpegLossless(data, ignore_exif_orientation);
+            if (MyDebug.LOG) {
+                Log.d(TAG, "Save single image performance: time after lossless mirror: " + (System.currentTimeMillis() - time_s));
+            }
+            if (new_data != null) {
+                return new PostProcessBitmapResult(new_data, null);
+            }
+            if (MyDebug.LOG)
+                Log.d(TAG, "can't mirror losslessly, decode bitmap instead");
+        }
         if (bitmap != null || request.image_format != Request.ImageFormat.STD || request.do_auto_stabilise || request.mirror || dategeo_stamp || text_stamp) {
             // either we have a bitmap, or will need to decode the bitmap to do post-processing
-            if (!ignore_exif_orientation) {
-                if (bitmap != null) {
-                    // rotate the bitmap if necessary for exif tags
-                    if (MyDebug.LOG)
-                        Log.d(TAG, "rotate pre-existing bitmap for exif tags?");
-                    bitmap = rotateForExif(bitmap, data);
-                }
+            // if we were given a bitmap, it may have already been rotated for the exif tags
+            boolean apply_exif_orientation = bitmap == null || !ignore_exif_orientation;
+            bitmap = transformBitmap(request, data, bitmap, apply_exif_orientation);
+            if (MyDebug.LOG) {
+                Log.d(TAG, "Save single image performance: time after transform: " + (System.currentTimeMillis() - time_s));
             }
-        }
-        if (request.do_auto_stabilise) {
-            bitmap = autoStabilise(data, bitmap, request.level_angle, request.is_front_facing);
-        }
-        if (MyDebug.LOG) {
-            Log.d(TAG, "Save single image performance: time after auto-stabilise: " + (System.currentTimeMillis() - time_s));
-        }
-        if (request.mirror) {
-            bitmap = mirrorImage(data, bitmap);
-        }
-        if (request.image_format != Request.ImageFormat.STD && bitmap == null) {
-            if (MyDebug.LOG)
-                Log.d(TAG, "need to decode bitmap to convert file format");
-            bitmap = loadBitmapWithRotation(data, true);
             if (bitmap == null) {
-                // if we can't load bitmap for converting file formats, don't want to continue
                 System.gc();
-                throw new IOException();
+                if (request.image_format != Request.ImageFormat.STD) {
+                    // if we can't load bitmap for converting file formats, don't want to continue
+                    throw new IOException();
+                }
+                if (request.do_auto_stabilise)
+                    main_activity.getPreview().showToast(null, R.string.failed_to_auto_stabilise);
+                if (dategeo_stamp || text_stamp)
+                    main_activity.getPreview().showToast(null, R.string.failed_to_stamp);
+                // otherwise we simply won't mirror the image
+            } else {
+                // the stamp is drawn straight onto the transformed bitmap
+                bitmap = stampImage(request, data, bitmap);
+                if (MyDebug.LOG) {
+                    Log.d(TAG, "Save single image performance: time after photostamp: " + (System.currentTimeMillis() - time_s));
+                }
             }
         }
-        bitmap = stampImage(request, data, bitmap);
-        if (MyDebug.LOG) {
-            Log.d(TAG, "Save single image performance: time after photostamp: " + (System.currentTimeMillis() - time_s));
-        }
-        return new PostProcessBitmapResult(bitmap);
+        return new PostProcessBitmapResult(data, bitmap);
     }
 
     /**
@@ -2091,7 +2811,7 @@ public class ImageSaver extends Thread {
                 Log.d(TAG, "saveImageNow called with non-jpeg request");
             // throw runtime exception, as this is a programming error
             throw new RuntimeException();
-        } else if (data == null) {
+        } else if (data == null && request.jpeg_buffer == null) {
             if (MyDebug.LOG)
                 Log.d(TAG, "saveSingleImageNow called with no data");
             // throw runtime exception, as this is a programming error
@@ -2121,7 +2841,7 @@ public class ImageSaver extends Thread {
         if (MyDebug.LOG)
             Log.d(TAG, "extension: " + extension);
 
-        main_activity.savingImage(true);
+        setSavingImage(true);
 
         // If using SAF or image_capture_intent is true, or using scoped storage, only saveUri is non-null
         // Otherwise, only picFile is non-null
@@ -2131,7 +2851,10 @@ public class ImageSaver extends Thread {
         ContentValues contentValues = null; // used if using scoped storage
         try {
             if (!raw_only) {
+                long post_process_start = save_metrics.startTimer();
                 PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap, ignore_exif_orientation);
+                save_metrics.stopTimer(SaveMetrics.Stage.POST_PROCESS, post_process_start);
+                data = postProcessBitmapResult.data;
                 bitmap = postProcessBitmapResult.bitmap;
             }
 
@@ -2192,6 +2915,7 @@ public class ImageSaver extends Thread {
                     main_activity.finish();
                 }
             } else if (storageUtils.isUsingSAF()) {
+                awaitNamingTurn();
                 saveUri = storageUtils.createOutputMediaFileSAF(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, extension, request.current_date);
             } else if (MainActivity.useScopedStorage()) {
                 if (MyDebug.LOG)
@@ -2201,6 +2925,7 @@ public class ImageSaver extends Thread {
                         MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY) :
                         MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
                 contentValues = new ContentValues();
+                awaitNamingTurn();
                 String picName = storageUtils.createMediaFilename(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, 0, "." + extension, request.current_date);
                 if (MyDebug.LOG)
                     Log.d(TAG, "picName: " + picName);
@@ -2224,20 +2949,42 @@ public class ImageSaver extends Thread {
                     throw new IOException();
                 }
             } else {
-                picFile = storageUtils.createOutputMediaFile(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, extension, request.current_date);
+                awaitNamingTurn();
+                synchronized (filename_lock) {
+                    picFile = storageUtils.createOutputMediaFile(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, extension, request.current_date);
+                    // create the file now, so that a request being saved on another thread can't pick the same filename
+                    //noinspection ResultOfMethodCallIgnored
+                    picFile.createNewFile();
+                }
                 if (MyDebug.LOG)
                     Log.d(TAG, "save to: " + picFile.getAbsolutePath());
             }
+            releaseNamingTurn();
 
             if (MyDebug.LOG)
                 Log.d(TAG, "saveUri: " + saveUri);
 
             if (picFile != null || saveUri != null) {
+                // for JPEGs, the Exif tags are written along with the image where possible, rather than
+                // by reopening the file afterwards, see createExifSegment()
+                JpegExif exif = null;
+                byte[] exif_segment = null;
+                if (request.image_format == Request.ImageFormat.STD && (bitmap != null || needsExifUpdate(request))) {
+                    long exif_start = save_metrics.startTimer();
+                    exif = data != null ? JpegExif.parse(data) : JpegExif.parse(request.jpeg_buffer);
+                    if (exif != null)
+                        exif_segment = createExifSegment(request, exif, bitmap);
+                    save_metrics.stopTimer(SaveMetrics.Stage.EXIF, exif_start);
+                    if (MyDebug.LOG)
+                        Log.d(TAG, "write exif with image: " + (exif_segment != null));
+                }
+
                 OutputStream outputStream;
                 if (picFile != null)
                     outputStream = new FileOutputStream(picFile);
                 else
                     outputStream = main_activity.getContentResolver().openOutputStream(saveUri);
+                long write_start = save_metrics.startTimer();
                 try {
                     if (bitmap != null) {
                         if (MyDebug.LOG)
@@ -2254,13 +3001,26 @@ public class ImageSaver extends Thread {
                                 compress_format = Bitmap.CompressFormat.JPEG;
                                 break;
                         }
-                        bitmap.compress(compress_format, request.image_quality, outputStream);
-                    } else {
+                        if (exif_segment != null)
+                            bitmap.compress(compress_format, request.image_quality, JpegExif.createOutputStream(outputStream, exif_segment));
+                        else
+                            bitmap.compress(compress_format, request.image_quality, outputStream);
+                    } else if (exif_segment != null) {
+                        if (data != null)
+                            exif.writeJpeg(outputStream, exif_segment, data);
+                        else
+                            exif.writeJpeg(outputStream, exif_segment, request.jpeg_buffer);
+                    } else if (data != null) {
                         outputStream.write(data);
+                    } else {
+                        // written straight from the direct buffer, through the file's channel where possible
+                        JpegBufferPool.write(request.jpeg_buffer, outputStream);
                     }
                 } finally {
                     outputStream.close();
                 }
+                // compressing a bitmap writes it out as it goes, so that's all counted as compressing
+                save_metrics.stopTimer(bitmap != null ? SaveMetrics.Stage.COMPRESS : SaveMetrics.Stage.WRITE, write_start);
                 if (MyDebug.LOG)
                     Log.d(TAG, "saveImageNow saved photo");
                 if (MyDebug.LOG) {
@@ -2271,8 +3031,9 @@ public class ImageSaver extends Thread {
                     success = true;
                 }
 
-                if (request.image_format == Request.ImageFormat.STD) {
-                    // handle transferring/setting Exif tags (JPEG format only)
+                if (request.image_format == Request.ImageFormat.STD && exif_segment == null) {
+                    // handle transferring/setting Exif tags (JPEG format only), if not already written with the image
+                    long exif_start = save_metrics.startTimer();
                     if (bitmap != null) {
                         // need to update EXIF data! (only supported for JPEG image formats)
                         if (MyDebug.LOG)
@@ -2304,6 +3065,7 @@ public class ImageSaver extends Thread {
                             Log.d(TAG, "Save single image performance: time after updateExif: " + (System.currentTimeMillis() - time_s));
                         }
                     }
+                    save_metrics.stopTimer(SaveMetrics.Stage.EXIF, exif_start);
                 }
 
                 if (picFile != null && saveUri == null) {
@@ -2327,22 +3089,21 @@ public class ImageSaver extends Thread {
                     success = true;
 
                     if (use_media_store) {
+                        // clear IS_PENDING straight away rather than batching it, as the photo would
+                        // be lost if we were killed before a batch was applied
                         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                             contentValues.clear();
                             contentValues.put(MediaStore.Images.Media.IS_PENDING, 0);
                             main_activity.getContentResolver().update(saveUri, contentValues, null, null);
                         }
 
-                        // no need to broadcast when using mediastore method
+                        // no need to broadcast when using mediastore method, but the photo is
+                        // announced and saved as the last media scanned (if it's the most recent
+                        // of its batch)
                         if (!request.image_capture_intent) {
                             if (MyDebug.LOG)
                                 Log.d(TAG, "announce mediastore uri");
-                            // in theory this is pointless, as announceUri no longer does anything on Android 7+,
-                            // and mediastore method is only used on Android 10+, but keep this just in case
-                            // announceUri does something in future
-                            storageUtils.announceUri(saveUri, true, false);
-                            // we also want to save the uri - we can use the media uri directly, rather than having to scan it
-                            storageUtils.setLastMediaScanned(saveUri);
+                            storageUtils.announceMediaStoreImage(saveUri);
                         }
                     } else {
                         broadcastSAFFile(saveUri, request.image_capture_intent);
@@ -2379,11 +3140,29 @@ public class ImageSaver extends Thread {
         if (raw_only) {
             // no saved image to record
         } else if (success && saveUri == null) {
-            applicationInterface.addLastImage(picFile, share_image);
+            final File picFile_f = picFile;
+            final boolean share_image_f = share_image;
+            runOnCompletion(new Runnable() {
+                public void run() {
+                    applicationInterface.addLastImage(picFile_f, share_image_f);
+                }
+            });
         } else if (success && storageUtils.isUsingSAF()) {
-            applicationInterface.addLastImageSAF(saveUri, share_image);
+            final Uri saveUri_f = saveUri;
+            final boolean share_image_f = share_image;
+            runOnCompletion(new Runnable() {
+                public void run() {
+                    applicationInterface.addLastImageSAF(saveUri_f, share_image_f);
+                }
+            });
         } else if (success && use_media_store) {
-            applicationInterface.addLastImageMediaStore(saveUri, share_image);
+            final Uri saveUri_f = saveUri;
+            final boolean share_image_f = share_image;
+            runOnCompletion(new Runnable() {
+                public void run() {
+                    applicationInterface.addLastImageMediaStore(saveUri_f, share_image_f);
+                }
+            });
         }
 
         // I have received crashes where camera_controller was null - could perhaps happen if this thread was running just as the camera is closing?
@@ -2408,7 +3187,10 @@ public class ImageSaver extends Thread {
                     options.inPurgeable = true;
                 }
                 options.inSampleSize = sample_size;
-                thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                if (data != null)
+                    thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                else
+                    thumbnail = BitmapFactory.decodeStream(JpegBufferPool.openInputStream(request.jpeg_buffer), null, options);
                 if (MyDebug.LOG) {
                     Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
                     Log.d(TAG, "thumbnail height: " + thumbnail.getHeight());
@@ -2416,7 +3198,10 @@ public class ImageSaver extends Thread {
                 // now get the rotation from the Exif data
                 if (MyDebug.LOG)
                     Log.d(TAG, "rotate thumbnail for exif tags?");
-                thumbnail = rotateForExif(thumbnail, data);
+                if (data != null)
+                    thumbnail = rotateForExif(thumbnail, data);
+                else
+                    thumbnail = rotateForExif(thumbnail, JpegBufferPool.openInputStream(request.jpeg_buffer));
             } else {
                 int width = bitmap.getWidth();
                 int height = bitmap.getHeight();
@@ -2450,9 +3235,14 @@ public class ImageSaver extends Thread {
                     Log.e(TAG, "failed to create thumbnail bitmap");
             } else {
                 final Bitmap thumbnail_f = thumbnail;
-                main_activity.runOnUiThread(new Runnable() {
+                // update in the order the photos were taken, so the thumbnail ends up showing the latest photo
+                runOnCompletion(new Runnable() {
                     public void run() {
-                        applicationInterface.updateThumbnail(thumbnail_f, false);
+                        main_activity.runOnUiThread(new Runnable() {
+                            public void run() {
+                                applicationInterface.updateThumbnail(thumbnail_f, false);
+                            }
+                        });
                     }
                 });
                 if (MyDebug.LOG) {
@@ -2467,7 +3257,7 @@ public class ImageSaver extends Thread {
 
         System.gc();
 
-        main_activity.savingImage(false);
+        setSavingImage(false);
 
         if (MyDebug.LOG) {
             Log.d(TAG, "Save single image performance: total time: " + (System.currentTimeMillis() - time_s));
@@ -2829,22 +3619,50 @@ public class ImageSaver extends Thread {
      * @param data Jpeg data containing the Exif information to use.
      */
     private Bitmap rotateForExif(Bitmap bitmap, byte[] data) {
+        return rotateForExif(bitmap, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * As rotateForExif(Bitmap, byte[]), but reads the Exif information from a stream of the jpeg
+     * data. The stream is closed by this method.
+     */
+    private Bitmap rotateForExif(Bitmap bitmap, InputStream inputStream) {
         if (MyDebug.LOG)
             Log.d(TAG, "rotateForExif");
-        InputStream inputStream = null;
+        int exif_orientation = getExifRotation(inputStream);
+        if (exif_orientation != 0) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "    need to rotate bitmap due to exif orientation tag");
+            Matrix m = new Matrix();
+            m.setRotate(exif_orientation, bitmap.getWidth() * 0.5f, bitmap.getHeight() * 0.5f);
+            Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
+            if (rotated_bitmap != bitmap) {
+                bitmap.recycle();
+                bitmap = rotated_bitmap;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the clockwise rotation in degrees (0, 90, 180 or 270) needed to make the image the
+     * right way up, according to the orientation tag stored in the exif data. The stream is closed
+     * by this method.
+     */
+    private int getExifRotation(InputStream inputStream) {
+        if (MyDebug.LOG)
+            Log.d(TAG, "getExifRotation");
+        int exif_orientation = 0;
         try {
             ExifInterface exif;
 
             if (MyDebug.LOG)
                 Log.d(TAG, "use data stream to read exif tags");
-            inputStream = new ByteArrayInputStream(data);
             exif = new ExifInterface(inputStream);
 
             int exif_orientation_s = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
             if (MyDebug.LOG)
                 Log.d(TAG, "    exif orientation string: " + exif_orientation_s);
-            boolean needs_tf = false;
-            int exif_orientation = 0;
             // see http://jpegclub.org/exif_orientation.html
             // and http://stackoverflow.com/questions/20478765/how-to-get-the-correct-orientation-of-the-image-selected-from-the-default-image
             switch (exif_orientation_s) {
@@ -2853,15 +3671,12 @@ public class ImageSaver extends Thread {
                     // leave unchanged
                     break;
                 case ExifInterface.ORIENTATION_ROTATE_180:
-                    needs_tf = true;
                     exif_orientation = 180;
                     break;
                 case ExifInterface.ORIENTATION_ROTATE_90:
-                    needs_tf = true;
                     exif_orientation = 90;
                     break;
                 case ExifInterface.ORIENTATION_ROTATE_270:
-                    needs_tf = true;
                     exif_orientation = 270;
                     break;
                 default:
@@ -2872,18 +3687,6 @@ public class ImageSaver extends Thread {
             }
             if (MyDebug.LOG)
                 Log.d(TAG, "    exif orientation: " + exif_orientation);
-
-            if (needs_tf) {
-                if (MyDebug.LOG)
-                    Log.d(TAG, "    need to rotate bitmap due to exif orientation tag");
-                Matrix m = new Matrix();
-                m.setRotate(exif_orientation, bitmap.getWidth() * 0.5f, bitmap.getHeight() * 0.5f);
-                Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
-                if (rotated_bitmap != bitmap) {
-                    bitmap.recycle();
-                    bitmap = rotated_bitmap;
-                }
-            }
         } catch (IOException exception) {
             if (MyDebug.LOG)
                 Log.e(TAG, "exif orientation ioexception");
@@ -2894,26 +3697,24 @@ public class ImageSaver extends Thread {
                 Log.e(TAG, "exif orientation NoClassDefFoundError");
             exception.printStackTrace();
         } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
-        return bitmap;
+        return exif_orientation;
     }
 
     /**
      * Loads the bitmap from the supplied jpeg data, rotating if necessary according to the
-     * supplied EXIF orientation tag.
+     * supplied EXIF orientation tag. Also called by PanoramaStreamStitcher on its own thread.
      *
      * @param data    The jpeg data.
      * @param mutable Whether to create a mutable bitmap.
      * @return A bitmap representing the correctly rotated jpeg.
      */
-    private Bitmap loadBitmapWithRotation(byte[] data, boolean mutable) {
+    Bitmap loadBitmapWithRotation(byte[] data, boolean mutable) {
         Bitmap bitmap = loadBitmap(data, mutable, 1);
         if (bitmap != null) {
             // rotate the bitmap if necessary for exif tags
@@ -3047,6 +3848,73 @@ public class ImageSaver extends Thread {
         }
     }
 
+    /**
+     * Whether saving the JPEG data of request unchanged still needs changes to its Exif tags, see
+     * updateExif().
+     */
+    private boolean needsExifUpdate(Request request) {
+        return request.store_geo_direction || request.store_ypr || hasCustomExif(request.custom_tag_artist, request.custom_tag_copyright) ||
+                needGPSTimestampHack(request.type == Request.Type.JPEG, request.using_camera2, request.store_location);
+    }
+
+    /**
+     * Makes the same changes to the Exif tags as setExif() (if bitmap is non-null) or updateExif()
+     * (if saving the JPEG data unchanged), but in memory, to be written out along with the image.
+     *
+     * @param exif   The Exif tags read from the JPEG data.
+     * @param bitmap The processed bitmap being saved, or null if saving the JPEG data.
+     * @return The new Exif segment, or null if it couldn't be created.
+     */
+    private byte[] createExifSegment(Request request, JpegExif exif, Bitmap bitmap) {
+        if (MyDebug.LOG)
+            Log.d(TAG, "createExifSegment");
+        if (bitmap != null) {
+            // we rotate bitmaps to account for orientation, so the saved image is always the right way up
+            exif.setOrientation(JpegExif.orientation_normal_c);
+            exif.setImageSize(bitmap.getWidth(), bitmap.getHeight());
+            // the thumbnail no longer matches the image
+            exif.removeThumbnail();
+            // see setDateTimeExif()
+            String exif_datetime = exif.getDateTime();
+            if (exif_datetime != null)
+                exif.setDateTimeOriginal(exif_datetime);
+        }
+        if (request.store_geo_direction) {
+            exif.setGPSImgDirection(getGeoAngle(request.geo_direction));
+        }
+        if (request.store_ypr) {
+            exif.setUserComment(getYPRComment(request.geo_direction, request.pitch_angle, request.level_angle));
+        }
+        if (request.custom_tag_artist != null && request.custom_tag_artist.length() > 0) {
+            exif.setArtist(request.custom_tag_artist);
+        }
+        if (request.custom_tag_copyright != null && request.custom_tag_copyright.length() > 0) {
+            exif.setCopyright(request.custom_tag_copyright);
+        }
+        if (needGPSTimestampHack(request.type == Request.Type.JPEG, request.using_camera2, request.store_location)) {
+            exif.setGPSTimestamp(request.current_date);
+        }
+        return exif.createSegment();
+    }
+
+    /**
+     * Returns the geo direction in degrees, from 0 to 360.
+     */
+    private static float getGeoAngle(double geo_direction) {
+        float geo_angle = (float) Math.toDegrees(geo_direction);
+        if (geo_angle < 0.0f) {
+            geo_angle += 360.0f;
+        }
+        return geo_angle;
+    }
+
+    /**
+     * Returns the text stored in the user comment when store_ypr is set.
+     */
+    private static String getYPRComment(double geo_direction, double pitch_angle, double level_angle) {
+        return "Yaw:" + getGeoAngle(geo_direction) + ",Pitch:" + pitch_angle + ",Roll:" + level_angle;
+    }
+
     /**
      * Makes various modifications to the exif data, if necessary.
      */
@@ -3055,13 +3923,8 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "modifyExif");
         setGPSDirectionExif(exif, store_geo_direction, geo_direction);
         if (store_ypr) {
-            float geo_angle = (float) Math.toDegrees(geo_direction);
-            if (geo_angle < 0.0f) {
-                geo_angle += 360.0f;
-            }
             String encoding = "ASCII\0\0\0";
-            //exif.setAttribute(ExifInterface.TAG_USER_COMMENT,"Yaw:" + geo_angle + ",Pitch:" + pitch_angle + ",Roll:" + level_angle);
-            exif.setAttribute(ExifInterface.TAG_USER_COMMENT, encoding + "Yaw:" + geo_angle + ",Pitch:" + pitch_angle + ",Roll:" + level_angle);
+            exif.setAttribute(ExifInterface.TAG_USER_COMMENT, encoding + getYPRComment(geo_direction, pitch_angle, level_angle));
             if (MyDebug.LOG)
                 Log.d(TAG, "UserComment: " + exif.getAttribute(ExifInterface.TAG_USER_COMMENT));
         }
@@ -3075,10 +3938,7 @@ public class ImageSaver extends Thread {
         if (MyDebug.LOG)
             Log.d(TAG, "setGPSDirectionExif");
         if (store_geo_direction) {
-            float geo_angle = (float) Math.toDegrees(geo_direction);
-            if (geo_angle < 0.0f) {
-                geo_angle += 360.0f;
-            }
+            float geo_angle = getGeoAngle(geo_direction);
             if (MyDebug.LOG)
                 Log.d(TAG, "save geo_angle: " + geo_angle);
             // see http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/GPS.html
@@ -0,0 +1,173 @@
+package com.magilic.opencamera;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/** Pool of direct buffers used to hold JPEG data between the camera and the ImageSaver, so that
+ *  photos that are saved without any processing don't need a new byte array on the Java heap for
+ *  every shot. Buffers are handed out with acquire(), and should be returned with release() once
+ *  the data has been written out; released buffers are kept for reuse up to max_pooled_bytes.
+ */
+public class JpegBufferPool {
+    private static final String TAG = "JpegBufferPool";
+
+    private static final int capacity_step_c = 256*1024; // capacities are rounded up to this, so that buffers can be reused for similar sized photos
+
+    private final long max_pooled_bytes;
+    private final List<ByteBuffer> pool = new ArrayList<>(); // synchronized on this
+    private long n_pooled_bytes; // synchronized on this
+    private int n_allocations; // synchronized on this
+
+    /**
+     * @param max_pooled_bytes The maximum total capacity of the buffers kept for reuse.
+     */
+    public JpegBufferPool(long max_pooled_bytes) {
+        this.max_pooled_bytes = max_pooled_bytes;
+    }
+
+    /** Returns a buffer with room for at least size bytes, with position 0 and limit size. This
+     *  is the smallest pooled buffer that is large enough, or a newly allocated buffer if there
+     *  isn't one.
+     */
+    public ByteBuffer acquire(int size) {
+        if( size < 0 ) {
+            throw new IllegalArgumentException("size must not be negative: " + size);
+        }
+        ByteBuffer buffer = null;
+        synchronized( this ) {
+            int best = -1;
+            for(int i=0;i<pool.size();i++) {
+                int capacity = pool.get(i).capacity();
+                if( capacity >= size && (best == -1 || capacity < pool.get(best).capacity()) ) {
+                    best = i;
+                }
+            }
+            if( best != -1 ) {
+                buffer = pool.remove(best);
+                n_pooled_bytes -= buffer.capacity();
+            }
+            else {
+                n_allocations++;
+            }
+        }
+        if( buffer == null ) {
+            int capacity = ((size + capacity_step_c - 1)/capacity_step_c) * capacity_step_c;
+            if( MyDebug.LOG )
+                Log.d(TAG, "allocate buffer of " + capacity + " bytes for " + size);
+            buffer = ByteBuffer.allocateDirect(Math.max(capacity, capacity_step_c));
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /** Returns a buffer to the pool. If this would take the pool over max_pooled_bytes, the
+     *  smallest buffers are dropped instead.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if( buffer == null || !buffer.isDirect() ) {
+            return;
+        }
+        for(ByteBuffer pooled : pool) {
+            if( pooled == buffer ) {
+                throw new IllegalStateException("buffer released twice");
+            }
+        }
+        pool.add(buffer);
+        n_pooled_bytes += buffer.capacity();
+        while( n_pooled_bytes > max_pooled_bytes ) {
+            int smallest = 0;
+            for(int i=1;i<pool.size();i++) {
+                if( pool.get(i).capacity() < pool.get(smallest).capacity() ) {
+                    smallest = i;
+                }
+            }
+            ByteBuffer dropped = pool.remove(smallest);
+            n_pooled_bytes -= dropped.capacity();
+            if( MyDebug.LOG )
+                Log.d(TAG, "drop buffer of " + dropped.capacity() + " bytes");
+        }
+    }
+
+    /** Returns the number of buffers that have had to be allocated, rather than reused.
+     */
+    public synchronized int getNAllocations() {
+        return n_allocations;
+    }
+
+    /** Returns the total capacity of the buffers currently held for reuse.
+     */
+    public synchronized long getPoolSizeInBytes() {
+        return n_pooled_bytes;
+    }
+
+    public synchronized void clear() {
+        pool.clear();
+        n_pooled_bytes = 0;
+    }
+
+    /** Returns a stream that reads the data between the position and limit of buffer, without
+     *  modifying the buffer.
+     */
+    public static InputStream openInputStream(ByteBuffer buffer) {
+        final ByteBuffer data = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return data.hasRemaining() ? (data.get() & 0xff) : -1;
+            }
+
+            @Override
+            public int read(byte [] bytes, int offset, int length) {
+                if( length == 0 ) {
+                    return 0;
+                }
+                if( !data.hasRemaining() ) {
+                    return -1;
+                }
+                length = Math.min(length, data.remaining());
+                data.get(bytes, offset, length);
+                return length;
+            }
+
+            @Override
+            public long skip(long n) {
+                int n_skip = (int)Math.max(0, Math.min(n, data.remaining()));
+                data.position(data.position() + n_skip);
+                return n_skip;
+            }
+
+            @Override
+            public int available() {
+                return data.remaining();
+            }
+        };
+    }
+
+    /** Writes the data between the position and limit of buffer to outputStream, without
+     *  modifying the buffer. For a FileOutputStream, the data is written straight from the buffer
+     *  through its FileChannel.
+     */
+    public static void write(ByteBuffer buffer, OutputStream outputStream) throws IOException {
+        ByteBuffer data = buffer.duplicate();
+        WritableByteChannel channel;
+        if( outputStream instanceof FileOutputStream ) {
+            channel = ((FileOutputStream)outputStream).getChannel();
+        }
+        else {
+            channel = Channels.newChannel(outputStream);
+        }
+        while( data.hasRemaining() ) {
+            channel.write(data);
+        }
+    }
+}
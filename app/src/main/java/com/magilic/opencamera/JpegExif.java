@@ -0,0 +1,657 @@
+package com.magilic.opencamera;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+/** Reads the Exif (APP1) segment of a JPEG into memory, allows the tags we change when saving to
+ *  be patched, and writes out a new segment that can be spliced into another JPEG as it's
+ *  written. This means the Exif data of a saved photo can be set as part of writing the file,
+ *  rather than by reopening the file afterwards with ExifInterface (which rewrites the whole
+ *  file).
+ *  All tags are kept as they were read (in the original byte order), other than those changed
+ *  through this class. Thumbnails are kept, unless removed with removeThumbnail().
+ */
+public class JpegExif {
+    private static final String TAG = "JpegExif";
+
+    public static final int orientation_normal_c = 1;
+    /** The number of bytes from the start of a JPEG that parse(ByteBuffer) reads: enough for the
+     *  SOI marker, an APP0 segment and an APP1 segment, each of which is at most 64KB.
+     */
+    public static final int max_header_bytes_c = 2 + 2*(2 + 65535);
+
+    private static final int max_tiff_bytes_c = 65535 - 2 - 6; // the segment length field includes itself, and the "Exif\0\0" header
+    private static final byte [] exif_header_c = {'E', 'x', 'i', 'f', 0, 0};
+    private static final Charset ascii_c = Charset.forName("US-ASCII");
+
+    private static final int ifd_0_c = 0;
+    private static final int ifd_exif_c = 1;
+    private static final int ifd_gps_c = 2;
+    private static final int ifd_interop_c = 3;
+    private static final int ifd_1_c = 4;
+    private static final int n_ifds_c = 5;
+
+    private static final int type_byte_c = 1;
+    private static final int type_ascii_c = 2;
+    private static final int type_short_c = 3;
+    private static final int type_long_c = 4;
+    private static final int type_rational_c = 5;
+    private static final int type_undefined_c = 7;
+    private static final int [] type_sizes_c = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private static final int tag_image_width_c = 0x0100;
+    private static final int tag_image_length_c = 0x0101;
+    private static final int tag_orientation_c = 0x0112;
+    private static final int tag_datetime_c = 0x0132;
+    private static final int tag_artist_c = 0x013b;
+    private static final int tag_thumbnail_offset_c = 0x0201;
+    private static final int tag_thumbnail_length_c = 0x0202;
+    private static final int tag_copyright_c = 0x8298;
+    private static final int tag_exif_ifd_c = 0x8769;
+    private static final int tag_gps_ifd_c = 0x8825;
+    private static final int tag_datetime_original_c = 0x9003;
+    private static final int tag_datetime_digitized_c = 0x9004;
+    private static final int tag_user_comment_c = 0x9286;
+    private static final int tag_pixel_x_dimension_c = 0xa002;
+    private static final int tag_pixel_y_dimension_c = 0xa003;
+    private static final int tag_interop_ifd_c = 0xa005;
+    private static final int tag_gps_version_id_c = 0x0000;
+    private static final int tag_gps_timestamp_c = 0x0007;
+    private static final int tag_gps_img_direction_ref_c = 0x0010;
+    private static final int tag_gps_img_direction_c = 0x0011;
+    private static final int tag_gps_datestamp_c = 0x001d;
+
+    private static class Entry {
+        final int type;
+        final int count;
+        final byte [] value; // in the byte order of the JpegExif
+
+        Entry(int type, int count, byte [] value) {
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    private final ByteOrder order;
+    private final List<Map<Integer, Entry>> ifds = new ArrayList<>(); // indexed by ifd_*_c, entries sorted by tag
+    private byte [] thumbnail; // JPEG thumbnail referenced from IFD1, or null
+    private final int segment_offset; // offset of the Exif segment in the source JPEG
+    private final int segment_end; // offset of the end of the Exif segment in the source JPEG
+
+    private JpegExif(ByteOrder order, int segment_offset, int segment_end) {
+        this.order = order;
+        this.segment_offset = segment_offset;
+        this.segment_end = segment_end;
+        for(int i=0;i<n_ifds_c;i++) {
+            ifds.add(new TreeMap<Integer, Entry>());
+        }
+    }
+
+    /** Reads the Exif segment of a JPEG.
+     * @param jpeg The JPEG data; it's enough for this to be the start of the data, as long as it
+     *             includes the Exif segment.
+     * @return The Exif data, or null if jpeg doesn't have an Exif segment that can be read.
+     */
+    public static JpegExif parse(byte [] jpeg) {
+        int [] segment = findExifSegment(jpeg);
+        if( segment == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "no exif segment");
+            return null;
+        }
+        int tiff_start = segment[0] + 4 + exif_header_c.length;
+        ByteBuffer tiff = ByteBuffer.wrap(jpeg, tiff_start, segment[1] - tiff_start).slice();
+        try {
+            if( tiff.get(0) == 'I' && tiff.get(1) == 'I' ) {
+                tiff.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            else if( tiff.get(0) == 'M' && tiff.get(1) == 'M' ) {
+                tiff.order(ByteOrder.BIG_ENDIAN);
+            }
+            else {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "unknown byte order");
+                return null;
+            }
+            if( (tiff.getShort(2) & 0xffff) != 42 ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "not a tiff header");
+                return null;
+            }
+            JpegExif exif = new JpegExif(tiff.order(), segment[0], segment[1]);
+            Set<Integer> visited = new HashSet<>();
+            int ifd1_offset = exif.readIfd(tiff, tiff.getInt(4), ifd_0_c, visited);
+            if( ifd1_offset != 0 ) {
+                exif.readIfd(tiff, ifd1_offset, ifd_1_c, visited);
+            }
+            return exif;
+        }
+        catch(IndexOutOfBoundsException | IllegalArgumentException e) {
+            // offsets that point outside of the segment
+            if( MyDebug.LOG )
+                Log.d(TAG, "malformed exif segment: " + e);
+            return null;
+        }
+    }
+
+    /** As parse(byte []), but for a JPEG held in a buffer. The buffer isn't modified.
+     */
+    public static JpegExif parse(ByteBuffer jpeg) {
+        byte [] header = new byte[Math.min(jpeg.remaining(), max_header_bytes_c)];
+        jpeg.duplicate().get(header);
+        return parse(header);
+    }
+
+    /** Returns the offset and end of the Exif APP1 segment, or null if there isn't one.
+     */
+    private static int [] findExifSegment(byte [] jpeg) {
+        if( jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8 ) {
+            return null;
+        }
+        int pos = 2;
+        while( pos + 4 <= jpeg.length ) {
+            if( (jpeg[pos] & 0xff) != 0xff ) {
+                return null;
+            }
+            int marker = jpeg[pos+1] & 0xff;
+            if( marker == 0xff ) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if( marker == 0xd9 || marker == 0xda ) {
+                // end of image, or start of scan: the Exif segment must come before these
+                return null;
+            }
+            int length = ((jpeg[pos+2] & 0xff) << 8) | (jpeg[pos+3] & 0xff);
+            if( marker == 0xe1 && length >= 2 + exif_header_c.length + 8 && pos + 2 + length <= jpeg.length ) {
+                boolean is_exif = true;
+                for(int i=0;i<exif_header_c.length && is_exif;i++) {
+                    if( jpeg[pos+4+i] != exif_header_c[i] ) {
+                        is_exif = false;
+                    }
+                }
+                if( is_exif ) {
+                    return new int[]{pos, pos + 2 + length};
+                }
+            }
+            pos += 2 + length;
+        }
+        return null;
+    }
+
+    /** Reads the entries of an IFD, and the IFDs it points to.
+     * @return The offset of the next IFD, or 0 if there isn't one.
+     */
+    private int readIfd(ByteBuffer tiff, int offset, int ifd, Set<Integer> visited) {
+        if( !visited.add(offset) ) {
+            throw new IllegalArgumentException("loop in ifds at " + offset);
+        }
+        Map<Integer, Entry> entries = ifds.get(ifd);
+        int n_entries = tiff.getShort(offset) & 0xffff;
+        int thumbnail_offset = -1;
+        int thumbnail_length = -1;
+        for(int i=0;i<n_entries;i++) {
+            int pos = offset + 2 + 12*i;
+            int tag = tiff.getShort(pos) & 0xffff;
+            int type = tiff.getShort(pos+2) & 0xffff;
+            int count = tiff.getInt(pos+4);
+            if( type <= 0 || type >= type_sizes_c.length || count < 0 || count > tiff.limit() ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "skip tag " + tag + " with unknown type " + type + " count " + count);
+                continue;
+            }
+            int size = type_sizes_c[type] * count;
+            int value_offset = size <= 4 ? pos + 8 : tiff.getInt(pos+8);
+            if( value_offset < 0 || value_offset + size > tiff.limit() ) {
+                throw new IllegalArgumentException("value of tag " + tag + " out of range");
+            }
+            if( ifd == ifd_0_c && tag == tag_exif_ifd_c ) {
+                readIfd(tiff, tiff.getInt(value_offset), ifd_exif_c, visited);
+            }
+            else if( ifd == ifd_0_c && tag == tag_gps_ifd_c ) {
+                readIfd(tiff, tiff.getInt(value_offset), ifd_gps_c, visited);
+            }
+            else if( ifd == ifd_exif_c && tag == tag_interop_ifd_c ) {
+                readIfd(tiff, tiff.getInt(value_offset), ifd_interop_c, visited);
+            }
+            else if( ifd == ifd_1_c && tag == tag_thumbnail_offset_c ) {
+                thumbnail_offset = tiff.getInt(value_offset);
+            }
+            else if( ifd == ifd_1_c && tag == tag_thumbnail_length_c ) {
+                thumbnail_length = tiff.getInt(value_offset);
+            }
+            else {
+                byte [] value = new byte[size];
+                for(int j=0;j<size;j++) {
+                    value[j] = tiff.get(value_offset + j);
+                }
+                entries.put(tag, new Entry(type, count, value));
+            }
+        }
+        if( thumbnail_offset >= 0 && thumbnail_length > 0 && thumbnail_offset + thumbnail_length <= tiff.limit() ) {
+            thumbnail = new byte[thumbnail_length];
+            for(int j=0;j<thumbnail_length;j++) {
+                thumbnail[j] = tiff.get(thumbnail_offset + j);
+            }
+        }
+        int next_pos = offset + 2 + 12*n_entries;
+        return next_pos + 4 <= tiff.limit() ? tiff.getInt(next_pos) : 0;
+    }
+
+    private ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(order);
+    }
+
+    private void setString(int ifd, int tag, String value) {
+        byte [] bytes = (value + '\0').getBytes(ascii_c);
+        ifds.get(ifd).put(tag, new Entry(type_ascii_c, bytes.length, bytes));
+    }
+
+    private String getString(int ifd, int tag) {
+        Entry entry = ifds.get(ifd).get(tag);
+        if( entry == null || entry.type != type_ascii_c ) {
+            return null;
+        }
+        int length = 0;
+        while( length < entry.value.length && entry.value[length] != 0 ) {
+            length++;
+        }
+        return new String(entry.value, 0, length, ascii_c);
+    }
+
+    private void setShort(int ifd, int tag, int value) {
+        ifds.get(ifd).put(tag, new Entry(type_short_c, 1, allocate(2).putShort((short)value).array()));
+    }
+
+    private void setLong(int ifd, int tag, long value) {
+        ifds.get(ifd).put(tag, new Entry(type_long_c, 1, allocate(4).putInt((int)value).array()));
+    }
+
+    /** Sets a tag to one or more unsigned rationals, given as {numerator, denominator} pairs.
+     */
+    private void setRationals(int ifd, int tag, long [] values) {
+        ByteBuffer buffer = allocate(4*values.length);
+        for(long value : values) {
+            buffer.putInt((int)value);
+        }
+        ifds.get(ifd).put(tag, new Entry(type_rational_c, values.length/2, buffer.array()));
+    }
+
+    /** Creates the GPS IFD if it doesn't exist yet.
+     */
+    private Map<Integer, Entry> getGPSIfd() {
+        Map<Integer, Entry> gps = ifds.get(ifd_gps_c);
+        if( !gps.containsKey(tag_gps_version_id_c) ) {
+            gps.put(tag_gps_version_id_c, new Entry(type_byte_c, 4, new byte[]{2, 2, 0, 0}));
+        }
+        return gps;
+    }
+
+    public void setOrientation(int orientation) {
+        setShort(ifd_0_c, tag_orientation_c, orientation);
+    }
+
+    /** Sets the dimensions recorded for the image, e.g. when the image has been rotated or cropped.
+     */
+    public void setImageSize(int width, int height) {
+        setLong(ifd_exif_c, tag_pixel_x_dimension_c, width);
+        setLong(ifd_exif_c, tag_pixel_y_dimension_c, height);
+        // these are only expected for uncompressed images, but update them if present
+        if( ifds.get(ifd_0_c).containsKey(tag_image_width_c) ) {
+            setLong(ifd_0_c, tag_image_width_c, width);
+        }
+        if( ifds.get(ifd_0_c).containsKey(tag_image_length_c) ) {
+            setLong(ifd_0_c, tag_image_length_c, height);
+        }
+    }
+
+    /** Returns the size recorded by setImageSize() or read from the Exif data, as {width, height},
+     *  or null if not known.
+     */
+    public int [] getImageSize() {
+        Entry width = ifds.get(ifd_exif_c).get(tag_pixel_x_dimension_c);
+        Entry height = ifds.get(ifd_exif_c).get(tag_pixel_y_dimension_c);
+        if( width == null || height == null ) {
+            return null;
+        }
+        return new int[]{getUnsigned(width), getUnsigned(height)};
+    }
+
+    private int getUnsigned(Entry entry) {
+        ByteBuffer buffer = ByteBuffer.wrap(entry.value).order(order);
+        return entry.type == type_short_c ? (buffer.getShort() & 0xffff) : buffer.getInt();
+    }
+
+    public int getOrientation() {
+        Entry entry = ifds.get(ifd_0_c).get(tag_orientation_c);
+        return entry == null || entry.type != type_short_c ? 0 : getUnsigned(entry);
+    }
+
+    public String getDateTime() {
+        return getString(ifd_0_c, tag_datetime_c);
+    }
+
+    /** Sets the original and digitized date/time tags, which are shown as the date a photo was
+     *  taken.
+     */
+    public void setDateTimeOriginal(String datetime) {
+        setString(ifd_exif_c, tag_datetime_original_c, datetime);
+        setString(ifd_exif_c, tag_datetime_digitized_c, datetime);
+    }
+
+    public String getDateTimeOriginal() {
+        return getString(ifd_exif_c, tag_datetime_original_c);
+    }
+
+    public void setArtist(String artist) {
+        setString(ifd_0_c, tag_artist_c, artist);
+    }
+
+    public String getArtist() {
+        return getString(ifd_0_c, tag_artist_c);
+    }
+
+    public void setCopyright(String copyright) {
+        setString(ifd_0_c, tag_copyright_c, copyright);
+    }
+
+    public String getCopyright() {
+        return getString(ifd_0_c, tag_copyright_c);
+    }
+
+    /** Sets the user comment, as ASCII text.
+     */
+    public void setUserComment(String comment) {
+        byte [] text = comment.getBytes(ascii_c);
+        byte [] value = new byte[8 + text.length];
+        System.arraycopy("ASCII\0\0\0".getBytes(ascii_c), 0, value, 0, 8);
+        System.arraycopy(text, 0, value, 8, text.length);
+        ifds.get(ifd_exif_c).put(tag_user_comment_c, new Entry(type_undefined_c, value.length, value));
+    }
+
+    public String getUserComment() {
+        Entry entry = ifds.get(ifd_exif_c).get(tag_user_comment_c);
+        if( entry == null || entry.value.length < 8 ) {
+            return null;
+        }
+        return new String(entry.value, 8, entry.value.length - 8, ascii_c);
+    }
+
+    /** Sets the direction the camera was pointing, relative to magnetic north.
+     * @param degrees The direction in degrees, from 0 to 360.
+     */
+    public void setGPSImgDirection(float degrees) {
+        getGPSIfd();
+        setRationals(ifd_gps_c, tag_gps_img_direction_c, new long[]{Math.round(degrees * 100), 100});
+        setString(ifd_gps_c, tag_gps_img_direction_ref_c, "M");
+    }
+
+    /** Returns the direction set by setGPSImgDirection() or read from the Exif data, or NaN if
+     *  not known.
+     */
+    public float getGPSImgDirection() {
+        Entry entry = ifds.get(ifd_gps_c).get(tag_gps_img_direction_c);
+        if( entry == null || entry.type != type_rational_c ) {
+            return Float.NaN;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(entry.value).order(order);
+        long numerator = buffer.getInt() & 0xffffffffL;
+        long denominator = buffer.getInt() & 0xffffffffL;
+        return denominator == 0 ? Float.NaN : numerator / (float)denominator;
+    }
+
+    /** Sets the GPS date and time stamps (which are in UTC) to the supplied date.
+     */
+    public void setGPSTimestamp(Date date) {
+        getGPSIfd();
+        SimpleDateFormat date_fmt = new SimpleDateFormat("yyyy:MM:dd", Locale.US);
+        date_fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        setString(ifd_gps_c, tag_gps_datestamp_c, date_fmt.format(date));
+
+        SimpleDateFormat time_fmt = new SimpleDateFormat("HH:mm:ss", Locale.US);
+        time_fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String [] time = time_fmt.format(date).split(":");
+        setRationals(ifd_gps_c, tag_gps_timestamp_c, new long[]{
+                Long.parseLong(time[0]), 1,
+                Long.parseLong(time[1]), 1,
+                Long.parseLong(time[2]), 1});
+    }
+
+    public String getGPSDatestamp() {
+        return getString(ifd_gps_c, tag_gps_datestamp_c);
+    }
+
+    public boolean hasThumbnail() {
+        return thumbnail != null;
+    }
+
+    /** Removes the thumbnail (and the rest of IFD1), e.g. as it no longer matches the image.
+     */
+    public void removeThumbnail() {
+        thumbnail = null;
+        ifds.get(ifd_1_c).clear();
+    }
+
+    /** Returns the size in bytes of an IFD, including the values stored outside of the entries.
+     */
+    private static int getIfdSize(Map<Integer, Entry> entries) {
+        int size = 2 + 12*entries.size() + 4;
+        for(Entry entry : entries.values()) {
+            if( entry.value.length > 4 ) {
+                size += (entry.value.length + 1) & ~1; // keep offsets word aligned
+            }
+        }
+        return size;
+    }
+
+    private Entry createPointer(int offset) {
+        return new Entry(type_long_c, 1, allocate(4).putInt(offset).array());
+    }
+
+    /** Writes an IFD at the current position of tiff.
+     */
+    private static void writeIfd(ByteBuffer tiff, Map<Integer, Entry> entries, int next_ifd_offset) {
+        int offset = tiff.position();
+        int data_offset = offset + 2 + 12*entries.size() + 4;
+        tiff.putShort((short)entries.size());
+        for(Map.Entry<Integer, Entry> map_entry : entries.entrySet()) {
+            Entry entry = map_entry.getValue();
+            tiff.putShort((short)(int)map_entry.getKey());
+            tiff.putShort((short)entry.type);
+            tiff.putInt(entry.count);
+            if( entry.value.length <= 4 ) {
+                tiff.put(entry.value);
+                for(int i=entry.value.length;i<4;i++) {
+                    tiff.put((byte)0);
+                }
+            }
+            else {
+                tiff.putInt(data_offset);
+                int pos = tiff.position();
+                tiff.position(data_offset);
+                tiff.put(entry.value);
+                data_offset += (entry.value.length + 1) & ~1;
+                tiff.position(pos);
+            }
+        }
+        tiff.putInt(next_ifd_offset);
+        tiff.position(data_offset);
+    }
+
+    private byte [] writeTiff(boolean include_thumbnail) {
+        List<Map<Integer, Entry>> out_ifds = new ArrayList<>();
+        for(Map<Integer, Entry> ifd : ifds) {
+            out_ifds.add(new TreeMap<>(ifd));
+        }
+        Map<Integer, Entry> ifd0 = out_ifds.get(ifd_0_c);
+        Map<Integer, Entry> exif = out_ifds.get(ifd_exif_c);
+        Map<Integer, Entry> gps = out_ifds.get(ifd_gps_c);
+        Map<Integer, Entry> interop = out_ifds.get(ifd_interop_c);
+        Map<Integer, Entry> ifd1 = out_ifds.get(ifd_1_c);
+        boolean has_thumbnail = include_thumbnail && thumbnail != null;
+        if( !has_thumbnail ) {
+            ifd1.clear();
+        }
+        // add the pointers to the other IFDs (with the offsets filled in below), so that they're
+        // included in the sizes
+        if( interop.size() > 0 )
+            exif.put(tag_interop_ifd_c, createPointer(0));
+        if( exif.size() > 0 )
+            ifd0.put(tag_exif_ifd_c, createPointer(0));
+        if( gps.size() > 0 )
+            ifd0.put(tag_gps_ifd_c, createPointer(0));
+        if( has_thumbnail ) {
+            ifd1.put(tag_thumbnail_offset_c, createPointer(0));
+            ifd1.put(tag_thumbnail_length_c, createPointer(thumbnail.length));
+        }
+
+        int ifd0_offset = 8;
+        int exif_offset = ifd0_offset + getIfdSize(ifd0);
+        int interop_offset = exif_offset + (exif.size() > 0 ? getIfdSize(exif) : 0);
+        int gps_offset = interop_offset + (interop.size() > 0 ? getIfdSize(interop) : 0);
+        int ifd1_offset = gps_offset + (gps.size() > 0 ? getIfdSize(gps) : 0);
+        int thumbnail_offset = ifd1_offset + (ifd1.size() > 0 ? getIfdSize(ifd1) : 0);
+        int size = thumbnail_offset + (has_thumbnail ? thumbnail.length : 0);
+
+        if( interop.size() > 0 )
+            exif.put(tag_interop_ifd_c, createPointer(interop_offset));
+        if( exif.size() > 0 )
+            ifd0.put(tag_exif_ifd_c, createPointer(exif_offset));
+        if( gps.size() > 0 )
+            ifd0.put(tag_gps_ifd_c, createPointer(gps_offset));
+        if( has_thumbnail )
+            ifd1.put(tag_thumbnail_offset_c, createPointer(thumbnail_offset));
+
+        ByteBuffer tiff = allocate(size);
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte)'I' : (byte)'M');
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte)'I' : (byte)'M');
+        tiff.putShort((short)42);
+        tiff.putInt(ifd0_offset);
+        writeIfd(tiff, ifd0, ifd1.size() > 0 ? ifd1_offset : 0);
+        if( exif.size() > 0 )
+            writeIfd(tiff, exif, 0);
+        if( interop.size() > 0 )
+            writeIfd(tiff, interop, 0);
+        if( gps.size() > 0 )
+            writeIfd(tiff, gps, 0);
+        if( ifd1.size() > 0 )
+            writeIfd(tiff, ifd1, 0);
+        if( has_thumbnail )
+            tiff.put(thumbnail);
+        return tiff.array();
+    }
+
+    /** Returns the complete APP1 segment (including the marker) holding the Exif data, to pass to
+     *  writeJpeg() or createOutputStream(). If the data doesn't fit in a segment, the thumbnail is
+     *  left out; if it still doesn't fit, this returns null.
+     */
+    public byte [] createSegment() {
+        byte [] tiff = writeTiff(true);
+        if( tiff.length > max_tiff_bytes_c && thumbnail != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "leave out thumbnail, exif is too large: " + tiff.length);
+            tiff = writeTiff(false);
+        }
+        if( tiff.length > max_tiff_bytes_c ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "exif is too large: " + tiff.length);
+            return null;
+        }
+        int length = 2 + exif_header_c.length + tiff.length;
+        byte [] segment = new byte[2 + length];
+        segment[0] = (byte)0xff;
+        segment[1] = (byte)0xe1;
+        segment[2] = (byte)(length >> 8);
+        segment[3] = (byte)length;
+        System.arraycopy(exif_header_c, 0, segment, 4, exif_header_c.length);
+        System.arraycopy(tiff, 0, segment, 4 + exif_header_c.length, tiff.length);
+        return segment;
+    }
+
+    /** Writes jpeg to out, with its Exif segment replaced by segment. The new segment is placed
+     *  straight after the SOI marker; the other segments are unchanged.
+     * @param jpeg The JPEG this object was parsed from.
+     */
+    public void writeJpeg(OutputStream out, byte [] segment, byte [] jpeg) throws IOException {
+        out.write(jpeg, 0, 2);
+        out.write(segment);
+        out.write(jpeg, 2, segment_offset - 2);
+        out.write(jpeg, segment_end, jpeg.length - segment_end);
+    }
+
+    /** As writeJpeg(OutputStream, byte [], byte []), but for a JPEG held in a buffer, which is
+     *  written from its position to its limit. The buffer isn't modified.
+     */
+    public void writeJpeg(OutputStream out, byte [] segment, ByteBuffer jpeg) throws IOException {
+        int start = jpeg.position();
+        ByteBuffer part = jpeg.duplicate();
+        part.limit(start + 2);
+        JpegBufferPool.write(part, out);
+        out.write(segment);
+        part = jpeg.duplicate();
+        part.position(start + 2);
+        part.limit(start + segment_offset);
+        JpegBufferPool.write(part, out);
+        part = jpeg.duplicate();
+        part.position(start + segment_end);
+        JpegBufferPool.write(part, out);
+    }
+
+    /** Returns a stream for an encoder to write a JPEG to, which writes it to out with segment
+     *  inserted after the SOI marker. The JPEG written to the stream must not have its own Exif
+     *  segment. Closing the returned stream closes out.
+     */
+    public static OutputStream createOutputStream(OutputStream out, final byte [] segment) {
+        return new FilterOutputStream(out) {
+            private int n_soi_bytes; // number of bytes of the SOI marker that have been written
+
+            @Override
+            public void write(int b) throws IOException {
+                if( n_soi_bytes < 2 ) {
+                    if( (b & 0xff) != (n_soi_bytes == 0 ? 0xff : 0xd8) ) {
+                        throw new IOException("not a jpeg");
+                    }
+                    n_soi_bytes++;
+                    if( n_soi_bytes == 2 ) {
+                        out.write(0xff);
+                        out.write(0xd8);
+                        out.write(segment);
+                    }
+                }
+                else {
+                    out.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte [] bytes, int offset, int length) throws IOException {
+                while( length > 0 && n_soi_bytes < 2 ) {
+                    write(bytes[offset]);
+                    offset++;
+                    length--;
+                }
+                if( length > 0 ) {
+                    out.write(bytes, offset, length);
+                }
+            }
+        };
+    }
+}
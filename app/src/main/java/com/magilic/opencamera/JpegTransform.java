@@ -0,0 +1,966 @@
+package com.magilic.opencamera;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+/** Lossless rotation and flipping of baseline JPEGs, by rearranging the quantized DCT coefficients
+ *  rather than decoding to pixels (as done by jpegtran). This avoids the cost of a full decode
+ *  and re-encode, and the loss of quality from re-compressing.
+ *  The entropy coded data is decoded to coefficients, each block is moved to its new position and
+ *  transformed (transposing a block swaps its horizontal and vertical frequencies, and flipping
+ *  it negates the odd frequencies in that direction), and the result is re-encoded with Huffman
+ *  tables optimised for the new data. Other segments (APPn, COM) are copied unchanged.
+ *  Only baseline (and extended sequential) Huffman JPEGs with a single scan are supported.
+ *  Flipping an image is only lossless if its size in that direction is a multiple of the MCU
+ *  size, otherwise the partial blocks at the edge would move to the other side, so such
+ *  transforms aren't supported either (jpegtran's -perfect option). Where a transform isn't
+ *  supported, transform() returns null, and the caller should fall back to transforming the
+ *  decoded image.
+ */
+public class JpegTransform {
+    private static final String TAG = "JpegTransform";
+
+    /** A transform of an image: a transpose (swapping x and y), followed by horizontal and/or
+     *  vertical flips of the transposed image. This covers all 8 rotations and reflections.
+     */
+    public static class Transform {
+        public final boolean transpose;
+        public final boolean flip_h;
+        public final boolean flip_v;
+
+        public Transform(boolean transpose, boolean flip_h, boolean flip_v) {
+            this.transpose = transpose;
+            this.flip_h = flip_h;
+            this.flip_v = flip_v;
+        }
+
+        public boolean isIdentity() {
+            return !transpose && !flip_h && !flip_v;
+        }
+
+        /** Returns the transform to make an image with the supplied Exif orientation the right
+         *  way up, optionally followed by a horizontal mirror.
+         * @param exif_orientation The Exif orientation tag, from 1 to 8; other values are treated
+         *                         as 1.
+         */
+        public static Transform fromExifOrientation(int exif_orientation, boolean mirror) {
+            boolean transpose = false, flip_h = false, flip_v = false;
+            switch( exif_orientation ) {
+                case 2: // mirrored
+                    flip_h = true;
+                    break;
+                case 3: // rotated 180
+                    flip_h = true;
+                    flip_v = true;
+                    break;
+                case 4: // flipped vertically
+                    flip_v = true;
+                    break;
+                case 5: // transposed
+                    transpose = true;
+                    break;
+                case 6: // needs rotating 90 degrees clockwise
+                    transpose = true;
+                    flip_h = true;
+                    break;
+                case 7: // transversed
+                    transpose = true;
+                    flip_h = true;
+                    flip_v = true;
+                    break;
+                case 8: // needs rotating 270 degrees clockwise
+                    transpose = true;
+                    flip_v = true;
+                    break;
+            }
+            if( mirror ) {
+                flip_h = !flip_h;
+            }
+            return new Transform(transpose, flip_h, flip_v);
+        }
+    }
+
+    private static final int [] zigzag_c = {
+            0,  1,  8, 16,  9,  2,  3, 10,
+            17, 24, 32, 25, 18, 11,  4,  5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13,  6,  7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    }; // natural (row major) index of each zigzag index
+
+    /** Thrown for JPEGs that can't be transformed, either as they're invalid or use features we
+     *  don't support.
+     */
+    private static class UnsupportedException extends Exception {
+        private static final long serialVersionUID = -3176543928612470415L;
+
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Component {
+        int id;
+        int h, v; // sampling factors
+        int tq; // quantization table
+        int td, ta; // huffman tables for DC and AC
+        int blocks_w, blocks_h; // size of coefficients, in blocks (including padding to a whole number of MCUs)
+        short [] coeffs; // quantized coefficients, 64 per block in zigzag order, blocks in row major order
+    }
+
+    private static class HuffmanTable {
+        // for decoding, see JPEG spec F.2.2.3
+        final int [] maxcode = new int[18];
+        final int [] valptr = new int[17];
+        final int [] mincode = new int[17];
+        final int [] values;
+        // fast lookup of codes up to lookup_bits_c long: (length << 8) | value, or 0 if the code is longer
+        final int [] lookup = new int[1 << lookup_bits_c];
+
+        HuffmanTable(int [] counts, int [] values) throws UnsupportedException {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for(int l=1;l<=16;l++) {
+                valptr[l] = k;
+                mincode[l] = code;
+                code += counts[l];
+                k += counts[l];
+                maxcode[l] = counts[l] > 0 ? code - 1 : -1;
+                if( code > (1 << l) ) {
+                    throw new UnsupportedException("invalid huffman table");
+                }
+                code <<= 1;
+            }
+            maxcode[17] = Integer.MAX_VALUE;
+            if( k > values.length ) {
+                throw new UnsupportedException("invalid huffman table");
+            }
+            code = 0;
+            k = 0;
+            for(int l=1;l<=lookup_bits_c;l++) {
+                for(int i=0;i<counts[l];i++) {
+                    int shift = lookup_bits_c - l;
+                    for(int j=0;j<(1 << shift);j++) {
+                        lookup[(code << shift) | j] = (l << 8) | values[k];
+                    }
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    private static final int lookup_bits_c = 9;
+
+    /** Reads the entropy coded data of a scan, handling stuffed bytes and markers.
+     */
+    private static class BitReader {
+        private final byte [] data;
+        private int pos;
+        private int bits; // bit buffer, the next bit is the top of the n_bits in use
+        private int n_bits;
+        private boolean hit_marker;
+
+        BitReader(byte [] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        private void fill() {
+            while( n_bits <= 24 ) {
+                int b = 0;
+                if( !hit_marker && pos < data.length ) {
+                    b = data[pos] & 0xff;
+                    if( b == 0xff ) {
+                        int next = pos + 1 < data.length ? data[pos+1] & 0xff : 0xd9;
+                        if( next == 0 ) {
+                            pos += 2;
+                        }
+                        else {
+                            // a marker: feed zeros from now on
+                            hit_marker = true;
+                            b = 0;
+                        }
+                    }
+                    else {
+                        pos++;
+                    }
+                }
+                bits |= b << (24 - n_bits);
+                n_bits += 8;
+            }
+        }
+
+        int peek(int n) {
+            if( n_bits < n )
+                fill();
+            return bits >>> (32 - n);
+        }
+
+        void skip(int n) {
+            bits <<= n;
+            n_bits -= n;
+        }
+
+        int read(int n) {
+            if( n == 0 )
+                return 0;
+            int value = peek(n);
+            skip(n);
+            return value;
+        }
+
+        /** Discards any remaining bits of the current byte, and reads the expected restart
+         *  marker.
+         */
+        void readRestart(int expected) throws UnsupportedException {
+            // any whole bytes still in the buffer have been read past the marker... they can only be
+            // zeros fed after hitting the marker, as the bytes before a marker are padding
+            bits = 0;
+            n_bits = 0;
+            hit_marker = false;
+            if( pos + 1 >= data.length || (data[pos] & 0xff) != 0xff || (data[pos+1] & 0xff) != 0xd0 + expected ) {
+                throw new UnsupportedException("missing restart marker");
+            }
+            pos += 2;
+        }
+
+        /** Returns the position just after the scan data, once it's all been read.
+         */
+        int getEnd() {
+            // skip to the next marker
+            int end = pos;
+            while( end + 1 < data.length && !((data[end] & 0xff) == 0xff && (data[end+1] & 0xff) != 0) ) {
+                end++;
+            }
+            return end;
+        }
+    }
+
+    /** Writes the entropy coded data of a scan, stuffing bytes as required. Also used by
+     *  DngWriter for lossless JPEG.
+     */
+    static class BitWriter {
+        private byte [] data;
+        private int pos;
+        private long bits;
+        private int n_bits;
+
+        BitWriter(int capacity) {
+            data = new byte[Math.max(capacity, 1024)];
+        }
+
+        private void ensure(int n) {
+            if( pos + n > data.length ) {
+                data = Arrays.copyOf(data, Math.max(pos + n, data.length + data.length/2));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            data[pos++] = (byte)b;
+        }
+
+        void writeBytes(byte [] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, data, pos, length);
+            pos += length;
+        }
+
+        void writeShort(int s) {
+            writeByte(s >> 8);
+            writeByte(s);
+        }
+
+        void writeBits(int value, int n) {
+            bits = (bits << n) | (value & ((1L << n) - 1));
+            n_bits += n;
+            if( n_bits >= 32 ) {
+                ensure(8);
+                while( n_bits >= 8 ) {
+                    n_bits -= 8;
+                    int b = (int)(bits >>> n_bits) & 0xff;
+                    data[pos++] = (byte)b;
+                    if( b == 0xff ) {
+                        data[pos++] = 0;
+                    }
+                }
+            }
+        }
+
+        /** Pads the final byte of entropy coded data with 1s.
+         */
+        void flush() {
+            int pad = (8 - (n_bits % 8)) % 8;
+            writeBits((1 << pad) - 1, pad);
+            ensure(8);
+            while( n_bits >= 8 ) {
+                n_bits -= 8;
+                int b = (int)(bits >>> n_bits) & 0xff;
+                data[pos++] = (byte)b;
+                if( b == 0xff ) {
+                    data[pos++] = 0;
+                }
+            }
+        }
+
+        byte [] toByteArray() {
+            return Arrays.copyOf(data, pos);
+        }
+    }
+
+    private final byte [] jpeg;
+    private final List<int []> other_segments = new ArrayList<>(); // {offset, end} of segments copied to the output
+    private final int [][] quant_tables = new int[4][]; // in zigzag order
+    private final int [] quant_precision = new int[4];
+    private final HuffmanTable [] dc_tables = new HuffmanTable[4];
+    private final HuffmanTable [] ac_tables = new HuffmanTable[4];
+    private int sof_marker;
+    private int width, height;
+    private Component [] components;
+    private int h_max, v_max;
+    private int mcus_x, mcus_y;
+    private int restart_interval;
+
+    private JpegTransform(byte [] jpeg) {
+        this.jpeg = jpeg;
+    }
+
+    /** Returns a copy of jpeg with the transform applied, or null if this isn't possible. The
+     *  Exif data (including any orientation tag) is copied unchanged; the caller should update
+     *  it for the new image.
+     */
+    public static byte [] transform(byte [] jpeg, Transform transform) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "transform: transpose " + transform.transpose + " flip_h " + transform.flip_h + " flip_v " + transform.flip_v);
+        long time_s = System.currentTimeMillis();
+        try {
+            JpegTransform jpeg_transform = new JpegTransform(jpeg);
+            jpeg_transform.decode();
+            byte [] result = jpeg_transform.encode(transform);
+            if( MyDebug.LOG )
+                Log.d(TAG, "transform took " + (System.currentTimeMillis() - time_s) + "ms");
+            return result;
+        }
+        catch(UnsupportedException e) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "can't transform: " + e.getMessage());
+            return null;
+        }
+        catch(IndexOutOfBoundsException e) {
+            // truncated or corrupt data
+            if( MyDebug.LOG )
+                Log.d(TAG, "can't transform, invalid data: " + e);
+            return null;
+        }
+    }
+
+    private int readShort(int pos) {
+        return ((jpeg[pos] & 0xff) << 8) | (jpeg[pos+1] & 0xff);
+    }
+
+    private void decode() throws UnsupportedException {
+        if( jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8 ) {
+            throw new UnsupportedException("not a jpeg");
+        }
+        int pos = 2;
+        boolean done_scan = false;
+        while( true ) {
+            if( pos + 2 > jpeg.length || (jpeg[pos] & 0xff) != 0xff ) {
+                throw new UnsupportedException("invalid marker at " + pos);
+            }
+            int marker = jpeg[pos+1] & 0xff;
+            if( marker == 0xff ) {
+                pos++;
+                continue;
+            }
+            if( marker == 0xd9 ) {
+                break;
+            }
+            if( pos + 4 > jpeg.length ) {
+                throw new UnsupportedException("truncated segment at " + pos);
+            }
+            int length = readShort(pos+2);
+            int start = pos + 4;
+            int end = pos + 2 + length;
+            if( length < 2 || end > jpeg.length ) {
+                throw new UnsupportedException("invalid segment length");
+            }
+            if( marker == 0xdb ) {
+                readQuantTables(start, end);
+            }
+            else if( marker == 0xc4 ) {
+                readHuffmanTables(start, end);
+            }
+            else if( marker == 0xc0 || marker == 0xc1 ) {
+                readFrame(marker, start);
+            }
+            else if( marker >= 0xc2 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc ) {
+                throw new UnsupportedException("unsupported frame type: " + marker);
+            }
+            else if( marker == 0xdd ) {
+                restart_interval = readShort(start);
+            }
+            else if( marker == 0xda ) {
+                if( done_scan ) {
+                    throw new UnsupportedException("more than one scan");
+                }
+                end = readScan(start);
+                done_scan = true;
+            }
+            else if( (marker >= 0xe0 && marker <= 0xef) || marker == 0xfe ) {
+                other_segments.add(new int[]{pos, end});
+            }
+            // other markers (e.g. DNL, DHP) aren't expected, and are dropped
+            pos = end;
+        }
+        if( !done_scan ) {
+            throw new UnsupportedException("no scan");
+        }
+    }
+
+    private void readQuantTables(int pos, int end) throws UnsupportedException {
+        while( pos < end ) {
+            int precision = (jpeg[pos] & 0xff) >> 4;
+            int id = jpeg[pos] & 0x0f;
+            if( id > 3 || precision > 1 ) {
+                throw new UnsupportedException("invalid quantization table");
+            }
+            pos++;
+            int [] table = new int[64];
+            for(int i=0;i<64;i++) {
+                if( precision == 0 ) {
+                    table[i] = jpeg[pos++] & 0xff;
+                }
+                else {
+                    table[i] = readShort(pos);
+                    pos += 2;
+                }
+            }
+            quant_tables[id] = table;
+            quant_precision[id] = precision;
+        }
+    }
+
+    private void readHuffmanTables(int pos, int end) throws UnsupportedException {
+        while( pos < end ) {
+            int table_class = (jpeg[pos] & 0xff) >> 4;
+            int id = jpeg[pos] & 0x0f;
+            if( id > 3 || table_class > 1 ) {
+                throw new UnsupportedException("invalid huffman table");
+            }
+            pos++;
+            int [] counts = new int[17];
+            int n_values = 0;
+            for(int l=1;l<=16;l++) {
+                counts[l] = jpeg[pos++] & 0xff;
+                n_values += counts[l];
+            }
+            int [] values = new int[n_values];
+            for(int i=0;i<n_values;i++) {
+                values[i] = jpeg[pos++] & 0xff;
+            }
+            HuffmanTable table = new HuffmanTable(counts, values);
+            if( table_class == 0 )
+                dc_tables[id] = table;
+            else
+                ac_tables[id] = table;
+        }
+    }
+
+    private void readFrame(int marker, int pos) throws UnsupportedException {
+        if( components != null ) {
+            throw new UnsupportedException("more than one frame");
+        }
+        sof_marker = marker;
+        int precision = jpeg[pos] & 0xff;
+        height = readShort(pos+1);
+        width = readShort(pos+3);
+        int n_components = jpeg[pos+5] & 0xff;
+        if( precision != 8 || width == 0 || height == 0 || n_components < 1 || n_components > 4 ) {
+            throw new UnsupportedException("unsupported frame: precision " + precision + " size " + width + "x" + height + " components " + n_components);
+        }
+        components = new Component[n_components];
+        pos += 6;
+        for(int i=0;i<n_components;i++) {
+            Component component = new Component();
+            component.id = jpeg[pos] & 0xff;
+            component.h = (jpeg[pos+1] & 0xff) >> 4;
+            component.v = jpeg[pos+1] & 0x0f;
+            component.tq = jpeg[pos+2] & 0xff;
+            if( component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4 || component.tq > 3 ) {
+                throw new UnsupportedException("invalid component");
+            }
+            if( n_components == 1 ) {
+                // a single component scan is non-interleaved, with one block per MCU
+                component.h = 1;
+                component.v = 1;
+            }
+            components[i] = component;
+            pos += 3;
+        }
+        h_max = 1;
+        v_max = 1;
+        for(Component component : components) {
+            h_max = Math.max(h_max, component.h);
+            v_max = Math.max(v_max, component.v);
+        }
+        mcus_x = (width + 8*h_max - 1) / (8*h_max);
+        mcus_y = (height + 8*v_max - 1) / (8*v_max);
+        for(Component component : components) {
+            component.blocks_w = mcus_x * component.h;
+            component.blocks_h = mcus_y * component.v;
+            component.coeffs = new short[component.blocks_w * component.blocks_h * 64];
+        }
+    }
+
+    /** Decodes the scan starting at pos, and returns the position just after its data.
+     */
+    private int readScan(int pos) throws UnsupportedException {
+        if( components == null ) {
+            throw new UnsupportedException("scan before frame");
+        }
+        int n_components = jpeg[pos] & 0xff;
+        if( n_components != components.length ) {
+            throw new UnsupportedException("scan doesn't include all components");
+        }
+        pos++;
+        for(int i=0;i<n_components;i++) {
+            int id = jpeg[pos] & 0xff;
+            if( components[i].id != id ) {
+                throw new UnsupportedException("unexpected component order in scan");
+            }
+            components[i].td = (jpeg[pos+1] & 0xff) >> 4;
+            components[i].ta = jpeg[pos+1] & 0x0f;
+            if( components[i].td > 3 || components[i].ta > 3 || dc_tables[components[i].td] == null || ac_tables[components[i].ta] == null ) {
+                throw new UnsupportedException("missing huffman table");
+            }
+            if( quant_tables[components[i].tq] == null ) {
+                throw new UnsupportedException("missing quantization table");
+            }
+            pos += 2;
+        }
+        int ss = jpeg[pos] & 0xff;
+        int se = jpeg[pos+1] & 0xff;
+        int ah_al = jpeg[pos+2] & 0xff;
+        if( ss != 0 || se != 63 || ah_al != 0 ) {
+            throw new UnsupportedException("not a sequential scan");
+        }
+        pos += 3;
+
+        BitReader reader = new BitReader(jpeg, pos);
+        int [] dc_pred = new int[components.length];
+        int n_mcus = mcus_x * mcus_y;
+        int next_restart = 0;
+        for(int mcu=0;mcu<n_mcus;mcu++) {
+            if( restart_interval > 0 && mcu > 0 && mcu % restart_interval == 0 ) {
+                reader.readRestart(next_restart);
+                next_restart = (next_restart + 1) % 8;
+                Arrays.fill(dc_pred, 0);
+            }
+            int mcu_x = mcu % mcus_x;
+            int mcu_y = mcu / mcus_x;
+            for(int c=0;c<components.length;c++) {
+                Component component = components[c];
+                for(int by=0;by<component.v;by++) {
+                    for(int bx=0;bx<component.h;bx++) {
+                        int block = (mcu_y * component.v + by) * component.blocks_w + mcu_x * component.h + bx;
+                        dc_pred[c] = decodeBlock(reader, component, block * 64, dc_pred[c]);
+                    }
+                }
+            }
+        }
+        return reader.getEnd();
+    }
+
+    private static int decodeSymbol(BitReader reader, HuffmanTable table) throws UnsupportedException {
+        int entry = table.lookup[reader.peek(lookup_bits_c)];
+        if( entry != 0 ) {
+            reader.skip(entry >> 8);
+            return entry & 0xff;
+        }
+        int code = reader.read(lookup_bits_c);
+        int l = lookup_bits_c;
+        while( code > table.maxcode[l] ) {
+            code = (code << 1) | reader.read(1);
+            l++;
+            if( l > 16 ) {
+                throw new UnsupportedException("invalid huffman code");
+            }
+        }
+        return table.values[table.valptr[l] + code - table.mincode[l]];
+    }
+
+    private static int extend(int value, int n_bits) {
+        return value < (1 << (n_bits - 1)) ? value - (1 << n_bits) + 1 : value;
+    }
+
+    /** Decodes a block into component.coeffs at offset, and returns the new DC prediction.
+     */
+    private int decodeBlock(BitReader reader, Component component, int offset, int dc_pred) throws UnsupportedException {
+        short [] coeffs = component.coeffs;
+        int s = decodeSymbol(reader, dc_tables[component.td]);
+        if( s > 11 ) {
+            throw new UnsupportedException("invalid dc value");
+        }
+        int dc = dc_pred + (s == 0 ? 0 : extend(reader.read(s), s));
+        coeffs[offset] = (short)dc;
+        HuffmanTable ac_table = ac_tables[component.ta];
+        for(int k=1;k<64;) {
+            int rs = decodeSymbol(reader, ac_table);
+            int r = rs >> 4;
+            s = rs & 0x0f;
+            if( s == 0 ) {
+                if( r != 15 ) {
+                    break; // end of block
+                }
+                k += 16;
+            }
+            else {
+                k += r;
+                if( k > 63 || s > 10 ) {
+                    throw new UnsupportedException("invalid ac value");
+                }
+                coeffs[offset + k] = (short)extend(reader.read(s), s);
+                k++;
+            }
+        }
+        return dc;
+    }
+
+    /** For each zigzag index of a transformed block, the zigzag index of the input coefficient
+     *  it comes from, with the sign in the top bit (set if the coefficient is negated).
+     */
+    private static int [] createBlockMapping(Transform transform) {
+        int [] inverse_zigzag = new int[64];
+        for(int i=0;i<64;i++) {
+            inverse_zigzag[zigzag_c[i]] = i;
+        }
+        int [] mapping = new int[64];
+        for(int k=0;k<64;k++) {
+            int natural = zigzag_c[k];
+            int v = natural / 8; // vertical frequency of the output coefficient
+            int u = natural % 8; // horizontal frequency of the output coefficient
+            boolean negate = (transform.flip_h && (u % 2) == 1) != (transform.flip_v && (v % 2) == 1);
+            int src_natural = transform.transpose ? u * 8 + v : natural;
+            mapping[k] = inverse_zigzag[src_natural] | (negate ? 0x80000000 : 0);
+        }
+        return mapping;
+    }
+
+    static int getNBits(int value) {
+        if( value < 0 )
+            value = -value;
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    private byte [] encode(Transform transform) throws UnsupportedException {
+        int out_width = transform.transpose ? height : width;
+        int out_height = transform.transpose ? width : height;
+        int out_h_max = transform.transpose ? v_max : h_max;
+        int out_v_max = transform.transpose ? h_max : v_max;
+        if( transform.flip_h && out_width % (8*out_h_max) != 0 ) {
+            throw new UnsupportedException("width " + out_width + " isn't a multiple of the MCU width");
+        }
+        if( transform.flip_v && out_height % (8*out_v_max) != 0 ) {
+            throw new UnsupportedException("height " + out_height + " isn't a multiple of the MCU height");
+        }
+        int out_mcus_x = transform.transpose ? mcus_y : mcus_x;
+        int out_mcus_y = transform.transpose ? mcus_x : mcus_y;
+        int [] mapping = createBlockMapping(transform);
+
+        // first pass gathers the symbol frequencies, to create optimal huffman tables
+        int [][] dc_freqs = new int[4][257];
+        int [][] ac_freqs = new int[4][257];
+        encodeScan(transform, mapping, out_mcus_x, out_mcus_y, null, null, null, dc_freqs, ac_freqs);
+        int [][][] dc_codes = new int[4][][];
+        int [][][] ac_codes = new int[4][][];
+        byte [][] dc_specs = new byte[4][];
+        byte [][] ac_specs = new byte[4][];
+        for(Component component : components) {
+            if( dc_specs[component.td] == null ) {
+                dc_specs[component.td] = createHuffmanSpec(dc_freqs[component.td]);
+                dc_codes[component.td] = createHuffmanCodes(dc_specs[component.td]);
+            }
+            if( ac_specs[component.ta] == null ) {
+                ac_specs[component.ta] = createHuffmanSpec(ac_freqs[component.ta]);
+                ac_codes[component.ta] = createHuffmanCodes(ac_specs[component.ta]);
+            }
+        }
+
+        BitWriter writer = new BitWriter(jpeg.length + jpeg.length/8);
+        writer.writeShort(0xffd8);
+        for(int [] segment : other_segments) {
+            writer.writeBytes(jpeg, segment[0], segment[1] - segment[0]);
+        }
+        // quantization tables, transposed along with the coefficients
+        for(int id=0;id<4;id++) {
+            if( quant_tables[id] == null )
+                continue;
+            int size = quant_precision[id] == 0 ? 64 : 128;
+            writer.writeShort(0xffdb);
+            writer.writeShort(2 + 1 + size);
+            writer.writeByte((quant_precision[id] << 4) | id);
+            for(int k=0;k<64;k++) {
+                int value = quant_tables[id][mapping[k] & 0x3f];
+                if( quant_precision[id] == 0 )
+                    writer.writeByte(value);
+                else
+                    writer.writeShort(value);
+            }
+        }
+        // frame header
+        writer.writeShort(0xff00 | sof_marker);
+        writer.writeShort(8 + 3*components.length);
+        writer.writeByte(8);
+        writer.writeShort(out_height);
+        writer.writeShort(out_width);
+        writer.writeByte(components.length);
+        for(Component component : components) {
+            int out_h = transform.transpose ? component.v : component.h;
+            int out_v = transform.transpose ? component.h : component.v;
+            writer.writeByte(component.id);
+            writer.writeByte((out_h << 4) | out_v);
+            writer.writeByte(component.tq);
+        }
+        // huffman tables
+        for(int id=0;id<4;id++) {
+            for(int table_class=0;table_class<2;table_class++) {
+                byte [] spec = table_class == 0 ? dc_specs[id] : ac_specs[id];
+                if( spec == null )
+                    continue;
+                writer.writeShort(0xffc4);
+                writer.writeShort(2 + 1 + spec.length);
+                writer.writeByte((table_class << 4) | id);
+                writer.writeBytes(spec, 0, spec.length);
+            }
+        }
+        // scan header (no restart intervals)
+        writer.writeShort(0xffda);
+        writer.writeShort(6 + 2*components.length);
+        writer.writeByte(components.length);
+        for(Component component : components) {
+            writer.writeByte(component.id);
+            writer.writeByte((component.td << 4) | component.ta);
+        }
+        writer.writeByte(0);
+        writer.writeByte(63);
+        writer.writeByte(0);
+        encodeScan(transform, mapping, out_mcus_x, out_mcus_y, writer, dc_codes, ac_codes, null, null);
+        writer.flush();
+        writer.writeShort(0xffd9);
+        return writer.toByteArray();
+    }
+
+    /** Encodes the transformed coefficients, either to writer, or if writer is null, just
+     *  counting the frequencies of the symbols.
+     */
+    private void encodeScan(Transform transform, int [] mapping, int out_mcus_x, int out_mcus_y,
+                            BitWriter writer, int [][][] dc_codes, int [][][] ac_codes,
+                            int [][] dc_freqs, int [][] ac_freqs) {
+        int [] dc_pred = new int[components.length];
+        int [] block = new int[64];
+        for(int mcu_y=0;mcu_y<out_mcus_y;mcu_y++) {
+            for(int mcu_x=0;mcu_x<out_mcus_x;mcu_x++) {
+                for(int c=0;c<components.length;c++) {
+                    Component component = components[c];
+                    int out_h = transform.transpose ? component.v : component.h;
+                    int out_v = transform.transpose ? component.h : component.v;
+                    int out_blocks_w = out_mcus_x * out_h;
+                    int out_blocks_h = out_mcus_y * out_v;
+                    for(int by=0;by<out_v;by++) {
+                        for(int bx=0;bx<out_h;bx++) {
+                            // find the input block for this output block
+                            int x = mcu_x * out_h + bx;
+                            int y = mcu_y * out_v + by;
+                            if( transform.flip_h )
+                                x = out_blocks_w - 1 - x;
+                            if( transform.flip_v )
+                                y = out_blocks_h - 1 - y;
+                            int in_offset = 64 * (transform.transpose ? x * component.blocks_w + y : y * component.blocks_w + x);
+                            for(int k=0;k<64;k++) {
+                                int m = mapping[k];
+                                int value = component.coeffs[in_offset + (m & 0x3f)];
+                                block[k] = m < 0 ? -value : value;
+                            }
+                            int diff = block[0] - dc_pred[c];
+                            dc_pred[c] = block[0];
+                            if( writer == null ) {
+                                countBlock(block, diff, dc_freqs[component.td], ac_freqs[component.ta]);
+                            }
+                            else {
+                                writeBlock(writer, block, diff, dc_codes[component.td], ac_codes[component.ta]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void countBlock(int [] block, int diff, int [] dc_freqs, int [] ac_freqs) {
+        dc_freqs[getNBits(diff)]++;
+        int run = 0;
+        for(int k=1;k<64;k++) {
+            int value = block[k];
+            if( value == 0 ) {
+                run++;
+            }
+            else {
+                while( run > 15 ) {
+                    ac_freqs[0xf0]++;
+                    run -= 16;
+                }
+                ac_freqs[(run << 4) | getNBits(value)]++;
+                run = 0;
+            }
+        }
+        if( run > 0 ) {
+            ac_freqs[0x00]++; // end of block
+        }
+    }
+
+    static void writeValue(BitWriter writer, int value, int n_bits) {
+        // negative values are written as value-1 in n_bits (i.e., ones' complement)
+        writer.writeBits(value < 0 ? value - 1 : value, n_bits);
+    }
+
+    private static void writeBlock(BitWriter writer, int [] block, int diff, int [][] dc_codes, int [][] ac_codes) {
+        int n_bits = getNBits(diff);
+        writer.writeBits(dc_codes[0][n_bits], dc_codes[1][n_bits]);
+        writeValue(writer, diff, n_bits);
+        int run = 0;
+        for(int k=1;k<64;k++) {
+            int value = block[k];
+            if( value == 0 ) {
+                run++;
+            }
+            else {
+                while( run > 15 ) {
+                    writer.writeBits(ac_codes[0][0xf0], ac_codes[1][0xf0]);
+                    run -= 16;
+                }
+                n_bits = getNBits(value);
+                int symbol = (run << 4) | n_bits;
+                writer.writeBits(ac_codes[0][symbol], ac_codes[1][symbol]);
+                writeValue(writer, value, n_bits);
+                run = 0;
+            }
+        }
+        if( run > 0 ) {
+            writer.writeBits(ac_codes[0][0x00], ac_codes[1][0x00]);
+        }
+    }
+
+    /** Creates an optimal huffman table for the supplied symbol frequencies, as the contents of a
+     *  DHT segment (16 counts of codes of each length, followed by the symbols), see JPEG spec K.2.
+     */
+    static byte [] createHuffmanSpec(int [] symbol_freqs) {
+        int [] freq = Arrays.copyOf(symbol_freqs, 257);
+        freq[256] = 1; // reserved symbol, so that no code is all 1s
+        int [] code_size = new int[257];
+        int [] others = new int[257];
+        Arrays.fill(others, -1);
+        while( true ) {
+            // find the two least frequent symbols (v1 with the lowest frequency, ties to the highest index)
+            int v1 = -1, v2 = -1;
+            for(int i=0;i<257;i++) {
+                if( freq[i] > 0 && (v1 == -1 || freq[i] <= freq[v1]) ) {
+                    v1 = i;
+                }
+            }
+            for(int i=0;i<257;i++) {
+                if( i != v1 && freq[i] > 0 && (v2 == -1 || freq[i] <= freq[v2]) ) {
+                    v2 = i;
+                }
+            }
+            if( v2 == -1 ) {
+                break;
+            }
+            freq[v1] += freq[v2];
+            freq[v2] = 0;
+            code_size[v1]++;
+            while( others[v1] != -1 ) {
+                v1 = others[v1];
+                code_size[v1]++;
+            }
+            others[v1] = v2;
+            code_size[v2]++;
+            while( others[v2] != -1 ) {
+                v2 = others[v2];
+                code_size[v2]++;
+            }
+        }
+        int [] bits = new int[33];
+        for(int i=0;i<257;i++) {
+            if( code_size[i] > 0 ) {
+                bits[code_size[i]]++;
+            }
+        }
+        // limit code lengths to 16 bits
+        for(int i=32;i>16;i--) {
+            while( bits[i] > 0 ) {
+                int j = i - 2;
+                while( bits[j] == 0 ) {
+                    j--;
+                }
+                bits[i] -= 2;
+                bits[i-1]++;
+                bits[j+1] += 2;
+                bits[j]--;
+            }
+        }
+        // remove the reserved symbol, which has the longest code
+        int i = 16;
+        while( bits[i] == 0 ) {
+            i--;
+        }
+        bits[i]--;
+
+        int n_symbols = 0;
+        for(int l=1;l<=16;l++) {
+            n_symbols += bits[l];
+        }
+        byte [] spec = new byte[16 + n_symbols];
+        for(int l=1;l<=16;l++) {
+            spec[l-1] = (byte)bits[l];
+        }
+        // symbols in order of code size, then symbol value
+        int k = 16;
+        for(int size=1;size<=32;size++) {
+            for(int symbol=0;symbol<256;symbol++) {
+                if( code_size[symbol] == size ) {
+                    spec[k++] = (byte)symbol;
+                }
+            }
+        }
+        return spec;
+    }
+
+    /** Returns the codes for a DHT spec, as {codes, lengths}, each indexed by symbol.
+     */
+    static int [][] createHuffmanCodes(byte [] spec) {
+        int [] codes = new int[256];
+        int [] lengths = new int[256];
+        int code = 0;
+        int k = 16;
+        for(int l=1;l<=16;l++) {
+            for(int i=0;i<(spec[l-1] & 0xff);i++) {
+                int symbol = spec[k++] & 0xff;
+                codes[symbol] = code;
+                lengths[symbol] = l;
+                code++;
+            }
+            code <<= 1;
+        }
+        return new int[][]{codes, lengths};
+    }
+}
@@ -27,6 +27,14 @@ public class LocationSupplier {
     private Location cached_location;
     private long cached_location_ms;
 
+    private NewLocationCallback newLocationCallback;
+
+    /** Callback for when a new location is received, e.g. to prefetch data for that location.
+     */
+    public interface NewLocationCallback {
+        void onNewLocation(Location location);
+    }
+
     LocationSupplier(Context context) {
         this.context = context;
         locationManager = (LocationManager)context.getSystemService(Context.LOCATION_SERVICE);
@@ -66,6 +74,10 @@ public class LocationSupplier {
         }
     }
 
+    public void setNewLocationCallback(NewLocationCallback newLocationCallback) {
+        this.newLocationCallback = newLocationCallback;
+    }
+
     public static class LocationInfo {
         private boolean location_was_cached;
 
@@ -132,6 +144,9 @@ public class LocationSupplier {
                 }
                 this.location = location;
                 cacheLocation();
+                if( newLocationCallback != null ) {
+                    newLocationCallback.onNewLocation(location);
+                }
             }
         }
 
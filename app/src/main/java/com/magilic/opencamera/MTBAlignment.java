@@ -0,0 +1,273 @@
+package com.magilic.opencamera;
+
+import android.util.Log;
+
+/** Auto-alignment based on median threshold bitmaps (MTB), with the bitmaps stored as packed bit
+ *  planes: one bit per pixel for the threshold, and one bit per pixel for the exclusion mask (pixels
+ *  too close to the median are treated as noise and ignored). Errors for candidate offsets are
+ *  then computed 64 pixels at a time with XOR and Long.bitCount().
+ *  This gives identical results to create_mtb.rs/create_mtb() and align_mtb.rs/align_mtb(): sampling
+ *  every step_size'th pixel is equivalent to using level log2(step_size) of a pyramid where each
+ *  level takes every other pixel of the previous level, so we build that pyramid once per image
+ *  rather than striding over the full resolution MTB for every step.
+ */
+public class MTBAlignment {
+    private static final String TAG = "MTBAlignment";
+
+    public static final int min_diff_c = 4; // should be same value as in create_mtb.rs/create_mtb()
+
+    /** A single level of the pyramid. Each row is stored in stride longs, with bit (x & 63) of word
+     *  (x >>> 6) holding pixel x. The final word of each row is always zero, so we can always read
+     *  one word beyond the last pixel.
+     */
+    static class Level {
+        final int width;
+        final int height;
+        final int stride;
+        final long [] bits; // set if the pixel is above the median
+        final long [] mask; // set if the pixel isn't noise, i.e., it isn't within min_diff_c of the median
+
+        Level(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.stride = (width+63)/64 + 1;
+            this.bits = new long[stride*height];
+            this.mask = new long[stride*height];
+        }
+    }
+
+    /** The median threshold bitmap for an image, stored as a pyramid.
+     */
+    public static class MTB {
+        final int width; // width of level 0
+        final int height; // height of level 0
+        final Level [] levels; // levels[i] has step size (1 << i)
+
+        MTB(Level [] levels) {
+            this.width = levels[0].width;
+            this.height = levels[0].height;
+            this.levels = levels;
+        }
+
+        public int getNLevels() {
+            return levels.length;
+        }
+
+        /** Returns the memory used by the bit planes, in bytes.
+         */
+        public long getSizeInBytes() {
+            long size = 0;
+            for(Level level : levels) {
+                size += 8L * (level.bits.length + level.mask.length);
+            }
+            return size;
+        }
+    }
+
+    private MTBAlignment() {
+    }
+
+    /** Creates the median threshold bitmap for the region [mtb_x, mtb_x+mtb_width) x
+     *  [mtb_y, mtb_y+mtb_height) of image.
+     * @param median_value   The median value of max(r, g, b), which should already be clamped to
+     *                       [min_diff_c+1, 255-(min_diff_c+1)].
+     * @param max_step_size  The largest step size that will be passed to align(); this should be a
+     *                       power of 2.
+     */
+    public static MTB createMTB(final HDRProcessorCPU.Image image, final int median_value, final int mtb_x, final int mtb_y, final int mtb_width, final int mtb_height, int max_step_size) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "createMTB");
+            Log.d(TAG, "median_value: " + median_value);
+            Log.d(TAG, "max_step_size: " + max_step_size);
+        }
+        if( mtb_x < 0 || mtb_y < 0 || mtb_width <= 0 || mtb_height <= 0 || mtb_x+mtb_width > image.getWidth() || mtb_y+mtb_height > image.getHeight() ) {
+            throw new IllegalArgumentException("invalid mtb region");
+        }
+        int n_levels = 1;
+        while( (1 << n_levels) <= max_step_size ) {
+            n_levels++;
+        }
+        Level [] levels = new Level[n_levels];
+
+        final Level level0 = new Level(mtb_width, mtb_height);
+        final int width = image.getWidth();
+        TileExecutor.run(mtb_height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                int n_rows = y_stop - y_start;
+                int [] rows = HDRProcessorCPU.getScratchBuffer(0, n_rows*width);
+                image.getRows(rows, mtb_y + y_start, n_rows);
+                for(int y=y_start;y<y_stop;y++) {
+                    int in_offset = (y-y_start)*width + mtb_x;
+                    int out_offset = y*level0.stride;
+                    for(int x=0;x<mtb_width;x+=64) {
+                        int n = Math.min(64, mtb_width-x);
+                        long bits = 0, mask = 0;
+                        for(int i=0;i<n;i++) {
+                            int color = rows[in_offset+x+i];
+                            int value = Math.max(Math.max((color >> 16) & 0xFF, (color >> 8) & 0xFF), color & 0xFF);
+                            int diff = value - median_value;
+                            if( diff > min_diff_c ) {
+                                bits |= 1L << i;
+                                mask |= 1L << i;
+                            }
+                            else if( diff < -min_diff_c ) {
+                                mask |= 1L << i;
+                            }
+                        }
+                        level0.bits[out_offset + (x >>> 6)] = bits;
+                        level0.mask[out_offset + (x >>> 6)] = mask;
+                    }
+                }
+            }
+        });
+        levels[0] = level0;
+
+        for(int i=1;i<n_levels;i++) {
+            levels[i] = downsample(levels[i-1]);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_levels: " + n_levels);
+        return new MTB(levels);
+    }
+
+    /** Returns the even bits of value, packed into the low 32 bits.
+     */
+    private static long compressEvenBits(long value) {
+        value &= 0x5555555555555555L;
+        value = (value | (value >>> 1)) & 0x3333333333333333L;
+        value = (value | (value >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        value = (value | (value >>> 4)) & 0x00FF00FF00FF00FFL;
+        value = (value | (value >>> 8)) & 0x0000FFFF0000FFFFL;
+        value = (value | (value >>> 16)) & 0x00000000FFFFFFFFL;
+        return value;
+    }
+
+    /** Returns a level containing every other pixel of every other row of src.
+     */
+    private static Level downsample(final Level src) {
+        final Level dst = new Level((src.width+1)/2, (src.height+1)/2);
+        final int n_words = dst.stride - 1;
+        TileExecutor.run(dst.height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int src_offset = 2*y*src.stride;
+                    int dst_offset = y*dst.stride;
+                    for(int i=0;i<n_words;i++) {
+                        // src.stride >= 2*n_words, so both words are always valid
+                        int src_i = src_offset + 2*i;
+                        dst.bits[dst_offset+i] = compressEvenBits(src.bits[src_i]) | (compressEvenBits(src.bits[src_i+1]) << 32);
+                        dst.mask[dst_offset+i] = compressEvenBits(src.mask[src_i]) | (compressEvenBits(src.mask[src_i+1]) << 32);
+                    }
+                }
+            }
+        });
+        return dst;
+    }
+
+    /** Returns the 64 bits starting at bit position bit of the row starting at offset.
+     */
+    private static long getBits(long [] array, int offset, int bit) {
+        int word = offset + (bit >>> 6);
+        int shift = bit & 63;
+        if( shift == 0 )
+            return array[word];
+        return (array[word] >>> shift) | (array[word+1] << (64-shift));
+    }
+
+    /** Computes the errors for the 9 offsets (off_x + dx*step_size, off_y + dy*step_size) for
+     *  dx, dy in {-1, 0, 1}, in the same order and with the same values as align_mtb.rs/align_mtb().
+     *  off_x and off_y must be multiples of step_size, and step_size must be a power of 2 no larger
+     *  than the maximum step size passed to createMTB().
+     */
+    public static long [] computeErrors(MTB mtb0, MTB mtb1, int step_size, int off_x, int off_y) {
+        if( mtb0.width != mtb1.width || mtb0.height != mtb1.height ) {
+            throw new IllegalArgumentException("mtb sizes differ");
+        }
+        int level_index = Integer.numberOfTrailingZeros(step_size);
+        if( step_size <= 0 || Integer.bitCount(step_size) != 1 || level_index >= mtb0.levels.length ) {
+            throw new IllegalArgumentException("invalid step_size: " + step_size);
+        }
+        if( off_x % step_size != 0 || off_y % step_size != 0 ) {
+            throw new IllegalArgumentException("offsets must be a multiple of step_size");
+        }
+        final Level level0 = mtb0.levels[level_index];
+        final Level level1 = mtb1.levels[level_index];
+        final int o_x = off_x / step_size;
+        final int o_y = off_y / step_size;
+
+        // align_mtb() is run over [0, width/step_size) x [0, height/step_size), and only counts pixels
+        // where step_size <= x+off_x < width-step_size (and similarly for y); in units of step_size
+        // this is 1 <= x+o_x < (width-1)/step_size
+        final int x_start = Math.max(0, 1-o_x);
+        final int x_stop = Math.min(mtb0.width/step_size, (mtb0.width-1)/step_size - o_x);
+        final int y_start = Math.max(0, 1-o_y);
+        final int y_stop = Math.min(mtb0.height/step_size, (mtb0.height-1)/step_size - o_y);
+        final long [] errors = new long[9];
+        if( x_start >= x_stop || y_start >= y_stop )
+            return errors;
+
+        TileExecutor.run(y_stop - y_start, new TileExecutor.RowTask() {
+            @Override
+            public void run(int tile_start, int tile_stop) {
+                long [] tile_errors = new long[9];
+                for(int y=y_start+tile_start;y<y_start+tile_stop;y++) {
+                    int offset0 = y*level0.stride;
+                    for(int x=x_start;x<x_stop;x+=64) {
+                        int n = x_stop - x;
+                        long valid = n >= 64 ? -1L : (1L << n) - 1;
+                        long bits0 = getBits(level0.bits, offset0, x);
+                        long mask0 = getBits(level0.mask, offset0, x) & valid;
+                        if( mask0 == 0 )
+                            continue;
+                        for(int dy=-1,c=0;dy<=1;dy++) {
+                            int offset1 = (y+o_y+dy)*level1.stride;
+                            for(int dx=-1;dx<=1;dx++,c++) {
+                                int x1 = x + o_x + dx;
+                                long bits1 = getBits(level1.bits, offset1, x1);
+                                long mask1 = getBits(level1.mask, offset1, x1);
+                                tile_errors[c] += Long.bitCount((bits0 ^ bits1) & mask0 & mask1);
+                            }
+                        }
+                    }
+                }
+                synchronized( errors ) {
+                    for(int c=0;c<9;c++) {
+                        errors[c] += tile_errors[c];
+                    }
+                }
+            }
+        });
+        return errors;
+    }
+
+    /** Computes the offset for mtb1 relative to mtb0, by searching with step sizes from
+     *  initial_step_size/2 down to min_step_size, as HDRProcessor.autoAlignment(). The resultant
+     *  offset is written to offset[0] (x) and offset[1] (y), such that evaluating at
+     *  (x+offset[0], y+offset[1]) on mtb1 corresponds to (x, y) on mtb0.
+     */
+    public static void align(int [] offset, MTB mtb0, MTB mtb1, int initial_step_size, int min_step_size) {
+        offset[0] = 0;
+        offset[1] = 0;
+        int step_size = initial_step_size;
+        while( step_size > min_step_size ) {
+            step_size /= 2;
+            long [] errors = computeErrors(mtb0, mtb1, step_size, offset[0], offset[1]);
+            int best_id = -1;
+            long best_error = -1;
+            for(int j=0;j<9;j++) {
+                if( best_id==-1 || errors[j] < best_error ) {
+                    best_error = errors[j];
+                    best_id = j;
+                }
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "step_size " + step_size + " best_id " + best_id + " error: " + best_error);
+            offset[0] += (best_id % 3 - 1) * step_size;
+            offset[1] += (best_id / 3 - 1) * step_size;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "offset: " + offset[0] + " , " + offset[1]);
+    }
+}
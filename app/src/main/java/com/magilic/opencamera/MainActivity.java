@@ -1412,8 +1412,12 @@ public class MainActivity extends Activity {
             e.printStackTrace();
         }
         applicationInterface.getLocationSupplier().freeLocationListeners();
+        applicationInterface.stopPanorama(true);
         applicationInterface.getGyroSensor().disableSensors();
         applicationInterface.getImageSaver().onPause();
+        if (PreferenceManager.getDefaultSharedPreferences(this).getBoolean(PreferenceKeys.ShowSaveMetricsPreferenceKey, false)) {
+            applicationInterface.getImageSaver().exportSaveMetrics();
+        }
         soundPoolManager.releaseSound();
         applicationInterface.clearLastImages(); // this should happen when pausing the preview, but call explicitly just to be safe
         applicationInterface.getDrawPreview().clearGhostImage();
@@ -1951,6 +1955,7 @@ public class MainActivity extends Activity {
                 case "preference_show_time":
                 case "preference_free_memory":
                 case "preference_show_iso":
+                case "preference_show_save_metrics":
                 case "preference_histogram":
                 case "preference_zebra_stripes":
                 case "preference_zebra_stripes_foreground_color":
@@ -1991,6 +1996,9 @@ public class MainActivity extends Activity {
                     //case "preference_nr_save": // we could probably whitelist this, but have not done so in case in future we allow RAW to be saved for the base image
                     //case "preference_hdr_save_expo": // we need to update if this is changed, as it affects whether we request RAW or not in HDR mode when RAW is enabled
                 case "preference_hdr_contrast_enhancement":
+                case "preference_hdr_backend":
+                case "preference_nr_accumulator":
+                case "preference_fast_burst_keep_sharpest":
                     //case "preference_expo_bracketing_n_images": // need to set up camera controller
                     //case "preference_expo_bracketing_stops": // need to set up camera controller
                 case "preference_panorama_crop":
@@ -2465,6 +2473,7 @@ public class MainActivity extends Activity {
         camera_in_background = false;
 
         magneticSensor.clearDialog(); // if the magnetic accuracy was opened, it must have been closed now
+        applicationInterface.checkReverseGeocoder(); // in case address stamps or subtitles have been disabled from the Settings
         if (!app_is_paused) {
             // Needs to be called after camera_in_background is set to false.
             // Note that the app_is_paused guard is in some sense unnecessary, as initLocation tests for that too,
@@ -2872,7 +2881,7 @@ public class MainActivity extends Activity {
         if (MyDebug.LOG)
             Log.d(TAG, "createImageSavingNotification");
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            int n_images_to_save = applicationInterface.getImageSaver().getNRealImagesToSave();
+            int n_images_to_save = applicationInterface.getImageSaver().getNImagesToSave();
             Notification.Builder builder = new Notification.Builder(this, CHANNEL_ID)
                     .setSmallIcon(R.drawable.ic_stat_notify_take_photo)
                     .setContentTitle(getString(R.string.app_name))
@@ -3611,6 +3620,23 @@ public class MainActivity extends Activity {
         closePopup();
 
         this.last_continuous_fast_burst = continuous_fast_burst;
+        if (applicationInterface.getPhotoMode() == MyApplicationInterface.PhotoMode.Panorama && !preview.isVideo()) {
+            if (preview.isTakingPhoto()) {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "ignore whilst taking panorama photo");
+            } else if (applicationInterface.getGyroSensor().isRecording()) {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "panorama complete");
+                applicationInterface.finishPanorama();
+                return;
+            } else if (!applicationInterface.canTakeNewPhoto()) {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "can't start panorama, as not enough memory for another photo");
+                return;
+            } else {
+                applicationInterface.startPanorama();
+            }
+        }
         this.preview.takePicturePressed(photo_snapshot, continuous_fast_burst);
     }
 
@@ -4507,6 +4533,7 @@ public class MainActivity extends Activity {
         if (applicationInterface.getPhotoMode() == MyApplicationInterface.PhotoMode.Panorama) {
             applicationInterface.getGyroSensor().enableSensors();
         } else {
+            applicationInterface.stopPanorama(true);
             applicationInterface.getGyroSensor().disableSensors();
         }
     }
@@ -0,0 +1,189 @@
+package com.magilic.opencamera;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.util.Log;
+
+/** Batches up the work of making newly saved photos known to the rest of the system, so that a
+ *  burst doesn't make several binder calls per photo on the save path:
+ *  - Files to be media scanned are queued, and scanned together with a single
+ *    MediaScannerConnection.scanFile() call.
+ *  - Photos saved with the MediaStore API don't need scanning, but are announced and set as the
+ *    last media scanned once per batch. Their IS_PENDING flag isn't batched: it's cleared by the
+ *    caller as soon as each photo is written, as otherwise the photo would be lost if the process
+ *    died before the batch was flushed.
+ *  Queued work is flushed when flush() is called (e.g., when the ImageSaver queue becomes empty at
+ *  the end of a burst), or otherwise after flush_delay_ms_c, so that a long burst is still
+ *  published as it goes. Only the most recent photo of each flush is announced and recorded as
+ *  the last media scanned (for the gallery thumbnail).
+ *  The time taken for each batch is recorded as SaveMetrics.Stage.MEDIA_SCAN.
+ */
+class MediaScanBatcher {
+    private static final String TAG = "MediaScanBatcher";
+
+    private static final long flush_delay_ms_c = 500;
+
+    private final Context context;
+    private final StorageUtils storageUtils;
+    private final MyApplicationInterface applicationInterface;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Runnable flush_runnable = new Runnable() {
+        @Override
+        public void run() {
+            doFlush();
+        }
+    };
+
+    // the following are synchronized on this
+    private List<File> pending_files = new ArrayList<>();
+    private File pending_last_scanned_file; // the most recent of pending_files to set as the last media scanned
+    private Uri pending_announce_uri; // the most recent MediaStore item to announce
+    private boolean flush_scheduled;
+
+    MediaScanBatcher(Context context, StorageUtils storageUtils, MyApplicationInterface applicationInterface) {
+        this.context = context;
+        this.storageUtils = storageUtils;
+        this.applicationInterface = applicationInterface;
+        this.executor = new ScheduledThreadPoolExecutor(1);
+        this.executor.setKeepAliveTime(10, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Queues a newly saved photo to be media scanned, see StorageUtils.broadcastFile().
+     */
+    void scanFile(File file, boolean set_last_scanned) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "scanFile: " + file.getAbsolutePath());
+        synchronized( this ) {
+            pending_files.add(file);
+            if( set_last_scanned ) {
+                pending_last_scanned_file = file;
+            }
+            scheduleFlush();
+        }
+    }
+
+    /** Queues a photo saved with the MediaStore API to be announced and set as the last media
+     *  scanned. IS_PENDING (on Android 10+) must already have been cleared.
+     */
+    void announceMediaStoreImage(Uri uri) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "announceMediaStoreImage: " + uri);
+        synchronized( this ) {
+            pending_announce_uri = uri;
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if( !flush_scheduled ) {
+            flush_scheduled = true;
+            executor.schedule(flush_runnable, flush_delay_ms_c, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Publishes any queued photos now (in the background), rather than waiting for the timer.
+     */
+    void flush() {
+        synchronized( this ) {
+            if( pending_files.size() == 0 && pending_announce_uri == null ) {
+                return;
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "flush");
+        executor.execute(flush_runnable);
+    }
+
+    private void doFlush() {
+        List<File> files;
+        File last_scanned_file;
+        Uri announce_uri;
+        synchronized( this ) {
+            files = pending_files;
+            last_scanned_file = pending_last_scanned_file;
+            announce_uri = pending_announce_uri;
+            pending_files = new ArrayList<>();
+            pending_last_scanned_file = null;
+            pending_announce_uri = null;
+            // any items queued from now on need a new flush
+            flush_scheduled = false;
+        }
+        if( announce_uri != null ) {
+            announceUri(announce_uri);
+        }
+        if( files.size() > 0 ) {
+            scanFiles(files, last_scanned_file);
+        }
+    }
+
+    private SaveMetrics getSaveMetrics() {
+        ImageSaver imageSaver = applicationInterface.getImageSaver();
+        return imageSaver != null ? imageSaver.getSaveMetrics() : null;
+    }
+
+    private void announceUri(Uri announce_uri) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "announce mediastore item");
+        // in theory this is pointless, as announceUri no longer does anything on Android 7+,
+        // and mediastore method is only used on Android 10+, but keep this just in case
+        // announceUri does something in future
+        storageUtils.announceUri(announce_uri, true, false);
+        // we can use the media uri directly, rather than having to scan it
+        storageUtils.setLastMediaScanned(announce_uri);
+    }
+
+    private void scanFiles(final List<File> files, final File last_scanned_file) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "scan " + files.size() + " files");
+        final File announce_file = files.get(files.size()-1);
+        String [] paths = new String[files.size()];
+        for(int i=0;i<files.size();i++) {
+            paths[i] = files.get(i).getAbsolutePath();
+        }
+        // the scan is complete once all the files have been scanned
+        final SaveMetrics save_metrics = getSaveMetrics();
+        final long scan_start = save_metrics != null ? save_metrics.startTimer() : 0;
+        final AtomicInteger n_remaining = new AtomicInteger(files.size());
+        MediaScannerConnection.scanFile(context, paths, null,
+                new MediaScannerConnection.OnScanCompletedListener() {
+                    public void onScanCompleted(String path, Uri uri) {
+                        storageUtils.failed_to_scan = false;
+                        if( MyDebug.LOG ) {
+                            Log.d(TAG, "Scanned " + path + ":");
+                            Log.d(TAG, "-> uri=" + uri);
+                        }
+                        if( n_remaining.decrementAndGet() == 0 && save_metrics != null ) {
+                            save_metrics.stopTimer(SaveMetrics.batch_key_c, SaveMetrics.Stage.MEDIA_SCAN, scan_start);
+                        }
+                        File file = null;
+                        for(File this_file : files) {
+                            if( this_file.getAbsolutePath().equals(path) ) {
+                                file = this_file;
+                                break;
+                            }
+                        }
+                        if( file == null ) {
+                            Log.e(TAG, "scanned unknown file");
+                            return;
+                        }
+                        if( file == last_scanned_file ) {
+                            storageUtils.setLastMediaScanned(uri);
+                        }
+                        if( file == announce_file ) {
+                            storageUtils.announceUri(uri, true, false);
+                        }
+                        applicationInterface.scannedFile(file, uri);
+                    }
+                }
+        );
+    }
+}
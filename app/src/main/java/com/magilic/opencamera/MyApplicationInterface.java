@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
@@ -27,12 +28,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.location.Address;
-import android.location.Geocoder;
 import android.location.Location;
 import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
@@ -73,6 +73,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
     private final MainActivity main_activity;
     private final LocationSupplier locationSupplier;
+    private final ReverseGeocoder reverseGeocoder;
     private final GyroSensor gyroSensor;
     private final StorageUtils storageUtils;
     private final DrawPreview drawPreview;
@@ -80,6 +81,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
     private final static float panorama_pics_per_screen = 3.33333f;
     private int n_capture_images = 0; // how many calls to onPictureTaken() since the last call to onCaptureStarted()
+    private BurstSelector burst_selector; // non-null if the current fast burst only keeps the sharpest images
+    private static final int burst_sharpness_size_c = 1024; // burst images are decoded at about this size for scoring sharpness
+    private volatile boolean use_picture_buffer; // whether JPEGs for the current capture are passed in pooled buffers, see getPictureBuffer()
     private int n_capture_images_raw = 0; // how many calls to onRawPictureTaken() since the last call to onCaptureStarted()
     private int n_panorama_pics = 0;
     public final static int max_panorama_pics_c = 10; // if we increase this, review against memory requirements under MainActivity.supportsPanorama()
@@ -163,6 +167,16 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         this.main_activity = main_activity;
         this.sharedPreferences = PreferenceManager.getDefaultSharedPreferences(main_activity);
         this.locationSupplier = new LocationSupplier(main_activity);
+        this.reverseGeocoder = new ReverseGeocoder(main_activity);
+        this.locationSupplier.setNewLocationCallback(new LocationSupplier.NewLocationCallback() {
+            @Override
+            public void onNewLocation(Location location) {
+                if (needsAddressForLocation()) {
+                    // look up the address now, so it's cached by the time it's needed for a photo stamp or subtitle
+                    reverseGeocoder.prefetch(location);
+                }
+            }
+        });
         if (MyDebug.LOG)
             Log.d(TAG, "MyApplicationInterface: time after creating location supplier: " + (System.currentTimeMillis() - debug_time));
         this.gyroSensor = new GyroSensor(main_activity);
@@ -229,6 +243,30 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return locationSupplier;
     }
 
+    ReverseGeocoder getReverseGeocoder() {
+        return reverseGeocoder;
+    }
+
+    /**
+     * Whether addresses are needed for photo stamps or video subtitles.
+     */
+    private boolean needsAddressForLocation() {
+        if (!getGeotaggingPref() || getStampGeoAddressPref().equals("preference_stamp_geo_address_no")) {
+            return false;
+        }
+        return getStampPref().equals("preference_stamp_yes") || getVideoSubtitlePref().equals("preference_video_subtitle_yes");
+    }
+
+    /**
+     * Deletes the cached addresses if they're no longer needed, so we don't keep a history of
+     * locations for a feature that's disabled.
+     */
+    void checkReverseGeocoder() {
+        if (!needsAddressForLocation()) {
+            reverseGeocoder.clear();
+        }
+    }
+
     public GyroSensor getGyroSensor() {
         return gyroSensor;
     }
@@ -1320,7 +1358,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             }
         }
 
-        int photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
+        long photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
         if (imageSaver.queueWouldBlock(photo_cost)) {
             if (MyDebug.LOG)
                 Log.d(TAG, "canTakeNewPhoto: no, as queue would block");
@@ -1329,6 +1367,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
         // even if the queue isn't full, we may apply additional limits
         int n_images_to_save = imageSaver.getNImagesToSave();
+        long n_bytes_to_save = imageSaver.getNBytesToSave();
         PhotoMode photo_mode = getPhotoMode();
         if (photo_mode == PhotoMode.FastBurst || photo_mode == PhotoMode.Panorama) {
             // only allow one fast burst at a time, so require queue to be empty
@@ -1340,7 +1379,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if (photo_mode == PhotoMode.NoiseReduction) {
             // allow a max of 2 photos in memory when at max of 8 images
-            if (n_images_to_save >= 2 * photo_cost) {
+            if (n_bytes_to_save >= 2 * photo_cost) {
                 if (MyDebug.LOG)
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for nr");
                 return false;
@@ -1348,7 +1387,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if (n_jpegs > 1) {
             // if in any other kind of burst mode (e.g., expo burst, HDR), allow a max of 3 photos in memory
-            if (n_images_to_save >= 3 * photo_cost) {
+            if (n_bytes_to_save >= 3 * photo_cost) {
                 if (MyDebug.LOG)
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for burst");
                 return false;
@@ -1356,15 +1395,15 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if (n_raw > 0) {
             // if RAW mode, allow a max of 3 photos
-            if (n_images_to_save >= 3 * photo_cost) {
+            if (n_bytes_to_save >= 3 * photo_cost) {
                 if (MyDebug.LOG)
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for raw");
                 return false;
             }
         }
         // otherwise, still have a max limit of 5 photos
-        if (n_images_to_save >= 5 * photo_cost) {
-            if (main_activity.supportsNoiseReduction() && n_images_to_save <= 8) {
+        if (n_bytes_to_save >= 5 * photo_cost) {
+            if (main_activity.supportsNoiseReduction() && n_bytes_to_save <= imageSaver.computePhotoCost(0, CameraController.N_IMAGES_NR_DARK)) {
                 // if we take a photo in NR mode, then switch to std mode, it doesn't make sense to suddenly block!
                 // so need to at least allow a new photo, if the number of photos is less than 1 NR photo
             } else {
@@ -1431,6 +1470,58 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return 1;
     }
 
+    /**
+     * Returns the number of images to keep from each fast burst, if the "keep sharpest" option
+     * applies, otherwise 0. This isn't supported for RAW, or image capture intents.
+     */
+    private int getBurstKeepSharpestNImages() {
+        if (getPhotoMode() != PhotoMode.FastBurst || main_activity.getPreview().isVideo() || isImageCaptureIntent()) {
+            return 0;
+        }
+        if (getRawPref() != RawPref.RAWPREF_JPEG_ONLY) {
+            return 0;
+        }
+        String n_keep_value = sharedPreferences.getString(PreferenceKeys.FastBurstKeepSharpestPreferenceKey, "0");
+        int n_keep;
+        try {
+            n_keep = Integer.parseInt(n_keep_value);
+        } catch (NumberFormatException e) {
+            if (MyDebug.LOG)
+                Log.e(TAG, "failed to parse FastBurstKeepSharpestPreferenceKey value: " + n_keep_value);
+            e.printStackTrace();
+            n_keep = 0;
+        }
+        if (n_keep >= getBurstNImages()) {
+            // keeping everything anyway
+            return 0;
+        }
+        return n_keep;
+    }
+
+    /**
+     * Scores how sharp a burst image is, for BurstSelector. The image is decoded downscaled, as
+     * camera shake is visible at low resolution.
+     */
+    private static float computeBurstImageSharpness(byte[] jpeg) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        int sample_size = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (2 * sample_size) >= burst_sharpness_size_c) {
+            sample_size *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sample_size;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (bitmap == null) {
+            Log.e(TAG, "failed to decode burst image for sharpness");
+            return 0.0f;
+        }
+        float sharpness = HDRProcessorCPU.computeSharpness(new HDRProcessor.BitmapImage(bitmap));
+        bitmap.recycle();
+        return sharpness;
+    }
+
     @Override
     public boolean getBurstForNoiseReduction() {
         PhotoMode photo_mode = getPhotoMode();
@@ -1836,46 +1927,34 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                         subtitles.append(datetime_stamp).append("\n");
 
                     if (gps_stamp.length() > 0) {
-                        Address address = null;
-                        if (store_location && !preference_stamp_geo_address.equals("preference_stamp_geo_address_no")) {
+                        List<String> address_lines = null;
+                        if (store_location && location != null && !preference_stamp_geo_address.equals("preference_stamp_geo_address_no")) {
                             // try to find an address
                             if (main_activity.isAppPaused()) {
                                 // seems safer to not try to initiate potential network connections (via geocoder) if Open Camera
                                 // is paused - this shouldn't happen, since we stop video when paused, but just to be safe
                                 if (MyDebug.LOG)
                                     Log.d(TAG, "don't call geocoder for video subtitles  as app is paused?!");
-                            } else if (Geocoder.isPresent()) {
-                                if (MyDebug.LOG)
-                                    Log.d(TAG, "geocoder is present");
-                                Geocoder geocoder = new Geocoder(main_activity, Locale.getDefault());
-                                try {
-                                    List<Address> addresses = geocoder.getFromLocation(location.getLatitude(), location.getLongitude(), 1);
-                                    if (addresses != null && addresses.size() > 0) {
-                                        address = addresses.get(0);
-                                        // don't log address, in case of privacy!
-                                        if (MyDebug.LOG) {
-                                            Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
-                                        }
-                                    }
-                                } catch (Exception e) {
-                                    Log.e(TAG, "failed to read from geocoder");
-                                    e.printStackTrace();
-                                }
+                                address_lines = reverseGeocoder.getCachedAddressLines(location);
                             } else {
-                                if (MyDebug.LOG)
-                                    Log.d(TAG, "geocoder not present");
+                                // normally cached, as addresses are prefetched when the location changes
+                                address_lines = reverseGeocoder.getAddressLines(location);
+                            }
+                            if (address_lines != null && address_lines.size() == 0) {
+                                // no address for this location
+                                address_lines = null;
                             }
                         }
 
-                        if (address != null) {
-                            for (int i = 0; i <= address.getMaxAddressLineIndex(); i++) {
+                        if (address_lines != null) {
+                            for (int i = 0; i < address_lines.size(); i++) {
                                 // write in forward order
-                                String addressLine = address.getAddressLine(i);
+                                String addressLine = address_lines.get(i);
                                 subtitles.append(addressLine).append("\n");
                             }
                         }
 
-                        if (address == null || preference_stamp_geo_address.equals("preference_stamp_geo_address_both")) {
+                        if (address_lines == null || preference_stamp_geo_address.equals("preference_stamp_geo_address_both")) {
                             if (MyDebug.LOG)
                                 Log.d(TAG, "display gps coords");
                             subtitles.append(gps_stamp).append("\n");
@@ -2366,9 +2445,180 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             Log.d(TAG, "onCaptureStarted");
         n_capture_images = 0;
         n_capture_images_raw = 0;
+        if (burst_selector != null) {
+            // a previous burst never completed, so release the images it holds
+            burst_selector.cancel();
+            burst_selector = null;
+        }
+        int n_keep = getBurstKeepSharpestNImages();
+        if (n_keep > 0) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "keep sharpest " + n_keep + " burst images");
+            burst_selector = imageSaver.createBurstSelector(n_keep, new BurstSelector.Scorer() {
+                @Override
+                public float computeScore(byte[] jpeg) {
+                    return computeBurstImageSharpness(jpeg);
+                }
+            });
+        }
+        use_picture_buffer = canUsePictureBuffer();
+        if (MyDebug.LOG)
+            Log.d(TAG, "use_picture_buffer: " + use_picture_buffer);
         drawPreview.onCaptureStarted();
     }
 
+    /**
+     * Whether the JPEGs for the capture being started can be passed to the image saver in pooled
+     * buffers rather than byte arrays: this is only the case for photos that are saved unmodified,
+     * one per request.
+     */
+    private boolean canUsePictureBuffer() {
+        PhotoMode photo_mode = getPhotoMode();
+        if (main_activity.getPreview().isVideo()) {
+            // must be in photo snapshot while recording video mode, only support standard photo mode
+            photo_mode = PhotoMode.Standard;
+        }
+        if (photo_mode != PhotoMode.Standard && photo_mode != PhotoMode.FastBurst) {
+            return false;
+        } else if (burst_selector != null || isImageCaptureIntent() || getRawPref() != RawPref.RAWPREF_JPEG_ONLY) {
+            return false;
+        } else if (getImageFormatPref() != ImageSaver.Request.ImageFormat.STD || getAutoStabilisePref()) {
+            return false;
+        } else if (getStampPref().equals("preference_stamp_yes") || getTextStampPref().length() > 0) {
+            return false;
+        }
+        boolean is_front_facing = main_activity.getPreview().getCameraController() != null && (main_activity.getPreview().getCameraController().getFacing() == CameraController.Facing.FACING_FRONT);
+        boolean mirror = is_front_facing && sharedPreferences.getString(PreferenceKeys.FrontCameraMirrorKey, "preference_front_camera_mirror_no").equals("preference_front_camera_mirror_photo");
+        return !mirror;
+    }
+
+    /**
+     * Starts taking a panorama: the first photo is taken by the caller, after which the user is
+     * guided to each next photo with gyro targets, see setNextPanoramaPoint().
+     */
+    void startPanorama() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "startPanorama");
+        gyroSensor.startRecording();
+        n_panorama_pics = 0;
+        panorama_pic_accepted = false;
+        panorama_dir_left_to_right = true;
+        main_activity.getMainUI().setTakePhotoIcon();
+        main_activity.getMainUI().showGUI();
+    }
+
+    /**
+     * Stops taking a panorama. Unless cancelled, the image batch is finished, so that the
+     * panorama is saved.
+     */
+    void stopPanorama(boolean is_cancelled) {
+        if (MyDebug.LOG) {
+            Log.d(TAG, "stopPanorama");
+            Log.d(TAG, "is_cancelled: " + is_cancelled);
+        }
+        if (!gyroSensor.isRecording()) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "...but not recording");
+            return;
+        }
+        gyroSensor.stopRecording();
+        clearPanoramaPoint();
+        if (is_cancelled || n_panorama_pics == 0 || imageSaver.getImageBatchRequest() == null) {
+            imageSaver.flushImageBatch();
+        } else {
+            imageSaver.getImageBatchRequest().panorama_dir_left_to_right = panorama_dir_left_to_right;
+            boolean image_capture_intent = isImageCaptureIntent();
+            boolean do_in_background = saveInBackground(image_capture_intent);
+            imageSaver.finishImageBatch(do_in_background);
+        }
+        main_activity.getMainUI().setTakePhotoIcon();
+        main_activity.getMainUI().showGUI();
+    }
+
+    void finishPanorama() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "finishPanorama");
+        stopPanorama(false);
+    }
+
+    /**
+     * Sets the gyro target for the next panorama photo, or finishes the panorama if we have
+     * enough photos. After the first photo, targets are set either side, as the user may rotate
+     * in either direction.
+     *
+     * @param repeat Whether the last photo wasn't accepted, so needs to be retaken.
+     */
+    private void setNextPanoramaPoint(boolean repeat) {
+        float camera_angle_y = main_activity.getPreview().getViewAngleY(false);
+        if (!repeat)
+            n_panorama_pics++;
+        if (MyDebug.LOG)
+            Log.d(TAG, "n_panorama_pics is now: " + n_panorama_pics);
+        if (n_panorama_pics == max_panorama_pics_c) {
+            if (MyDebug.LOG)
+                Log.d(TAG, "reached max panorama limit");
+            finishPanorama();
+            return;
+        }
+        float angle = (float) Math.toRadians(camera_angle_y) * n_panorama_pics;
+        if (n_panorama_pics > 1 && !panorama_dir_left_to_right) {
+            angle = -angle;
+        }
+        float x = (float) Math.sin(angle / panorama_pics_per_screen);
+        float z = (float) -Math.cos(angle / panorama_pics_per_screen);
+        setNextPanoramaPoint(x, 0.0f, z);
+        if (n_panorama_pics == 1) {
+            // also allow the user to rotate right to left
+            x = (float) Math.sin(-angle / panorama_pics_per_screen);
+            z = (float) -Math.cos(-angle / panorama_pics_per_screen);
+            gyroSensor.addTarget(x, 0.0f, z);
+            drawPreview.addGyroDirectionMarker(x, 0.0f, z);
+        }
+    }
+
+    private void setNextPanoramaPoint(float x, float y, float z) {
+        final float target_angle = 1.0f * 0.01745329252f;
+        final float upright_angle_tol = 2.0f * 0.017452406437f;
+        final float too_far_angle = 45.0f * 0.01745329252f;
+        gyroSensor.setTarget(x, y, z, target_angle, upright_angle_tol, too_far_angle, new GyroSensor.TargetCallback() {
+            @Override
+            public void onAchieved(int indx) {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "TargetCallback.onAchieved: " + indx);
+                gyroSensor.disableTargetCallback();
+                if (n_panorama_pics == 1) {
+                    panorama_dir_left_to_right = indx == 0;
+                    if (MyDebug.LOG)
+                        Log.d(TAG, "panorama_dir_left_to_right: " + panorama_dir_left_to_right);
+                }
+                main_activity.getPreview().takePicturePressed(false, false);
+            }
+
+            @Override
+            public void onTooFar() {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "TargetCallback.onTooFar");
+                if (!main_activity.is_test) {
+                    main_activity.getPreview().showToast(null, R.string.panorama_cancelled);
+                    MyApplicationInterface.this.stopPanorama(true);
+                }
+            }
+        });
+        drawPreview.setGyroDirectionMarker(x, y, z);
+    }
+
+    private void clearPanoramaPoint() {
+        gyroSensor.clearTarget();
+        drawPreview.clearGyroDirectionMarker();
+    }
+
+    @Override
+    public ByteBuffer getPictureBuffer(int size) {
+        if (!use_picture_buffer)
+            return null;
+        return imageSaver.getJpegBufferPool().acquire(size);
+    }
+
     @Override
     public void onPictureCompleted() {
         if (MyDebug.LOG)
@@ -2385,6 +2635,19 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             boolean image_capture_intent = isImageCaptureIntent();
             boolean do_in_background = saveInBackground(image_capture_intent);
             imageSaver.finishImageBatch(do_in_background);
+        } else if (photo_mode == PhotoMode.Panorama && gyroSensor.isRecording()) {
+            if (panorama_pic_accepted) {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "set next panorama point");
+                this.setNextPanoramaPoint(false);
+            } else {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "panorama pic wasn't accepted");
+                this.setNextPanoramaPoint(true);
+            }
+        } else if (burst_selector != null) {
+            finishBurstSelection(burst_selector);
+            burst_selector = null;
         } else if (photo_mode == PhotoMode.FocusBracketing) {
             if (MyDebug.LOG)
                 Log.d(TAG, "focus bracketing completed");
@@ -2831,10 +3094,14 @@ public class MyApplicationInterface extends BasicApplicationInterface {
      *                     resultant image, this indicates if all the base images should also be saved
      *                     as separate images.
      * @param images       The set of images.
+     * @param jpeg_buffer  If non-null, a single JPEG held in a buffer from getPictureBuffer(), in
+     *                     which case images should be empty.
      * @param current_date The current date/time stamp for the images.
+     * @param image_index  The index of the image in the burst, used for the filename suffix for
+     *                     modes where images in a burst are saved as separate requests.
      * @return Whether saving was successful.
      */
-    private boolean saveImage(boolean save_expo, List<byte[]> images, Date current_date) {
+    private boolean saveImage(boolean save_expo, List<byte[]> images, ByteBuffer jpeg_buffer, Date current_date, int image_index) {
         if (MyDebug.LOG)
             Log.d(TAG, "saveImage");
 
@@ -2896,6 +3163,22 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         String custom_tag_artist = sharedPreferences.getString(PreferenceKeys.ExifArtistPreferenceKey, "");
         String custom_tag_copyright = sharedPreferences.getString(PreferenceKeys.ExifCopyrightPreferenceKey, "");
         String preference_hdr_contrast_enhancement = sharedPreferences.getString(PreferenceKeys.HDRContrastEnhancementPreferenceKey, "preference_hdr_contrast_enhancement_smart");
+        String preference_hdr_backend = sharedPreferences.getString(PreferenceKeys.HDRBackendPreferenceKey, "preference_hdr_backend_renderscript");
+        HDRProcessor.Backend hdr_backend = preference_hdr_backend.equals("preference_hdr_backend_cpu") ? HDRProcessor.Backend.BACKEND_CPU : HDRProcessor.Backend.BACKEND_RENDERSCRIPT;
+        String preference_nr_accumulator = sharedPreferences.getString(PreferenceKeys.NRAccumulatorPreferenceKey, "preference_nr_accumulator_float");
+        HDRProcessorCPU.FloatImage.Storage avg_storage;
+        switch (preference_nr_accumulator) {
+            case "preference_nr_accumulator_half":
+                avg_storage = HDRProcessorCPU.FloatImage.Storage.STORAGE_HALF_FLOAT;
+                break;
+            case "preference_nr_accumulator_fixed16":
+                avg_storage = HDRProcessorCPU.FloatImage.Storage.STORAGE_FIXED16;
+                break;
+            default:
+                avg_storage = HDRProcessorCPU.FloatImage.Storage.STORAGE_FLOAT;
+                break;
+        }
+        imageSaver.setHDRProcessorSettings(hdr_backend, avg_storage);
 
         int iso = 800; // default value if we can't get ISO
         long exposure_time = 1000000000L / 30; // default value if we can't get shutter speed
@@ -3020,11 +3303,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             boolean force_suffix = forceSuffix(photo_mode);
             success = imageSaver.saveImageJpeg(do_in_background, is_hdr,
                     force_suffix,
-                    // N.B., n_capture_images will be 1 for first image, not 0, so subtract 1 so we start off from _0.
-                    // (It wouldn't be a huge problem if we did start from _1, but it would be inconsistent with the naming
-                    // of images where images.size() > 1 (e.g., expo bracketing mode) where we also start from _0.)
-                    force_suffix ? (n_capture_images - 1) : 0,
-                    save_expo, images,
+                    force_suffix ? image_index : 0,
+                    save_expo, images, jpeg_buffer,
                     image_capture_intent, image_capture_intent_uri,
                     using_camera2,
                     image_format, image_quality,
@@ -3059,10 +3339,19 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         if (MyDebug.LOG)
             Log.d(TAG, "n_capture_images is now " + n_capture_images);
 
+        if (burst_selector != null) {
+            // only the sharpest images are saved, once the burst is complete
+            burst_selector.addImage(data, current_date);
+            return true;
+        }
+
         List<byte[]> images = new ArrayList<>();
         images.add(data);
 
-        boolean success = saveImage(false, images, current_date);
+        // N.B., n_capture_images will be 1 for first image, not 0, so subtract 1 so we start off from _0.
+        // (It wouldn't be a huge problem if we did start from _1, but it would be inconsistent with the naming
+        // of images where images.size() > 1 (e.g., expo bracketing mode) where we also start from _0.)
+        boolean success = saveImage(false, images, null, current_date, n_capture_images - 1);
 
         if (MyDebug.LOG)
             Log.d(TAG, "onPictureTaken complete, success: " + success);
@@ -3070,6 +3359,53 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return success;
     }
 
+    @Override
+    public boolean onPictureBufferTaken(ByteBuffer data, Date current_date) {
+        if (MyDebug.LOG)
+            Log.d(TAG, "onPictureBufferTaken");
+
+        n_capture_images++;
+        if (MyDebug.LOG)
+            Log.d(TAG, "n_capture_images is now " + n_capture_images);
+
+        // see onPictureTaken() for why we subtract 1
+        boolean success = saveImage(false, new ArrayList<byte[]>(), data, current_date, n_capture_images - 1);
+
+        if (MyDebug.LOG)
+            Log.d(TAG, "onPictureBufferTaken complete, success: " + success);
+
+        return success;
+    }
+
+    /**
+     * Saves the images kept by the selector, once they've all been scored. The images keep their
+     * index in the burst as the filename suffix.
+     */
+    private void finishBurstSelection(BurstSelector selector) {
+        if (MyDebug.LOG)
+            Log.d(TAG, "finishBurstSelection");
+        selector.finish(new BurstSelector.Callback() {
+            @Override
+            public void onSelected(final List<BurstSelector.Frame> frames) {
+                // save on the UI thread, as with onPictureCompleted()
+                main_activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (MyDebug.LOG)
+                            Log.d(TAG, "saving " + frames.size() + " sharpest burst images");
+                        for (BurstSelector.Frame frame : frames) {
+                            List<byte[]> images = new ArrayList<>();
+                            images.add(frame.getData());
+                            if (!saveImage(false, images, null, frame.date, frame.index)) {
+                                Log.e(TAG, "failed to save burst image " + frame.index);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     void addLastImage(File file, boolean share) {
         if (MyDebug.LOG) {
             Log.d(TAG, "addLastImage: " + file);
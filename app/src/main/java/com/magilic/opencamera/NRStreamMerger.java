@@ -0,0 +1,224 @@
+package com.magilic.opencamera;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Merges the images of a noise reduction (NR) burst as they arrive from the camera, rather than
+ * waiting for the whole burst to be captured. Each JPEG is decoded and folded into the
+ * HDRProcessor.AvgData accumulator straight away, and is then no longer referenced, so at most one
+ * decoded image is held in addition to the accumulator.
+ * Stages timed on the merge thread (decoding, and those timed by the HDRProcessor) are recorded
+ * against the key passed to setMetricsKey().
+ * The caller must ensure that nothing else uses the HDRProcessor until getResult() has returned
+ * (or cancel() has been called and the thread has finished).
+ * Requires Android 5.0, as for HDRProcessor.processAvg().
+ */
+class NRStreamMerger extends Thread {
+    private static final String TAG = "NRStreamMerger";
+
+    private final HDRProcessor hdrProcessor;
+    private final SaveMetrics save_metrics;
+    private final int iso;
+    private final long exposure_time;
+    private final float zoom_factor;
+    private final int inSampleSize;
+
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private static final byte[] end_of_burst = new byte[0]; // marker added to the queue by finish() and cancel()
+    private volatile boolean cancelled;
+    private volatile String metrics_key; // key to record timings against, see SaveMetrics.beginRequest()
+    private int n_images; // number of images passed to addImage(), only accessed by the caller's thread
+
+    // results, only valid after the thread has finished
+    private Bitmap nr_bitmap;
+    private boolean failed;
+
+    NRStreamMerger(HDRProcessor hdrProcessor, SaveMetrics save_metrics, int iso, long exposure_time, float zoom_factor) {
+        super("NRStreamMerger");
+        this.hdrProcessor = hdrProcessor;
+        this.save_metrics = save_metrics;
+        this.iso = iso;
+        this.exposure_time = exposure_time;
+        this.zoom_factor = zoom_factor;
+        this.inSampleSize = hdrProcessor.getAvgSampleSize(iso);
+    }
+
+    /**
+     * Sets the key of the request that the merge is for, so that the stages timed on the merge
+     * thread are recorded against it. Should be called before the first image is added.
+     */
+    void setMetricsKey(String metrics_key) {
+        this.metrics_key = metrics_key;
+    }
+
+    /**
+     * Adds the next image of the burst, to be merged in the background.
+     */
+    void addImage(byte[] jpeg) {
+        n_images++;
+        if (MyDebug.LOG)
+            Log.d(TAG, "addImage: " + n_images);
+        queue.add(jpeg);
+    }
+
+    /**
+     * Returns the number of images passed to addImage().
+     */
+    int getNImages() {
+        return n_images;
+    }
+
+    /**
+     * Called when all the images of the burst have been added.
+     */
+    void finish() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "finish");
+        queue.add(end_of_burst);
+    }
+
+    /**
+     * Abandons the merge, e.g., if the burst was not completed. Any resources are freed by the
+     * merge thread; call join() to wait for this.
+     */
+    void cancel() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "cancel");
+        cancelled = true;
+        queue.add(end_of_burst);
+    }
+
+    /**
+     * Waits for the merge to complete, and returns the brightened NR image, or null if the merge
+     * failed. finish() should have been called first.
+     */
+    Bitmap getResult() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "getResult");
+        boolean interrupted = false;
+        while (true) {
+            try {
+                join();
+                break;
+            } catch (InterruptedException e) {
+                // the merge thread is still using the HDRProcessor, so we must keep waiting
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failed && nr_bitmap != null) {
+            nr_bitmap.recycle();
+            nr_bitmap = null;
+        }
+        Bitmap result = nr_bitmap;
+        nr_bitmap = null;
+        return result;
+    }
+
+    private Bitmap loadBitmap(byte[] jpeg) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = false;
+        if (inSampleSize > 1) {
+            // use inDensity for better quality, as inSampleSize uses nearest neighbour - see ImageSaver.setBitmapOptionsSampleSize()
+            options.inDensity = inSampleSize;
+            options.inTargetDensity = 1;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (bitmap == null) {
+            Log.e(TAG, "failed to decode bitmap");
+        }
+        return bitmap;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public void run() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "starting NRStreamMerger thread...");
+        long time_s = System.currentTimeMillis();
+        Bitmap bitmap0 = null;
+        HDRProcessor.AvgData avg_data = null;
+        int width = 0, height = 0;
+        int n_merged = 0;
+        try {
+            while (true) {
+                byte[] jpeg = queue.take();
+                if (jpeg == end_of_burst || cancelled)
+                    break;
+
+                if (n_merged == 0 && metrics_key != null) {
+                    save_metrics.beginRequest(metrics_key);
+                }
+
+                long this_time_s = System.currentTimeMillis();
+                long decode_start = save_metrics.startTimer();
+                Bitmap new_bitmap = loadBitmap(jpeg);
+                save_metrics.stopTimer(SaveMetrics.Stage.DECODE, decode_start);
+                //noinspection UnusedAssignment
+                jpeg = null; // no longer needed by us
+                if (new_bitmap == null) {
+                    failed = true;
+                    break;
+                }
+                if (MyDebug.LOG)
+                    Log.d(TAG, "*** time for loading bitmap " + n_merged + ": " + (System.currentTimeMillis() - this_time_s));
+
+                this_time_s = System.currentTimeMillis();
+                if (n_merged == 0) {
+                    bitmap0 = new_bitmap;
+                    width = bitmap0.getWidth();
+                    height = bitmap0.getHeight();
+                } else if (n_merged == 1) {
+                    avg_data = hdrProcessor.processAvg(bitmap0, new_bitmap, 1.0f, iso, zoom_factor);
+                    // processAvg recycles both bitmaps
+                    bitmap0 = null;
+                } else {
+                    hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, (float) n_merged, iso, zoom_factor);
+                    // updateAvg recycles new_bitmap
+                }
+                n_merged++;
+                if (MyDebug.LOG)
+                    Log.d(TAG, "*** time for merging bitmap " + (n_merged - 1) + ": " + (System.currentTimeMillis() - this_time_s));
+            }
+
+            if (!cancelled && !failed) {
+                if (avg_data == null) {
+                    Log.e(TAG, "need at least two images for NR, received: " + n_merged);
+                    failed = true;
+                } else {
+                    long this_time_s = System.currentTimeMillis();
+                    nr_bitmap = hdrProcessor.avgBrighten(avg_data, width, height, iso, exposure_time);
+                    if (MyDebug.LOG)
+                        Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - this_time_s));
+                }
+            }
+        } catch (HDRProcessorException e) {
+            e.printStackTrace();
+            failed = true;
+        } catch (InterruptedException e) {
+            if (MyDebug.LOG)
+                Log.e(TAG, "interrupted while waiting for images");
+            e.printStackTrace();
+            failed = true;
+        } finally {
+            save_metrics.endRequest();
+            if (bitmap0 != null) {
+                bitmap0.recycle();
+            }
+            if (avg_data != null) {
+                avg_data.destroy();
+            }
+        }
+        if (MyDebug.LOG)
+            Log.d(TAG, "*** total time for merging " + n_merged + " images: " + (System.currentTimeMillis() - time_s));
+    }
+}
@@ -0,0 +1,569 @@
+package com.magilic.opencamera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/** Stitches the images of a panorama on the CPU. Frames are passed to addFrame() in the order
+ *  they were captured, along with the gyro rotation matrix for each frame, and are processed
+ *  straight away:
+ *  - Each frame is projected onto a cylinder, so that rotating the camera becomes a horizontal
+ *    translation.
+ *  - The offset from the previous frame is predicted from the gyro matrices, then refined by
+ *    matching Harris corners in the region where the frames overlap.
+ *  - The seam is placed in the middle of the overlap, following the path of least difference
+ *    between the frames, and the frames are blended along it with a Laplacian pyramid (as in
+ *    pyramid_blending.rs).
+ *  Everything to the left of the blended region is then final, and is moved to the canvas as a
+ *  strip of columns. Only the previous frame is kept, so memory is about two frames plus the
+ *  canvas.
+ *  The direction of the panorama is taken from the rotation between the first two frames. For
+ *  right to left panoramas we work with mirrored frames, and mirror the result.
+ */
+public class PanoramaProcessor {
+    private static final String TAG = "PanoramaProcessor";
+
+    private static final int min_blend_width_c = 8; // if the overlap is smaller than this, frames are joined without blending
+    private static final int max_blend_levels_c = 5;
+    private static final int max_match_width_c = 400; // frames are downscaled to at most this width for feature matching
+    private static final int max_corners_c = 100;
+    private static final int max_per_cell_c = 4; // maximum number of corners for each cell when detecting features
+    private static final int patch_radius_c = 4;
+    private static final int min_matches_c = 6;
+
+    private final int frame_width;
+    private final int frame_height;
+    private final boolean crop;
+    private final float focal_length; // in pixels
+    private final int warped_width; // width of each frame after projecting onto the cylinder
+    private final float [] warp_src_x; // for each column of a warped frame, the x coordinate to sample in the input frame
+    private final float [] warp_scale_y; // for each column of a warped frame, the vertical scale to the input frame
+    private final int valid_top; // rows [valid_top, valid_bottom) of a warped frame are valid in every column
+    private final int valid_bottom;
+    private final int blend_width;
+    private final int match_scale; // downscale factor for feature matching
+    private final PyramidBlender pyramid_blender = new PyramidBlender(); // the blend windows are all the same size, so its buffers are reused for each seam
+
+    private int n_frames;
+    private boolean mirror; // whether this is a right to left panorama
+    private int [] input; // scratch buffer for reading frames
+    private float [] prev_matrix;
+    private int [] prev_frame; // previous warped frame
+    private int prev_x, prev_y; // position of prev_frame on the canvas
+    private int crop_top, crop_bottom; // rows of the canvas valid in all frames so far
+    private int committed_width; // columns [0, committed_width) of the canvas are final, and stored in strips
+    private final List<int []> strips = new ArrayList<>(); // each strip holds frame_height rows
+    private final List<Integer> strip_widths = new ArrayList<>();
+    private boolean finished;
+    private int output_top, output_height;
+
+    /**
+     * @param camera_view_angle_x The horizontal angle of view in degrees, for the camera's
+     *                            landscape orientation. The angles are matched to the frame
+     *                            dimensions by aspect ratio, as frames may have been rotated to
+     *                            portrait.
+     * @param crop                Whether to crop the result to the rows covered by all frames.
+     */
+    public PanoramaProcessor(int frame_width, int frame_height, float camera_view_angle_x, float camera_view_angle_y, boolean crop) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "PanoramaProcessor: " + frame_width + " x " + frame_height);
+            Log.d(TAG, "camera_view_angle_x: " + camera_view_angle_x);
+            Log.d(TAG, "camera_view_angle_y: " + camera_view_angle_y);
+        }
+        if( frame_width <= 0 || frame_height <= 0 ) {
+            throw new IllegalArgumentException("invalid frame size");
+        }
+        this.frame_width = frame_width;
+        this.frame_height = frame_height;
+        this.crop = crop;
+
+        float angle = ((frame_width <= frame_height) == (camera_view_angle_x <= camera_view_angle_y)) ? camera_view_angle_x : camera_view_angle_y;
+        float half_width = frame_width/2.0f;
+        this.focal_length = (float)(half_width / Math.tan(Math.toRadians(angle)/2.0));
+        this.warped_width = Math.max(1, Math.round(2.0f*focal_length*(float)Math.atan(half_width/focal_length)));
+        this.warp_src_x = new float[warped_width];
+        this.warp_scale_y = new float[warped_width];
+        for(int i=0;i<warped_width;i++) {
+            double u = i + 0.5 - warped_width/2.0;
+            double x = focal_length*Math.tan(u/focal_length);
+            warp_src_x[i] = (float)(x + half_width - 0.5);
+            warp_scale_y[i] = (float)(Math.sqrt(x*x + focal_length*focal_length)/focal_length);
+        }
+        // the edge columns are the most shrunk vertically
+        float half_height = frame_height/2.0f;
+        float max_scale = Math.max(warp_scale_y[0], warp_scale_y[warped_width-1]);
+        this.valid_top = Math.max(0, (int)Math.ceil(half_height - half_height/max_scale - 0.5f));
+        this.valid_bottom = Math.min(frame_height, (int)Math.floor(half_height + half_height/max_scale - 0.5f) + 1);
+
+        this.blend_width = Math.max(2*min_blend_width_c, warped_width/8);
+        int match_scale = 1;
+        while( warped_width/match_scale > max_match_width_c ) {
+            match_scale *= 2;
+        }
+        this.match_scale = match_scale;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "focal_length: " + focal_length);
+            Log.d(TAG, "warped_width: " + warped_width);
+            Log.d(TAG, "valid rows: " + valid_top + " to " + valid_bottom);
+            Log.d(TAG, "blend_width: " + blend_width);
+            Log.d(TAG, "match_scale: " + match_scale);
+        }
+    }
+
+    public int getFrameWidth() {
+        return frame_width;
+    }
+
+    public int getFrameHeight() {
+        return frame_height;
+    }
+
+    /** Returns the number of frames added so far.
+     */
+    public int getNFrames() {
+        return n_frames;
+    }
+
+    /** Adds the next frame of the panorama.
+     * @param gyro_rotation_matrix The 3x3 rotation matrix of the device when the frame was
+     *                             captured, as from GyroSensor.getRotationMatrix().
+     */
+    public void addFrame(HDRProcessorCPU.Image frame, float [] gyro_rotation_matrix) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "addFrame: " + n_frames);
+        if( finished ) {
+            throw new IllegalStateException("already finished");
+        }
+        if( frame.getWidth() != frame_width || frame.getHeight() != frame_height ) {
+            throw new IllegalArgumentException("frame has different size");
+        }
+        if( input == null ) {
+            input = new int[frame_width*frame_height];
+        }
+        frame.getRows(input, 0, frame_height);
+
+        if( n_frames == 0 ) {
+            prev_frame = warp(input, false);
+            prev_x = 0;
+            prev_y = 0;
+            crop_top = valid_top;
+            crop_bottom = valid_bottom;
+            prev_matrix = gyro_rotation_matrix.clone();
+            n_frames++;
+            return;
+        }
+
+        float [] angles = new float[2];
+        computeRelativeRotation(angles, prev_matrix, gyro_rotation_matrix);
+        float yaw = angles[0];
+        float pitch = angles[1];
+        if( n_frames == 1 ) {
+            mirror = yaw < 0.0f;
+            if( MyDebug.LOG )
+                Log.d(TAG, "left to right? " + !mirror);
+            if( mirror ) {
+                mirrorFrame(prev_frame, warped_width, frame_height);
+            }
+        }
+        if( mirror ) {
+            yaw = -yaw;
+        }
+        int [] offset = new int[2];
+        offset[0] = Math.round(focal_length*yaw);
+        offset[1] = Math.round(-focal_length*(float)Math.tan(pitch));
+        if( MyDebug.LOG )
+            Log.d(TAG, "offset from gyro: " + offset[0] + " , " + offset[1]);
+
+        int [] new_frame = warp(input, mirror);
+        if( refineOffset(offset, prev_frame, new_frame) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "refined offset: " + offset[0] + " , " + offset[1]);
+        }
+        // each frame must extend the canvas
+        offset[0] = Math.max(offset[0], 1);
+
+        int new_x = prev_x + offset[0];
+        int new_y = prev_y + offset[1];
+        stitch(new_frame, new_x, new_y);
+
+        crop_top = Math.max(crop_top, new_y + valid_top);
+        crop_bottom = Math.min(crop_bottom, new_y + valid_bottom);
+        prev_frame = new_frame;
+        prev_x = new_x;
+        prev_y = new_y;
+        prev_matrix = gyro_rotation_matrix.clone();
+        n_frames++;
+    }
+
+    /** Completes the panorama. After this, call getWidth() and getHeight() for the size of the
+     *  result, and writeResult() to obtain it.
+     */
+    public void finish() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "finish");
+        if( n_frames == 0 ) {
+            throw new IllegalStateException("no frames");
+        }
+        if( finished ) {
+            return;
+        }
+        commitColumns(prev_frame, prev_x, prev_y, prev_x + warped_width);
+        prev_frame = null;
+        input = null;
+        pyramid_blender.clearPool();
+        finished = true;
+
+        output_top = 0;
+        output_height = frame_height;
+        if( crop ) {
+            int top = Math.max(crop_top, 0);
+            int bottom = Math.min(crop_bottom, frame_height);
+            if( bottom > top ) {
+                output_top = top;
+                output_height = bottom - top;
+            }
+            else {
+                Log.e(TAG, "no rows in common, so can't crop");
+            }
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "panorama size: " + committed_width + " x " + output_height);
+            Log.d(TAG, "output_top: " + output_top);
+        }
+    }
+
+    public int getWidth() {
+        if( !finished ) {
+            throw new IllegalStateException("not finished");
+        }
+        return committed_width;
+    }
+
+    public int getHeight() {
+        if( !finished ) {
+            throw new IllegalStateException("not finished");
+        }
+        return output_height;
+    }
+
+    /** Writes the panorama to output, which must be of size getWidth() x getHeight(). The strips
+     *  are freed afterwards, so this can only be called once.
+     */
+    public void writeResult(final HDRProcessorCPU.Image output) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "writeResult");
+        if( !finished ) {
+            throw new IllegalStateException("not finished");
+        }
+        final int width = committed_width;
+        if( output.getWidth() != width || output.getHeight() != output_height ) {
+            throw new IllegalArgumentException("output has wrong size");
+        }
+        if( strips.size() == 0 && width > 0 ) {
+            throw new IllegalStateException("result already written");
+        }
+        final int [][] strip_array = strips.toArray(new int[strips.size()][]);
+        final int [] strip_width_array = new int[strip_widths.size()];
+        for(int i=0;i<strip_width_array.length;i++) {
+            strip_width_array[i] = strip_widths.get(i);
+        }
+        TileExecutor.run(output_height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                int n_rows = y_stop - y_start;
+                int [] rows = HDRProcessorCPU.getScratchBuffer(0, n_rows*width);
+                for(int y=y_start;y<y_stop;y++) {
+                    int src_y = y + output_top;
+                    int dst_offset = (y-y_start)*width;
+                    int x = 0;
+                    for(int i=0;i<strip_array.length;i++) {
+                        int strip_width = strip_width_array[i];
+                        int [] strip = strip_array[i];
+                        int src_offset = src_y*strip_width;
+                        for(int j=0;j<strip_width;j++,x++) {
+                            int dst_x = mirror ? width-1-x : x;
+                            rows[dst_offset+dst_x] = strip[src_offset+j] | 0xff000000;
+                        }
+                    }
+                }
+                output.setRows(rows, y_start, n_rows);
+            }
+        });
+        strips.clear();
+        strip_widths.clear();
+    }
+
+    /** Computes the rotation of the device for matrix cur, relative to matrix prev. The yaw
+     *  (positive when rotating right) is stored in angles[0], and the pitch (positive when
+     *  rotating up) in angles[1], both in radians.
+     */
+    static void computeRelativeRotation(float [] angles, float [] prev, float [] cur) {
+        // direction the camera is pointing (behind the device's screen), in world coordinates
+        float [] dir = new float[3];
+        for(int i=0;i<3;i++) {
+            dir[i] = -cur[i*3+2];
+        }
+        // transform into the coordinates of the previous frame (the transpose of a rotation is its inverse)
+        float [] local = new float[3];
+        for(int i=0;i<3;i++) {
+            for(int j=0;j<3;j++) {
+                local[i] += prev[j*3+i]*dir[j];
+            }
+        }
+        angles[0] = (float)Math.atan2(local[0], -local[2]);
+        angles[1] = (float)Math.atan2(local[1], Math.sqrt(local[0]*local[0] + local[2]*local[2]));
+    }
+
+    /** Projects the frame onto a cylinder, with bilinear sampling.
+     */
+    private int [] warp(final int [] src, final boolean mirror) {
+        final int [] dst = new int[warped_width*frame_height];
+        final float half_height = frame_height/2.0f;
+        TileExecutor.run(frame_height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    float v = y + 0.5f - half_height;
+                    int dst_offset = y*warped_width;
+                    for(int i=0;i<warped_width;i++) {
+                        float sx = warp_src_x[i];
+                        if( mirror ) {
+                            sx = frame_width - 1 - sx;
+                        }
+                        float sy = v*warp_scale_y[i] + half_height - 0.5f;
+                        if( sx < -0.5f || sx > frame_width-0.5f || sy < -0.5f || sy > frame_height-0.5f ) {
+                            continue;
+                        }
+                        sx = Math.max(0.0f, Math.min(sx, frame_width-1));
+                        sy = Math.max(0.0f, Math.min(sy, frame_height-1));
+                        int x0 = (int)sx;
+                        int y0 = (int)sy;
+                        int x1 = Math.min(x0+1, frame_width-1);
+                        int y1 = Math.min(y0+1, frame_height-1);
+                        float fx = sx - x0;
+                        float fy = sy - y0;
+                        dst[dst_offset+i] = bilinear(src[y0*frame_width+x0], src[y0*frame_width+x1], src[y1*frame_width+x0], src[y1*frame_width+x1], fx, fy);
+                    }
+                }
+            }
+        });
+        return dst;
+    }
+
+    private static int bilinear(int c00, int c10, int c01, int c11, float fx, float fy) {
+        int result = 0xff000000;
+        for(int shift=0;shift<=16;shift+=8) {
+            float top = (1.0f-fx)*((c00 >> shift) & 0xff) + fx*((c10 >> shift) & 0xff);
+            float bottom = (1.0f-fx)*((c01 >> shift) & 0xff) + fx*((c11 >> shift) & 0xff);
+            int value = (int)((1.0f-fy)*top + fy*bottom + 0.5f);
+            result |= Math.min(value, 255) << shift;
+        }
+        return result;
+    }
+
+    private static void mirrorFrame(int [] pixels, int width, int height) {
+        for(int y=0;y<height;y++) {
+            int offset = y*width;
+            for(int i=0,j=width-1;i<j;i++,j--) {
+                int temp = pixels[offset+i];
+                pixels[offset+i] = pixels[offset+j];
+                pixels[offset+j] = temp;
+            }
+        }
+    }
+
+    /** Returns the canvas columns [start, start+width) of a warped frame positioned at
+     *  (frame_x, frame_y), with zero for pixels outside the frame.
+     */
+    private int [] extractColumns(int [] frame, int frame_x, int frame_y, int start, int width) {
+        int [] result = new int[width*frame_height];
+        int src_start = Math.max(start - frame_x, 0);
+        int src_stop = Math.min(start + width - frame_x, warped_width);
+        if( src_stop <= src_start ) {
+            return result;
+        }
+        for(int y=0;y<frame_height;y++) {
+            int src_y = y - frame_y;
+            if( src_y < 0 || src_y >= frame_height ) {
+                continue;
+            }
+            System.arraycopy(frame, src_y*warped_width + src_start, result, y*width + (src_start + frame_x - start), src_stop - src_start);
+        }
+        return result;
+    }
+
+    private void addStrip(int [] pixels, int width) {
+        strips.add(pixels);
+        strip_widths.add(width);
+        committed_width += width;
+    }
+
+    /** Moves the canvas columns [committed_width, end) of the warped frame to the canvas.
+     */
+    private void commitColumns(int [] frame, int frame_x, int frame_y, int end) {
+        if( end > committed_width ) {
+            int width = end - committed_width;
+            addStrip(extractColumns(frame, frame_x, frame_y, committed_width, width), width);
+        }
+    }
+
+    /** Adds the warped frame new_frame at (new_x, new_y) on the canvas, blending it with
+     *  prev_frame.
+     */
+    private void stitch(int [] new_frame, int new_x, int new_y) {
+        int prev_end = prev_x + warped_width;
+        int overlap_start = Math.max(new_x, committed_width);
+        int overlap = prev_end - overlap_start;
+        int window = Math.min(blend_width, overlap) & ~1;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "overlap: " + overlap);
+            Log.d(TAG, "window: " + window);
+        }
+        if( window >= min_blend_width_c ) {
+            int centre = (overlap_start + prev_end)/2;
+            int window_start = centre - window/2;
+            commitColumns(prev_frame, prev_x, prev_y, window_start);
+            int [] pixels0 = extractColumns(prev_frame, prev_x, prev_y, window_start, window);
+            int [] pixels1 = extractColumns(new_frame, new_x, new_y, window_start, window);
+            blend(pixels0, pixels1, window, frame_height);
+            addStrip(pixels0, window);
+        }
+        else {
+            // too little overlap to blend, so just join the frames (leaving any gap black)
+            int join_x = Math.max(committed_width, Math.min(new_x, prev_end));
+            commitColumns(prev_frame, prev_x, prev_y, join_x);
+            if( new_x > committed_width ) {
+                int gap = new_x - committed_width;
+                addStrip(new int[gap*frame_height], gap);
+            }
+        }
+    }
+
+    /** Refines the offset of frame1 relative to frame0, by matching corners of frame0 in the
+     *  overlap against the corners of frame1, within a search window around the initial offset. The offset is
+     *  updated only if enough matches agree.
+     * @return Whether the offset was refined.
+     */
+    private boolean refineOffset(int [] offset, int [] frame0, int [] frame1) {
+        final int scale = match_scale;
+        final int width = warped_width/scale;
+        final int height = frame_height/scale;
+        final int off_x = Math.round(offset[0]/(float)scale);
+        final int off_y = Math.round(offset[1]/(float)scale);
+        if( off_x >= width ) {
+            return false;
+        }
+        float [] grey0 = FeatureDetector.createGreyscale(frame0, warped_width, frame_height, scale);
+        float [] grey1 = FeatureDetector.createGreyscale(frame1, warped_width, frame_height, scale);
+        final int search_radius = Math.max(4, width/16);
+        final int cell_size = Math.max(8, width/12);
+        // only detect in the regions that can overlap
+        FeatureDetector.Features features0 = FeatureDetector.detectFeatures(grey0, width, height, Math.max(off_x, 0), width, cell_size, max_per_cell_c, max_corners_c);
+        FeatureDetector.Features features1 = FeatureDetector.detectFeatures(grey1, width, height, 0, Math.min(width - off_x + search_radius, width), cell_size, max_per_cell_c, 0);
+        FeatureDetector.Matches matches = FeatureDetector.matchFeatures(grey0, features0, grey1, features1, width, height, off_x, off_y, search_radius, patch_radius_c);
+        int n_matches = matches.getNMatches();
+        int [] match_dx = new int[n_matches];
+        int [] match_dy = new int[n_matches];
+        for(int i=0;i<n_matches;i++) {
+            int index0 = matches.getIndex0(i);
+            int index1 = matches.getIndex1(i);
+            match_dx[i] = features0.getX(index0) - features1.getX(index1);
+            match_dy[i] = features0.getY(index0) - features1.getY(index1);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_matches: " + n_matches);
+
+        // find the offset that agrees with the most matches
+        int best_votes = 0, best_i = -1;
+        for(int i=0;i<n_matches;i++) {
+            int votes = 0;
+            for(int j=0;j<n_matches;j++) {
+                if( Math.abs(match_dx[i]-match_dx[j]) <= 1 && Math.abs(match_dy[i]-match_dy[j]) <= 1 ) {
+                    votes++;
+                }
+            }
+            if( votes > best_votes ) {
+                best_votes = votes;
+                best_i = i;
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "best_votes: " + best_votes);
+        if( best_i == -1 || best_votes < Math.max(min_matches_c, n_matches/4) ) {
+            return false;
+        }
+        float sum_dx = 0.0f, sum_dy = 0.0f;
+        for(int j=0;j<n_matches;j++) {
+            if( Math.abs(match_dx[best_i]-match_dx[j]) <= 1 && Math.abs(match_dy[best_i]-match_dy[j]) <= 1 ) {
+                sum_dx += match_dx[j];
+                sum_dy += match_dy[j];
+            }
+        }
+        offset[0] = Math.round(scale*sum_dx/best_votes);
+        offset[1] = Math.round(scale*sum_dy/best_votes);
+        return true;
+    }
+
+    /** Returns the seam for blending: for each row, the column in [width*3/8, width*5/8] along
+     *  the path of least difference between the two images, moving by at most one column per
+     *  row.
+     */
+    private static int [] findSeam(int [] pixels0, int [] pixels1, int width, int height) {
+        int lo = (3*width)/8;
+        int hi = (5*width)/8;
+        int n = hi - lo + 1;
+        long [] cost = new long[n*height];
+        for(int y=0;y<height;y++) {
+            for(int i=0;i<n;i++) {
+                int c0 = pixels0[y*width + lo + i];
+                int c1 = pixels1[y*width + lo + i];
+                long diff = Math.abs(((c0 >> 16) & 0xff) - ((c1 >> 16) & 0xff)) + Math.abs(((c0 >> 8) & 0xff) - ((c1 >> 8) & 0xff)) + Math.abs((c0 & 0xff) - (c1 & 0xff));
+                if( y > 0 ) {
+                    long best = cost[(y-1)*n + i];
+                    if( i > 0 )
+                        best = Math.min(best, cost[(y-1)*n + i-1]);
+                    if( i < n-1 )
+                        best = Math.min(best, cost[(y-1)*n + i+1]);
+                    diff += best;
+                }
+                cost[y*n + i] = diff;
+            }
+        }
+        int [] seam = new int[height];
+        int best_i = n/2;
+        for(int i=0;i<n;i++) {
+            if( cost[(height-1)*n + i] < cost[(height-1)*n + best_i] ) {
+                best_i = i;
+            }
+        }
+        seam[height-1] = lo + best_i;
+        for(int y=height-2;y>=0;y--) {
+            // prefer to keep the same column in case of ties
+            int prev_i = best_i;
+            for(int i=Math.max(prev_i-1, 0);i<=Math.min(prev_i+1, n-1);i++) {
+                if( cost[y*n + i] < cost[y*n + best_i] ) {
+                    best_i = i;
+                }
+            }
+            seam[y] = lo + best_i;
+        }
+        return seam;
+    }
+
+    /** Blends the two images of size width x height with a Laplacian pyramid, with pixels0 on
+     *  the left of the seam and pixels1 on the right. The result is written to pixels0. Each level
+     *  is blended over 2 pixels, except the final level which is blended over half its width.
+     */
+    private void blend(int [] pixels0, int [] pixels1, int width, int height) {
+        int [] seam = findSeam(pixels0, pixels1, width, height);
+        int n_levels = PyramidBlender.getNLevels(width, height, min_blend_width_c, max_blend_levels_c);
+        int [] blend_widths = new int[n_levels];
+        int level_width = width;
+        for(int i=0;i<n_levels;i++) {
+            blend_widths[i] = (i == n_levels-1) ? Math.max(2, level_width/2) : 2;
+            level_width = (level_width+1)/2;
+        }
+        pyramid_blender.blend(pixels0, pixels1, pixels0, width, height, seam, blend_widths);
+    }
+}
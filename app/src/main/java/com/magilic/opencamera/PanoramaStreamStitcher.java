@@ -0,0 +1,189 @@
+package com.magilic.opencamera;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Stitches the images of a panorama as they arrive from the camera, rather than waiting for the
+ * whole panorama to be captured. Each JPEG is decoded and added to a PanoramaProcessor straight
+ * away, and is then no longer referenced, so at most one decoded image is held in addition to the
+ * processor's state.
+ * Unlike NRStreamMerger, this doesn't use the HDRProcessor, so can run alongside other requests
+ * being saved. Stages timed on the stitching thread are recorded against the key passed to
+ * setMetricsKey().
+ */
+class PanoramaStreamStitcher extends Thread {
+    private static final String TAG = "PanoramaStreamStitcher";
+
+    private static class Frame {
+        final byte[] jpeg;
+        final float[] gyro_rotation_matrix;
+
+        Frame(byte[] jpeg, float[] gyro_rotation_matrix) {
+            this.jpeg = jpeg;
+            this.gyro_rotation_matrix = gyro_rotation_matrix;
+        }
+    }
+
+    private final ImageSaver imageSaver;
+    private final float camera_view_angle_x;
+    private final float camera_view_angle_y;
+    private final boolean crop;
+
+    private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+    private static final Frame end_of_panorama = new Frame(null, null); // marker added to the queue by finish() and cancel()
+    private volatile boolean cancelled;
+    private volatile String metrics_key; // key to record timings against, see SaveMetrics.beginRequest()
+    private int n_frames; // number of frames passed to addFrame(), only modified by the caller's thread
+
+    // results, only valid after the thread has finished
+    private Bitmap panorama;
+    private boolean failed;
+
+    PanoramaStreamStitcher(ImageSaver imageSaver, float camera_view_angle_x, float camera_view_angle_y, boolean crop) {
+        super("PanoramaStreamStitcher");
+        this.imageSaver = imageSaver;
+        this.camera_view_angle_x = camera_view_angle_x;
+        this.camera_view_angle_y = camera_view_angle_y;
+        this.crop = crop;
+    }
+
+    /**
+     * Sets the key of the request that the panorama is for, so that the stages timed on the
+     * stitching thread are recorded against it. Should be called before the first frame is added.
+     */
+    void setMetricsKey(String metrics_key) {
+        this.metrics_key = metrics_key;
+    }
+
+    /**
+     * Adds the next image of the panorama, to be stitched in the background.
+     */
+    void addFrame(byte[] jpeg, float[] gyro_rotation_matrix) {
+        n_frames++;
+        if (MyDebug.LOG)
+            Log.d(TAG, "addFrame: " + n_frames);
+        queue.add(new Frame(jpeg, gyro_rotation_matrix));
+    }
+
+    /**
+     * Returns the number of frames passed to addFrame().
+     */
+    int getNFrames() {
+        return n_frames;
+    }
+
+    /**
+     * Called when all the images of the panorama have been added.
+     */
+    void finish() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "finish");
+        queue.add(end_of_panorama);
+    }
+
+    /**
+     * Abandons the panorama, e.g., if it was cancelled. Any resources are freed by the stitching
+     * thread; call join() to wait for this.
+     */
+    void cancel() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "cancel");
+        cancelled = true;
+        queue.add(end_of_panorama);
+    }
+
+    /**
+     * Waits for the stitching to complete, and returns the panorama, or null if it failed.
+     * finish() should have been called first.
+     */
+    Bitmap getResult() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "getResult");
+        boolean interrupted = false;
+        while (true) {
+            try {
+                join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failed && panorama != null) {
+            panorama.recycle();
+            panorama = null;
+        }
+        Bitmap result = panorama;
+        panorama = null;
+        return result;
+    }
+
+    @Override
+    public void run() {
+        if (MyDebug.LOG)
+            Log.d(TAG, "starting PanoramaStreamStitcher thread...");
+        long time_s = System.currentTimeMillis();
+        PanoramaProcessor panoramaProcessor = null;
+        int n_stitched = 0;
+        try {
+            while (true) {
+                Frame frame = queue.take();
+                if (frame == end_of_panorama || cancelled)
+                    break;
+                if (n_stitched == 0 && metrics_key != null) {
+                    imageSaver.getSaveMetrics().beginRequest(metrics_key);
+                }
+
+                long this_time_s = System.currentTimeMillis();
+                // rotate, as panorama is taken in portrait
+                Bitmap bitmap = imageSaver.loadBitmapWithRotation(frame.jpeg, false);
+                if (bitmap == null) {
+                    Log.e(TAG, "failed to decode panorama image " + n_stitched);
+                    failed = true;
+                    break;
+                }
+                if (panoramaProcessor == null) {
+                    panoramaProcessor = new PanoramaProcessor(bitmap.getWidth(), bitmap.getHeight(), camera_view_angle_x, camera_view_angle_y, crop);
+                } else if (bitmap.getWidth() != panoramaProcessor.getFrameWidth() || bitmap.getHeight() != panoramaProcessor.getFrameHeight()) {
+                    Log.e(TAG, "panorama image " + n_stitched + " has a different size");
+                    bitmap.recycle();
+                    failed = true;
+                    break;
+                }
+                panoramaProcessor.addFrame(new HDRProcessor.BitmapImage(bitmap), frame.gyro_rotation_matrix);
+                bitmap.recycle();
+                n_stitched++;
+                if (MyDebug.LOG)
+                    Log.d(TAG, "*** time for stitching image " + (n_stitched - 1) + ": " + (System.currentTimeMillis() - this_time_s));
+            }
+
+            if (!cancelled && !failed) {
+                if (panoramaProcessor == null) {
+                    Log.e(TAG, "no images received for panorama");
+                    failed = true;
+                } else {
+                    long this_time_s = System.currentTimeMillis();
+                    panoramaProcessor.finish();
+                    panorama = Bitmap.createBitmap(panoramaProcessor.getWidth(), panoramaProcessor.getHeight(), Bitmap.Config.ARGB_8888);
+                    panoramaProcessor.writeResult(new HDRProcessor.BitmapImage(panorama));
+                    if (MyDebug.LOG)
+                        Log.d(TAG, "*** time for finishing panorama: " + (System.currentTimeMillis() - this_time_s));
+                }
+            }
+        } catch (InterruptedException e) {
+            if (MyDebug.LOG)
+                Log.e(TAG, "interrupted while waiting for images");
+            e.printStackTrace();
+            failed = true;
+        } finally {
+            imageSaver.getSaveMetrics().endRequest();
+        }
+        if (MyDebug.LOG)
+            Log.d(TAG, "*** total time for stitching " + n_stitched + " images: " + (System.currentTimeMillis() - time_s));
+    }
+}
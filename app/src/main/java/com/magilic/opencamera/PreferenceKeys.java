@@ -120,10 +120,16 @@ public class PreferenceKeys {
 
     public static final String HDRContrastEnhancementPreferenceKey = "preference_hdr_contrast_enhancement";
 
+    public static final String HDRBackendPreferenceKey = "preference_hdr_backend";
+
     public static final String NRSaveExpoPreferenceKey = "preference_nr_save";
 
+    public static final String NRAccumulatorPreferenceKey = "preference_nr_accumulator";
+
     public static final String FastBurstNImagesPreferenceKey = "preference_fast_burst_n_images";
 
+    public static final String FastBurstKeepSharpestPreferenceKey = "preference_fast_burst_keep_sharpest";
+
     public static final String LocationPreferenceKey = "preference_location";
 
     public static final String GPSDirectionPreferenceKey = "preference_gps_direction";
@@ -258,6 +264,8 @@ public class PreferenceKeys {
 
     public static final String ShowVideoMaxAmpPreferenceKey = "preference_show_video_max_amp";
 
+    public static final String ShowSaveMetricsPreferenceKey = "preference_show_save_metrics";
+
     public static final String ShowAnglePreferenceKey = "preference_show_angle";
 
     public static final String ShowAngleLinePreferenceKey = "preference_show_angle_line";
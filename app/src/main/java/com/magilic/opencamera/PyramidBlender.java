@@ -0,0 +1,398 @@
+package com.magilic.opencamera;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/** Laplacian pyramid blending on the CPU, equivalent to the reduce, expand, blur, subtract, add
+ *  and merge_f kernels in pyramid_blending.rs (except that the filters clamp at the image edges,
+ *  rather than copying the edge pixels unfiltered).
+ *  Pyramids are stored as float rgb values, 3 floats per pixel. The level buffers, and the
+ *  temporary buffers used to compute them, are taken from a pool owned by this object and keyed by
+ *  size, and returned to it by release(). So repeated blends of the same size (such as the seams
+ *  of a panorama) don't allocate anything once the pool has warmed up.
+ *  Instances are thread safe, but a single Pyramid must only be used by one thread at a time.
+ */
+public class PyramidBlender {
+    private static final String TAG = "PyramidBlender";
+
+    private static final float g0 = 0.05f, g1 = 0.25f, g2 = 0.4f; // as in pyramid_blending.rs
+
+    /** A Gaussian or Laplacian pyramid. For a Laplacian pyramid, the final level holds the
+     *  Gaussian image at that level.
+     */
+    public static class Pyramid {
+        private final int [] widths;
+        private final int [] heights;
+        private final float [][] levels;
+
+        private Pyramid(int width, int height, int n_levels) {
+            this.widths = new int[n_levels];
+            this.heights = new int[n_levels];
+            this.levels = new float[n_levels][];
+            widths[0] = width;
+            heights[0] = height;
+            for(int i=1;i<n_levels;i++) {
+                widths[i] = (widths[i-1]+1)/2;
+                heights[i] = (heights[i-1]+1)/2;
+            }
+        }
+
+        public int getNLevels() {
+            return levels.length;
+        }
+
+        public int getWidth(int level) {
+            return widths[level];
+        }
+
+        public int getHeight(int level) {
+            return heights[level];
+        }
+
+        /** Returns the rgb values of the level, 3 floats per pixel.
+         */
+        public float [] getLevel(int level) {
+            return levels[level];
+        }
+    }
+
+    private final Map<Integer, List<float []>> pool = new HashMap<>();
+    private int n_allocations;
+    private long pool_size_bytes;
+
+    /** Returns a buffer of exactly size floats, with undefined contents.
+     */
+    private synchronized float [] acquire(int size) {
+        List<float []> buffers = pool.get(size);
+        if( buffers != null && buffers.size() > 0 ) {
+            return buffers.remove(buffers.size()-1);
+        }
+        n_allocations++;
+        pool_size_bytes += 4L*size;
+        return new float[size];
+    }
+
+    private synchronized void release(float [] buffer) {
+        List<float []> buffers = pool.get(buffer.length);
+        if( buffers == null ) {
+            buffers = new ArrayList<>();
+            pool.put(buffer.length, buffers);
+        }
+        buffers.add(buffer);
+    }
+
+    /** Returns the pyramid's buffers to the pool. The pyramid must not be used afterwards.
+     */
+    public void release(Pyramid pyramid) {
+        for(int i=0;i<pyramid.levels.length;i++) {
+            if( pyramid.levels[i] != null ) {
+                release(pyramid.levels[i]);
+                pyramid.levels[i] = null;
+            }
+        }
+    }
+
+    /** Frees all the buffers in the pool.
+     */
+    public synchronized void clearPool() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "clearPool: " + pool_size_bytes + " bytes");
+        pool.clear();
+        pool_size_bytes = 0;
+    }
+
+    /** Returns the number of buffers allocated by the pool since this object was created.
+     */
+    public synchronized int getNAllocations() {
+        return n_allocations;
+    }
+
+    /** Returns the total size of the buffers allocated by the pool, and not yet freed by
+     *  clearPool().
+     */
+    public synchronized long getPoolSizeInBytes() {
+        return pool_size_bytes;
+    }
+
+    /** Returns the largest number of levels, up to max_levels, such that the final level is at
+     *  least min_size pixels in each direction.
+     */
+    public static int getNLevels(int width, int height, int min_size, int max_levels) {
+        int n_levels = 1;
+        while( n_levels < max_levels && (width >> n_levels) >= min_size && (height >> n_levels) >= min_size ) {
+            n_levels++;
+        }
+        return n_levels;
+    }
+
+    private static void unpack(int [] pixels, float [] dst) {
+        for(int i=0;i<pixels.length;i++) {
+            dst[3*i] = (pixels[i] >> 16) & 0xff;
+            dst[3*i+1] = (pixels[i] >> 8) & 0xff;
+            dst[3*i+2] = pixels[i] & 0xff;
+        }
+    }
+
+    /** Creates the Gaussian pyramid of the image, which is stored as 0xRRGGBB ints.
+     */
+    public Pyramid createGaussianPyramid(int [] pixels, int width, int height, int n_levels) {
+        Pyramid pyramid = new Pyramid(width, height, n_levels);
+        pyramid.levels[0] = acquire(3*width*height);
+        unpack(pixels, pyramid.levels[0]);
+        reducePyramid(pyramid);
+        return pyramid;
+    }
+
+    /** Creates the Gaussian pyramid of the image, which is stored as rgb floats.
+     */
+    public Pyramid createGaussianPyramid(float [] rgb, int width, int height, int n_levels) {
+        Pyramid pyramid = new Pyramid(width, height, n_levels);
+        pyramid.levels[0] = acquire(3*width*height);
+        System.arraycopy(rgb, 0, pyramid.levels[0], 0, 3*width*height);
+        reducePyramid(pyramid);
+        return pyramid;
+    }
+
+    /** Creates the Laplacian pyramid of the image, which is stored as 0xRRGGBB ints.
+     */
+    public Pyramid createLaplacianPyramid(int [] pixels, int width, int height, int n_levels) {
+        Pyramid pyramid = createGaussianPyramid(pixels, width, height, n_levels);
+        subtractPyramid(pyramid);
+        return pyramid;
+    }
+
+    /** Creates the Laplacian pyramid of the image, which is stored as rgb floats.
+     */
+    public Pyramid createLaplacianPyramid(float [] rgb, int width, int height, int n_levels) {
+        Pyramid pyramid = createGaussianPyramid(rgb, width, height, n_levels);
+        subtractPyramid(pyramid);
+        return pyramid;
+    }
+
+    private void reducePyramid(Pyramid pyramid) {
+        for(int i=1;i<pyramid.levels.length;i++) {
+            pyramid.levels[i] = acquire(3*pyramid.widths[i]*pyramid.heights[i]);
+            reduce(pyramid.levels[i-1], pyramid.widths[i-1], pyramid.heights[i-1], pyramid.levels[i], pyramid.widths[i], pyramid.heights[i]);
+        }
+    }
+
+    /** Converts a Gaussian pyramid to a Laplacian pyramid, as with subtract.
+     */
+    private void subtractPyramid(Pyramid pyramid) {
+        for(int i=0;i<pyramid.levels.length-1;i++) {
+            float [] expanded = acquire(pyramid.levels[i].length);
+            expand(pyramid.levels[i+1], pyramid.widths[i+1], pyramid.heights[i+1], expanded, pyramid.widths[i], pyramid.heights[i]);
+            float [] level = pyramid.levels[i];
+            for(int j=0;j<level.length;j++) {
+                level[j] -= expanded[j];
+            }
+            release(expanded);
+        }
+    }
+
+    /** Downscales src by 2 in each direction into dst, with the 5x5 filter from reduce.
+     */
+    public void reduce(final float [] src, final int width, final int height, final float [] dst, final int dst_width, final int dst_height) {
+        final float [] weights = new float[]{g0, g1, g2, g1, g0};
+        final float [] temp = acquire(3*dst_width*height);
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    for(int x=0;x<dst_width;x++) {
+                        float r = 0.0f, g = 0.0f, b = 0.0f;
+                        for(int k=-2;k<=2;k++) {
+                            int sx = Math.max(0, Math.min(2*x+k, width-1));
+                            int i = 3*(y*width + sx);
+                            r += weights[k+2]*src[i];
+                            g += weights[k+2]*src[i+1];
+                            b += weights[k+2]*src[i+2];
+                        }
+                        int o = 3*(y*dst_width + x);
+                        temp[o] = r;
+                        temp[o+1] = g;
+                        temp[o+2] = b;
+                    }
+                }
+            }
+        });
+        TileExecutor.run(dst_height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    for(int x=0;x<dst_width;x++) {
+                        float r = 0.0f, g = 0.0f, b = 0.0f;
+                        for(int k=-2;k<=2;k++) {
+                            int sy = Math.max(0, Math.min(2*y+k, height-1));
+                            int i = 3*(sy*dst_width + x);
+                            r += weights[k+2]*temp[i];
+                            g += weights[k+2]*temp[i+1];
+                            b += weights[k+2]*temp[i+2];
+                        }
+                        int o = 3*(y*dst_width + x);
+                        dst[o] = r;
+                        dst[o+1] = g;
+                        dst[o+2] = b;
+                    }
+                }
+            }
+        });
+        release(temp);
+    }
+
+    /** Upscales src to width x height into dst, equivalent to expand followed by blur.
+     */
+    public void expand(final float [] src, final int src_width, final int src_height, final float [] dst, final int width, final int height) {
+        final float [] temp = acquire(3*width*src_height);
+        TileExecutor.run(src_height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    for(int x=0;x<width;x++) {
+                        int sx = x/2;
+                        int o = 3*(y*width + x);
+                        int i = 3*(y*src_width + sx);
+                        int i1 = 3*(y*src_width + Math.min(sx+1, src_width-1));
+                        if( x % 2 == 0 ) {
+                            int i0 = 3*(y*src_width + Math.max(sx-1, 0));
+                            for(int c=0;c<3;c++) {
+                                temp[o+c] = 2.0f*(g0*src[i0+c] + g2*src[i+c] + g0*src[i1+c]);
+                            }
+                        }
+                        else {
+                            for(int c=0;c<3;c++) {
+                                temp[o+c] = 2.0f*(g1*src[i+c] + g1*src[i1+c]);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int sy = y/2;
+                    for(int x=0;x<width;x++) {
+                        int o = 3*(y*width + x);
+                        int i = 3*(sy*width + x);
+                        int i1 = 3*(Math.min(sy+1, src_height-1)*width + x);
+                        if( y % 2 == 0 ) {
+                            int i0 = 3*(Math.max(sy-1, 0)*width + x);
+                            for(int c=0;c<3;c++) {
+                                dst[o+c] = 2.0f*(g0*temp[i0+c] + g2*temp[i+c] + g0*temp[i1+c]);
+                            }
+                        }
+                        else {
+                            for(int c=0;c<3;c++) {
+                                dst[o+c] = 2.0f*(g1*temp[i+c] + g1*temp[i1+c]);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        release(temp);
+    }
+
+    /** Merges level1 into level0, as with setBlendWidth() and merge_f: each pixel is
+     *  (1-alpha)*level0 + alpha*level1, where alpha ramps linearly from 0 to 1 over blend_width
+     *  pixels centred on interpolated_best_path[y].
+     */
+    public static void mergeLevel(final float [] level0, final float [] level1, final int width, int height, final int [] interpolated_best_path, final int blend_width) {
+        TileExecutor.run(height, new TileExecutor.RowTask() {
+            @Override
+            public void run(int y_start, int y_stop) {
+                for(int y=y_start;y<y_stop;y++) {
+                    int mid_x = interpolated_best_path[y];
+                    for(int x=0;x<width;x++) {
+                        float alpha = ((float)(x - (mid_x - blend_width/2))) / (float)blend_width;
+                        alpha = Math.max(0.0f, Math.min(alpha, 1.0f));
+                        int o = 3*(y*width + x);
+                        for(int c=0;c<3;c++) {
+                            level0[o+c] = (1.0f-alpha)*level0[o+c] + alpha*level1[o+c];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** Merges the Laplacian pyramid pyramid1 into pyramid0, along the seam best_path (the column
+     *  of the seam for each row of the full resolution image). Level i is merged with mergeLevel(),
+     *  using best_path scaled down by 2^i, and blend width blend_widths[i].
+     */
+    public void mergePyramids(Pyramid pyramid0, Pyramid pyramid1, int [] best_path, int [] blend_widths) {
+        int n_levels = pyramid0.levels.length;
+        if( pyramid1.levels.length != n_levels || pyramid0.widths[0] != pyramid1.widths[0] || pyramid0.heights[0] != pyramid1.heights[0] ) {
+            throw new IllegalArgumentException("pyramids differ");
+        }
+        int height = pyramid0.heights[0];
+        for(int i=0;i<n_levels;i++) {
+            // the level sizes are small, so allocating the path for each level isn't worth pooling
+            int [] interpolated_best_path = new int[pyramid0.heights[i]];
+            for(int y=0;y<interpolated_best_path.length;y++) {
+                interpolated_best_path[y] = best_path[Math.min(y << i, height-1)] >> i;
+            }
+            mergeLevel(pyramid0.levels[i], pyramid1.levels[i], pyramid0.widths[i], pyramid0.heights[i], interpolated_best_path, blend_widths[i]);
+        }
+    }
+
+    /** Collapses the Laplacian pyramid into dst, as rgb floats. The pyramid is unchanged.
+     */
+    public void collapsePyramid(Pyramid pyramid, float [] dst) {
+        int n_levels = pyramid.levels.length;
+        float [] result = pyramid.levels[n_levels-1];
+        for(int i=n_levels-2;i>=0;i--) {
+            float [] expanded = i == 0 ? dst : acquire(pyramid.levels[i].length);
+            expand(result, pyramid.widths[i+1], pyramid.heights[i+1], expanded, pyramid.widths[i], pyramid.heights[i]);
+            float [] level = pyramid.levels[i];
+            for(int j=0;j<level.length;j++) {
+                expanded[j] += level[j];
+            }
+            if( result != pyramid.levels[n_levels-1] ) {
+                release(result);
+            }
+            result = expanded;
+        }
+        if( n_levels == 1 ) {
+            System.arraycopy(result, 0, dst, 0, result.length);
+        }
+    }
+
+    /** Collapses the Laplacian pyramid into dst, as 0xffRRGGBB ints. The pyramid is unchanged.
+     */
+    public void collapsePyramid(Pyramid pyramid, int [] dst) {
+        float [] result = acquire(pyramid.levels[0].length);
+        collapsePyramid(pyramid, result);
+        int n_pixels = pyramid.widths[0]*pyramid.heights[0];
+        for(int i=0;i<n_pixels;i++) {
+            int r = Math.max(0, Math.min((int)(result[3*i]+0.5f), 255));
+            int g = Math.max(0, Math.min((int)(result[3*i+1]+0.5f), 255));
+            int b = Math.max(0, Math.min((int)(result[3*i+2]+0.5f), 255));
+            dst[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+        release(result);
+    }
+
+    /** Blends the two images, with pixels0 on the left of the seam and pixels1 on the right, and
+     *  writes the result to dst (which may be the same array as pixels0 or pixels1).
+     * @param best_path    The column of the seam for each row.
+     * @param blend_widths The blend width for each level, see mergePyramids().
+     */
+    public void blend(int [] pixels0, int [] pixels1, int [] dst, int width, int height, int [] best_path, int [] blend_widths) {
+        int n_levels = blend_widths.length;
+        if( MyDebug.LOG )
+            Log.d(TAG, "blend: " + width + " x " + height + " with " + n_levels + " levels");
+        Pyramid pyramid0 = createLaplacianPyramid(pixels0, width, height, n_levels);
+        Pyramid pyramid1 = createLaplacianPyramid(pixels1, width, height, n_levels);
+        mergePyramids(pyramid0, pyramid1, best_path, blend_widths);
+        release(pyramid1);
+        collapsePyramid(pyramid0, dst);
+        release(pyramid0);
+    }
+}
@@ -0,0 +1,257 @@
+package com.magilic.opencamera;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+import android.location.Location;
+import android.os.Build;
+import android.util.Log;
+
+/** Looks up addresses for locations with the Geocoder, for photo stamps and video subtitles,
+ *  caching the results in a GeocodeCache. Lookups can be prefetched in the background when a new
+ *  location fix arrives (see prefetch()), so that getAddressLines() on the save path rarely has to
+ *  make a (slow, blocking, possibly network) Geocoder call. The cache is saved to a private file
+ *  whenever it changes, and read back when this class is created, so it persists across sessions.
+ *  As the file is a history of where photos were taken, it's kept out of backups, and deleted by
+ *  clear() once addresses are no longer needed.
+ */
+class ReverseGeocoder {
+    private static final String TAG = "ReverseGeocoder";
+
+    private static final double cell_size_c = 0.0005; // in degrees, about 50m north-south
+    private static final int max_entries_c = 256;
+    private static final long max_age_ms_c = 30L * 24 * 60 * 60 * 1000;
+    private static final String cache_filename_c = "geocode_cache.txt";
+
+    private final Context context;
+    private final GeocodeCache cache = new GeocodeCache(cell_size_c, max_entries_c, max_age_ms_c);
+    private final File cache_file;
+    private final CountDownLatch loaded = new CountDownLatch(1); // lookups wait for the cache file to be read, so they don't race with it
+    // loading, prefetching and saving are done on this thread
+    private final ThreadPoolExecutor executor;
+    private final AtomicReference<Location> pending_prefetch = new AtomicReference<>(); // only the latest location is prefetched
+    private final AtomicBoolean pending_save = new AtomicBoolean();
+
+    ReverseGeocoder(Context context) {
+        this.context = context;
+        this.cache_file = new File(getCacheFolder(context), cache_filename_c);
+        this.executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /** Returns a private folder that isn't backed up.
+     */
+    private static File getCacheFolder(Context context) {
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            return context.getNoBackupFilesDir();
+        }
+        // no folder is excluded from backups on older versions, apart from the cache folder
+        return context.getCacheDir();
+    }
+
+    private static String getLocaleString() {
+        return Locale.getDefault().toString();
+    }
+
+    private void load() {
+        try {
+            loadFile();
+        }
+        finally {
+            loaded.countDown();
+        }
+    }
+
+    private void loadFile() {
+        cache.setLocale(getLocaleString());
+        // earlier versions kept the cache in the files folder, which is backed up
+        File old_cache_file = new File(context.getFilesDir(), cache_filename_c);
+        if( old_cache_file.exists() ) {
+            if( cache_file.exists() || !old_cache_file.renameTo(cache_file) ) {
+                deleteFile(old_cache_file);
+            }
+        }
+        if( !cache_file.exists() ) {
+            return;
+        }
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(cache_file), "UTF-8");
+            try {
+                cache.read(reader, System.currentTimeMillis());
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch(IOException e) {
+            Log.e(TAG, "failed to read geocode cache");
+            e.printStackTrace();
+        }
+    }
+
+    private void save() {
+        File temp_file = new File(cache_file.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp_file), "UTF-8");
+            try {
+                cache.write(writer);
+            }
+            finally {
+                writer.close();
+            }
+            if( !temp_file.renameTo(cache_file) ) {
+                Log.e(TAG, "failed to rename geocode cache file");
+            }
+        }
+        catch(IOException e) {
+            Log.e(TAG, "failed to write geocode cache");
+            e.printStackTrace();
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if( file.exists() && !file.delete() ) {
+            Log.e(TAG, "failed to delete geocode cache file");
+        }
+    }
+
+    /** Waits until the cache file has been read.
+     */
+    private void awaitLoaded() {
+        try {
+            loaded.await();
+        }
+        catch(InterruptedException e) {
+            Log.e(TAG, "interrupted while waiting for geocode cache");
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Removes all cached addresses, and deletes the cache file. Should be called when addresses
+     *  are no longer needed, so that the history of locations isn't kept.
+     */
+    void clear() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "clear");
+        // done on the executor so that it can't be overtaken by a pending save
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cache.clear();
+                deleteFile(cache_file);
+                deleteFile(new File(cache_file.getPath() + ".tmp"));
+            }
+        });
+    }
+
+    /** Returns the cached address lines for the location, or null if not cached.
+     */
+    List<String> getCachedAddressLines(Location location) {
+        awaitLoaded();
+        cache.setLocale(getLocaleString());
+        return cache.get(location.getLatitude(), location.getLongitude(), System.currentTimeMillis());
+    }
+
+    /** Returns the address lines for the location, from the cache if possible, otherwise by calling
+     *  the Geocoder (which may block). Returns null if the address couldn't be looked up; or an
+     *  empty list if the Geocoder has no address for the location.
+     */
+    List<String> getAddressLines(Location location) {
+        List<String> address_lines = getCachedAddressLines(location);
+        if( address_lines != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "address is cached");
+            return address_lines;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "address not cached");
+        return lookup(location);
+    }
+
+    /** Calls the Geocoder for the location, and caches the result.
+     */
+    private List<String> lookup(Location location) {
+        if( !Geocoder.isPresent() ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "geocoder not present");
+            return null;
+        }
+        Geocoder geocoder = new Geocoder(context, Locale.getDefault());
+        List<String> address_lines = new ArrayList<>();
+        try {
+            List<Address> addresses = geocoder.getFromLocation(location.getLatitude(), location.getLongitude(), 1);
+            if( addresses != null && addresses.size() > 0 ) {
+                Address address = addresses.get(0);
+                // don't log address, in case of privacy!
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "max line index: " + address.getMaxAddressLineIndex());
+                }
+                for(int i=0;i<=address.getMaxAddressLineIndex();i++) {
+                    address_lines.add(address.getAddressLine(i));
+                }
+            }
+        }
+        catch(Exception e) {
+            // don't cache failures, as they may be due to no network
+            Log.e(TAG, "failed to read from geocoder");
+            e.printStackTrace();
+            return null;
+        }
+        cache.setLocale(getLocaleString());
+        cache.put(location.getLatitude(), location.getLongitude(), address_lines, System.currentTimeMillis());
+        if( pending_save.compareAndSet(false, true) ) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pending_save.set(false);
+                    save();
+                }
+            });
+        }
+        return address_lines;
+    }
+
+    /** Looks up the address for the location in the background if it isn't already cached. If
+     *  called again before the lookup has started, only the latest location is looked up.
+     */
+    void prefetch(Location location) {
+        if( pending_prefetch.getAndSet(new Location(location)) == null ) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Location prefetch_location = pending_prefetch.getAndSet(null);
+                    if( prefetch_location != null && getCachedAddressLines(prefetch_location) == null ) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "prefetch address");
+                        lookup(prefetch_location);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.magilic.opencamera;
+
+import android.util.Log;
+
+/** Memory budget for the images held by the ImageSaver, in bytes.
+ *  Two kinds of memory are charged against the budget: the payload of a request (the JPEG and RAW
+ *  data it holds, charged from when it's added until it's been saved), and the peak memory needed
+ *  while a request is being processed (decoded bitmaps, HDR/NR/panorama buffers, charged only
+ *  while it's being saved). Rather than blocking forever, a request is always allowed once
+ *  nothing else is charged, even if it's larger than the whole budget.
+ */
+public class SaveMemoryBudget {
+    private static final String TAG = "SaveMemoryBudget";
+
+    private static final long mb_c = 1024*1024;
+    private static final long min_budget_c = 24*mb_c;
+    public static final long default_n_pixels_c = 12000000; // used when the photo resolution isn't known
+
+    private final long budget;
+    private long n_used_bytes; // including n_processing_bytes
+    private long n_processing_bytes;
+
+    public SaveMemoryBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /** Returns a budget suitable for a device with the supplied large heap size. We allow half of
+     *  the heap, as the rest is needed by the camera, preview and UI.
+     * @param large_heap_memory The large heap size in MB, see ActivityManager.getLargeMemoryClass().
+     */
+    public static long computeBudget(int large_heap_memory) {
+        long budget = Math.max(min_budget_c, large_heap_memory*mb_c/2);
+        if( MyDebug.LOG )
+            Log.d(TAG, "budget for " + large_heap_memory + "MB large heap: " + budget);
+        return budget;
+    }
+
+    /** Estimates the size of a JPEG that hasn't been taken yet. High quality camera JPEGs are
+     *  typically 2-3 bits per pixel, we allow 4 to be safe.
+     */
+    public static long estimateJpegBytes(long n_pixels) {
+        return n_pixels/2;
+    }
+
+    /** Estimates the size of the RAW data held for a DNG (16 bits per pixel).
+     */
+    public static long estimateRawBytes(long n_pixels) {
+        return 2*n_pixels;
+    }
+
+    /** Returns the size of an ARGB_8888 bitmap.
+     */
+    public static long estimateBitmapBytes(long n_pixels) {
+        return 4*n_pixels;
+    }
+
+    /** Estimates the memory needed by the Renderscript backend of the HDRProcessor, in addition to
+     *  the bitmaps. Renderscript works on full frames, needing an allocation for each input image
+     *  for HDR and DRO, or for noise reduction, allocations for the two images being merged plus the
+     *  F32_3 accumulator (which is padded to 16 bytes per pixel). The CPU backend works on a band of
+     *  rows at a time, so needs no more than the bitmaps and its accumulator.
+     * @param n_images        The number of images for HDR or DRO, ignored for noise reduction.
+     */
+    public static long estimateRenderscriptBytes(int n_images, boolean noise_reduction, long n_pixels) {
+        if( noise_reduction )
+            return (2*4 + 16)*n_pixels;
+        return 4*n_images*n_pixels;
+    }
+
+    /** Reads the dimensions of a JPEG from its frame header, without decoding it.
+     * @return An array of {width, height}, or null if the data doesn't look like a JPEG.
+     */
+    public static int [] getJpegSize(byte [] jpeg) {
+        if( jpeg == null || jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8 ) {
+            return null;
+        }
+        int pos = 2;
+        while( pos + 4 <= jpeg.length ) {
+            if( (jpeg[pos] & 0xff) != 0xff ) {
+                return null;
+            }
+            int marker = jpeg[pos+1] & 0xff;
+            if( marker == 0xff ) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if( marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8) ) {
+                // markers without a length
+                pos += 2;
+                continue;
+            }
+            if( marker == 0xd9 || marker == 0xda ) {
+                // end of image, or start of scan before any frame header
+                return null;
+            }
+            int length = ((jpeg[pos+2] & 0xff) << 8) | (jpeg[pos+3] & 0xff);
+            if( marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc ) {
+                // start of frame (other than DHT, JPG and DAC, which share the range)
+                if( pos + 9 > jpeg.length ) {
+                    return null;
+                }
+                int height = ((jpeg[pos+5] & 0xff) << 8) | (jpeg[pos+6] & 0xff);
+                int width = ((jpeg[pos+7] & 0xff) << 8) | (jpeg[pos+8] & 0xff);
+                return new int[]{width, height};
+            }
+            pos += 2 + length;
+        }
+        return null;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /** Returns the number of bytes currently charged, including processing.
+     */
+    public synchronized long getUsedBytes() {
+        return n_used_bytes;
+    }
+
+    /** Whether charging n_bytes of payload now would block.
+     */
+    public synchronized boolean wouldBlock(long n_bytes) {
+        return n_used_bytes > 0 && n_used_bytes + n_bytes > budget;
+    }
+
+    /** Charges the payload of a request, blocking until there is room in the budget.
+     */
+    public synchronized void acquire(long n_bytes) throws InterruptedException {
+        while( wouldBlock(n_bytes) ) {
+            wait();
+        }
+        n_used_bytes += n_bytes;
+        if( MyDebug.LOG )
+            Log.d(TAG, "acquire " + n_bytes + ", used: " + n_used_bytes + " of " + budget);
+    }
+
+    /** Charges n_bytes without blocking, even if this exceeds the budget. This is for data that's
+     *  already held in memory (e.g., burst images waiting to be scored, see BurstSelector), so that
+     *  new requests then wait for it to be released.
+     */
+    public synchronized void acquireNow(long n_bytes) {
+        n_used_bytes += n_bytes;
+        if( MyDebug.LOG )
+            Log.d(TAG, "acquire now " + n_bytes + ", used: " + n_used_bytes + " of " + budget);
+    }
+
+    /** Charges the processing memory of a request that's about to be saved, blocking until there
+     *  is room in the budget. Unlike acquire(), this only waits for other requests being processed:
+     *  queued payloads are only released once they've been processed, so waiting for those could
+     *  never succeed.
+     */
+    public synchronized void acquireProcessing(long n_bytes) throws InterruptedException {
+        while( n_processing_bytes > 0 && n_used_bytes + n_bytes > budget ) {
+            wait();
+        }
+        n_used_bytes += n_bytes;
+        n_processing_bytes += n_bytes;
+        if( MyDebug.LOG )
+            Log.d(TAG, "acquire processing " + n_bytes + ", used: " + n_used_bytes + " of " + budget);
+    }
+
+    public synchronized void release(long n_bytes) {
+        n_used_bytes -= n_bytes;
+        if( MyDebug.LOG )
+            Log.d(TAG, "release " + n_bytes + ", used: " + n_used_bytes + " of " + budget);
+        notifyAll();
+    }
+
+    public synchronized void releaseProcessing(long n_bytes) {
+        n_used_bytes -= n_bytes;
+        n_processing_bytes -= n_bytes;
+        if( MyDebug.LOG )
+            Log.d(TAG, "release processing " + n_bytes + ", used: " + n_used_bytes + " of " + budget);
+        notifyAll();
+    }
+
+    /** Returns how many images of the supplied size fit in the budget at once (at least 1).
+     */
+    public int getMaxImages(long bytes_per_image) {
+        if( bytes_per_image <= 0 ) {
+            throw new IllegalArgumentException("bytes_per_image must be positive: " + bytes_per_image);
+        }
+        return (int)Math.max(1, budget/bytes_per_image);
+    }
+}
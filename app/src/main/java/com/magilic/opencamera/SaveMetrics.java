@@ -0,0 +1,306 @@
+package com.magilic.opencamera;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/** Always-on timing of the stages of saving a photo (queue wait, decode, align, merge, etc), so
+ *  that the performance of the save pipeline can be measured on release builds, rather than only
+ *  from the "### time" debug logging.
+ *  Times are recorded into lock-free histograms, one per stage for each key, where the key is the
+ *  process type (NORMAL, HDR, etc) and resolution of the photo being saved. The key for the
+ *  current thread is set with beginRequest(), so that code that doesn't know about the request
+ *  (e.g., HDRProcessor) can still record into the right histograms. Threads that do work for a
+ *  request in the background (e.g., NRStreamMerger) are passed the request's key, and call
+ *  beginRequest() with it themselves. Stages may nest, e.g. the
+ *  time for MERGE includes any ALIGN and TONEMAP done as part of the merge.
+ *  Recording a time costs a couple of System.nanoTime() calls and atomic increments, so is
+ *  cheap enough to leave enabled; if disabled, startTimer() returns 0 and nothing is recorded.
+ */
+public class SaveMetrics {
+    private static final String TAG = "SaveMetrics";
+
+    public enum Stage {
+        QUEUE_WAIT,
+        DECODE,
+        ALIGN,
+        MERGE,
+        TONEMAP,
+        POST_PROCESS,
+        COMPRESS,
+        WRITE,
+        EXIF,
+        MEDIA_SCAN
+    }
+
+    // key for stages that are run for a batch of photos, rather than a single request
+    public static final String batch_key_c = "BATCH";
+
+    private volatile boolean enabled = true;
+    private final ConcurrentMap<String, Histogram []> histograms = new ConcurrentHashMap<>();
+    private final ThreadLocal<Histogram []> current = new ThreadLocal<>();
+
+    /** A histogram of times in microseconds, with buckets spaced log-linearly: each power of two is
+     *  split into sub_buckets_c linear buckets, so values are recorded to within 1/sub_buckets_c
+     *  (12.5%) of their true value, with a fixed number of buckets covering up to max_value_c
+     *  (about 12 days). Values are recorded without locking, so may be recorded from any thread.
+     */
+    public static class Histogram {
+        private static final int sub_bucket_bits_c = 3;
+        private static final int sub_buckets_c = 1 << sub_bucket_bits_c;
+        private static final int max_bits_c = 40;
+        private static final long max_value_c = (1L << max_bits_c) - 1;
+        private static final int n_buckets_c = (max_bits_c - sub_bucket_bits_c + 1) * sub_buckets_c;
+
+        private final AtomicLongArray counts = new AtomicLongArray(n_buckets_c);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        static int getBucket(long value) {
+            if( value < sub_buckets_c ) {
+                return (int)value;
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(value);
+            int sub_bucket = (int)(value >> (msb - sub_bucket_bits_c)) & (sub_buckets_c - 1);
+            return (msb - sub_bucket_bits_c + 1) * sub_buckets_c + sub_bucket;
+        }
+
+        /** Returns the smallest value that is recorded in the bucket.
+         */
+        static long getBucketLowerBound(int bucket) {
+            if( bucket < sub_buckets_c ) {
+                return bucket;
+            }
+            int msb = bucket / sub_buckets_c + sub_bucket_bits_c - 1;
+            long sub_bucket = bucket % sub_buckets_c;
+            return (sub_buckets_c + sub_bucket) << (msb - sub_bucket_bits_c);
+        }
+
+        public void record(long value) {
+            if( value < 0 ) {
+                value = 0;
+            }
+            else if( value > max_value_c ) {
+                value = max_value_c;
+            }
+            counts.incrementAndGet(getBucket(value));
+            count.incrementAndGet();
+            total.addAndGet(value);
+            long old_max;
+            while( value > (old_max = max.get()) ) {
+                if( max.compareAndSet(old_max, value) ) {
+                    break;
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long this_count = count.get();
+            return this_count == 0 ? 0.0 : total.get() / (double)this_count;
+        }
+
+        /** Returns the value at the supplied percentile (0 to 100), accurate to the bucket size.
+         *  Returns the midpoint of the bucket, limited by the maximum recorded value (so the 100th
+         *  percentile is the maximum).
+         */
+        public long getValueAtPercentile(double percentile) {
+            long this_count = count.get();
+            if( this_count == 0 ) {
+                return 0;
+            }
+            long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * this_count));
+            if( target >= this_count ) {
+                return max.get();
+            }
+            long cumulative = 0;
+            for(int i=0;i<n_buckets_c;i++) {
+                cumulative += counts.get(i);
+                if( cumulative >= target ) {
+                    long lower = getBucketLowerBound(i);
+                    long upper = i+1 < n_buckets_c ? getBucketLowerBound(i+1) - 1 : max_value_c;
+                    return Math.min(lower + (upper - lower) / 2, max.get());
+                }
+            }
+            // counts may be slightly behind count if recording on another thread
+            return max.get();
+        }
+
+        void reset() {
+            for(int i=0;i<n_buckets_c;i++) {
+                counts.set(i, 0);
+            }
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+    }
+
+    /** Returns the key for a process type and resolution, e.g. "HDR 12MP".
+     */
+    public static String getKey(String process_type, long n_pixels) {
+        return process_type + " " + ((n_pixels + 500000) / 1000000) + "MP";
+    }
+
+    public void setEnabled(boolean enabled) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setEnabled: " + enabled);
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private Histogram [] getHistograms(String key) {
+        Histogram [] stage_histograms = histograms.get(key);
+        if( stage_histograms == null ) {
+            stage_histograms = new Histogram[Stage.values().length];
+            for(int i=0;i<stage_histograms.length;i++) {
+                stage_histograms[i] = new Histogram();
+            }
+            Histogram [] existing = histograms.putIfAbsent(key, stage_histograms);
+            if( existing != null ) {
+                stage_histograms = existing;
+            }
+        }
+        return stage_histograms;
+    }
+
+    /** Sets the key that stages timed on this thread are recorded against, until endRequest() is
+     *  called.
+     */
+    public void beginRequest(String process_type, long n_pixels) {
+        beginRequest(getKey(process_type, n_pixels));
+    }
+
+    /** As beginRequest(String, long), but with a key returned by getKey().
+     */
+    public void beginRequest(String key) {
+        current.set(getHistograms(key));
+    }
+
+    public void endRequest() {
+        current.remove();
+    }
+
+    /** Returns the start time to pass to stopTimer(), or 0 if not enabled.
+     */
+    public long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Records the time since start_ns (as returned by startTimer()) for the stage, against the key
+     *  set for this thread by beginRequest(). Does nothing if start_ns is 0, or there's no current
+     *  request on this thread.
+     */
+    public void stopTimer(Stage stage, long start_ns) {
+        if( start_ns == 0 ) {
+            return;
+        }
+        Histogram [] stage_histograms = current.get();
+        if( stage_histograms != null ) {
+            stage_histograms[stage.ordinal()].record((System.nanoTime() - start_ns) / 1000);
+        }
+    }
+
+    /** As stopTimer(), but records against the supplied key rather than the current request, for
+     *  stages that aren't run for a single request (e.g., media scanning a batch of photos).
+     */
+    public void stopTimer(String key, Stage stage, long start_ns) {
+        if( start_ns == 0 ) {
+            return;
+        }
+        getHistograms(key)[stage.ordinal()].record((System.nanoTime() - start_ns) / 1000);
+    }
+
+    /** Returns the histogram for the key and stage, or null if nothing has been recorded for the
+     *  key.
+     */
+    public Histogram getHistogram(String key, Stage stage) {
+        Histogram [] stage_histograms = histograms.get(key);
+        return stage_histograms == null ? null : stage_histograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for(Histogram [] stage_histograms : histograms.values()) {
+            for(Histogram histogram : stage_histograms) {
+                histogram.reset();
+            }
+        }
+    }
+
+    private List<String> getSortedKeys() {
+        List<String> keys = new ArrayList<>(histograms.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private static String formatMs(double value_us) {
+        return String.format(Locale.US, "%.1f", value_us / 1000.0);
+    }
+
+    /** Writes a table of the recorded times, one line per key and stage, in milliseconds.
+     */
+    public void write(Writer writer) throws IOException {
+        writer.write("key\tstage\tcount\tmean_ms\tp50_ms\tp90_ms\tp99_ms\tmax_ms\n");
+        for(String key : getSortedKeys()) {
+            Histogram [] stage_histograms = histograms.get(key);
+            for(Stage stage : Stage.values()) {
+                Histogram histogram = stage_histograms[stage.ordinal()];
+                if( histogram.getCount() == 0 ) {
+                    continue;
+                }
+                writer.write(key + "\t" + stage + "\t" + histogram.getCount() +
+                        "\t" + formatMs(histogram.getMean()) +
+                        "\t" + formatMs(histogram.getValueAtPercentile(50.0)) +
+                        "\t" + formatMs(histogram.getValueAtPercentile(90.0)) +
+                        "\t" + formatMs(histogram.getValueAtPercentile(99.0)) +
+                        "\t" + formatMs(histogram.getMax()) + "\n");
+            }
+        }
+        writer.flush();
+    }
+
+    /** Returns a short summary for an on-screen display: for each key, the median time of each
+     *  stage with recorded times. Returns an empty list if nothing has been recorded.
+     */
+    public List<String> getSummary() {
+        List<String> lines = new ArrayList<>();
+        for(String key : getSortedKeys()) {
+            Histogram [] stage_histograms = histograms.get(key);
+            StringBuilder line = new StringBuilder(key);
+            boolean any = false;
+            for(Stage stage : Stage.values()) {
+                Histogram histogram = stage_histograms[stage.ordinal()];
+                if( histogram.getCount() == 0 ) {
+                    continue;
+                }
+                line.append(any ? " " : ": ");
+                line.append(stage.toString().toLowerCase(Locale.US)).append('=').append(formatMs(histogram.getValueAtPercentile(50.0)));
+                any = true;
+            }
+            if( any ) {
+                lines.add(line.toString());
+            }
+        }
+        return lines;
+    }
+}
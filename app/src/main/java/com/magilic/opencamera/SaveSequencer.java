@@ -0,0 +1,83 @@
+package com.magilic.opencamera;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+/** Keeps the ImageSaver's results in the order the photos were taken, even though requests are
+ *  saved on several threads at once and can finish in any order. Each request has a sequence
+ *  number, starting from 0 and with no gaps. complete() is called once a request has been saved,
+ *  and runs its completion action once all earlier requests have completed. Filenames are
+ *  allocated in order by a separate NamingTurns for each lane.
+ */
+public class SaveSequencer {
+    private static final String TAG = "SaveSequencer";
+
+    private long next_completion; // the sequence number of the next request to be completed
+    private final Map<Long, Runnable> finished = new HashMap<>(); // finished requests, waiting for earlier requests to complete
+
+    /** Called once the request with this sequence number has finished. action is run (on this
+     *  thread, or the thread completing an earlier request) once all earlier requests have
+     *  completed. Actions are run one at a time, in sequence order, so they may update shared
+     *  state without further synchronization between them.
+     */
+    public void complete(long sequence, Runnable action) {
+        // hold the lock while running the actions, so that they run in order even if several threads finish at once
+        synchronized( this ) {
+            if( sequence < next_completion || finished.containsKey(sequence) ) {
+                throw new IllegalStateException("already completed: " + sequence);
+            }
+            finished.put(sequence, action);
+            Runnable next;
+            while( (next = finished.remove(next_completion)) != null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "complete: " + next_completion);
+                next_completion++;
+                next.run();
+            }
+        }
+    }
+
+    /** Returns the sequence number of the next request to be completed.
+     */
+    public synchronized long getNextCompletion() {
+        return next_completion;
+    }
+
+    /** Lets the requests saved on one lane allocate their filenames in the order they were
+     *  dispatched to that lane, so that filenames (and their "_N" suffixes when names clash)
+     *  follow the order the photos were taken. Each request calls awaitTurn() before allocating its
+     *  filename, and releaseTurn() afterwards (or once it knows it won't allocate one).
+     */
+    public static class NamingTurns {
+        private long next_naming; // the lane sequence number of the next request allowed to allocate a filename
+        private final Set<Long> named = new HashSet<>(); // lane sequence numbers that have allocated, waiting for earlier requests
+
+        /** Blocks until all requests dispatched to the lane before this one have released their
+         *  turn.
+         */
+        public synchronized void awaitTurn(long lane_sequence) {
+            while( lane_sequence != next_naming ) {
+                try {
+                    wait();
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "interrupted while waiting to allocate filename");
+                }
+            }
+        }
+
+        public synchronized void releaseTurn(long lane_sequence) {
+            named.add(lane_sequence);
+            while( named.remove(next_naming) ) {
+                next_naming++;
+            }
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.magilic.opencamera;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/** Traces the latency of taking a photo, from pressing the shutter through precapture, capture and
+ *  saving, across the threads involved (UI, camera callbacks, ImageSaver lanes).
+ *  Each photo is given a shot id by beginShot(), and events are tagged with it so they can be
+ *  correlated: camera events use the current shot, and the ImageSaver sets the shot of the request
+ *  it's saving with setThreadShot().
+ *  Events are recorded into a fixed size ring buffer of preallocated arrays, so recording doesn't
+ *  allocate (other than the first event on each thread, which registers the thread's name) or
+ *  lock; once full, the oldest events are overwritten. The buffer can be written out with
+ *  write() in the Chrome trace event JSON format, which can be viewed with Perfetto
+ *  (ui.perfetto.dev) or chrome://tracing.
+ */
+public class ShotTracer {
+    private static final String TAG = "ShotTracer";
+
+    private static final int default_capacity_c = 4096;
+
+    // the spans and instants that can be recorded; names are indices into span_names
+    public static final int span_shot_c = 0; // async, from pressing the shutter until the camera has taken the photo
+    public static final int span_precapture_c = 1; // async, waiting for precapture (flash metering)
+    public static final int span_capture_c = 2; // async, from requesting the capture until the capture is complete
+    public static final int span_capture_started_c = 3; // instant
+    public static final int span_capture_completed_c = 4; // instant
+    public static final int span_image_available_c = 5; // instant
+    public static final int span_picture_taken_c = 6; // the application receiving the image
+    public static final int span_save_c = 7; // async, from adding a request to the ImageSaver until it's been saved
+    public static final int span_process_c = 8; // processing a request on an ImageSaver lane
+    public static final int span_create_file_c = 9;
+    public static final int span_broadcast_c = 10;
+    public static final int span_capture_failed_c = 11; // instant
+    private static final String [] span_names = {
+            "shot",
+            "precapture",
+            "capture",
+            "capture_started",
+            "capture_completed",
+            "image_available",
+            "picture_taken",
+            "save",
+            "process",
+            "create_file",
+            "broadcast",
+            "capture_failed"
+    };
+
+    private static final char phase_begin_c = 'B';
+    private static final char phase_end_c = 'E';
+    private static final char phase_async_begin_c = 'b';
+    private static final char phase_async_end_c = 'e';
+    private static final char phase_instant_c = 'i';
+
+    private static final ShotTracer instance = new ShotTracer(default_capacity_c);
+
+    private volatile boolean enabled = true;
+    private final int capacity; // a power of 2
+    private final long start_time_ns = System.nanoTime(); // timestamps are written relative to this
+    // the ring buffer, a slot for each event
+    // the fields are atomic (rather than plain arrays) so that their accesses are ordered with
+    // those of sequences, which write() relies on to detect a slot being overwritten while read
+    private final AtomicLongArray times_ns;
+    private final AtomicLongArray shots;
+    private final AtomicLongArray thread_ids;
+    private final AtomicIntegerArray span_phases; // the span in the upper 16 bits, and the phase in the lower 16 bits
+    // for each slot, 1 + the index of the event held in it, or 0 while it's being written
+    private final AtomicLongArray sequences;
+    private final AtomicLong next_index = new AtomicLong();
+
+    private final AtomicLong next_shot = new AtomicLong();
+    private volatile long current_shot = -1;
+    private final Map<Long, String> thread_names = new ConcurrentHashMap<>();
+
+    private static class ThreadState {
+        final long thread_id;
+        long shot = -1;
+
+        ThreadState(long thread_id) {
+            this.thread_id = thread_id;
+        }
+    }
+
+    private final ThreadLocal<ThreadState> thread_state = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            Thread thread = Thread.currentThread();
+            thread_names.put(thread.getId(), thread.getName());
+            return new ThreadState(thread.getId());
+        }
+    };
+
+    /**
+     * @param capacity The maximum number of events held; rounded up to a power of 2.
+     */
+    public ShotTracer(int capacity) {
+        int this_capacity = 1;
+        while( this_capacity < capacity ) {
+            this_capacity *= 2;
+        }
+        this.capacity = this_capacity;
+        this.times_ns = new AtomicLongArray(this_capacity);
+        this.shots = new AtomicLongArray(this_capacity);
+        this.thread_ids = new AtomicLongArray(this_capacity);
+        this.span_phases = new AtomicIntegerArray(this_capacity);
+        this.sequences = new AtomicLongArray(this_capacity);
+    }
+
+    /** Returns the tracer shared by the application.
+     */
+    public static ShotTracer getInstance() {
+        return instance;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setEnabled: " + enabled);
+        this.enabled = enabled;
+    }
+
+    /** Starts tracing a new photo, which becomes the current shot.
+     * @return The shot id.
+     */
+    public long beginShot() {
+        long shot = next_shot.incrementAndGet();
+        current_shot = shot;
+        asyncBegin(span_shot_c, shot);
+        return shot;
+    }
+
+    /** Returns the id of the most recent shot, or -1 if there hasn't been one.
+     */
+    public long getCurrentShot() {
+        return current_shot;
+    }
+
+    /** Sets the shot that events on this thread belong to, rather than the current shot, e.g.
+     *  when saving a photo that was taken before the current shot.
+     */
+    public void setThreadShot(long shot) {
+        thread_state.get().shot = shot;
+    }
+
+    public void clearThreadShot() {
+        thread_state.get().shot = -1;
+    }
+
+    /** Begins a span on this thread. Spans on a thread must be nested.
+     */
+    public void begin(int span) {
+        record(span, phase_begin_c, -1);
+    }
+
+    public void end(int span) {
+        record(span, phase_end_c, -1);
+    }
+
+    /** Records an instantaneous event on this thread.
+     */
+    public void instant(int span) {
+        record(span, phase_instant_c, -1);
+    }
+
+    /** Begins a span for the shot that may end on a different thread.
+     */
+    public void asyncBegin(int span, long shot) {
+        record(span, phase_async_begin_c, shot);
+    }
+
+    public void asyncEnd(int span, long shot) {
+        record(span, phase_async_end_c, shot);
+    }
+
+    private void record(int span, char phase, long shot) {
+        if( !enabled ) {
+            return;
+        }
+        long time_ns = System.nanoTime();
+        ThreadState state = thread_state.get();
+        if( shot == -1 ) {
+            shot = state.shot != -1 ? state.shot : current_shot;
+        }
+        long index = next_index.getAndIncrement();
+        int slot = (int)(index & (capacity-1));
+        sequences.set(slot, 0);
+        times_ns.set(slot, time_ns);
+        shots.set(slot, shot);
+        thread_ids.set(slot, state.thread_id);
+        span_phases.set(slot, (span << 16) | phase);
+        sequences.set(slot, index+1);
+    }
+
+    /** Returns the number of events held in the buffer.
+     */
+    public int getNEvents() {
+        return (int)Math.min(next_index.get(), capacity);
+    }
+
+    private static void writeString(StringBuilder builder, String string) {
+        builder.append('"');
+        for(int i=0;i<string.length();i++) {
+            char ch = string.charAt(i);
+            if( ch == '"' || ch == '\\' ) {
+                builder.append('\\').append(ch);
+            }
+            else if( ch < 0x20 ) {
+                builder.append(String.format(Locale.US, "\\u%04x", (int)ch));
+            }
+            else {
+                builder.append(ch);
+            }
+        }
+        builder.append('"');
+    }
+
+    /** Writes the events in the buffer as Chrome trace event JSON. Events may still be recorded
+     *  while writing; any that are overwritten while being read are skipped.
+     * @return The number of events written.
+     */
+    public int write(Writer writer) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        boolean first = true;
+        for(Map.Entry<Long, String> entry : thread_names.entrySet()) {
+            if( !first ) {
+                builder.append(",\n");
+            }
+            builder.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(entry.getKey()).append(",\"args\":{\"name\":");
+            writeString(builder, entry.getValue());
+            builder.append("}}");
+            first = false;
+        }
+        writer.write(builder.toString());
+
+        int n_written = 0;
+        long end_index = next_index.get();
+        for(long index=Math.max(0, end_index-capacity);index<end_index;index++) {
+            int slot = (int)(index & (capacity-1));
+            if( sequences.get(slot) != index+1 ) {
+                continue;
+            }
+            long time_ns = times_ns.get(slot);
+            long shot = shots.get(slot);
+            long thread_id = thread_ids.get(slot);
+            int span_phase = span_phases.get(slot);
+            int span = span_phase >>> 16;
+            char phase = (char)(span_phase & 0xffff);
+            if( sequences.get(slot) != index+1 ) {
+                // overwritten while we were reading it
+                continue;
+            }
+            builder.setLength(0);
+            if( !first ) {
+                builder.append(",\n");
+            }
+            builder.append("{\"name\":\"").append(span_names[span]).append("\",\"ph\":\"").append(phase).append('"');
+            if( phase == phase_async_begin_c || phase == phase_async_end_c ) {
+                // a separate category for each async span, so they're shown on their own tracks
+                builder.append(",\"cat\":\"").append(span_names[span]).append("\",\"id\":").append(shot);
+            }
+            else {
+                builder.append(",\"cat\":\"shot\"");
+            }
+            if( phase == phase_instant_c ) {
+                builder.append(",\"s\":\"t\"");
+            }
+            builder.append(",\"ts\":").append(String.format(Locale.US, "%.3f", (time_ns - start_time_ns) / 1000.0));
+            builder.append(",\"pid\":1,\"tid\":").append(thread_id);
+            builder.append(",\"args\":{\"shot\":").append(shot).append("}}");
+            writer.write(builder.toString());
+            first = false;
+            n_written++;
+        }
+        writer.write("\n]}\n");
+        writer.flush();
+        if( MyDebug.LOG )
+            Log.d(TAG, "wrote " + n_written + " events");
+        return n_written;
+    }
+}
@@ -0,0 +1,171 @@
+package com.magilic.opencamera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/** Holds image data on disk rather than in memory, for when the ImageSaver's memory budget is
+ *  used up. Data is written to (and read back from) files in a private directory through
+ *  memory-mapped buffers, and only a small Handle is kept in memory. The files are expected to be
+ *  read back in the order they were written, so access is sequential.
+ */
+public class SpillStore {
+    private static final String TAG = "SpillStore";
+
+    private final File dir;
+    private final long max_spill_bytes;
+    private final long min_free_bytes;
+    private long n_spilled_bytes; // synchronized on this
+    private long next_id; // synchronized on this
+
+    /** A reference to data that has been spilled to disk.
+     */
+    public static class Handle {
+        private final File file;
+        private final int length;
+
+        private Handle(File file, int length) {
+            this.file = file;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * @param dir             The directory to hold the files. Any existing files in it are deleted,
+     *                        as they can only be left over from a previous run.
+     * @param max_spill_bytes The maximum amount of data to hold at once.
+     * @param min_free_bytes  The amount of space to leave free on the file system (e.g., so
+     *                        there's still room to save the photos).
+     */
+    public SpillStore(File dir, long max_spill_bytes, long min_free_bytes) {
+        this.dir = dir;
+        this.max_spill_bytes = max_spill_bytes;
+        this.min_free_bytes = min_free_bytes;
+        clear();
+    }
+
+    private void clear() {
+        File [] files = dir.listFiles();
+        if( files != null ) {
+            for(File file : files) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "delete old spill file: " + file);
+                if( !file.delete() ) {
+                    Log.e(TAG, "failed to delete old spill file: " + file);
+                }
+            }
+        }
+    }
+
+    /** Whether there is room to spill n_bytes.
+     */
+    public synchronized boolean canSpill(long n_bytes) {
+        if( n_spilled_bytes + n_bytes > max_spill_bytes ) {
+            return false;
+        }
+        if( !dir.exists() && !dir.mkdirs() ) {
+            Log.e(TAG, "failed to create spill dir: " + dir);
+            return false;
+        }
+        return dir.getUsableSpace() - n_bytes >= min_free_bytes;
+    }
+
+    /** Returns the amount of data currently spilled.
+     */
+    public synchronized long getNSpilledBytes() {
+        return n_spilled_bytes;
+    }
+
+    /** Writes data to a new file, and returns a handle to read it back with read().
+     */
+    public Handle write(byte [] data) throws IOException {
+        return write(ByteBuffer.wrap(data));
+    }
+
+    /** Writes the data between the position and limit of a buffer to a new file, without
+     *  modifying the buffer, and returns a handle to read it back with read().
+     */
+    public Handle write(ByteBuffer data) throws IOException {
+        final int length = data.remaining();
+        File file;
+        synchronized( this ) {
+            if( !dir.exists() && !dir.mkdirs() ) {
+                throw new IOException("failed to create spill dir: " + dir);
+            }
+            file = new File(dir, "spill_" + next_id + ".bin");
+            next_id++;
+            n_spilled_bytes += length;
+        }
+        boolean done = false;
+        try {
+            RandomAccessFile random_access_file = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = random_access_file.getChannel();
+                if( length > 0 ) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                    buffer.put(data.duplicate());
+                }
+            }
+            finally {
+                random_access_file.close();
+            }
+            done = true;
+        }
+        finally {
+            if( !done ) {
+                deleteFile(file, length);
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "spilled " + length + " bytes to " + file);
+        return new Handle(file, length);
+    }
+
+    /** Reads back the data for a handle. The handle can still be read again, until delete() is
+     *  called.
+     */
+    public byte [] read(Handle handle) throws IOException {
+        byte [] data = new byte[handle.length];
+        RandomAccessFile random_access_file = new RandomAccessFile(handle.file, "r");
+        try {
+            FileChannel channel = random_access_file.getChannel();
+            if( channel.size() != handle.length ) {
+                throw new IOException("spill file has unexpected size: " + channel.size() + " vs " + handle.length);
+            }
+            if( handle.length > 0 ) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, handle.length);
+                buffer.get(data);
+            }
+        }
+        finally {
+            random_access_file.close();
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "read " + handle.length + " bytes from " + handle.file);
+        return data;
+    }
+
+    /** Deletes the data for a handle.
+     */
+    public void delete(Handle handle) {
+        deleteFile(handle.file, handle.length);
+    }
+
+    private void deleteFile(File file, int length) {
+        if( file.exists() && !file.delete() ) {
+            Log.e(TAG, "failed to delete spill file: " + file);
+        }
+        synchronized( this ) {
+            n_spilled_bytes -= length;
+        }
+    }
+}
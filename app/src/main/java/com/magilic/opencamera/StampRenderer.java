@@ -0,0 +1,162 @@
+package com.magilic.opencamera;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * Draws the lines of text for photo stamps. Each line is rendered (with its shadow or background)
+ * into a small bitmap layer, which is cached and then drawn onto every photo that needs the same
+ * line in the same place. So for a burst or repeat sequence, only lines whose text has changed
+ * (typically just the time) are rendered again, and stamping the other lines is just a copy of
+ * the cached pixels.
+ * The layers are composited with the same blending as drawing the text directly, so the result
+ * is the same as calling MyApplicationInterface.drawTextWithBackground() on the photo.
+ */
+class StampRenderer {
+    private static final String TAG = "StampRenderer";
+
+    private static final int max_cached_layers_c = 16; // enough for all the lines of a stamp, and a few old times
+
+    private final MainActivity main_activity;
+    private final int padding; // the padding drawn around text by drawTextWithBackground(), see there
+    private final Map<Key, Layer> layers = new LinkedHashMap<Key, Layer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Layer> eldest) {
+            // evicted bitmaps aren't recycled, as another thread may still be drawing them
+            return size() > max_cached_layers_c;
+        }
+    }; // synchronized on this
+    private int n_renders; // synchronized on this
+
+    /** Identifies a rendered line of text.
+     */
+    private static class Key {
+        private final String text;
+        private final int font_size_pixel;
+        private final int color;
+        private final MyApplicationInterface.Shadow shadow;
+        private final int location_x;
+        private final int location_y;
+
+        Key(String text, int font_size_pixel, int color, MyApplicationInterface.Shadow shadow, int location_x, int location_y) {
+            this.text = text;
+            this.font_size_pixel = font_size_pixel;
+            this.color = color;
+            this.shadow = shadow;
+            this.location_x = location_x;
+            this.location_y = location_y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if( this == o )
+                return true;
+            if( !(o instanceof Key) )
+                return false;
+            Key that = (Key)o;
+            return text.equals(that.text) && font_size_pixel == that.font_size_pixel && color == that.color &&
+                    shadow == that.shadow && location_x == that.location_x && location_y == that.location_y;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = text.hashCode();
+            result = 31 * result + font_size_pixel;
+            result = 31 * result + color;
+            result = 31 * result + shadow.hashCode();
+            result = 31 * result + location_x;
+            result = 31 * result + location_y;
+            return result;
+        }
+    }
+
+    /** A rendered line of text, to be drawn at (left, top) of the photo.
+     */
+    private static class Layer {
+        private final Bitmap bitmap;
+        private final int left;
+        private final int top;
+
+        Layer(Bitmap bitmap, int left, int top) {
+            this.bitmap = bitmap;
+            this.left = left;
+            this.top = top;
+        }
+    }
+
+    StampRenderer(MainActivity main_activity) {
+        this.main_activity = main_activity;
+        final float scale = main_activity.getResources().getDisplayMetrics().density;
+        this.padding = (int) (2 * scale + 0.5f); // convert dps to pixels
+    }
+
+    /** Draws a line of text right aligned to location_x, with its bottom at location_y, as
+     *  MyApplicationInterface.drawTextWithBackground() would with alignment ALIGNMENT_BOTTOM and a
+     *  black background.
+     */
+    void drawText(Canvas canvas, String text, int font_size_pixel, int color, MyApplicationInterface.Shadow shadow, int location_x, int location_y) {
+        Key key = new Key(text, font_size_pixel, color, shadow, location_x, location_y);
+        Layer layer;
+        synchronized( this ) {
+            layer = layers.get(key);
+            if( layer == null ) {
+                layer = render(key);
+                layers.put(key, layer);
+                n_renders++;
+            }
+            else if( MyDebug.LOG )
+                Log.d(TAG, "reuse cached stamp layer");
+        }
+        canvas.drawBitmap(layer.bitmap, layer.left, layer.top, null);
+    }
+
+    private static Paint createPaint(int font_size_pixel) {
+        // should match the paint used for stamps in ImageSaver.stampImage()
+        Paint p = new Paint();
+        p.setAntiAlias(true);
+        p.setColor(Color.WHITE);
+        p.setTextSize(font_size_pixel);
+        p.setTextAlign(Paint.Align.RIGHT);
+        return p;
+    }
+
+    private Layer render(Key key) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "render stamp layer, font_size_pixel " + key.font_size_pixel);
+        Paint p = createPaint(key.font_size_pixel);
+        // the region that drawTextWithBackground() may draw to: the text extends left from
+        // location_x, and within the font's ascent and descent of location_y; the padding covers
+        // the background rectangle and outline
+        Paint.FontMetricsInt font_metrics = p.getFontMetricsInt();
+        int text_width = (int)Math.ceil(p.measureText(key.text));
+        Rect text_bounds = new Rect();
+        p.getTextBounds(key.text, 0, key.text.length(), text_bounds);
+        int margin = padding + 2;
+        int left = key.location_x - text_width + Math.min(0, text_bounds.left) - margin;
+        int right = key.location_x + Math.max(0, text_bounds.right - text_width) + margin;
+        int top = key.location_y + Math.min(font_metrics.top, text_bounds.top) - margin;
+        int bottom = key.location_y + Math.max(font_metrics.bottom, text_bounds.bottom) + margin;
+        Bitmap bitmap = Bitmap.createBitmap(Math.max(1, right - left), Math.max(1, bottom - top), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.translate(-left, -top);
+        main_activity.getApplicationInterface().drawTextWithBackground(canvas, p, key.text, key.color, Color.BLACK, key.location_x, key.location_y, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, key.shadow);
+        return new Layer(bitmap, left, top);
+    }
+
+    /** Returns the number of lines that have had to be rendered, rather than reused from the cache.
+     */
+    synchronized int getNRenders() {
+        return n_renders;
+    }
+
+    synchronized void clear() {
+        layers.clear();
+    }
+}
@@ -54,6 +54,7 @@ public class StorageUtils {
 
     private final Context context;
     private final MyApplicationInterface applicationInterface;
+    private final MediaScanBatcher media_scan_batcher;
     private Uri last_media_scanned;
 
     private final static String RELATIVE_FOLDER_BASE = Environment.DIRECTORY_DCIM;
@@ -64,6 +65,7 @@ public class StorageUtils {
     StorageUtils(Context context, MyApplicationInterface applicationInterface) {
         this.context = context;
         this.applicationInterface = applicationInterface;
+        this.media_scan_batcher = new MediaScanBatcher(context, this, applicationInterface);
     }
 
     Uri getLastMediaScanned() {
@@ -218,6 +220,8 @@ public class StorageUtils {
      *  - So that they show up when connected to a PC using MTP.
      *  - For JPEGs, so that they show up in gallery applications.
      *  - This also calls announceUri() on the resultant Uri for the new file.
+     *  - New photos are scanned in batches, so may not be scanned until flushMediaScans() is called,
+     *    and only the most recent photo of a batch is announced.
      *  - Note this should also be called after deleting a file.
      *  - Note that for DNG files, MediaScannerConnection.scanFile() doesn't result in the files being shown in gallery applications.
      *    This may well be intentional, since most gallery applications won't read DNG files anyway. But it's still important to
@@ -239,6 +243,12 @@ public class StorageUtils {
             failed_to_scan = true; // set to true until scanned okay
             if( MyDebug.LOG )
                 Log.d(TAG, "failed_to_scan set to true");
+            if( is_new_picture && !is_new_video ) {
+                // photos are scanned in batches, see MediaScanBatcher
+                ShotTracer.getInstance().instant(ShotTracer.span_broadcast_c);
+                media_scan_batcher.scanFile(file, set_last_scanned);
+                return;
+            }
             MediaScannerConnection.scanFile(context, new String[] { file.getAbsolutePath() }, null,
                     new MediaScannerConnection.OnScanCompletedListener() {
                         public void onScanCompleted(String path, Uri uri) {
@@ -269,6 +279,20 @@ public class StorageUtils {
         }
     }
 
+    /** Announces a photo saved with the MediaStore API, and sets it as the last media scanned. This
+     *  is batched with other photos, see MediaScanBatcher. IS_PENDING must already have been cleared.
+     */
+    void announceMediaStoreImage(Uri uri) {
+        ShotTracer.getInstance().instant(ShotTracer.span_broadcast_c);
+        media_scan_batcher.announceMediaStoreImage(uri);
+    }
+
+    /** Publishes any photos still waiting to be scanned or published, e.g., at the end of a burst.
+     */
+    void flushMediaScans() {
+        media_scan_batcher.flush();
+    }
+
     /** Wrapper for broadcastFile, when we only have a Uri (e.g., for SAF)
      */
     public void broadcastUri(final Uri uri, final boolean is_new_picture, final boolean is_new_video, final boolean set_last_scanned, final boolean image_capture_intent) {
@@ -673,8 +697,14 @@ public class StorageUtils {
 
     // only valid if !isUsingSAF()
     File createOutputMediaFile(int type, String suffix, String extension, Date current_date) throws IOException {
-        File mediaStorageDir = getImageFolder();
-        return createOutputMediaFile(mediaStorageDir, type, suffix, extension, current_date);
+        ShotTracer.getInstance().begin(ShotTracer.span_create_file_c);
+        try {
+            File mediaStorageDir = getImageFolder();
+            return createOutputMediaFile(mediaStorageDir, type, suffix, extension, current_date);
+        }
+        finally {
+            ShotTracer.getInstance().end(ShotTracer.span_create_file_c);
+        }
     }
 
     /** Create the folder if it does not exist.
@@ -842,7 +872,13 @@ public class StorageUtils {
         }
         // note that DocumentsContract.createDocument will automatically append to the filename if it already exists
         String mediaFilename = createMediaFilename(type, suffix, 0, "." + extension, current_date);
-        return createOutputFileSAF(mediaFilename, mimeType);
+        ShotTracer.getInstance().begin(ShotTracer.span_create_file_c);
+        try {
+            return createOutputFileSAF(mediaFilename, mimeType);
+        }
+        finally {
+            ShotTracer.getInstance().end(ShotTracer.span_create_file_c);
+        }
     }
 
     static class Media {
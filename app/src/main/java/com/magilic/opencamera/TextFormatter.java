@@ -8,7 +8,10 @@ import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 /** Handles various text formatting options, used for photo stamp and video subtitles.
  */
@@ -22,6 +25,37 @@ public class TextFormatter {
         this.context = context;
     }
 
+    // Creating a SimpleDateFormat is relatively slow, so formats are cached for reuse when stamping
+    // a series of photos. DateFormats aren't thread safe, so each thread has its own cache.
+    private static final ThreadLocal<Map<String, DateFormat>> date_formats = new ThreadLocal<Map<String, DateFormat>>() {
+        @Override
+        protected Map<String, DateFormat> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /** Returns a DateFormat for the supplied pattern, or if pattern is null, the default date or
+     *  time format, for the current default locale and time zone.
+     */
+    private static DateFormat getDateFormat(String pattern, boolean is_time) {
+        Locale locale = Locale.getDefault();
+        TimeZone time_zone = TimeZone.getDefault();
+        String key = (pattern != null ? pattern : is_time ? "default_time" : "default_date") + "|" + locale + "|" + time_zone.getID();
+        Map<String, DateFormat> formats = date_formats.get();
+        DateFormat format = formats.get(key);
+        if( format == null ) {
+            if( pattern != null )
+                format = new SimpleDateFormat(pattern, locale);
+            else if( is_time )
+                format = DateFormat.getTimeInstance();
+            else
+                format = DateFormat.getDateInstance();
+            format.setTimeZone(time_zone);
+            formats.put(key, format);
+        }
+        return format;
+    }
+
     /** Formats the date according to the user preference preference_stamp_dateformat.
      *  Returns "" if preference_stamp_dateformat is "preference_stamp_dateformat_none".
      */
@@ -31,16 +65,16 @@ public class TextFormatter {
             switch(preference_stamp_dateformat) {
                 case "preference_stamp_dateformat_yyyymmdd":
                     // use dashes instead of slashes - this should follow https://en.wikipedia.org/wiki/ISO_8601
-                    date_stamp = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(date);
+                    date_stamp = getDateFormat("yyyy-MM-dd", false).format(date);
                     break;
                 case "preference_stamp_dateformat_ddmmyyyy":
-                    date_stamp = new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault()).format(date);
+                    date_stamp = getDateFormat("dd/MM/yyyy", false).format(date);
                     break;
                 case "preference_stamp_dateformat_mmddyyyy":
-                    date_stamp = new SimpleDateFormat("MM/dd/yyyy", Locale.getDefault()).format(date);
+                    date_stamp = getDateFormat("MM/dd/yyyy", false).format(date);
                     break;
                 default:
-                    date_stamp = DateFormat.getDateInstance().format(date);
+                    date_stamp = getDateFormat(null, false).format(date);
                     break;
             }
         }
@@ -55,13 +89,13 @@ public class TextFormatter {
         if( !preference_stamp_timeformat.equals("preference_stamp_timeformat_none") ) {
             switch(preference_stamp_timeformat) {
                 case "preference_stamp_timeformat_12hour":
-                    time_stamp = new SimpleDateFormat("hh:mm:ss a", Locale.getDefault()).format(date);
+                    time_stamp = getDateFormat("hh:mm:ss a", true).format(date);
                     break;
                 case "preference_stamp_timeformat_24hour":
-                    time_stamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(date);
+                    time_stamp = getDateFormat("HH:mm:ss", true).format(date);
                     break;
                 default:
-                    time_stamp = DateFormat.getTimeInstance().format(date);
+                    time_stamp = getDateFormat(null, true).format(date);
                     break;
             }
         }
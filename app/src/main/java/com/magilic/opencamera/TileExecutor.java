@@ -0,0 +1,158 @@
+package com.magilic.opencamera;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+
+/** Runs image processing work as a set of horizontal tiles (bands of rows) in parallel, on a
+ *  shared pool of worker threads sized to the number of CPU cores.
+ *  This is a simple fork-join: the calling thread also processes tiles, and only returns once
+ *  every tile has completed. Because the calling thread takes part, it's safe for a task to itself
+ *  call run() (e.g., when called from one of the pool threads) - in the worst case the caller
+ *  simply processes all of the tiles itself.
+ */
+public class TileExecutor {
+    private static final String TAG = "TileExecutor";
+
+    private static final int n_threads_c = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static ExecutorService executor; // lazily created, see getExecutor()
+
+    /** Processes the rows [y_start, y_stop).
+     */
+    public interface RowTask {
+        void run(int y_start, int y_stop);
+    }
+
+    private TileExecutor() {
+    }
+
+    /** Returns the number of threads that tiles are distributed across (including the calling
+     *  thread).
+     */
+    public static int getNThreads() {
+        return n_threads_c;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if( executor == null ) {
+            final AtomicInteger thread_count = new AtomicInteger();
+            ThreadFactory thread_factory = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TileExecutor-" + thread_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            // n_threads_c-1 workers, as the calling thread also processes tiles
+            int n_workers = Math.max(1, n_threads_c-1);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(n_workers, n_workers, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), thread_factory);
+            pool.allowCoreThreadTimeOut(true); // so we don't hold on to threads when the application isn't taking photos
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /** Returns a sensible tile height for processing the supplied number of rows, so that there
+     *  are several tiles per thread (to balance the load when some threads are slower), but tiles
+     *  don't get smaller than min_tile_height.
+     */
+    public static int getTileHeight(int height, int min_tile_height) {
+        final int tiles_per_thread_c = 4;
+        int tile_height = (height + n_threads_c*tiles_per_thread_c - 1) / (n_threads_c*tiles_per_thread_c);
+        return Math.max(Math.max(1, min_tile_height), tile_height);
+    }
+
+    /** Runs task over the rows [0, height) split into tiles of tile_height rows, and waits for
+     *  them all to complete. Any exception thrown by a tile is rethrown on the calling thread.
+     */
+    public static void run(final int height, final int tile_height, final RowTask task) {
+        if( height <= 0 )
+            return;
+        if( tile_height <= 0 ) {
+            throw new IllegalArgumentException("tile_height must be positive: " + tile_height);
+        }
+        final int n_tiles = (height + tile_height - 1) / tile_height;
+        if( n_tiles == 1 ) {
+            task.run(0, height);
+            return;
+        }
+        else if( n_threads_c == 1 ) {
+            // still process one tile at a time, as callers rely on the tile height to bound the
+            // size of their row buffers
+            for(int y_start=0;y_start<height;y_start+=tile_height) {
+                task.run(y_start, Math.min(height, y_start + tile_height));
+            }
+            return;
+        }
+
+        final AtomicInteger next_tile = new AtomicInteger();
+        final CountDownLatch tiles_done = new CountDownLatch(n_tiles);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int tile;
+                while( (tile = next_tile.getAndIncrement()) < n_tiles ) {
+                    try {
+                        if( error.get() == null ) {
+                            int y_start = tile*tile_height;
+                            int y_stop = Math.min(height, y_start + tile_height);
+                            task.run(y_start, y_stop);
+                        }
+                    }
+                    catch(Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                    finally {
+                        tiles_done.countDown();
+                    }
+                }
+            }
+        };
+
+        int n_helpers = Math.min(n_tiles, n_threads_c) - 1;
+        ExecutorService pool = getExecutor();
+        for(int i=0;i<n_helpers;i++) {
+            pool.execute(worker);
+        }
+        worker.run(); // calling thread also processes tiles
+        boolean interrupted = false;
+        while( true ) {
+            try {
+                tiles_done.await();
+                break;
+            }
+            catch(InterruptedException e) {
+                // tiles may still be writing to the caller's buffers, so we must keep waiting
+                interrupted = true;
+            }
+        }
+        if( interrupted )
+            Thread.currentThread().interrupt();
+
+        Throwable e = error.get();
+        if( e != null ) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "tile failed: " + e);
+            if( e instanceof RuntimeException )
+                throw (RuntimeException)e;
+            if( e instanceof Error )
+                throw (Error)e;
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** As run(int, int, RowTask), but choosing the tile height with getTileHeight().
+     */
+    public static void run(int height, RowTask task) {
+        run(height, getTileHeight(height, 16), task);
+    }
+}
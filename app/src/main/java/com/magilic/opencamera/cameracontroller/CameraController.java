@@ -3,6 +3,7 @@ package com.magilic.opencamera.cameracontroller;
 import com.magilic.opencamera.MyDebug;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -238,6 +239,14 @@ public abstract class CameraController {
         void onStarted(); // called immediately before we start capturing the picture
         void onCompleted(); // called after all relevant on*PictureTaken() callbacks have been called and returned
         void onPictureTaken(byte[] data);
+        /** Called (possibly on a background thread) before a JPEG is passed to onPictureTaken(), to
+         *  allow the data to be passed in a buffer supplied by the caller instead of a new byte array.
+         *  Return null to use onPictureTaken(byte[]). Otherwise the returned buffer must have at
+         *  least size bytes remaining, and is passed to onPictureTaken(ByteBuffer) holding the data.
+         *  Not called for burst photos that are returned together.
+         */
+        ByteBuffer getPictureBuffer(int size);
+        void onPictureTaken(ByteBuffer data);
         boolean imageQueueWouldBlock(int n_raw, int n_jpegs);
         void onFrontScreenTurnOn();
     }
@@ -1,6 +1,7 @@
 package com.magilic.opencamera.cameracontroller;
 
 import com.magilic.opencamera.MyDebug;
+import com.magilic.opencamera.ShotTracer;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -230,6 +231,7 @@ public class CameraController2 extends CameraController {
     private static final int STATE_WAITING_FAKE_PRECAPTURE_DONE = 5;
     private int state = STATE_NORMAL;
     private long precapture_state_change_time_ms = -1; // time we changed state for precapture modes
+    private volatile boolean tracing_precapture; // whether a ShotTracer precapture span has begun, see beginTracePrecapture()
     private static final long precapture_start_timeout_c = 2000;
     private static final long precapture_done_timeout_c = 3000;
     private boolean ready_for_capture;
@@ -1244,6 +1246,7 @@ public class CameraController2 extends CameraController {
         public void onImageAvailable(ImageReader reader) {
             if (MyDebug.LOG)
                 Log.d(TAG, "new still image available");
+            ShotTracer.getInstance().instant(ShotTracer.span_image_available_c);
             if (picture_cb == null || !jpeg_todo) {
                 // in theory this shouldn't happen - but if this happens, still free the image to avoid risk of memory leak,
                 // or strange behaviour where an old image appears when the user next takes a photo
@@ -1261,10 +1264,23 @@ public class CameraController2 extends CameraController {
             if (MyDebug.LOG)
                 Log.d(TAG, "image timestamp: " + image.getTimestamp());
             ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            if (MyDebug.LOG)
-                Log.d(TAG, "read " + bytes.length + " bytes");
-            buffer.get(bytes);
+            byte[] bytes = null;
+            ByteBuffer picture_buffer = null;
+            if (!burst_single_request) {
+                // see if the caller can take the data without a new byte array
+                picture_buffer = picture_cb.getPictureBuffer(buffer.remaining());
+            }
+            if (picture_buffer != null) {
+                if (MyDebug.LOG)
+                    Log.d(TAG, "read " + buffer.remaining() + " bytes into picture buffer");
+                picture_buffer.put(buffer);
+                picture_buffer.flip();
+            } else {
+                bytes = new byte[buffer.remaining()];
+                if (MyDebug.LOG)
+                    Log.d(TAG, "read " + bytes.length + " bytes");
+                buffer.get(bytes);
+            }
             image.close();
 
             synchronized (background_camera_lock) {
@@ -1299,7 +1315,10 @@ public class CameraController2 extends CameraController {
 
             // need to call without a lock
             if (!burst_single_request) {
-                picture_cb.onPictureTaken(bytes);
+                if (picture_buffer != null)
+                    picture_cb.onPictureTaken(picture_buffer);
+                else
+                    picture_cb.onPictureTaken(bytes);
             }
 
             synchronized (background_camera_lock) {
@@ -5521,6 +5540,14 @@ public class CameraController2 extends CameraController {
         }
     }
 
+    /**
+     * Traces the time waiting for precapture, until takePictureAfterPrecapture() is called.
+     */
+    private void beginTracePrecapture() {
+        tracing_precapture = true;
+        ShotTracer.getInstance().asyncBegin(ShotTracer.span_precapture_c, ShotTracer.getInstance().getCurrentShot());
+    }
+
     private void takePictureAfterPrecapture() {
         if (MyDebug.LOG)
             Log.d(TAG, "takePictureAfterPrecapture");
@@ -5528,6 +5555,13 @@ public class CameraController2 extends CameraController {
         if (MyDebug.LOG) {
             debug_time = System.currentTimeMillis();
         }
+        ShotTracer tracer = ShotTracer.getInstance();
+        if (tracing_precapture) {
+            tracing_precapture = false;
+            tracer.asyncEnd(ShotTracer.span_precapture_c, tracer.getCurrentShot());
+        }
+        // ended by the capture callback, when the (last) capture has completed
+        tracer.asyncBegin(ShotTracer.span_capture_c, tracer.getCurrentShot());
 
         if (!previewIsVideoMode) {
             // special burst modes not supported for photo snapshots when recording video
@@ -6462,6 +6496,7 @@ public class CameraController2 extends CameraController {
 
                 state = STATE_WAITING_PRECAPTURE_START;
                 precapture_state_change_time_ms = System.currentTimeMillis();
+                beginTracePrecapture();
 
                 // first set precapture to idle - this is needed, otherwise we hang in state STATE_WAITING_PRECAPTURE_START, because precapture already occurred whilst autofocusing, and it doesn't occur again unless we first set the precapture trigger to idle
                 if (MyDebug.LOG)
@@ -6547,6 +6582,7 @@ public class CameraController2 extends CameraController {
         synchronized (background_camera_lock) {
             state = STATE_WAITING_FAKE_PRECAPTURE_START;
             precapture_state_change_time_ms = System.currentTimeMillis();
+            beginTracePrecapture();
             fake_precapture_turn_on_torch_id = null;
             try {
                 CaptureRequest request = previewBuilder.build();
@@ -6704,6 +6740,7 @@ public class CameraController2 extends CameraController {
                         test_fake_flash_precapture++; // for testing, should treat this same as if we did do the precapture
                         state = STATE_WAITING_FAKE_PRECAPTURE_DONE;
                         precapture_state_change_time_ms = System.currentTimeMillis();
+                        beginTracePrecapture();
                     } else {
                         call_runFakePrecapture = true;
                     }
@@ -6946,6 +6983,12 @@ public class CameraController2 extends CameraController {
                 Log.d(TAG, "was image captured?: " + failure.wasImageCaptured());
                 Log.d(TAG, "sequenceId: " + failure.getSequenceId());
             }
+            if (getRequestTagType(request) == RequestTagType.CAPTURE) {
+                // onCaptureCompleted() won't be called, so end the span here instead
+                ShotTracer tracer = ShotTracer.getInstance();
+                tracer.instant(ShotTracer.span_capture_failed_c);
+                tracer.asyncEnd(ShotTracer.span_capture_c, tracer.getCurrentShot());
+            }
             super.onCaptureFailed(session, request, failure); // API docs say this does nothing, but call it just to be safe
         }
 
@@ -6979,6 +7022,9 @@ public class CameraController2 extends CameraController {
             }
             // n.b., we don't play the shutter sound here for RequestTagType.CAPTURE, as it typically sounds "too late"
             // (if ever we changed this, would also need to fix for burst, where we only set the RequestTagType.CAPTURE for the last image)
+            if (getRequestTagType(request) == RequestTagType.CAPTURE) {
+                ShotTracer.getInstance().instant(ShotTracer.span_capture_started_c);
+            }
             super.onCaptureStarted(session, request, timestamp, frameNumber);
         }
 
@@ -7007,6 +7053,12 @@ public class CameraController2 extends CameraController {
                     Log.d(TAG, "frame duration: " + request.get(CaptureRequest.SENSOR_FRAME_DURATION));
                 }
             }
+            if (getRequestTagType(request) == RequestTagType.CAPTURE) {
+                // for bursts, only the last image has the RequestTagType.CAPTURE tag
+                ShotTracer tracer = ShotTracer.getInstance();
+                tracer.instant(ShotTracer.span_capture_completed_c);
+                tracer.asyncEnd(ShotTracer.span_capture_c, tracer.getCurrentShot());
+            }
             process(request, result);
             processCompleted(request, result);
             super.onCaptureCompleted(session, request, result); // API docs say this does nothing, but call it just to be safe (as with Google Camera)
@@ -2,6 +2,7 @@ package com.magilic.opencamera.preview;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.List;
 
@@ -233,6 +234,8 @@ public interface ApplicationInterface {
     // callbacks
     void onDrawPreview(Canvas canvas);
     boolean onPictureTaken(byte [] data, Date current_date);
+    ByteBuffer getPictureBuffer(int size); // may be called on a background thread; return null to receive JPEGs in onPictureTaken(), otherwise a buffer with at least size bytes remaining to receive them in onPictureBufferTaken()
+    boolean onPictureBufferTaken(ByteBuffer data, Date current_date); // data is the buffer returned by getPictureBuffer()
     void onCaptureStarted(); // called immediately before we start capturing the picture
     void onPictureCompleted(); // called after all picture callbacks have been called and returned
     void onContinuousFocusMove(boolean start); // called when focusing starts/stop in continuous picture mode (in photo mode only)
@@ -1,5 +1,6 @@
 package com.magilic.opencamera.preview;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.List;
 
@@ -620,6 +621,18 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 
     }
 
+    @Override
+    public ByteBuffer getPictureBuffer(int size) {
+        return null;
+    }
+
+    @Override
+    public boolean onPictureBufferTaken(ByteBuffer data, Date current_date) {
+        byte [] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return onPictureTaken(bytes, current_date);
+    }
+
     @Override
     public void onCaptureStarted() {
 
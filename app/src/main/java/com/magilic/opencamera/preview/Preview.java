@@ -1,9 +1,12 @@
 package com.magilic.opencamera.preview;
 
 //import com.magilic.opencamera.MainActivity;
+import com.magilic.opencamera.HDRProcessor;
+import com.magilic.opencamera.HistogramEngine;
 import com.magilic.opencamera.MyDebug;
 import com.magilic.opencamera.R;
 import com.magilic.opencamera.ScriptC_histogram_compute;
+import com.magilic.opencamera.ShotTracer;
 import com.magilic.opencamera.TakePhoto;
 import com.magilic.opencamera.ToastBoxer;
 import com.magilic.opencamera.cameracontroller.CameraController;
@@ -23,6 +26,7 @@ import java.io.File;
 import java.io.IOException;
 //import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -5798,6 +5802,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             Log.e(TAG, "camera not opened in takePhoto!");
             return;
         }
+        // trace from here rather than takePicturePressed(), so that each photo of a repeat is traced, and timer delays aren't included
+        ShotTracer.getInstance().beginShot();
         applicationInterface.cameraInOperation(true, false);
         String current_ui_focus_value = getCurrentFocusValue();
         if( MyDebug.LOG )
@@ -5993,6 +5999,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             public void onCompleted() {
                 if( MyDebug.LOG )
                     Log.d(TAG, "onCompleted");
+                ShotTracer.getInstance().asyncEnd(ShotTracer.span_shot_c, ShotTracer.getInstance().getCurrentShot());
                 applicationInterface.onPictureCompleted();
                 if( !using_android_l ) {
                     is_preview_started = false; // preview automatically stopped due to taking photo on original Camera API
@@ -6074,6 +6081,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 if( MyDebug.LOG )
                     Log.d(TAG, "onPictureTaken");
                 initDate();
+                ShotTracer.getInstance().begin(ShotTracer.span_picture_taken_c);
                 if( !applicationInterface.onPictureTaken(data, current_date) ) {
                     if( MyDebug.LOG )
                         Log.e(TAG, "applicationInterface.onPictureTaken failed");
@@ -6082,6 +6090,27 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 else {
                     success = true;
                 }
+                ShotTracer.getInstance().end(ShotTracer.span_picture_taken_c);
+            }
+
+            public ByteBuffer getPictureBuffer(int size) {
+                return applicationInterface.getPictureBuffer(size);
+            }
+
+            public void onPictureTaken(ByteBuffer data) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "onPictureTaken (buffer)");
+                initDate();
+                ShotTracer.getInstance().begin(ShotTracer.span_picture_taken_c);
+                if( !applicationInterface.onPictureBufferTaken(data, current_date) ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "applicationInterface.onPictureBufferTaken failed");
+                    success = false;
+                }
+                else {
+                    success = true;
+                }
+                ShotTracer.getInstance().end(ShotTracer.span_picture_taken_c);
             }
 
             public boolean imageQueueWouldBlock(int n_raw, int n_jpegs) {
@@ -6100,6 +6129,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             public void onError() {
                 if( MyDebug.LOG )
                     Log.e(TAG, "error from takePicture");
+                ShotTracer.getInstance().asyncEnd(ShotTracer.span_shot_c, ShotTracer.getInstance().getCurrentShot());
                 count_cameraTakePicture--; // cancel out the increment from after the takePicture() call
                 if( MyDebug.LOG ) {
                     Log.d(TAG, "count_cameraTakePicture is now: " + count_cameraTakePicture);
@@ -7916,99 +7946,35 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             this.histogramScriptReference = new WeakReference<>(preview.histogramScript);
         }
 
-        private static int [] computeHistogram(Allocation allocation_in, RenderScript rs, ScriptC_histogram_compute histogramScript, HistogramType histogram_type) {
+        private static int [] computeHistogram(Bitmap preview_bitmap, HistogramType histogram_type) {
             long debug_time = 0;
             if( MyDebug.LOG ) {
                 Log.d(TAG, "computeHistogram");
                 debug_time = System.currentTimeMillis();
             }
 
-            int [] new_histogram;
-
-            if( histogram_type == HistogramType.HISTOGRAM_TYPE_RGB ) {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "rgb histogram");
-                Allocation histogramAllocationR = Allocation.createSized(rs, Element.I32(rs), 256);
-                Allocation histogramAllocationG = Allocation.createSized(rs, Element.I32(rs), 256);
-                Allocation histogramAllocationB = Allocation.createSized(rs, Element.I32(rs), 256);
-
-                if( MyDebug.LOG )
-                    Log.d(TAG, "bind histogram allocations");
-                histogramScript.bind_histogram_r(histogramAllocationR);
-                histogramScript.bind_histogram_g(histogramAllocationG);
-                histogramScript.bind_histogram_b(histogramAllocationB);
-                histogramScript.invoke_init_histogram_rgb();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "call histogramScript");
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time before histogramScript: " + (System.currentTimeMillis() - debug_time));
-                histogramScript.forEach_histogram_compute_rgb(allocation_in);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after histogramScript: " + (System.currentTimeMillis() - debug_time));
-
-                new_histogram = new int[256*3];
-                int c=0;
-                int [] temp = new int[256];
-
-                histogramAllocationR.copyTo(temp);
-                for(int i=0;i<256;i++)
-                    new_histogram[c++] = temp[i];
-
-                histogramAllocationG.copyTo(temp);
-                for(int i=0;i<256;i++)
-                    new_histogram[c++] = temp[i];
-
-                histogramAllocationB.copyTo(temp);
-                for(int i=0;i<256;i++)
-                    new_histogram[c++] = temp[i];
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after copying histogram data: " + (System.currentTimeMillis() - debug_time));
-
-                histogramAllocationR.destroy();
-                histogramAllocationG.destroy();
-                histogramAllocationB.destroy();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after destroying allocations: " + (System.currentTimeMillis() - debug_time));
-            }
-            else {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "single channel histogram");
-                Allocation histogramAllocation = Allocation.createSized(rs, Element.I32(rs), 256);
-
-                if( MyDebug.LOG )
-                    Log.d(TAG, "bind histogram allocation");
-                histogramScript.bind_histogram(histogramAllocation);
-                histogramScript.invoke_init_histogram();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "call histogramScript");
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time before histogramScript: " + (System.currentTimeMillis() - debug_time));
-                switch( histogram_type ) {
-                    case HISTOGRAM_TYPE_LUMINANCE:
-                        histogramScript.forEach_histogram_compute_by_luminance(allocation_in);
-                        break;
-                    case HISTOGRAM_TYPE_VALUE:
-                        histogramScript.forEach_histogram_compute_by_value(allocation_in);
-                        break;
-                    case HISTOGRAM_TYPE_INTENSITY:
-                        histogramScript.forEach_histogram_compute_by_intensity(allocation_in);
-                        break;
-                    case HISTOGRAM_TYPE_LIGHTNESS:
-                        histogramScript.forEach_histogram_compute_by_lightness(allocation_in);
-                        break;
-                }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after histogramScript: " + (System.currentTimeMillis() - debug_time));
-
-                new_histogram = new int[256];
-                histogramAllocation.copyTo(new_histogram);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after copying histogram data: " + (System.currentTimeMillis() - debug_time));
-
-                histogramAllocation.destroy();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after destroying allocations: " + (System.currentTimeMillis() - debug_time));
+            HistogramEngine.Type type;
+            switch( histogram_type ) {
+                case HISTOGRAM_TYPE_RGB:
+                    type = HistogramEngine.Type.TYPE_RGB;
+                    break;
+                case HISTOGRAM_TYPE_LUMINANCE:
+                    type = HistogramEngine.Type.TYPE_LUMINANCE;
+                    break;
+                case HISTOGRAM_TYPE_INTENSITY:
+                    type = HistogramEngine.Type.TYPE_INTENSITY;
+                    break;
+                case HISTOGRAM_TYPE_LIGHTNESS:
+                    type = HistogramEngine.Type.TYPE_LIGHTNESS;
+                    break;
+                default:
+                    type = HistogramEngine.Type.TYPE_VALUE;
+                    break;
             }
+            // for rgb, this returns the red, green and blue histograms one after the other, as expected by DrawPreview
+            int [] new_histogram = HistogramEngine.computeHistogram(new HDRProcessor.BitmapImage(preview_bitmap), type);
+            if( MyDebug.LOG )
+                Log.d(TAG, "time after computing histogram: " + (System.currentTimeMillis() - debug_time));
             return new_histogram;
         }
 
@@ -8070,7 +8036,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
                     if( MyDebug.LOG )
                         Log.d(TAG, "time before computeHistogram: " + (System.currentTimeMillis() - debug_time));
-                    result.new_histogram = computeHistogram(allocation_in, preview.rs, histogramScript, preview.histogram_type);
+                    result.new_histogram = computeHistogram(preview_bitmap, preview.histogram_type);
                     if( MyDebug.LOG )
                         Log.d(TAG, "time after computeHistogram: " + (System.currentTimeMillis() - debug_time));
                 }
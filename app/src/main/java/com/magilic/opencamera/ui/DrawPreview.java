@@ -66,6 +66,7 @@ public class DrawPreview {
     private boolean show_camera_id_pref;
     private boolean show_iso_pref;
     private boolean show_video_max_amp_pref;
+    private boolean show_save_metrics_pref;
     private boolean show_zoom_pref;
     private boolean show_battery_pref;
     private boolean show_angle_pref;
@@ -129,6 +130,8 @@ public class DrawPreview {
     private float free_memory_gb = -1.0f;
     private String free_memory_gb_string;
     private long last_free_memory_time;
+    private List<String> save_metrics_lines; // cached summary from ImageSaver.getSaveMetrics()
+    private long last_save_metrics_time;
 
     private String current_time_string;
     private long last_current_time_time;
@@ -530,6 +533,8 @@ public class DrawPreview {
         //show_camera_id_pref = true; // test
         show_iso_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowISOPreferenceKey, true);
         show_video_max_amp_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowVideoMaxAmpPreferenceKey, false);
+        show_save_metrics_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowSaveMetricsPreferenceKey, false);
+        save_metrics_lines = null;
         show_zoom_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowZoomPreferenceKey, true);
 
         show_angle_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowAnglePreferenceKey, false);
@@ -1158,6 +1163,24 @@ public class DrawPreview {
             }
         }
 
+        if( show_save_metrics_pref ) {
+            if( save_metrics_lines == null || time_ms > last_save_metrics_time + 1000 ) {
+                // cache for performance
+                save_metrics_lines = main_activity.getApplicationInterface().getImageSaver().getSaveMetrics().getSummary();
+                last_save_metrics_time = time_ms;
+            }
+            for(String line : save_metrics_lines) {
+                int height = applicationInterface.drawTextWithBackground(canvas, p, line, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, MyApplicationInterface.Shadow.SHADOW_OUTLINE);
+                height += gap_y;
+                if( ui_rotation == 90 ) {
+                    location_y -= height;
+                }
+                else {
+                    location_y += height;
+                }
+            }
+        }
+
         // padding to align with earlier text
         final int flash_padding = (int) (1 * scale + 0.5f); // convert dps to pixels
 
@@ -1855,7 +1878,7 @@ public class DrawPreview {
                     p.setTextSize(14 * scale + 0.5f); // convert dps to pixels
                     p.setTextAlign(Paint.Align.CENTER);
                     int pixels_offset_y = 2 * text_y; // avoid overwriting the zoom
-                    int n_images_to_save = applicationInterface.getImageSaver().getNRealImagesToSave();
+                    int n_images_to_save = applicationInterface.getImageSaver().getNImagesToSave();
                     String string = getContext().getResources().getString(R.string.processing) + " (" + n_images_to_save + " " + getContext().getResources().getString(R.string.remaining) + ")";
                     applicationInterface.drawTextWithBackground(canvas, p, string, Color.LTGRAY, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
                 }
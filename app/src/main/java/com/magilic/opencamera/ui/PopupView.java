@@ -546,7 +546,7 @@ public class PopupView extends LinearLayout {
                     throw new RuntimeException();
                 }
 
-                int max_burst_images = main_activity.getApplicationInterface().getImageSaver().getQueueSize()+1;
+                int max_burst_images = main_activity.getApplicationInterface().getImageSaver().getMaxQueuedImages();
                 max_burst_images = Math.max(2, max_burst_images); // make sure we at least allow the minimum of 2 burst images!
                 if( MyDebug.LOG )
                     Log.d(TAG, "max_burst_images: " + max_burst_images);
@@ -7,22 +7,56 @@ import com.magilic.opencamera.MyApplicationInterface;
 import com.magilic.opencamera.cameracontroller.CameraController;
 import com.magilic.opencamera.cameracontroller.CameraController2;
 import com.magilic.opencamera.HDRProcessor;
-import com.magilic.opencamera.ImageSaver;
+import com.magilic.opencamera.BurstSelector;
+import com.magilic.opencamera.DngWriter;
+import com.magilic.opencamera.FeatureDetector;
+import com.magilic.opencamera.GeocodeCache;
+import com.magilic.opencamera.HDRProcessorCPU;
+import com.magilic.opencamera.HistogramEngine;
+import com.magilic.opencamera.JpegBufferPool;
+import com.magilic.opencamera.JpegExif;
+import com.magilic.opencamera.JpegTransform;
 import com.magilic.opencamera.LocationSupplier;
+import com.magilic.opencamera.MTBAlignment;
+import com.magilic.opencamera.PanoramaProcessor;
+import com.magilic.opencamera.PyramidBlender;
+import com.magilic.opencamera.SaveMemoryBudget;
+import com.magilic.opencamera.SaveMetrics;
+import com.magilic.opencamera.SaveSequencer;
+import com.magilic.opencamera.ShotTracer;
+import com.magilic.opencamera.SpillStore;
 import com.magilic.opencamera.preview.Preview;
 import com.magilic.opencamera.preview.VideoQualityHandler;
 import com.magilic.opencamera.TextFormatter;
+import com.magilic.opencamera.TileExecutor;
 import com.magilic.opencamera.ui.DrawPreview;
 
 import org.junit.Test;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import javax.imageio.ImageIO;
 
 import static org.junit.Assert.*;
 
@@ -141,6 +175,28 @@ public class UnitTest {
         assertEquals( TextFormatter.getTimeString("preference_stamp_timeformat_24hour", time4), "13:53:06" );
     }
 
+    /** Tests that the date formats cached by TextFormatter follow changes to the default time zone.
+     */
+    @Test
+    public void testTimeStringTimeZone() throws ParseException {
+        Log.d(TAG, "testTimeStringTimeZone");
+        TimeZone default_time_zone = TimeZone.getDefault();
+        try {
+            SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss", Locale.US);
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            Date time1 = sdf.parse("08:15:43");
+            TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+            assertEquals( TextFormatter.getTimeString("preference_stamp_timeformat_24hour", time1), "08:15:43" );
+            assertEquals( TextFormatter.getTimeString("preference_stamp_timeformat_24hour", time1), "08:15:43" );
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT+02:00"));
+            assertEquals( TextFormatter.getTimeString("preference_stamp_timeformat_24hour", time1), "10:15:43" );
+            assertEquals( TextFormatter.getTimeString("preference_stamp_timeformat_12hour", time1), "10:15:43 AM" );
+        }
+        finally {
+            TimeZone.setDefault(default_time_zone);
+        }
+    }
+
     @Test
     public void testFormatTime() {
         Log.d(TAG, "testFormatTime");
@@ -552,27 +608,1030 @@ public class UnitTest {
     public void testImageSaverQueueSize() {
         Log.d(TAG, "testImageSaverQueueSize");
 
-        // if any of these values change, review the comments in ImageSaver.getQueueSize().
+        final long mb = 1024*1024;
+        final long n_pixels_12mp = 12000000;
+        final long photo_12mp = SaveMemoryBudget.estimateJpegBytes(n_pixels_12mp);
+        final long photo_raw_12mp = photo_12mp + SaveMemoryBudget.estimateRawBytes(n_pixels_12mp);
 
-        assertTrue(ImageSaver.computeQueueSize(64) >= 6);
+        // always allow at least one RAW+JPEG photo
+        assertTrue(SaveMemoryBudget.computeBudget(0) > 0);
+        assertTrue(SaveMemoryBudget.computeBudget(64) >= photo_raw_12mp);
 
-        assertTrue(ImageSaver.computeQueueSize(128) >= ImageSaver.computeQueueSize(64));
+        assertTrue(SaveMemoryBudget.computeBudget(128) >= SaveMemoryBudget.computeBudget(64));
+        assertTrue(SaveMemoryBudget.computeBudget(256) >= SaveMemoryBudget.computeBudget(128));
+        assertTrue(SaveMemoryBudget.computeBudget(512) >= SaveMemoryBudget.computeBudget(256));
 
-        assertTrue(ImageSaver.computeQueueSize(256) >= ImageSaver.computeQueueSize(128));
-        assertTrue(ImageSaver.computeQueueSize(256) <= 19);
+        // large heaps should allow a burst of 20 JPEGs, or 5 RAW+JPEG photos, at 12MP
+        assertTrue(SaveMemoryBudget.computeBudget(512) >= 20*photo_12mp);
+        assertTrue(SaveMemoryBudget.computeBudget(512) >= 5*photo_raw_12mp);
 
-        assertTrue(ImageSaver.computeQueueSize(512) >= ImageSaver.computeQueueSize(256));
-        assertTrue(ImageSaver.computeQueueSize(512) >= 34);
-        assertTrue(ImageSaver.computeQueueSize(512) <= 70);
+        // but leave memory for everything else
+        assertTrue(SaveMemoryBudget.computeBudget(256) <= 256*mb/2);
+        assertTrue(SaveMemoryBudget.computeBudget(512) <= 512*mb/2);
+
+        SaveMemoryBudget budget = new SaveMemoryBudget(100*mb);
+        assertEquals(10, budget.getMaxImages(10*mb));
+        assertEquals(1, budget.getMaxImages(200*mb));
     }
 
     @Test
-    public void testImageSaverRequestCost() {
+    public void testImageSaverRequestCost() throws InterruptedException {
         Log.d(TAG, "testImageSaverRequestCost");
 
-        assertTrue( ImageSaver.computeRequestCost(true, 1) > ImageSaver.computeRequestCost(false, 1));
-        assertEquals( ImageSaver.computeRequestCost(false, 3), 3*ImageSaver.computeRequestCost(false, 1));
+        assertTrue( SaveMemoryBudget.estimateRawBytes(1000) > SaveMemoryBudget.estimateJpegBytes(1000));
+        assertEquals( SaveMemoryBudget.estimateJpegBytes(3000), 3*SaveMemoryBudget.estimateJpegBytes(1000));
+        assertEquals( 4000, SaveMemoryBudget.estimateBitmapBytes(1000));
+        // Renderscript needs an allocation per HDR image, or for NR two allocations and the F32_3 accumulator
+        assertEquals( 3*4000, SaveMemoryBudget.estimateRenderscriptBytes(3, false, 1000));
+        assertEquals( 4000, SaveMemoryBudget.estimateRenderscriptBytes(1, false, 1000));
+        assertEquals( 24000, SaveMemoryBudget.estimateRenderscriptBytes(8, true, 1000));
+
+        // a JPEG header, with an Exif segment containing a thumbnail with its own frame header, which should be skipped
+        byte [] jpeg = new byte[] {
+                (byte)0xff, (byte)0xd8,
+                (byte)0xff, (byte)0xe1, 0x00, 0x0d, 'E', 'x', 'i', 'f', 0, 0, (byte)0xff, (byte)0xc0, 0x00, 0x20, 0x00,
+                (byte)0xff, (byte)0xdb, 0x00, 0x04, 0x00, 0x00,
+                (byte)0xff, (byte)0xc0, 0x00, 0x11, 0x08, 0x0b, (byte)0xb8, 0x0f, (byte)0xa0, 0x03,
+                (byte)0xff, (byte)0xda
+        };
+        int [] size = SaveMemoryBudget.getJpegSize(jpeg);
+        assertNotNull(size);
+        assertEquals(4000, size[0]);
+        assertEquals(3000, size[1]);
+        assertNull(SaveMemoryBudget.getJpegSize(new byte[]{0, 1, 2, 3}));
+        assertNull(SaveMemoryBudget.getJpegSize(new byte[]{(byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xda}));
+
+        SaveMemoryBudget budget = new SaveMemoryBudget(100);
+        // never block when nothing is held, even if larger than the budget
+        assertFalse(budget.wouldBlock(150));
+        budget.acquire(60);
+        assertFalse(budget.wouldBlock(40));
+        assertTrue(budget.wouldBlock(41));
+        // processing isn't held up by queued payloads
+        budget.acquireProcessing(80);
+        assertEquals(140, budget.getUsedBytes());
+        assertTrue(budget.wouldBlock(1));
+        budget.releaseProcessing(80);
+        budget.release(60);
+        assertEquals(0, budget.getUsedBytes());
+        assertFalse(budget.wouldBlock(100));
+    }
+
+    /** Simulates the ImageSaver's lanes: a slow request on the single processing lane, followed by fast requests on the
+     *  normal lane, which finish first. Completion must still follow the order the requests were added, and filenames
+     *  the order within each lane.
+     */
+    @Test
+    public void testSaveSequencer() throws InterruptedException {
+        Log.d(TAG, "testSaveSequencer");
+
+        final SaveSequencer sequencer = new SaveSequencer();
+        final SaveSequencer.NamingTurns processing_turns = new SaveSequencer.NamingTurns();
+        final SaveSequencer.NamingTurns normal_turns = new SaveSequencer.NamingTurns();
+        java.util.concurrent.ExecutorService processing_lane = java.util.concurrent.Executors.newSingleThreadExecutor();
+        java.util.concurrent.ExecutorService normal_lane = java.util.concurrent.Executors.newFixedThreadPool(3);
+        // the requests in the order they're added: the first (and fourth) are processed, e.g., HDR
+        final boolean [] is_processing = new boolean[]{true, false, false, true, false, false, false};
+        final int n_requests = is_processing.length;
+        final List<Integer> names = new ArrayList<>(); // the order filenames are allocated
+        final List<Integer> finished = new ArrayList<>(); // the order requests finish saving
+        final List<Integer> completed = new ArrayList<>(); // the order completion actions are run
+        final java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(n_requests);
+        long n_processing = 0, n_normal = 0;
+        for(int i=0;i<n_requests;i++) {
+            final int sequence = i;
+            final SaveSequencer.NamingTurns turns = is_processing[i] ? processing_turns : normal_turns;
+            final long lane_sequence = is_processing[i] ? n_processing++ : n_normal++;
+            // processed requests are slow, and later normal requests are faster than earlier ones, so requests finish
+            // out of order
+            final long save_time_ms = is_processing[i] ? 300 : 10*(n_requests - i);
+            Runnable job = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(save_time_ms/2);
+                        turns.awaitTurn(lane_sequence);
+                        synchronized( names ) {
+                            names.add(sequence);
+                        }
+                        turns.releaseTurn(lane_sequence);
+                        Thread.sleep(save_time_ms/2);
+                    }
+                    catch(InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    synchronized( finished ) {
+                        finished.add(sequence);
+                    }
+                    sequencer.complete(sequence, new Runnable() {
+                        @Override
+                        public void run() {
+                            completed.add(sequence); // completion actions are run one at a time
+                            latch.countDown();
+                        }
+                    });
+                }
+            };
+            (is_processing[i] ? processing_lane : normal_lane).execute(job);
+        }
+        assertTrue(latch.await(10, java.util.concurrent.TimeUnit.SECONDS));
+        processing_lane.shutdown();
+        normal_lane.shutdown();
+        Log.d(TAG, "finished: " + finished);
+        Log.d(TAG, "names: " + names);
+
+        // the normal requests finished before the slow processed request before them
+        assertTrue(finished.indexOf(0) > finished.indexOf(2));
+        assertTrue(finished.indexOf(3) > finished.indexOf(6));
+        // but completion follows the order the requests were added
+        for(int i=0;i<n_requests;i++) {
+            assertEquals(i, (int)completed.get(i));
+        }
+        assertEquals(n_requests, sequencer.getNextCompletion());
+        // and filenames follow the order within each lane, even though later normal requests were ready first
+        List<Integer> processing_names = new ArrayList<>();
+        List<Integer> normal_names = new ArrayList<>();
+        for(int sequence : names) {
+            (is_processing[sequence] ? processing_names : normal_names).add(sequence);
+        }
+        assertEquals(java.util.Arrays.asList(0, 3), processing_names);
+        assertEquals(java.util.Arrays.asList(1, 2, 4, 5, 6), normal_names);
+
+        try {
+            sequencer.complete(2, null);
+            fail();
+        }
+        catch(IllegalStateException e) {
+            // expected, as request 2 has already completed
+        }
+    }
+
+    @Test
+    public void testSpillStore() throws IOException {
+        Log.d(TAG, "testSpillStore");
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testSpillStore");
+        assertTrue(dir.exists() || dir.mkdirs());
+        // files left over from a previous run should be deleted
+        File old_file = new File(dir, "spill_old.bin");
+        assertTrue(old_file.exists() || old_file.createNewFile());
+
+        SpillStore spill_store = new SpillStore(dir, 1000, 0);
+        assertFalse(old_file.exists());
+        assertTrue(spill_store.canSpill(1000));
+        assertFalse(spill_store.canSpill(1001));
+
+        byte [] data0 = new byte[600];
+        byte [] data1 = new byte[0];
+        byte [] data2 = new byte[300];
+        for(int i=0;i<data0.length;i++)
+            data0[i] = (byte)(i*7);
+        for(int i=0;i<data2.length;i++)
+            data2[i] = (byte)(255-i);
+        SpillStore.Handle handle0 = spill_store.write(data0);
+        SpillStore.Handle handle1 = spill_store.write(data1);
+        SpillStore.Handle handle2 = spill_store.write(data2);
+        assertEquals(900, spill_store.getNSpilledBytes());
+        assertEquals(600, handle0.getLength());
+        assertTrue(spill_store.canSpill(100));
+        assertFalse(spill_store.canSpill(101));
+
+        assertArrayEquals(data0, spill_store.read(handle0));
+        assertArrayEquals(data1, spill_store.read(handle1));
+        assertArrayEquals(data2, spill_store.read(handle2));
+
+        spill_store.delete(handle0);
+        spill_store.delete(handle1);
+        spill_store.delete(handle2);
+        assertEquals(0, spill_store.getNSpilledBytes());
+        File [] files = dir.listFiles();
+        assertNotNull(files);
+        assertEquals(0, files.length);
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testJpegBufferPool() throws IOException {
+        Log.d(TAG, "testJpegBufferPool");
+
+        JpegBufferPool pool = new JpegBufferPool(1024*1024);
+        ByteBuffer buffer0 = pool.acquire(300*1024);
+        assertTrue(buffer0.isDirect());
+        assertEquals(0, buffer0.position());
+        assertEquals(300*1024, buffer0.limit());
+        assertEquals(512*1024, buffer0.capacity());
+        assertEquals(1, pool.getNAllocations());
+
+        byte [] data = new byte[1000];
+        for(int i=0;i<data.length;i++)
+            data[i] = (byte)(i*13);
+        buffer0.put(data);
+        buffer0.flip();
+        assertEquals(data.length, buffer0.remaining());
+
+        // reading from the stream shouldn't change the buffer
+        InputStream inputStream = JpegBufferPool.openInputStream(buffer0);
+        assertEquals(data.length, inputStream.available());
+        assertEquals(data[0] & 0xff, inputStream.read());
+        assertEquals(10, inputStream.skip(10));
+        byte [] read_data = new byte[data.length];
+        int n_read = inputStream.read(read_data, 11, data.length);
+        assertEquals(data.length-11, n_read);
+        assertEquals(-1, inputStream.read());
+        for(int i=11;i<data.length;i++)
+            assertEquals(data[i], read_data[i]);
+        assertEquals(0, buffer0.position());
+        assertEquals(data.length, buffer0.remaining());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        JpegBufferPool.write(buffer0, outputStream);
+        assertArrayEquals(data, outputStream.toByteArray());
+        assertEquals(data.length, buffer0.remaining());
+
+        // released buffers are reused, picking the smallest that's large enough
+        ByteBuffer buffer1 = pool.acquire(100);
+        assertEquals(256*1024, buffer1.capacity());
+        pool.release(buffer0);
+        pool.release(buffer1);
+        assertEquals(768*1024, pool.getPoolSizeInBytes());
+        assertSame(buffer1, pool.acquire(200*1024));
+        assertSame(buffer0, pool.acquire(100));
+        assertEquals(0, pool.getPoolSizeInBytes());
+        assertEquals(2, pool.getNAllocations());
+        ByteBuffer buffer2 = pool.acquire(600*1024);
+        assertEquals(768*1024, buffer2.capacity());
+        assertEquals(3, pool.getNAllocations());
+
+        // the pool is bounded, so the smallest buffers are dropped
+        pool.release(buffer0);
+        pool.release(buffer1);
+        pool.release(buffer2);
+        assertEquals(768*1024, pool.getPoolSizeInBytes());
+        assertSame(buffer2, pool.acquire(100));
+        pool.clear();
+        assertEquals(0, pool.getPoolSizeInBytes());
+    }
+
+    @Test
+    public void testSpillJpegBuffers() throws InterruptedException, IOException {
+        Log.d(TAG, "testSpillJpegBuffers");
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testSpillJpegBuffers");
+        SpillStore spill_store = new SpillStore(dir, 10*1024*1024, 0);
+        JpegBufferPool pool = new JpegBufferPool(2*1024*1024);
+        final int jpeg_size = 200*1024;
+        SaveMemoryBudget budget = new SaveMemoryBudget(5*jpeg_size);
+
+        // fill the budget with JPEGs held in pooled buffers, then spill the rest as ImageSaver.spillRequest() does,
+        // so that adding them never blocks
+        List<ByteBuffer> held = new ArrayList<>();
+        List<SpillStore.Handle> handles = new ArrayList<>();
+        for(int i=0;i<12;i++) {
+            ByteBuffer buffer = pool.acquire(jpeg_size);
+            for(int j=0;j<jpeg_size;j++)
+                buffer.put(j, (byte)(i + j*3));
+            if( budget.wouldBlock(jpeg_size) ) {
+                assertTrue(spill_store.canSpill(jpeg_size));
+                SpillStore.Handle handle = spill_store.write(buffer);
+                // the buffer isn't modified, so can be returned to the pool
+                assertEquals(0, buffer.position());
+                assertEquals(jpeg_size, buffer.remaining());
+                pool.release(buffer);
+                handles.add(handle);
+            }
+            else {
+                budget.acquire(jpeg_size);
+                held.add(buffer);
+            }
+        }
+        assertEquals(5, held.size());
+        assertEquals(7, handles.size());
+        assertEquals(7L*jpeg_size, spill_store.getNSpilledBytes());
+        // the spilled requests reused the same pooled buffer, rather than allocating
+        assertEquals(6, pool.getNAllocations());
+
+        for(int i=0;i<handles.size();i++) {
+            byte [] data = spill_store.read(handles.get(i));
+            assertEquals(jpeg_size, data.length);
+            for(int j=0;j<jpeg_size;j+=997)
+                assertEquals((byte)(5 + i + j*3), data[j]);
+            spill_store.delete(handles.get(i));
+        }
+        assertEquals(0, spill_store.getNSpilledBytes());
+        for(ByteBuffer buffer : held) {
+            budget.release(jpeg_size);
+            pool.release(buffer);
+        }
+        assertEquals(0, budget.getUsedBytes());
+        assertTrue(dir.delete());
+    }
+
+    /** Creates the start of a JPEG with an APP0 segment and an Exif segment, holding the orientation
+     *  and date tags, and optionally a thumbnail, followed by some data standing in for the image.
+     */
+    private static byte [] createExifTestJpeg(ByteOrder order, byte [] thumbnail) {
+        byte [] datetime = "2020:01:02 03:04:05\0".getBytes();
+        int n_ifd0_entries = 2;
+        int ifd0_size = 2 + 12*n_ifd0_entries + 4;
+        int ifd1_offset = 8 + ifd0_size + datetime.length;
+        int ifd1_size = 2 + 12*2 + 4;
+        int tiff_size = thumbnail != null ? ifd1_offset + ifd1_size + thumbnail.length : ifd1_offset;
+        ByteBuffer tiff = ByteBuffer.allocate(tiff_size).order(order);
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte)'I' : (byte)'M');
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte)'I' : (byte)'M');
+        tiff.putShort((short)42);
+        tiff.putInt(8);
+        tiff.putShort((short)n_ifd0_entries);
+        // orientation: rotate 90
+        tiff.putShort((short)0x0112).putShort((short)3).putInt(1).putShort((short)6).putShort((short)0);
+        // datetime, stored after the IFD
+        tiff.putShort((short)0x0132).putShort((short)2).putInt(datetime.length).putInt(8 + ifd0_size);
+        tiff.putInt(thumbnail != null ? ifd1_offset : 0);
+        tiff.put(datetime);
+        if( thumbnail != null ) {
+            tiff.putShort((short)2);
+            tiff.putShort((short)0x0201).putShort((short)4).putInt(1).putInt(ifd1_offset + ifd1_size);
+            tiff.putShort((short)0x0202).putShort((short)4).putInt(1).putInt(thumbnail.length);
+            tiff.putInt(0);
+            tiff.put(thumbnail);
+        }
+
+        byte [] app0 = {(byte)0xff, (byte)0xe0, 0, 6, 'J', 'F', 'I', 'F'};
+        byte [] image = {(byte)0xff, (byte)0xda, 0, 2, 1, 2, 3, 4, (byte)0xff, (byte)0xd9};
+        ByteBuffer jpeg = ByteBuffer.allocate(2 + app0.length + 10 + tiff_size + image.length);
+        jpeg.put((byte)0xff).put((byte)0xd8);
+        jpeg.put(app0);
+        jpeg.put((byte)0xff).put((byte)0xe1).putShort((short)(2 + 6 + tiff_size));
+        jpeg.put(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        jpeg.put(tiff.array());
+        jpeg.put(image);
+        return jpeg.array();
+    }
+
+    @Test
+    public void testJpegExif() throws IOException {
+        Log.d(TAG, "testJpegExif");
+
+        byte [] thumbnail = {(byte)0xff, (byte)0xd8, 9, 8, 7, (byte)0xff, (byte)0xd9};
+        for(ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            Log.d(TAG, "order: " + order);
+            byte [] jpeg = createExifTestJpeg(order, thumbnail);
+            JpegExif exif = JpegExif.parse(jpeg);
+            assertNotNull(exif);
+            assertEquals(6, exif.getOrientation());
+            assertEquals("2020:01:02 03:04:05", exif.getDateTime());
+            assertTrue(exif.hasThumbnail());
+            assertNull(exif.getImageSize());
+
+            // unchanged tags should be written back as they were, and the thumbnail kept
+            byte [] segment = exif.createSegment();
+            assertNotNull(segment);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            exif.writeJpeg(outputStream, segment, jpeg);
+            assertEquals(jpeg.length, outputStream.toByteArray().length);
+            JpegExif copy = JpegExif.parse(outputStream.toByteArray());
+            assertNotNull(copy);
+            assertEquals(6, copy.getOrientation());
+            assertEquals("2020:01:02 03:04:05", copy.getDateTime());
+            assertTrue(copy.hasThumbnail());
+
+            exif.setOrientation(JpegExif.orientation_normal_c);
+            exif.setImageSize(4000, 3000);
+            exif.removeThumbnail();
+            exif.setDateTimeOriginal(exif.getDateTime());
+            exif.setArtist("artist");
+            exif.setCopyright("copyright");
+            exif.setUserComment("Yaw:90.0,Pitch:1.5,Roll:-2.0");
+            exif.setGPSImgDirection(123.456f);
+            exif.setGPSTimestamp(new Date(0));
+            segment = exif.createSegment();
+            assertNotNull(segment);
+            assertEquals(0xff, segment[0] & 0xff);
+            assertEquals(0xe1, segment[1] & 0xff);
+            assertEquals(segment.length - 2, ((segment[2] & 0xff) << 8) | (segment[3] & 0xff));
+
+            // replacing the segment in the original data: the new segment goes straight after the SOI marker
+            outputStream = new ByteArrayOutputStream();
+            exif.writeJpeg(outputStream, segment, jpeg);
+            byte [] result = outputStream.toByteArray();
+            for(int i=0;i<segment.length;i++)
+                assertEquals(segment[i], result[2+i]);
+            assertEquals(0xe0, result[2+segment.length+1] & 0xff);
+            for(int i=1;i<=10;i++)
+                assertEquals(jpeg[jpeg.length-i], result[result.length-i]);
+
+            // as above, from a buffer
+            ByteBuffer buffer = ByteBuffer.allocateDirect(jpeg.length + 3);
+            buffer.put(new byte[3]).put(jpeg).flip();
+            buffer.position(3);
+            outputStream = new ByteArrayOutputStream();
+            exif.writeJpeg(outputStream, segment, buffer);
+            assertArrayEquals(result, outputStream.toByteArray());
+            assertEquals(3, buffer.position());
+            assertNotNull(JpegExif.parse(buffer));
+
+            JpegExif new_exif = JpegExif.parse(result);
+            assertNotNull(new_exif);
+            assertEquals(JpegExif.orientation_normal_c, new_exif.getOrientation());
+            assertArrayEquals(new int[]{4000, 3000}, new_exif.getImageSize());
+            assertFalse(new_exif.hasThumbnail());
+            assertEquals("2020:01:02 03:04:05", new_exif.getDateTime());
+            assertEquals("2020:01:02 03:04:05", new_exif.getDateTimeOriginal());
+            assertEquals("artist", new_exif.getArtist());
+            assertEquals("copyright", new_exif.getCopyright());
+            assertEquals("Yaw:90.0,Pitch:1.5,Roll:-2.0", new_exif.getUserComment());
+            assertEquals(123.46f, new_exif.getGPSImgDirection(), 1.0e-5f);
+            assertEquals("1970:01:01", new_exif.getGPSDatestamp());
+
+            // splicing into the output of an encoder, which writes a JPEG without Exif
+            byte [] encoded = {(byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xe0, 0, 2, (byte)0xff, (byte)0xd9};
+            outputStream = new ByteArrayOutputStream();
+            OutputStream spliceStream = JpegExif.createOutputStream(outputStream, segment);
+            spliceStream.write(encoded[0]);
+            spliceStream.write(encoded, 1, encoded.length-1);
+            spliceStream.close();
+            result = outputStream.toByteArray();
+            assertEquals(encoded.length + segment.length, result.length);
+            assertEquals(0xd8, result[1] & 0xff);
+            assertEquals(0xe1, result[3] & 0xff);
+            assertEquals(0xe0, result[2+segment.length+1] & 0xff);
+            assertNotNull(JpegExif.parse(result));
+        }
+
+        // JPEGs without Exif, or with invalid Exif, aren't read
+        assertNull(JpegExif.parse(new byte[]{(byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xd9}));
+        assertNull(JpegExif.parse(new byte[]{1, 2, 3, 4, 5}));
+        byte [] jpeg = createExifTestJpeg(ByteOrder.LITTLE_ENDIAN, null);
+        assertNotNull(JpegExif.parse(jpeg));
+        jpeg[2 + 8 + 10 + 4] = 100; // offset of IFD0 is outside of the segment
+        assertNull(JpegExif.parse(jpeg));
+    }
+
+    /** Creates a JPEG for testJpegTransform, with a pattern that isn't symmetric in either
+     *  direction.
+     */
+    private static byte [] createTransformTestJpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int r = (255 * x) / width;
+                int g = (255 * y) / height;
+                int b = ((x / 8) % 2 == 0 && y < height/3) ? 255 : 0;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpg", outputStream));
+        return outputStream.toByteArray();
+    }
+
+    /** Checks that a lossless transform of a JPEG decodes to (nearly) the same pixels as
+     *  transforming the decoded image.
+     */
+    private static void checkJpegTransform(byte [] jpeg, JpegTransform.Transform transform) throws IOException {
+        byte [] result = JpegTransform.transform(jpeg, transform);
+        assertNotNull(result);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        BufferedImage new_image = ImageIO.read(new ByteArrayInputStream(result));
+        int width = image.getWidth();
+        int height = image.getHeight();
+        assertEquals(transform.transpose ? height : width, new_image.getWidth());
+        assertEquals(transform.transpose ? width : height, new_image.getHeight());
+        int max_diff = 0;
+        for(int y=0;y<new_image.getHeight();y++) {
+            for(int x=0;x<new_image.getWidth();x++) {
+                int sx = transform.flip_h ? new_image.getWidth() - 1 - x : x;
+                int sy = transform.flip_v ? new_image.getHeight() - 1 - y : y;
+                if( transform.transpose ) {
+                    int temp = sx;
+                    sx = sy;
+                    sy = temp;
+                }
+                int color = image.getRGB(sx, sy);
+                int new_color = new_image.getRGB(x, y);
+                for(int shift=0;shift<24;shift+=8) {
+                    max_diff = Math.max(max_diff, Math.abs(((color >> shift) & 0xff) - ((new_color >> shift) & 0xff)));
+                }
+            }
+        }
+        Log.d(TAG, "max_diff: " + max_diff);
+        // allow for rounding differences in the decoder
+        assertTrue(max_diff <= 4);
+    }
+
+    @Test
+    public void testJpegTransform() throws IOException {
+        Log.d(TAG, "testJpegTransform");
+
+        byte [] jpeg = createTransformTestJpeg(64, 48);
+        for(int orientation=1;orientation<=8;orientation++) {
+            for(boolean mirror : new boolean[]{false, true}) {
+                Log.d(TAG, "orientation " + orientation + " mirror " + mirror);
+                checkJpegTransform(jpeg, JpegTransform.Transform.fromExifOrientation(orientation, mirror));
+            }
+        }
+
+        // rotating by 90 degrees four times should give the same coefficients back
+        byte [] identity = JpegTransform.transform(jpeg, new JpegTransform.Transform(false, false, false));
+        assertNotNull(identity);
+        byte [] rotated = identity;
+        for(int i=0;i<4;i++) {
+            rotated = JpegTransform.transform(rotated, JpegTransform.Transform.fromExifOrientation(6, false));
+            assertNotNull(rotated);
+        }
+        assertArrayEquals(identity, rotated);
+
+        // flips aren't supported if the image isn't a whole number of MCUs in that direction,
+        // but transposing still is
+        byte [] unaligned_jpeg = createTransformTestJpeg(60, 48);
+        assertNull(JpegTransform.transform(unaligned_jpeg, new JpegTransform.Transform(false, true, false)));
+        checkJpegTransform(unaligned_jpeg, new JpegTransform.Transform(false, false, true));
+        checkJpegTransform(unaligned_jpeg, new JpegTransform.Transform(true, false, false));
+
+        // invalid data
+        assertNull(JpegTransform.transform(new byte[]{1, 2, 3, 4}, new JpegTransform.Transform(false, true, false)));
+        assertNull(JpegTransform.transform(Arrays.copyOf(jpeg, jpeg.length/2), new JpegTransform.Transform(false, true, false)));
+    }
+
+    @Test
+    public void testGeocodeCache() throws IOException {
+        Log.d(TAG, "testGeocodeCache");
+
+        final long day_ms = 24L * 60 * 60 * 1000;
+        GeocodeCache cache = new GeocodeCache(0.001, 3, 30 * day_ms);
+        cache.setLocale("en_GB");
+        long time_ms = 1000 * day_ms;
+        assertNull(cache.get(51.5007, -0.1246, time_ms));
+
+        // locations in the same cell share an address
+        cache.put(51.5007, -0.1246, Arrays.asList("Westminster", "London"), time_ms);
+        assertEquals(Arrays.asList("Westminster", "London"), cache.get(51.50075, -0.12455, time_ms));
+        assertNull(cache.get(51.5017, -0.1246, time_ms));
+        assertNull(cache.get(-51.5007, -0.1246, time_ms));
+        assertNull(cache.get(51.5007, 0.1246, time_ms));
+
+        // locations with no address are cached as an empty list
+        cache.put(-33.8568, 151.2153, new ArrayList<String>(), time_ms);
+        assertEquals(0, cache.get(-33.8568, 151.2153, time_ms).size());
+
+        // least recently used cells are evicted
+        cache.put(48.8584, 2.2945, Arrays.asList("Paris"), time_ms);
+        assertNotNull(cache.get(51.5007, -0.1246, time_ms));
+        cache.put(40.6892, -74.0445, Arrays.asList("New York"), time_ms);
+        assertEquals(3, cache.size());
+        assertNull(cache.get(-33.8568, 151.2153, time_ms));
+        assertNotNull(cache.get(51.5007, -0.1246, time_ms));
+        assertNotNull(cache.get(48.8584, 2.2945, time_ms));
+
+        // entries expire
+        assertNotNull(cache.get(40.6892, -74.0445, time_ms + 29 * day_ms));
+        assertNull(cache.get(40.6892, -74.0445, time_ms + 31 * day_ms));
+        assertEquals(2, cache.size());
+
+        // persisting, with address lines containing separators
+        cache.put(40.6892, -74.0445, Arrays.asList("Liberty\tIsland", "New York"), time_ms + day_ms);
+        StringWriter writer = new StringWriter();
+        cache.write(writer);
+        GeocodeCache new_cache = new GeocodeCache(0.001, 3, 30 * day_ms);
+        new_cache.setLocale("en_GB");
+        assertEquals(3, new_cache.read(new StringReader(writer.toString()), time_ms + 2 * day_ms));
+        assertEquals(Arrays.asList("Westminster", "London"), new_cache.get(51.5007, -0.1246, time_ms + 2 * day_ms));
+        assertEquals(Arrays.asList("Liberty Island", "New York"), new_cache.get(40.6892, -74.0445, time_ms + 2 * day_ms));
+        // entries read are less recently used than those already in the cache, and only replace older entries
+        new_cache = new GeocodeCache(0.001, 3, 30 * day_ms);
+        new_cache.setLocale("en_GB");
+        new_cache.put(40.6892, -74.0445, Arrays.asList("Statue of Liberty"), time_ms + 2 * day_ms);
+        new_cache.put(48.8584, 2.2945, Arrays.asList("Old Paris"), time_ms - day_ms);
+        assertEquals(2, new_cache.read(new StringReader(writer.toString()), time_ms + 2 * day_ms));
+        assertEquals(3, new_cache.size());
+        new_cache.put(-33.8568, 151.2153, Arrays.asList("Sydney"), time_ms + 2 * day_ms);
+        assertNull(new_cache.get(51.5007, -0.1246, time_ms + 2 * day_ms));
+        assertEquals(Arrays.asList("Statue of Liberty"), new_cache.get(40.6892, -74.0445, time_ms + 2 * day_ms));
+        assertEquals(Arrays.asList("Paris"), new_cache.get(48.8584, 2.2945, time_ms + 2 * day_ms));
+        // expired entries aren't read
+        new_cache = new GeocodeCache(0.001, 3, 30 * day_ms);
+        new_cache.setLocale("en_GB");
+        assertEquals(1, new_cache.read(new StringReader(writer.toString()), time_ms + 30 * day_ms + day_ms / 2));
+        // a different locale or cell size isn't read
+        new_cache = new GeocodeCache(0.001, 3, 30 * day_ms);
+        new_cache.setLocale("fr_FR");
+        assertEquals(0, new_cache.read(new StringReader(writer.toString()), time_ms));
+        new_cache = new GeocodeCache(0.002, 3, 30 * day_ms);
+        new_cache.setLocale("en_GB");
+        assertEquals(0, new_cache.read(new StringReader(writer.toString()), time_ms));
+
+        // changing locale clears the cache
+        cache.setLocale("fr_FR");
+        assertEquals(0, cache.size());
+    }
+
+    /** Decodes a lossless JPEG tile written by DngWriter: a single scan of two interleaved
+     *  components with predictor 1, and a single Huffman table. Returns the samples in the order
+     *  they were coded.
+     */
+    private static int [] decodeTestLosslessJpeg(ByteBuffer data, int offset, int length) {
+        data = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int pos = offset;
+        assertEquals(0xffd8, data.getShort(pos) & 0xffff);
+        pos += 2;
+        int [] max_code = new int[17];
+        int [] val_ptr = new int[17];
+        int [] min_code = new int[17];
+        int [] symbols = null;
+        int n_lines = 0, n_samples = 0;
+        while( true ) {
+            int marker = data.getShort(pos) & 0xffff;
+            int segment_length = data.getShort(pos+2) & 0xffff;
+            if( marker == 0xffc4 ) {
+                assertEquals(0x00, data.get(pos+4));
+                int n_symbols = 0;
+                int code = 0;
+                for(int l=1;l<=16;l++) {
+                    int count = data.get(pos+5+l-1) & 0xff;
+                    val_ptr[l] = n_symbols;
+                    min_code[l] = code;
+                    code += count;
+                    n_symbols += count;
+                    max_code[l] = count > 0 ? code - 1 : -1;
+                    code <<= 1;
+                }
+                symbols = new int[n_symbols];
+                for(int i=0;i<n_symbols;i++) {
+                    symbols[i] = data.get(pos+5+16+i) & 0xff;
+                }
+            }
+            else if( marker == 0xffc3 ) {
+                assertEquals(16, data.get(pos+4));
+                n_lines = data.getShort(pos+5) & 0xffff;
+                n_samples = data.getShort(pos+7) & 0xffff;
+                assertEquals(2, data.get(pos+9));
+            }
+            else if( marker == 0xffda ) {
+                pos += 2 + segment_length;
+                break;
+            }
+            pos += 2 + segment_length;
+        }
+        assertNotNull(symbols);
+
+        final int width = 2*n_samples;
+        int [] samples = new int[width*n_lines];
+        int bit_buffer = 0, n_bits = 0;
+        for(int i=0;i<samples.length;i++) {
+            // decode the category
+            int code = 0;
+            int l = 0;
+            int category = -1;
+            while( category == -1 ) {
+                if( n_bits == 0 ) {
+                    int b = data.get(pos++) & 0xff;
+                    if( b == 0xff ) {
+                        assertEquals(0, data.get(pos++));
+                    }
+                    bit_buffer = b;
+                    n_bits = 8;
+                }
+                code = (code << 1) | ((bit_buffer >> (n_bits-1)) & 1);
+                n_bits--;
+                l++;
+                assertTrue(l <= 16);
+                if( max_code[l] != -1 && code <= max_code[l] ) {
+                    category = symbols[val_ptr[l] + code - min_code[l]];
+                }
+            }
+            int diff;
+            if( category == 16 ) {
+                diff = 32768;
+            }
+            else {
+                int value = 0;
+                for(int j=0;j<category;j++) {
+                    if( n_bits == 0 ) {
+                        int b = data.get(pos++) & 0xff;
+                        if( b == 0xff ) {
+                            assertEquals(0, data.get(pos++));
+                        }
+                        bit_buffer = b;
+                        n_bits = 8;
+                    }
+                    value = (value << 1) | ((bit_buffer >> (n_bits-1)) & 1);
+                    n_bits--;
+                }
+                diff = category > 0 && value < (1 << (category-1)) ? value - (1 << category) + 1 : value;
+            }
+            int x = i % width;
+            int y = i / width;
+            int prediction;
+            if( x < 2 )
+                prediction = y == 0 ? 32768 : samples[i - width];
+            else
+                prediction = samples[i - 2];
+            samples[i] = (prediction + diff) & 0xffff;
+        }
+        assertEquals(0xffd9, data.getShort(pos) & 0xffff);
+        assertEquals(offset + length, pos + 2);
+        return samples;
+    }
+
+    /** Reads the samples of a DNG written by DngWriter.
+     */
+    private static int [] readTestDng(ByteBuffer dng, int expected_compression) {
+        dng.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals('I', dng.get(0));
+        assertEquals('I', dng.get(1));
+        assertEquals(42, dng.getShort(2));
+        int ifd = dng.getInt(4);
+        int n_entries = dng.getShort(ifd) & 0xffff;
+        int width = 0, height = 0, compression = 0, tile_width = 0, tile_length = 0;
+        int [] tile_offsets = null, tile_byte_counts = null;
+        int prev_tag = -1;
+        for(int i=0;i<n_entries;i++) {
+            int entry = ifd + 2 + 12*i;
+            int tag = dng.getShort(entry) & 0xffff;
+            int type = dng.getShort(entry+2);
+            int count = dng.getInt(entry+4);
+            assertTrue(tag > prev_tag);
+            prev_tag = tag;
+            int value = type == 3 ? dng.getShort(entry+8) & 0xffff : dng.getInt(entry+8);
+            switch( tag ) {
+                case 256: width = value; break;
+                case 257: height = value; break;
+                case 259: compression = value; break;
+                case 322: tile_width = value; break;
+                case 323: tile_length = value; break;
+                case 324:
+                case 325:
+                    int [] values = new int[count];
+                    for(int j=0;j<count;j++) {
+                        values[j] = count == 1 ? value : dng.getInt(value + 4*j);
+                    }
+                    if( tag == 324 )
+                        tile_offsets = values;
+                    else
+                        tile_byte_counts = values;
+                    break;
+            }
+        }
+        assertEquals(expected_compression, compression);
+        assertNotNull(tile_offsets);
+        assertNotNull(tile_byte_counts);
+        int tiles_x = (width + tile_width - 1) / tile_width;
+        int tiles_y = (height + tile_length - 1) / tile_length;
+        assertEquals(tiles_x * tiles_y, tile_offsets.length);
+
+        int [] samples = new int[width*height];
+        for(int ty=0;ty<tiles_y;ty++) {
+            for(int tx=0;tx<tiles_x;tx++) {
+                int tile_index = ty*tiles_x + tx;
+                assertEquals(0, tile_offsets[tile_index] % 2);
+                int [] tile;
+                if( compression == DngWriter.compression_lossless_jpeg_c ) {
+                    tile = decodeTestLosslessJpeg(dng, tile_offsets[tile_index], tile_byte_counts[tile_index]);
+                }
+                else {
+                    assertEquals(2*tile_width*tile_length, tile_byte_counts[tile_index]);
+                    tile = new int[tile_width*tile_length];
+                    for(int j=0;j<tile.length;j++) {
+                        tile[j] = dng.getShort(tile_offsets[tile_index] + 2*j) & 0xffff;
+                    }
+                }
+                assertEquals(tile_width*tile_length, tile.length);
+                for(int y=0;y<tile_length && ty*tile_length+y<height;y++) {
+                    for(int x=0;x<tile_width && tx*tile_width+x<width;x++) {
+                        samples[(ty*tile_length+y)*width + tx*tile_width+x] = tile[y*tile_width+x];
+                    }
+                }
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    public void testDngWriter() throws IOException {
+        Log.d(TAG, "testDngWriter");
+
+        // a size that isn't a multiple of the tile size, with padding at the end of each row
+        final int width = 600, height = 300;
+        final int row_stride = 2*width + 20;
+        final int offset = 6; // the samples don't start at the start of the buffer
+        ByteBuffer raw = ByteBuffer.allocate(offset + row_stride*height).order(ByteOrder.LITTLE_ENDIAN);
+        int [] expected = new int[width*height];
+        Random random = new Random(42);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int value;
+                if( y == 100 && x < 20 ) {
+                    // extreme values, to test differences of +/- 32768
+                    value = (x/2) % 2 == 0 ? 0 : 65535;
+                }
+                else {
+                    // smooth gradients, different for each colour of the CFA, plus noise
+                    int colour = (y % 2)*2 + (x % 2);
+                    value = 64 + colour*100 + x + 2*y + random.nextInt(16);
+                }
+                expected[y*width + x] = value;
+                raw.putShort(offset + y*row_stride + 2*x, (short)value);
+            }
+        }
+        raw.position(offset);
+
+        File file = new File(System.getProperty("java.io.tmpdir"), "testDngWriter.dng");
+        long [] sizes = new long[2];
+        int [] compressions = new int[]{DngWriter.compression_none_c, DngWriter.compression_lossless_jpeg_c};
+        for(int i=0;i<compressions.length;i++) {
+            DngWriter writer = new DngWriter(width, height, new int[]{DngWriter.cfa_red_c, DngWriter.cfa_green_c, DngWriter.cfa_green_c, DngWriter.cfa_blue_c}, 1023);
+            writer.setBlackLevel(new int[]{64, 64, 64, 64});
+            writer.setColorMatrix1(new float[]{1.0f, -0.25f, 0.0f, -0.5f, 1.5f, 0.0f, 0.0f, 0.0f, 1.0f}, 21);
+            writer.setAsShotNeutral(new float[]{0.5f, 1.0f, 0.6f});
+            writer.setCamera("Make", "Model");
+            writer.setCompression(compressions[i]);
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.setLength(0);
+                sizes[i] = writer.write(output.getChannel(), raw.duplicate(), row_stride);
+                assertEquals(sizes[i], output.getChannel().position());
+                assertEquals(sizes[i], output.length());
+                byte [] bytes = new byte[(int)sizes[i]];
+                output.seek(0);
+                output.readFully(bytes);
+                int [] samples = readTestDng(ByteBuffer.wrap(bytes), compressions[i]);
+                assertArrayEquals(expected, samples);
+            }
+            finally {
+                output.close();
+            }
+        }
+        Log.d(TAG, "uncompressed size: " + sizes[0]);
+        Log.d(TAG, "compressed size: " + sizes[1]);
+        assertTrue(sizes[1] < sizes[0] / 2);
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testSaveMetrics() throws InterruptedException, IOException {
+        Log.d(TAG, "testSaveMetrics");
+
+        // percentiles are accurate to the bucket size
+        SaveMetrics.Histogram histogram = new SaveMetrics.Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(50.0));
+        for(int i=1;i<=1000;i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 1.0e-5);
+        assertEquals(500.0, histogram.getValueAtPercentile(50.0), 500.0/8);
+        assertEquals(900.0, histogram.getValueAtPercentile(90.0), 900.0/8);
+        assertEquals(990.0, histogram.getValueAtPercentile(99.0), 990.0/8);
+        assertEquals(1000, histogram.getValueAtPercentile(100.0));
+        assertEquals(1, histogram.getValueAtPercentile(0.0));
+
+        // values can be recorded from several threads at once
+        final SaveMetrics.Histogram shared_histogram = new SaveMetrics.Histogram();
+        final int n_threads = 4;
+        final int n_values = 10000;
+        Thread [] threads = new Thread[n_threads];
+        for(int i=0;i<n_threads;i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j=0;j<n_values;j++) {
+                        shared_histogram.record(j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(n_threads*n_values, shared_histogram.getCount());
+        assertEquals(n_values-1, shared_histogram.getMax());
+
+        // times are recorded against the request for the thread
+        SaveMetrics metrics = new SaveMetrics();
+        assertEquals("HDR 12MP", SaveMetrics.getKey("HDR", 4000*3000));
+        long start = metrics.startTimer();
+        metrics.stopTimer(SaveMetrics.Stage.DECODE, start); // no request, so not recorded
+        assertNull(metrics.getHistogram("HDR 12MP", SaveMetrics.Stage.DECODE));
+        metrics.beginRequest("HDR", 4000*3000);
+        start = metrics.startTimer();
+        metrics.stopTimer(SaveMetrics.Stage.DECODE, start);
+        metrics.stopTimer(SaveMetrics.Stage.DECODE, metrics.startTimer());
+        metrics.endRequest();
+        metrics.stopTimer(SaveMetrics.Stage.DECODE, metrics.startTimer()); // request has ended
+        assertEquals(2, metrics.getHistogram("HDR 12MP", SaveMetrics.Stage.DECODE).getCount());
+        assertEquals(0, metrics.getHistogram("HDR 12MP", SaveMetrics.Stage.MERGE).getCount());
+        metrics.stopTimer(SaveMetrics.batch_key_c, SaveMetrics.Stage.MEDIA_SCAN, metrics.startTimer());
+        assertEquals(1, metrics.getHistogram(SaveMetrics.batch_key_c, SaveMetrics.Stage.MEDIA_SCAN).getCount());
+
+        // nothing is recorded when disabled
+        metrics.setEnabled(false);
+        assertEquals(0, metrics.startTimer());
+        metrics.beginRequest("HDR", 4000*3000);
+        metrics.stopTimer(SaveMetrics.Stage.DECODE, metrics.startTimer());
+        metrics.endRequest();
+        assertEquals(2, metrics.getHistogram("HDR 12MP", SaveMetrics.Stage.DECODE).getCount());
+        metrics.setEnabled(true);
+
+        // export
+        StringWriter writer = new StringWriter();
+        metrics.write(writer);
+        String [] table = writer.toString().split("\n");
+        assertEquals(3, table.length);
+        assertTrue(table[0].startsWith("key\tstage\tcount"));
+        assertTrue(table[1].startsWith(SaveMetrics.batch_key_c + "\tMEDIA_SCAN\t1\t"));
+        assertTrue(table[2].startsWith("HDR 12MP\tDECODE\t2\t"));
+        List<String> summary = metrics.getSummary();
+        assertEquals(2, summary.size());
+        assertTrue(summary.get(1).startsWith("HDR 12MP: decode="));
+
+        metrics.reset();
+        assertEquals(0, metrics.getHistogram("HDR 12MP", SaveMetrics.Stage.DECODE).getCount());
+        assertEquals(0, metrics.getSummary().size());
+
+        // a background thread doing work for a request records against the request's key
+        final SaveMetrics thread_metrics = metrics;
+        final String key = SaveMetrics.getKey("HDR", 4000*3000);
+        Thread merge_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                thread_metrics.stopTimer(SaveMetrics.Stage.ALIGN, thread_metrics.startTimer()); // no request yet
+                thread_metrics.beginRequest(key);
+                thread_metrics.stopTimer(SaveMetrics.Stage.ALIGN, thread_metrics.startTimer());
+                thread_metrics.endRequest();
+            }
+        });
+        metrics.beginRequest("HDR", 4000*3000);
+        merge_thread.start();
+        merge_thread.join();
+        metrics.stopTimer(SaveMetrics.Stage.MERGE, metrics.startTimer());
+        metrics.endRequest();
+        assertEquals(1, metrics.getHistogram("HDR 12MP", SaveMetrics.Stage.ALIGN).getCount());
+        assertEquals(1, metrics.getHistogram("HDR 12MP", SaveMetrics.Stage.MERGE).getCount());
+    }
 
+    @Test
+    public void testShotTracer() throws InterruptedException, IOException {
+        Log.d(TAG, "testShotTracer");
+
+        final ShotTracer tracer = new ShotTracer(6); // rounded up to 8
+        assertEquals(-1, tracer.getCurrentShot());
+        assertEquals(0, tracer.getNEvents());
+        final long shot = tracer.beginShot();
+        assertEquals(shot, tracer.getCurrentShot());
+        tracer.begin(ShotTracer.span_picture_taken_c);
+        tracer.end(ShotTracer.span_picture_taken_c);
+        tracer.asyncBegin(ShotTracer.span_save_c, shot);
+
+        // events on another thread, for an earlier shot
+        final long next_shot = tracer.beginShot();
+        assertTrue(next_shot != shot);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tracer.setThreadShot(shot);
+                tracer.begin(ShotTracer.span_process_c);
+                tracer.end(ShotTracer.span_process_c);
+                tracer.clearThreadShot();
+                tracer.asyncEnd(ShotTracer.span_save_c, shot);
+            }
+        }, "Saver \"1\"");
+        thread.start();
+        thread.join();
+        assertEquals(8, tracer.getNEvents());
+
+        StringWriter writer = new StringWriter();
+        assertEquals(8, tracer.write(writer));
+        String json = writer.toString();
+        Log.d(TAG, json);
+        assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(json.trim().endsWith("]}"));
+        assertTrue(json.contains("\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getId() + ",\"args\":{\"name\":\"Saver \\\"1\\\"\"}"));
+        assertTrue(json.contains("{\"name\":\"shot\",\"ph\":\"b\",\"cat\":\"shot\",\"id\":" + next_shot + ","));
+        assertTrue(json.contains("{\"name\":\"picture_taken\",\"ph\":\"B\",\"cat\":\"shot\",\"ts\":"));
+        // the lane thread's events are for the earlier shot
+        assertTrue(json.contains("{\"name\":\"process\",\"ph\":\"E\",\"cat\":\"shot\",\"ts\":"));
+        String process_end = json.substring(json.indexOf("{\"name\":\"process\",\"ph\":\"E\""));
+        process_end = process_end.substring(0, process_end.indexOf('\n'));
+        assertTrue(process_end.contains("\"tid\":" + thread.getId() + ",\"args\":{\"shot\":" + shot + "}}"));
+        assertTrue(json.contains("{\"name\":\"save\",\"ph\":\"e\",\"cat\":\"save\",\"id\":" + shot + ","));
+
+        // older events are overwritten once the buffer is full
+        tracer.instant(ShotTracer.span_image_available_c);
+        writer = new StringWriter();
+        assertEquals(8, tracer.write(writer));
+        json = writer.toString();
+        assertFalse(json.contains("{\"name\":\"shot\",\"ph\":\"b\",\"cat\":\"shot\",\"id\":" + shot + ","));
+        assertTrue(json.contains("{\"name\":\"shot\",\"ph\":\"b\",\"cat\":\"shot\",\"id\":" + next_shot + ","));
+        assertTrue(json.contains("{\"name\":\"image_available\",\"ph\":\"i\",\"cat\":\"shot\",\"s\":\"t\",\"ts\":"));
+
+        // nothing is recorded when disabled
+        tracer.setEnabled(false);
+        tracer.instant(ShotTracer.span_broadcast_c);
+        writer = new StringWriter();
+        tracer.write(writer);
+        assertFalse(writer.toString().contains("broadcast"));
     }
 
     private static class float4 {
@@ -956,4 +2015,930 @@ public class UnitTest {
         assertEquals(luminanceInfos.get(2), luminanceInfosSorted.get(5));
 
     }
+
+    private static int [] createTestImage(int width, int height, int seed) {
+        int [] pixels = new int[width*height];
+        java.util.Random random = new java.util.Random(seed);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                // smooth gradient plus some noise, so that we have a range of brightnesses
+                int base = (255 * (x + y)) / (width + height);
+                int r = Math.max(0, Math.min(255, base + random.nextInt(16) - 8));
+                int g = Math.max(0, Math.min(255, base + random.nextInt(16) - 8));
+                int b = Math.max(0, Math.min(255, base + random.nextInt(16) - 8));
+                pixels[y*width+x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int [] scaleTestImage(int [] pixels, float scale) {
+        int [] result = new int[pixels.length];
+        for(int i=0;i<pixels.length;i++) {
+            int r = Math.min(255, (int)(((pixels[i] >> 16) & 0xff) * scale));
+            int g = Math.min(255, (int)(((pixels[i] >> 8) & 0xff) * scale));
+            int b = Math.min(255, (int)((pixels[i] & 0xff) * scale));
+            result[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+        return result;
+    }
+
+    /** Returns a test image made of random blocks, so that it has structure in both directions for
+     *  alignment.
+     */
+    private static int [] createBlockTestImage(int width, int height, int block_size, int seed) {
+        int [] pixels = new int[width*height];
+        java.util.Random random = new java.util.Random(seed);
+        int blocks_x = (width + block_size - 1)/block_size;
+        int blocks_y = (height + block_size - 1)/block_size;
+        int [] block_values = new int[blocks_x*blocks_y];
+        for(int i=0;i<block_values.length;i++) {
+            block_values[i] = random.nextInt(256);
+        }
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int value = block_values[(y/block_size)*blocks_x + x/block_size];
+                value = Math.max(0, Math.min(255, value + random.nextInt(5) - 2));
+                pixels[y*width+x] = 0xff000000 | (value << 16) | (value << 8) | (value/2);
+            }
+        }
+        return pixels;
+    }
+
+    /** Reference implementation of create_mtb.rs/create_mtb().
+     */
+    private static int [] createMTBReference(int [] pixels, int width, int median_value, int mtb_x, int mtb_y, int mtb_width, int mtb_height) {
+        int [] mtb = new int[mtb_width*mtb_height];
+        for(int y=0;y<mtb_height;y++) {
+            for(int x=0;x<mtb_width;x++) {
+                int color = pixels[(y+mtb_y)*width + x+mtb_x];
+                int value = Math.max(Math.max((color >> 16) & 0xff, (color >> 8) & 0xff), color & 0xff);
+                int out;
+                if( Math.abs(value - median_value) <= 4 )
+                    out = 127;
+                else if( value <= median_value )
+                    out = 0;
+                else
+                    out = 255;
+                mtb[y*mtb_width+x] = out;
+            }
+        }
+        return mtb;
+    }
+
+    /** Reference implementation of align_mtb.rs/align_mtb().
+     */
+    private static long [] alignMTBReference(int [] mtb0, int [] mtb1, int width, int height, int step_size, int off_x, int off_y) {
+        long [] errors = new long[9];
+        for(int sy=0;sy<height/step_size;sy++) {
+            for(int sx=0;sx<width/step_size;sx++) {
+                int x = sx*step_size;
+                int y = sy*step_size;
+                if( x+off_x >= step_size && x+off_x < width-step_size && y+off_y >= step_size && y+off_y < height-step_size ) {
+                    int pixel0 = mtb0[y*width+x];
+                    int c = 0;
+                    for(int dy=-1;dy<=1;dy++) {
+                        for(int dx=-1;dx<=1;dx++) {
+                            int pixel1 = mtb1[(y+off_y+dy*step_size)*width + x+off_x+dx*step_size];
+                            if( pixel0 != pixel1 && pixel0 != 127 && pixel1 != 127 )
+                                errors[c]++;
+                            c++;
+                        }
+                    }
+                }
+            }
+        }
+        return errors;
+    }
+
+    /** Tests that the packed MTB alignment errors are identical to those computed by the (one byte
+     *  per pixel) align_mtb.rs algorithm.
+     */
+    @Test
+    public void testMTBAlignmentErrors() {
+        Log.d(TAG, "testMTBAlignmentErrors");
+        final int width = 301, height = 223;
+        int [] pixels0 = createBlockTestImage(width, height, 7, 0);
+        int [] pixels1 = createBlockTestImage(width, height, 7, 1);
+        final int [][] regions = new int[][]{{0, 0, width, height}, {width/4, height/4, width/2, height/2}, {3, 5, 64, 40}};
+        for(int [] region : regions) {
+            int mtb_x = region[0], mtb_y = region[1], mtb_width = region[2], mtb_height = region[3];
+            int [] mtb0_ref = createMTBReference(pixels0, width, 127, mtb_x, mtb_y, mtb_width, mtb_height);
+            int [] mtb1_ref = createMTBReference(pixels1, width, 100, mtb_x, mtb_y, mtb_width, mtb_height);
+            MTBAlignment.MTB mtb0 = MTBAlignment.createMTB(new HDRProcessorCPU.ArrayImage(pixels0, width, height), 127, mtb_x, mtb_y, mtb_width, mtb_height, 32);
+            MTBAlignment.MTB mtb1 = MTBAlignment.createMTB(new HDRProcessorCPU.ArrayImage(pixels1, width, height), 100, mtb_x, mtb_y, mtb_width, mtb_height, 32);
+            assertEquals(6, mtb0.getNLevels());
+            for(int step_size=1;step_size<=32;step_size*=2) {
+                for(int oy=-3;oy<=3;oy++) {
+                    for(int ox=-3;ox<=3;ox++) {
+                        int off_x = ox*step_size, off_y = oy*step_size;
+                        long [] errors = MTBAlignment.computeErrors(mtb0, mtb1, step_size, off_x, off_y);
+                        long [] errors_ref = alignMTBReference(mtb0_ref, mtb1_ref, mtb_width, mtb_height, step_size, off_x, off_y);
+                        assertArrayEquals("region " + mtb_x + "," + mtb_y + " step " + step_size + " offset " + off_x + "," + off_y, errors_ref, errors);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Tests that the packed MTB alignment recovers a known shift between two exposures.
+     */
+    @Test
+    public void testMTBAlignmentShift() {
+        Log.d(TAG, "testMTBAlignmentShift");
+        final int width = 640, height = 480;
+        final int shift_x = 13, shift_y = -7;
+        int [] base = createBlockTestImage(width, height, 8, 3);
+        // darker exposure, shifted such that (x+shift_x, y+shift_y) on the shifted image corresponds to (x, y) on base
+        int [] dark = scaleTestImage(base, 0.5f);
+        int [] dark_shifted = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int src_x = Math.max(0, Math.min(width-1, x - shift_x));
+                int src_y = Math.max(0, Math.min(height-1, y - shift_y));
+                dark_shifted[y*width+x] = dark[src_y*width+src_x];
+            }
+        }
+        int [] median_values = new int[]{127, 63};
+        int [][] images = new int[][]{base, dark_shifted};
+        MTBAlignment.MTB [] mtbs = new MTBAlignment.MTB[2];
+        for(int i=0;i<2;i++) {
+            // estimate the medians as HDRProcessor does, from max(r, g, b)
+            int [] histogram = new int[256];
+            for(int color : images[i]) {
+                histogram[Math.max(Math.max((color >> 16) & 0xff, (color >> 8) & 0xff), color & 0xff)]++;
+            }
+            int count = 0;
+            for(int j=0;j<256;j++) {
+                count += histogram[j];
+                if( count >= images[i].length/2 ) {
+                    median_values[i] = j;
+                    break;
+                }
+            }
+            median_values[i] = Math.max(5, Math.min(250, median_values[i]));
+            mtbs[i] = MTBAlignment.createMTB(new HDRProcessorCPU.ArrayImage(images[i], width, height), median_values[i], width/4, height/4, width/2, height/2, 16);
+        }
+        int [] offset = new int[2];
+        MTBAlignment.align(offset, mtbs[0], mtbs[1], 32, 1);
+        Log.d(TAG, "offset: " + offset[0] + " , " + offset[1]);
+        assertEquals(shift_x, offset[0]);
+        assertEquals(shift_y, offset[1]);
+        // should use much less memory than a byte per pixel
+        assertTrue(mtbs[0].getSizeInBytes() < (width/2)*(height/2)/2);
+    }
+
+    /** Tests the CPU HDR engine on identical images with identity response functions, where the
+     *  result should equal the input (with clamp tonemapping).
+     */
+    @Test
+    public void testHDRProcessorCPUIdentity() {
+        Log.d(TAG, "testHDRProcessorCPUIdentity");
+        final int width = 123, height = 77;
+        int [] pixels = createTestImage(width, height, 0);
+        for(int n_bitmaps=2;n_bitmaps<=7;n_bitmaps++) {
+            for(int pass=0;pass<2;pass++) {
+                boolean use_hdr_n = pass == 1;
+                if( !use_hdr_n && n_bitmaps != 3 )
+                    continue;
+                HDRProcessorCPU.Image [] images = new HDRProcessorCPU.Image[n_bitmaps];
+                float [] parameter_A = new float[n_bitmaps];
+                float [] parameter_B = new float[n_bitmaps];
+                for(int i=0;i<n_bitmaps;i++) {
+                    images[i] = new HDRProcessorCPU.ArrayImage(pixels.clone(), width, height);
+                    parameter_A[i] = 1.0f;
+                    parameter_B[i] = 0.0f;
+                }
+                int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2;
+                HDRProcessorCPU.ArrayImage output = new HDRProcessorCPU.ArrayImage(width, height);
+                HDRProcessorCPU.TonemapParameters params = new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, 255.0f, 1.0f, 11.2f);
+                HDRProcessorCPU.processHDR(images, base_bitmap, new int[n_bitmaps], new int[n_bitmaps], parameter_A, parameter_B, use_hdr_n, params, output, null, 4);
+                for(int i=0;i<width*height;i++) {
+                    int expected = pixels[i];
+                    int actual = output.getPixels()[i];
+                    for(int shift=0;shift<=16;shift+=8) {
+                        assertEquals((expected >> shift) & 0xff, (actual >> shift) & 0xff, 1);
+                    }
+                    assertEquals(0xff, (actual >>> 24));
+                }
+            }
+        }
+    }
+
+    /** Tests that the CPU HDR engine handles offsets, and that output is independent of how the
+     *  image is split into tiles.
+     */
+    @Test
+    public void testHDRProcessorCPUOffsets() {
+        Log.d(TAG, "testHDRProcessorCPUOffsets");
+        final int width = 200, height = 150;
+        final int shift_x = 5, shift_y = -3;
+        int [] base = createTestImage(width, height, 1);
+        int [] dark = scaleTestImage(base, 0.5f);
+        int [] bright = scaleTestImage(base, 2.0f);
+        // shift the dark image, and tell the HDR engine about the offset
+        int [] dark_shifted = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int sx = x - shift_x;
+                int sy = y - shift_y;
+                if( sx >= 0 && sx < width && sy >= 0 && sy < height )
+                    dark_shifted[y*width+x] = dark[sy*width+sx];
+            }
+        }
+        float [] parameter_A = new float[]{2.0f, 1.0f, 0.5f};
+        float [] parameter_B = new float[]{0.0f, 0.0f, 0.0f};
+        HDRProcessorCPU.TonemapParameters params = new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, 255.0f, 2.0f, 11.2f);
+
+        HDRProcessorCPU.ArrayImage output_ref = new HDRProcessorCPU.ArrayImage(width, height);
+        HDRProcessorCPU.Image [] images = new HDRProcessorCPU.Image[]{ new HDRProcessorCPU.ArrayImage(dark, width, height), new HDRProcessorCPU.ArrayImage(base, width, height), new HDRProcessorCPU.ArrayImage(bright, width, height) };
+        int [] histograms_ref = new int[4*4*256];
+        HDRProcessorCPU.processHDR(images, 1, new int[3], new int[3], parameter_A, parameter_B, false, params, output_ref, histograms_ref, 4);
+
+        HDRProcessorCPU.ArrayImage output = new HDRProcessorCPU.ArrayImage(width, height);
+        images[0] = new HDRProcessorCPU.ArrayImage(dark_shifted, width, height);
+        int [] histograms = new int[4*4*256];
+        HDRProcessorCPU.processHDR(images, 1, new int[]{shift_x, 0, 0}, new int[]{shift_y, 0, 0}, parameter_A, parameter_B, false, params, output, histograms, 4);
+
+        // pixels where the offset image is available should match
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                if( x+shift_x >= 0 && x+shift_x < width && y+shift_y >= 0 && y+shift_y < height ) {
+                    assertEquals(output_ref.getPixels()[y*width+x], output.getPixels()[y*width+x]);
+                }
+            }
+        }
+        int total = 0;
+        for(int value : histograms)
+            total += value;
+        assertEquals(width*height, total);
+
+        // adjustHistogram with hdr_alpha 0 should leave the image unchanged
+        HDRProcessorCPU.ArrayImage adjusted = new HDRProcessorCPU.ArrayImage(width, height);
+        HDRProcessorCPU.adjustHistogram(output_ref, adjusted, histograms_ref, 0.0f, 4, true);
+        for(int i=0;i<width*height;i++) {
+            assertEquals(output_ref.getPixels()[i], adjusted.getPixels()[i]);
+        }
+    }
+
+    /** Tests that the CPU noise reduction merge and brighten give the same results however the
+     *  image is split into bands, i.e., that processing in strips matches processing the full frame.
+     */
+    @Test
+    public void testAvgCPUTileHeights() {
+        Log.d(TAG, "testAvgCPUTileHeights");
+        final int width = 61, height = 47;
+        int [][] pixels = new int[3][];
+        for(int i=0;i<pixels.length;i++) {
+            pixels[i] = createTestImage(width, height, 10+i);
+        }
+        final int [] offsets_x = new int[]{0, 3, -2};
+        final int [] offsets_y = new int[]{0, -4, 5};
+
+        // reference: each stage processed as a single band
+        HDRProcessorCPU.FloatImage avg_ref = new HDRProcessorCPU.FloatImage(width, height);
+        for(int i=1;i<pixels.length;i++) {
+            HDRProcessorCPU.Image avg_image = i == 1 ? new HDRProcessorCPU.ArrayImage(pixels[0], width, height) : null;
+            HDRProcessorCPU.processAvg(avg_image, avg_ref, new HDRProcessorCPU.ArrayImage(pixels[i], width, height), offsets_x[i], offsets_y[i], (float)i, 2000.0f, 16000.0f, height);
+        }
+        float [] avg_ref_values = new float[3*width*height];
+        avg_ref.getRows(avg_ref_values, 0, height);
+        HDRProcessorCPU.ArrayImage output_ref = new HDRProcessorCPU.ArrayImage(width, height);
+        int [] histograms_ref = new int[256];
+        HDRProcessorCPU.avgBrighten(avg_ref, output_ref, 8.0f, 1.0f, 1.5f, 0.8f, 20.0f, 100.0f, 250.0f, histograms_ref, 1, height);
+
+        // sanity check that the first merge with no offset is a plain average where the images agree
+        {
+            HDRProcessorCPU.FloatImage avg = new HDRProcessorCPU.FloatImage(width, height);
+            HDRProcessorCPU.processAvg(new HDRProcessorCPU.ArrayImage(pixels[0], width, height), avg, new HDRProcessorCPU.ArrayImage(pixels[0], width, height), 0, 0, 1.0f, 2000.0f, 16000.0f);
+            float [] values = new float[3*width*height];
+            avg.getRows(values, 0, height);
+            for(int i=0;i<width*height;i++) {
+                assertEquals((pixels[0][i] >> 16) & 0xff, values[3*i], 0.0f);
+                assertEquals((pixels[0][i] >> 8) & 0xff, values[3*i+1], 0.0f);
+                assertEquals(pixels[0][i] & 0xff, values[3*i+2], 0.0f);
+            }
+        }
+
+        for(int tile_height : new int[]{1, 2, 3, 5, 7, 16}) {
+            Log.d(TAG, "tile_height: " + tile_height);
+            HDRProcessorCPU.FloatImage avg = new HDRProcessorCPU.FloatImage(width, height);
+            for(int i=1;i<pixels.length;i++) {
+                HDRProcessorCPU.Image avg_image = i == 1 ? new HDRProcessorCPU.ArrayImage(pixels[0], width, height) : null;
+                HDRProcessorCPU.processAvg(avg_image, avg, new HDRProcessorCPU.ArrayImage(pixels[i], width, height), offsets_x[i], offsets_y[i], (float)i, 2000.0f, 16000.0f, tile_height);
+            }
+            float [] avg_values = new float[3*width*height];
+            avg.getRows(avg_values, 0, height);
+            assertArrayEquals(avg_ref_values, avg_values, 0.0f);
+
+            HDRProcessorCPU.ArrayImage output = new HDRProcessorCPU.ArrayImage(width, height);
+            int [] histograms = new int[256];
+            HDRProcessorCPU.avgBrighten(avg, output, 8.0f, 1.0f, 1.5f, 0.8f, 20.0f, 100.0f, 250.0f, histograms, 1, tile_height);
+            assertArrayEquals(output_ref.getPixels(), output.getPixels());
+            assertArrayEquals(histograms_ref, histograms);
+        }
+        HDRProcessorCPU.freeScratchBuffers();
+    }
+
+    /** Tests the reduced precision storage modes for the noise reduction accumulator.
+     */
+    @Test
+    public void testAvgCPUStorage() {
+        Log.d(TAG, "testAvgCPUStorage");
+        final int width = 64, height = 48;
+
+        // values exactly representable in each format should be stored exactly
+        {
+            float [] values = new float[3*width];
+            for(int i=0;i<values.length;i++) {
+                values[i] = (i % 256) + ((i % 3 == 0) ? 0.0f : 0.125f);
+            }
+            values[0] = 255.0f;
+            float [] result = new float[values.length];
+            HDRProcessorCPU.FloatImage half_image = new HDRProcessorCPU.FloatImage(width, 1, HDRProcessorCPU.FloatImage.Storage.STORAGE_HALF_FLOAT);
+            half_image.setRows(values, 0, 1);
+            half_image.getRows(result, 0, 1);
+            assertArrayEquals(values, result, 0.0f);
+
+            HDRProcessorCPU.FloatImage fixed_image = new HDRProcessorCPU.FloatImage(width, 1, HDRProcessorCPU.FloatImage.Storage.STORAGE_FIXED16);
+            fixed_image.setRows(values, 0, 1);
+            fixed_image.getRows(result, 0, 1);
+            assertArrayEquals(values, result, 0.5f*255.0f/65535.0f + 1.0e-4f);
+        }
+
+        int [][] pixels = new int[4][];
+        for(int i=0;i<pixels.length;i++) {
+            pixels[i] = createTestImage(width, height, 20+i);
+        }
+        float [][] results = new float[HDRProcessorCPU.FloatImage.Storage.values().length][];
+        int [][] outputs = new int[results.length][];
+        long [] sizes = new long[results.length];
+        for(HDRProcessorCPU.FloatImage.Storage storage : HDRProcessorCPU.FloatImage.Storage.values()) {
+            HDRProcessorCPU.FloatImage avg = new HDRProcessorCPU.FloatImage(width, height, storage);
+            for(int i=1;i<pixels.length;i++) {
+                HDRProcessorCPU.Image avg_image = i == 1 ? new HDRProcessorCPU.ArrayImage(pixels[0], width, height) : null;
+                HDRProcessorCPU.processAvg(avg_image, avg, new HDRProcessorCPU.ArrayImage(pixels[i], width, height), i, -i, (float)i, 2000.0f, 16000.0f);
+            }
+            int index = storage.ordinal();
+            results[index] = new float[3*width*height];
+            avg.getRows(results[index], 0, height);
+            HDRProcessorCPU.ArrayImage output = new HDRProcessorCPU.ArrayImage(width, height);
+            HDRProcessorCPU.avgBrighten(avg, output, 8.0f, 1.0f, 1.5f, 0.8f, 20.0f, 100.0f, 250.0f, null, 1);
+            outputs[index] = output.getPixels();
+            sizes[index] = avg.getSizeInBytes();
+        }
+        HDRProcessorCPU.freeScratchBuffers();
+
+        int float_index = HDRProcessorCPU.FloatImage.Storage.STORAGE_FLOAT.ordinal();
+        assertEquals(12L*width*height, sizes[float_index]);
+        for(HDRProcessorCPU.FloatImage.Storage storage : new HDRProcessorCPU.FloatImage.Storage[]{HDRProcessorCPU.FloatImage.Storage.STORAGE_HALF_FLOAT, HDRProcessorCPU.FloatImage.Storage.STORAGE_FIXED16}) {
+            int index = storage.ordinal();
+            assertEquals(6L*width*height, sizes[index]);
+            // half floats have a precision of 1/8 for values in [128, 256), so each merge may have an
+            // error of up to 1/16, and these can accumulate (though are scaled down by later merges)
+            float tolerance = storage == HDRProcessorCPU.FloatImage.Storage.STORAGE_HALF_FLOAT ? 0.25f : 0.01f;
+            assertArrayEquals(results[float_index], results[index], tolerance);
+            int max_diff = 0;
+            for(int i=0;i<width*height;i++) {
+                for(int c=0;c<3;c++) {
+                    int value0 = (outputs[float_index][i] >> (8*c)) & 0xff;
+                    int value1 = (outputs[index][i] >> (8*c)) & 0xff;
+                    max_diff = Math.max(max_diff, Math.abs(value0 - value1));
+                }
+            }
+            Log.d(TAG, storage + " max_diff: " + max_diff);
+            assertTrue(max_diff <= 3);
+        }
+    }
+
+    /** Reference implementation of the histogram_compute.rs kernels for a single pixel.
+     */
+    private static void addHistogramReference(int [] histogram, HistogramEngine.Type type, int color) {
+        int r = (color >> 16) & 0xff;
+        int g = (color >> 8) & 0xff;
+        int b = color & 0xff;
+        switch( type ) {
+            case TYPE_RGB:
+                histogram[r]++;
+                histogram[256+g]++;
+                histogram[512+b]++;
+                break;
+            case TYPE_LUMINANCE:
+                histogram[Math.min((int)(0.299f*r + 0.587f*g + 0.114f*b + 0.5f), 255)]++;
+                break;
+            case TYPE_VALUE:
+                histogram[Math.max(r, Math.max(g, b))]++;
+                break;
+            case TYPE_INTENSITY:
+                histogram[Math.min((int)((r + g + b)/3.0f + 0.5f), 255)]++;
+                break;
+            case TYPE_LIGHTNESS:
+                histogram[Math.min((int)((Math.min(r, Math.min(g, b)) + Math.max(r, Math.max(g, b)))/2.0f + 0.5f), 255)]++;
+                break;
+        }
+    }
+
+    /** Tests HistogramEngine against a simple single threaded loop, for each histogram type, and
+     *  with regions of interest and sub-sampling.
+     */
+    @Test
+    public void testHistogramEngine() {
+        Log.d(TAG, "testHistogramEngine");
+        final int width = 83, height = 67;
+        int [] pixels = createTestImage(width, height, 5);
+        HDRProcessorCPU.ArrayImage image = new HDRProcessorCPU.ArrayImage(pixels, width, height);
+        final int [][] rois = new int[][]{ {0, 0, width, height}, {5, 7, 40, 31}, {width-1, height-1, 1, 1}, {10, 0, 3, height} };
+        final int [] steps = new int[]{1, 2, 3, 7, 100};
+        for(HistogramEngine.Type type : HistogramEngine.Type.values()) {
+            for(int [] roi : rois) {
+                for(int step : steps) {
+                    int [] expected = new int[HistogramEngine.getNBins(type)];
+                    for(int y=roi[1];y<roi[1]+roi[3];y+=step) {
+                        for(int x=roi[0];x<roi[0]+roi[2];x+=step) {
+                            addHistogramReference(expected, type, pixels[y*width+x]);
+                        }
+                    }
+                    // call twice, to check that the reused partial bins are cleared
+                    for(int i=0;i<2;i++) {
+                        int [] histogram = HistogramEngine.computeHistogram(image, type, roi[0], roi[1], roi[2], roi[3], step);
+                        assertArrayEquals(expected, histogram);
+                    }
+                }
+            }
+            int [] expected = new int[HistogramEngine.getNBins(type)];
+            for(int pixel : pixels) {
+                addHistogramReference(expected, type, pixel);
+            }
+            assertArrayEquals(expected, HistogramEngine.computeHistogram(image, type));
+        }
+
+        // sampled grid, as used by HDRProcessor.computeMedianLuminance()
+        {
+            int [] expected = new int[256];
+            int roi_x = 4, roi_y = 6, roi_width = 70, roi_height = 50;
+            for(int y=0;y<10;y++) {
+                int y_coord = roi_y + (int)(((y + 1.0) / 11.0) * roi_height);
+                for(int x=0;x<10;x++) {
+                    int x_coord = roi_x + (int)(((x + 1.0) / 11.0) * roi_width);
+                    addHistogramReference(expected, HistogramEngine.Type.TYPE_VALUE, pixels[y_coord*width+x_coord]);
+                }
+            }
+            int [] histogram = HistogramEngine.computeHistogramSampled(image, HistogramEngine.Type.TYPE_VALUE, roi_x, roi_y, roi_width, roi_height, 10, 10);
+            assertArrayEquals(expected, histogram);
+        }
+
+        // floating point images
+        {
+            HDRProcessorCPU.FloatImage float_image = new HDRProcessorCPU.FloatImage(width, height);
+            float [] values = new float[3*width*height];
+            java.util.Random random = new java.util.Random(0);
+            for(int i=0;i<values.length;i++) {
+                values[i] = random.nextFloat() * 270.0f - 5.0f;
+            }
+            float_image.setRows(values, 0, height);
+            int [] expected_value = new int[256];
+            int [] expected_intensity = new int[256];
+            for(int i=0;i<values.length;i+=3) {
+                int max_value = 0;
+                for(int c=0;c<3;c++) {
+                    max_value = Math.max(max_value, Math.max(0, Math.min((int)(values[i+c]+0.5f), 255)));
+                }
+                expected_value[max_value]++;
+                expected_intensity[Math.max(0, Math.min((int)((values[i] + values[i+1] + values[i+2])/3.0f + 0.5f), 255))]++;
+            }
+            assertArrayEquals(expected_value, HistogramEngine.computeHistogram(float_image, HistogramEngine.Type.TYPE_VALUE));
+            assertArrayEquals(expected_intensity, HistogramEngine.computeHistogram(float_image, HistogramEngine.Type.TYPE_INTENSITY));
+        }
+        HDRProcessorCPU.freeScratchBuffers();
+    }
+
+    /** Returns a gyro rotation matrix for the device rotated right by angle radians.
+     */
+    private static float [] createYawMatrix(double angle) {
+        float c = (float)Math.cos(-angle);
+        float s = (float)Math.sin(-angle);
+        return new float[]{c, 0, s, 0, 1, 0, -s, 0, c};
+    }
+
+    /** Creates a panorama from frames cropped from a wider scene, and checks the result matches
+     *  the scene. The angle of view is small, so that the cylindrical projection is close to the
+     *  identity.
+     * @param gyro_error Error in pixels to add to the rotation of each frame, which should be
+     *                   corrected by feature matching.
+     */
+    private static void checkPanorama(int [] scene, int scene_width, int height, int frame_width, int shift, int n_frames, boolean left_to_right, int gyro_error) {
+        final float view_angle = 2.0f;
+        double focal_length = (frame_width/2.0) / Math.tan(Math.toRadians(view_angle/2.0));
+        // view_angle_y is only used to decide which angle matches the frame width
+        PanoramaProcessor processor = new PanoramaProcessor(frame_width, height, view_angle, view_angle*height/frame_width, true);
+        int [] frame = new int[frame_width*height];
+        for(int i=0;i<n_frames;i++) {
+            int frame_x = left_to_right ? i*shift : (n_frames-1-i)*shift;
+            for(int y=0;y<height;y++) {
+                System.arraycopy(scene, y*scene_width + frame_x, frame, y*frame_width, frame_width);
+            }
+            double angle = i*(shift + gyro_error)/focal_length;
+            processor.addFrame(new HDRProcessorCPU.ArrayImage(frame, frame_width, height), createYawMatrix(left_to_right ? angle : -angle));
+        }
+        processor.finish();
+        int width = processor.getWidth();
+        Log.d(TAG, "panorama size: " + width + " x " + processor.getHeight());
+        assertEquals((n_frames-1)*shift + frame_width, width);
+        assertEquals(height, processor.getHeight());
+        HDRProcessorCPU.ArrayImage output = new HDRProcessorCPU.ArrayImage(width, height);
+        processor.writeResult(output);
+        int max_diff = 0;
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int c0 = scene[y*scene_width+x];
+                int c1 = output.getPixels()[y*width+x];
+                for(int shift_c=0;shift_c<=16;shift_c+=8) {
+                    max_diff = Math.max(max_diff, Math.abs(((c0 >> shift_c) & 0xff) - ((c1 >> shift_c) & 0xff)));
+                }
+            }
+        }
+        Log.d(TAG, "max_diff: " + max_diff);
+        assertTrue(max_diff <= 2);
+    }
+
+    /** Tests PanoramaProcessor on frames taken from a single scene, in both directions.
+     */
+    @Test
+    public void testPanoramaProcessor() {
+        Log.d(TAG, "testPanoramaProcessor");
+        final int frame_width = 64, height = 48, shift = 40, n_frames = 4;
+        final int scene_width = (n_frames-1)*shift + frame_width;
+        int [] scene = createBlockTestImage(scene_width, height, 6, 7);
+        checkPanorama(scene, scene_width, height, frame_width, shift, n_frames, true, 0);
+        checkPanorama(scene, scene_width, height, frame_width, shift, n_frames, false, 0);
+        // gyro errors should be corrected by the feature matching
+        checkPanorama(scene, scene_width, height, frame_width, shift, n_frames, true, 3);
+        checkPanorama(scene, scene_width, height, frame_width, shift, n_frames, false, -3);
+        HDRProcessorCPU.freeScratchBuffers();
+    }
+
+    /** Tests PyramidBlender: collapsing a Laplacian pyramid gives back the input, blending takes
+     *  each side of the seam from the corresponding image, and repeated blends reuse the pooled
+     *  buffers.
+     */
+    @Test
+    public void testPyramidBlender() {
+        Log.d(TAG, "testPyramidBlender");
+        final int width = 53, height = 37;
+        int [] pixels0 = createTestImage(width, height, 1);
+        int [] pixels1 = createTestImage(width, height, 2);
+        PyramidBlender blender = new PyramidBlender();
+        int n_levels = PyramidBlender.getNLevels(width, height, 4, 5);
+        assertEquals(4, n_levels);
+
+        PyramidBlender.Pyramid pyramid = blender.createLaplacianPyramid(pixels0, width, height, n_levels);
+        assertEquals(n_levels, pyramid.getNLevels());
+        assertEquals(27, pyramid.getWidth(1));
+        assertEquals(19, pyramid.getHeight(1));
+        int [] result = new int[width*height];
+        blender.collapsePyramid(pyramid, result);
+        blender.release(pyramid);
+        for(int i=0;i<width*height;i++) {
+            assertEquals(pixels0[i] | 0xff000000, result[i]);
+        }
+
+        int [] best_path = new int[height];
+        for(int y=0;y<height;y++) {
+            best_path[y] = width/2 + (y % 3) - 1;
+        }
+        int [] blend_widths = new int[]{2, 2, 2, 2};
+        // blending an image with itself should leave it unchanged
+        blender.blend(pixels0, pixels0, result, width, height, best_path, blend_widths);
+        for(int i=0;i<width*height;i++) {
+            assertEquals(pixels0[i] | 0xff000000, result[i]);
+        }
+        int n_allocations = blender.getNAllocations();
+        Log.d(TAG, "n_allocations: " + n_allocations);
+        Log.d(TAG, "pool size: " + blender.getPoolSizeInBytes());
+
+        int [] pixels0_flat = new int[width*height];
+        int [] pixels1_flat = new int[width*height];
+        for(int i=0;i<width*height;i++) {
+            pixels0_flat[i] = 0x204060;
+            pixels1_flat[i] = 0xc0a080;
+        }
+        for(int pass=0;pass<2;pass++) {
+            int [] input0 = pass == 0 ? pixels0_flat : pixels0;
+            int [] input1 = pass == 0 ? pixels1_flat : pixels1;
+            blender.blend(input0, input1, result, width, height, best_path, blend_widths);
+            if( pass == 0 ) {
+                // with flat images, pixels far enough from the seam are unaffected by the blend
+                for(int y=0;y<height;y++) {
+                    for(int x=0;x<4;x++) {
+                        assertEquals(0xff204060, result[y*width + x]);
+                        assertEquals(0xffc0a080, result[y*width + width-1-x]);
+                    }
+                }
+            }
+        }
+        // no more allocations after warm-up
+        assertEquals(n_allocations, blender.getNAllocations());
+
+        blender.clearPool();
+        assertEquals(0, blender.getPoolSizeInBytes());
+    }
+
+    private static int [] cropTestImage(int [] pixels, int width, int crop_x, int crop_y, int crop_width, int crop_height) {
+        int [] cropped = new int[crop_width*crop_height];
+        for(int y=0;y<crop_height;y++) {
+            System.arraycopy(pixels, (y+crop_y)*width + crop_x, cropped, y*crop_width, crop_width);
+        }
+        return cropped;
+    }
+
+    /** Tests FeatureDetector: features are limited per cell and sorted, and matching two crops of
+     *  the same scene recovers the offset between them.
+     */
+    @Test
+    public void testFeatureDetector() {
+        Log.d(TAG, "testFeatureDetector");
+        final int scene_width = 160, scene_height = 120;
+        final int width = 128, height = 96;
+        final int shift_x = 5, shift_y = 3;
+        int [] scene = createBlockTestImage(scene_width, scene_height, 6, 11);
+        int [] frame0 = cropTestImage(scene, scene_width, 10, 10, width, height);
+        int [] frame1 = cropTestImage(scene, scene_width, 10+shift_x, 10+shift_y, width, height);
+        float [] grey0 = FeatureDetector.createGreyscale(frame0, width, height, 1);
+        float [] grey1 = FeatureDetector.createGreyscale(frame1, width, height, 1);
+
+        final int cell_size = 16, max_per_cell = 3;
+        FeatureDetector.Features features0 = FeatureDetector.detectFeatures(grey0, width, height, 0, width, cell_size, max_per_cell, 0);
+        FeatureDetector.Features features1 = FeatureDetector.detectFeatures(grey1, width, height, 0, width, cell_size, max_per_cell, 0);
+        Log.d(TAG, "n_features: " + features0.getNFeatures() + " , " + features1.getNFeatures());
+        assertTrue(features0.getNFeatures() > 50);
+        int [] cell_counts = new int[(width/cell_size)*(height/cell_size)];
+        for(int i=0;i<features0.getNFeatures();i++) {
+            if( i > 0 ) {
+                assertTrue(features0.getResponse(i) <= features0.getResponse(i-1));
+            }
+            assertTrue(features0.getResponse(i) > 0.0f);
+            int cell = (features0.getY(i)/cell_size)*(width/cell_size) + features0.getX(i)/cell_size;
+            cell_counts[cell]++;
+            assertTrue(cell_counts[cell] <= max_per_cell);
+        }
+
+        // limiting the number of features keeps the strongest
+        FeatureDetector.Features strongest = FeatureDetector.detectFeatures(grey0, width, height, 0, width, cell_size, max_per_cell, 10);
+        assertEquals(10, strongest.getNFeatures());
+        for(int i=0;i<10;i++) {
+            assertEquals(features0.getX(i), strongest.getX(i));
+            assertEquals(features0.getY(i), strongest.getY(i));
+        }
+
+        // columns outside of the requested range have no features
+        FeatureDetector.Features right = FeatureDetector.detectFeatures(grey0, width, height, width/2, width, cell_size, max_per_cell, 0);
+        for(int i=0;i<right.getNFeatures();i++) {
+            assertTrue(right.getX(i) >= width/2);
+        }
+
+        // predict the offset with an error, that's within the search radius
+        FeatureDetector.Matches matches = FeatureDetector.matchFeatures(grey0, features0, grey1, features1, width, height, shift_x-2, shift_y+1, 4, 4);
+        int n_correct = 0;
+        for(int i=0;i<matches.getNMatches();i++) {
+            int index0 = matches.getIndex0(i);
+            int index1 = matches.getIndex1(i);
+            if( features0.getX(index0) - features1.getX(index1) == shift_x && features0.getY(index0) - features1.getY(index1) == shift_y ) {
+                n_correct++;
+            }
+        }
+        Log.d(TAG, "n_matches: " + matches.getNMatches());
+        Log.d(TAG, "n_correct: " + n_correct);
+        assertTrue(matches.getNMatches() > 20);
+        assertTrue(n_correct >= (3*matches.getNMatches())/4);
+    }
+
+    /** Benchmarks FeatureDetector on a greyscale image downscaled from 12MP, as used for panorama.
+     */
+    @Test
+    public void testFeatureDetectorPerformance() {
+        Log.d(TAG, "testFeatureDetectorPerformance");
+        final int width = 4000, height = 3000, scale = 4;
+        int [] scene = createTestImage(width+8, height+4, 3);
+        int [] frame0 = cropTestImage(scene, width+8, 0, 0, width, height);
+        int [] frame1 = cropTestImage(scene, width+8, 8, 4, width, height);
+        final int grey_width = width/scale, grey_height = height/scale;
+        long time_s = System.currentTimeMillis();
+        float [] grey0 = FeatureDetector.createGreyscale(frame0, width, height, scale);
+        float [] grey1 = FeatureDetector.createGreyscale(frame1, width, height, scale);
+        long greyscale_time = System.currentTimeMillis() - time_s;
+        time_s = System.currentTimeMillis();
+        FeatureDetector.Features features0 = FeatureDetector.detectFeatures(grey0, grey_width, grey_height, 0, grey_width, 32, 4, 0);
+        FeatureDetector.Features features1 = FeatureDetector.detectFeatures(grey1, grey_width, grey_height, 0, grey_width, 32, 4, 0);
+        long detect_time = System.currentTimeMillis() - time_s;
+        time_s = System.currentTimeMillis();
+        FeatureDetector.Matches matches = FeatureDetector.matchFeatures(grey0, features0, grey1, features1, grey_width, grey_height, 0, 0, 16, 4);
+        long match_time = System.currentTimeMillis() - time_s;
+        Log.d(TAG, "n_features: " + features0.getNFeatures() + " , " + features1.getNFeatures());
+        Log.d(TAG, "n_matches: " + matches.getNMatches());
+        Log.d(TAG, "time for greyscale: " + greyscale_time + "ms");
+        Log.d(TAG, "time for detection: " + detect_time + "ms");
+        Log.d(TAG, "time for matching: " + match_time + "ms");
+        // generous limit, this is to catch serious regressions rather than to be a precise benchmark
+        assertTrue(greyscale_time + detect_time + match_time < 10000);
+    }
+
+    /** Returns the image blurred with a box filter of the supplied radius.
+     */
+    private static int [] blurTestImage(int [] pixels, int width, int height, int radius) {
+        int [] blurred = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int r = 0, g = 0, b = 0, count = 0;
+                for(int sy=Math.max(y-radius, 0);sy<=Math.min(y+radius, height-1);sy++) {
+                    for(int sx=Math.max(x-radius, 0);sx<=Math.min(x+radius, width-1);sx++) {
+                        int color = pixels[sy*width+sx];
+                        r += (color >> 16) & 0xff;
+                        g += (color >> 8) & 0xff;
+                        b += color & 0xff;
+                        count++;
+                    }
+                }
+                blurred[y*width+x] = 0xff000000 | ((r/count) << 16) | ((g/count) << 8) | (b/count);
+            }
+        }
+        return blurred;
+    }
+
+    /** Tests that HDRProcessorCPU.computeSharpness() decreases as an image is blurred, and is
+     *  independent of the tile heights.
+     */
+    @Test
+    public void testComputeSharpness() {
+        Log.d(TAG, "testComputeSharpness");
+        final int width = 97, height = 83;
+        int [] pixels = createBlockTestImage(width, height, 4, 5);
+        float flat_sharpness = HDRProcessorCPU.computeSharpness(new HDRProcessorCPU.ArrayImage(new int[width*height], width, height));
+        assertEquals(0.0f, flat_sharpness, 1.0e-5f);
+        float prev_sharpness = HDRProcessorCPU.computeSharpness(new HDRProcessorCPU.ArrayImage(pixels, width, height));
+        Log.d(TAG, "sharpness: " + prev_sharpness);
+        for(int radius=1;radius<=3;radius++) {
+            float sharpness = HDRProcessorCPU.computeSharpness(new HDRProcessorCPU.ArrayImage(blurTestImage(pixels, width, height, radius), width, height));
+            Log.d(TAG, "sharpness with blur radius " + radius + ": " + sharpness);
+            assertTrue(sharpness < prev_sharpness);
+            prev_sharpness = sharpness;
+        }
+        // a single row or column is still valid
+        HDRProcessorCPU.computeSharpness(new HDRProcessorCPU.ArrayImage(pixels, width, 1));
+        HDRProcessorCPU.computeSharpness(new HDRProcessorCPU.ArrayImage(new int[height], 1, height));
+        HDRProcessorCPU.freeScratchBuffers();
+    }
+
+    /** Tests that BurstSelector keeps the highest scoring images, in capture order, and discards
+     *  the others as soon as they are scored.
+     */
+    @Test
+    public void testBurstSelector() throws InterruptedException {
+        Log.d(TAG, "testBurstSelector");
+        // the score of each image is its first byte
+        final byte [] scores = new byte[]{3, 9, 1, 7, 7, 2, 8, 5};
+        BurstSelector selector = new BurstSelector(3, new BurstSelector.Scorer() {
+            @Override
+            public float computeScore(byte [] jpeg) {
+                return jpeg[0];
+            }
+        });
+        List<byte []> images = new ArrayList<>();
+        for(byte score : scores) {
+            byte [] image = new byte[]{score};
+            images.add(image);
+            selector.addImage(image, new Date());
+        }
+        assertEquals(scores.length, selector.getNImages());
+        final List<List<BurstSelector.Frame>> results = new ArrayList<>();
+        final java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(1);
+        selector.finish(new BurstSelector.Callback() {
+            @Override
+            public void onSelected(List<BurstSelector.Frame> frames) {
+                results.add(frames);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, java.util.concurrent.TimeUnit.SECONDS));
+        List<BurstSelector.Frame> kept = results.get(0);
+        assertEquals(3, kept.size());
+        // of the two images with score 7, the earlier is kept
+        assertEquals(1, kept.get(0).index);
+        assertEquals(3, kept.get(1).index);
+        assertEquals(6, kept.get(2).index);
+        for(BurstSelector.Frame frame : kept) {
+            assertSame(images.get(frame.index), frame.getData());
+            assertEquals(scores[frame.index], frame.getScore(), 0.0f);
+        }
+
+        // a burst with fewer images than n_keep keeps them all
+        selector = new BurstSelector(3, new BurstSelector.Scorer() {
+            @Override
+            public float computeScore(byte [] jpeg) {
+                throw new RuntimeException("failed to score");
+            }
+        });
+        selector.addImage(new byte[]{0}, new Date());
+        selector.addImage(new byte[]{1}, new Date());
+        final java.util.concurrent.CountDownLatch latch2 = new java.util.concurrent.CountDownLatch(1);
+        results.clear();
+        selector.finish(new BurstSelector.Callback() {
+            @Override
+            public void onSelected(List<BurstSelector.Frame> frames) {
+                results.add(frames);
+                latch2.countDown();
+            }
+        });
+        assertTrue(latch2.await(10, java.util.concurrent.TimeUnit.SECONDS));
+        assertEquals(2, results.get(0).size());
+
+        // adding images doesn't block while they're being scored; instead they're charged to the memory budget,
+        // and spilled to disk once that is used up
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testBurstSelector");
+        SpillStore spill_store = new SpillStore(dir, 1000, 0);
+        SaveMemoryBudget budget = new SaveMemoryBudget(300);
+        final java.util.concurrent.CountDownLatch scoring_latch = new java.util.concurrent.CountDownLatch(1);
+        selector = new BurstSelector(2, new BurstSelector.Scorer() {
+            @Override
+            public float computeScore(byte [] jpeg) {
+                try {
+                    scoring_latch.await();
+                }
+                catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return jpeg[0];
+            }
+        }, budget, spill_store);
+        final int n_images = 6;
+        for(int i=0;i<n_images;i++) {
+            byte [] image = new byte[100];
+            image[0] = (byte)(i % 3); // so images 2 and 5 are the sharpest
+            image[99] = (byte)i;
+            selector.addImage(image, new Date());
+        }
+        assertEquals(n_images, selector.getNImages());
+        assertEquals(300, budget.getUsedBytes());
+        assertEquals(300, spill_store.getNSpilledBytes());
+        final java.util.concurrent.CountDownLatch latch3 = new java.util.concurrent.CountDownLatch(1);
+        results.clear();
+        selector.finish(new BurstSelector.Callback() {
+            @Override
+            public void onSelected(List<BurstSelector.Frame> frames) {
+                results.add(frames);
+                latch3.countDown();
+            }
+        });
+        scoring_latch.countDown();
+        assertTrue(latch3.await(10, java.util.concurrent.TimeUnit.SECONDS));
+        kept = results.get(0);
+        assertEquals(2, kept.size());
+        assertEquals(2, kept.get(0).index);
+        assertEquals(5, kept.get(1).index);
+        for(BurstSelector.Frame frame : kept) {
+            // the spilled image has been read back
+            assertEquals(100, frame.getData().length);
+            assertEquals(frame.index, frame.getData()[99]);
+        }
+        // the kept images are no longer charged, as they're charged by the ImageSaver once saved
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, spill_store.getNSpilledBytes());
+
+        // cancelling releases everything held
+        selector = new BurstSelector(1, new BurstSelector.Scorer() {
+            @Override
+            public float computeScore(byte [] jpeg) {
+                return jpeg[0];
+            }
+        }, budget, spill_store);
+        selector.addImage(new byte[100], new Date());
+        selector.cancel();
+        for(int i=0;i<100 && budget.getUsedBytes() > 0;i++) {
+            Thread.sleep(10); // wait for scoring to complete
+        }
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    /** Benchmarks the CPU HDR engine on a 12MP image, to catch performance regressions.
+     */
+    @Test
+    public void testHDRProcessorCPUPerformance() {
+        Log.d(TAG, "testHDRProcessorCPUPerformance");
+        final int width = 4000, height = 3000;
+        int [] base = createTestImage(width, height, 2);
+        HDRProcessorCPU.Image [] images = new HDRProcessorCPU.Image[]{
+                new HDRProcessorCPU.ArrayImage(scaleTestImage(base, 0.5f), width, height),
+                new HDRProcessorCPU.ArrayImage(base, width, height),
+                new HDRProcessorCPU.ArrayImage(scaleTestImage(base, 2.0f), width, height) };
+        float [] parameter_A = new float[]{2.0f, 1.0f, 0.5f};
+        float [] parameter_B = new float[]{0.0f, 0.0f, 0.0f};
+        HDRProcessorCPU.TonemapParameters params = new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, 255.0f, 2.0f, 11.2f);
+        int [] histograms = new int[4*4*256];
+        long time_s = System.currentTimeMillis();
+        HDRProcessorCPU.processHDR(images, 1, new int[3], new int[3], parameter_A, parameter_B, false, params, images[1], histograms, 4);
+        HDRProcessorCPU.adjustHistogram(images[1], images[1], histograms, 0.5f, 4, true);
+        long time_taken = System.currentTimeMillis() - time_s;
+        Log.d(TAG, "time for 12MP HDR on " + TileExecutor.getNThreads() + " threads: " + time_taken + "ms");
+        // generous limit, this is to catch serious regressions rather than to be a precise benchmark
+        assertTrue(time_taken < 30000);
+    }
 }